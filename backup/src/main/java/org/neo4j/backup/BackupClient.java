@@ -19,13 +19,20 @@
  */
 package org.neo4j.backup;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.neo4j.com.Client;
+import org.neo4j.com.ConnectionLostHandler;
+import org.neo4j.com.FileRangeWriter;
 import org.neo4j.com.ObjectSerializer;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Response;
+import org.neo4j.com.Serializer;
+import org.neo4j.com.StoreFileListing;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.ToNetworkStoreWriter;
@@ -35,17 +42,45 @@ import org.neo4j.kernel.impl.util.StringLogger;
 class BackupClient extends Client<TheBackupInterface> implements TheBackupInterface
 {
     public BackupClient( String hostNameOrIp, int port, StringLogger logger, StoreId storeId )
+    {
+        this( hostNameOrIp, port, logger, storeId, false );
+    }
+
+    private final byte protocolVersion;
+
+    public BackupClient( String hostNameOrIp, int port, StringLogger logger, StoreId storeId, boolean compressed )
+    {
+        this( hostNameOrIp, port, logger, storeId, compressed, BackupServer.PROTOCOL_VERSION );
+    }
+
+    /**
+     * @param protocolVersion the version of the backup protocol to speak, for
+     * servers which don't know about the latest one.
+     */
+    public BackupClient( String hostNameOrIp, int port, StringLogger logger, StoreId storeId, boolean compressed,
+            byte protocolVersion )
     {
         super( hostNameOrIp, port, logger, storeId, BackupServer.FRAME_LENGTH,
-                BackupServer.PROTOCOL_VERSION, 40,
+                protocolVersion, 40,
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
                 Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
-                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+                Client.DEFAULT_MULTIPLEXED_CHANNELS, compressed, ConnectionLostHandler.NO_ACTION );
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * @return whether or not the protocol version spoken has
+     * {@link #listStoreFiles(RequestContext)} and the rest of a parallel store copy.
+     */
+    public boolean supportsParallelStoreCopy()
+    {
+        return protocolVersion >= BackupServer.PARALLEL_STORE_COPY_PROTOCOL_VERSION;
     }
 
     public Response<Void> fullBackup( StoreWriter storeWriter )
     {
         return sendRequest( BackupRequestType.FULL_BACKUP, RequestContext.EMPTY,
-                Protocol.EMPTY_SERIALIZER, new Protocol.FileStreamsDeserializer( storeWriter ) );
+                Protocol.STORE_COPY_SERIALIZER, new Protocol.FileStreamsDeserializer( storeWriter ) );
     }
 
     public Response<Void> incrementalBackup( RequestContext context )
@@ -54,10 +89,44 @@ class BackupClient extends Client<TheBackupInterface> implements TheBackupInterf
                 Protocol.VOID_DESERIALIZER );
     }
 
+    public Response<StoreFileListing> listStoreFiles( RequestContext context )
+    {
+        return sendRequest( BackupRequestType.LIST_STORE_FILES, context, Protocol.EMPTY_SERIALIZER,
+                StoreFileListing.DESERIALIZER );
+    }
+
+    public Response<Void> copyStoreFile( RequestContext context, final int sessionId, final String path,
+            final long position, final long length, FileRangeWriter writer )
+    {
+        return sendRequest( BackupRequestType.COPY_STORE_FILE, context, new Serializer()
+        {
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( sessionId );
+                Protocol.writeString( buffer, path );
+                buffer.writeLong( position );
+                buffer.writeLong( length );
+            }
+        }, new Protocol.FileRangeDeserializer( writer, path, position ) );
+    }
+
+    public Response<Void> finishStoreCopy( RequestContext context, final int sessionId )
+    {
+        return sendRequest( BackupRequestType.FINISH_STORE_COPY, context, new Serializer()
+        {
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( sessionId );
+            }
+        }, Protocol.VOID_DESERIALIZER );
+    }
+
     @Override
     protected boolean shouldCheckStoreId( RequestType<TheBackupInterface> type )
     {
-        return type != BackupRequestType.FULL_BACKUP;
+        // There's no store to check against until it has been copied
+        return type != BackupRequestType.FULL_BACKUP && type != BackupRequestType.LIST_STORE_FILES &&
+                type != BackupRequestType.COPY_STORE_FILE && type != BackupRequestType.FINISH_STORE_COPY;
     }
 
     public static enum BackupRequestType implements RequestType<TheBackupInterface>
@@ -67,7 +136,8 @@ class BackupClient extends Client<TheBackupInterface> implements TheBackupInterf
             public Response<Void> call( TheBackupInterface master, RequestContext context,
                     ChannelBuffer input, ChannelBuffer target )
             {
-                return master.fullBackup( new ToNetworkStoreWriter( target ) );
+                return master.fullBackup( new ToNetworkStoreWriter( target,
+                        Protocol.readStoreCopyCapabilities( input ) ) );
             }
         }, Protocol.VOID_SERIALIZER ),
         INCREMENTAL_BACKUP( new TargetCaller<TheBackupInterface, Void>()
@@ -77,6 +147,32 @@ class BackupClient extends Client<TheBackupInterface> implements TheBackupInterf
             {
                 return master.incrementalBackup( context );
             }
+        }, Protocol.VOID_SERIALIZER ),
+        LIST_STORE_FILES( new TargetCaller<TheBackupInterface, StoreFileListing>()
+        {
+            public Response<StoreFileListing> call( TheBackupInterface master, RequestContext context,
+                    ChannelBuffer input, ChannelBuffer target )
+            {
+                return master.listStoreFiles( context );
+            }
+        }, StoreFileListing.SERIALIZER ),
+        COPY_STORE_FILE( new TargetCaller<TheBackupInterface, Void>()
+        {
+            public Response<Void> call( TheBackupInterface master, RequestContext context,
+                    ChannelBuffer input, ChannelBuffer target )
+            {
+                return master.copyStoreFile( context, input.readInt(), Protocol.readString( input ),
+                        input.readLong(), input.readLong(),
+                        new ToNetworkStoreWriter( target, Protocol.STORE_COPY_RAW_FILES ) );
+            }
+        }, Protocol.VOID_SERIALIZER ),
+        FINISH_STORE_COPY( new TargetCaller<TheBackupInterface, Void>()
+        {
+            public Response<Void> call( TheBackupInterface master, RequestContext context,
+                    ChannelBuffer input, ChannelBuffer target )
+            {
+                return master.finishStoreCopy( context, input.readInt() );
+            }
         }, Protocol.VOID_SERIALIZER )
 
         ;
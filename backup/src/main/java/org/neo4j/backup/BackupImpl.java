@@ -20,9 +20,12 @@
 
 package org.neo4j.backup;
 
+import org.neo4j.com.FileRangeWriter;
 import org.neo4j.com.ServerUtil;
 import org.neo4j.com.Response;
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.StoreCopySessions;
+import org.neo4j.com.StoreFileListing;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting;
 import org.neo4j.kernel.GraphDatabaseAPI;
@@ -30,10 +33,12 @@ import org.neo4j.kernel.GraphDatabaseAPI;
 class BackupImpl implements TheBackupInterface
 {
     private final GraphDatabaseAPI graphDb;
+    private final StoreCopySessions storeCopySessions;
 
     public BackupImpl( GraphDatabaseAPI graphDb )
     {
         this.graphDb = graphDb;
+        this.storeCopySessions = new StoreCopySessions( graphDb, false, StoreCopySessions.DEFAULT_SESSION_TIMEOUT );
     }
     
     public Response<Void> fullBackup( StoreWriter writer )
@@ -47,6 +52,23 @@ class BackupImpl implements TheBackupInterface
     {
         return packResponse( context );
     }
+
+    public Response<StoreFileListing> listStoreFiles( RequestContext context )
+    {
+        return ServerUtil.packResponseWithoutTransactionStream( graphDb, context, storeCopySessions.start() );
+    }
+
+    public Response<Void> copyStoreFile( RequestContext context, int sessionId, String path, long position,
+            long length, FileRangeWriter writer )
+    {
+        storeCopySessions.copy( sessionId, path, position, length, writer );
+        return ServerUtil.packResponseWithoutTransactionStream( graphDb, context, null );
+    }
+
+    public Response<Void> finishStoreCopy( RequestContext context, int sessionId )
+    {
+        return packResponse( storeCopySessions.finish( sessionId ) );
+    }
     
     private Response<Void> packResponse( RequestContext context )
     {
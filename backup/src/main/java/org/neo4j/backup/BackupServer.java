@@ -19,11 +19,19 @@
  */
 package org.neo4j.backup;
 
+import static org.neo4j.backup.BackupClient.BackupRequestType.COPY_STORE_FILE;
+import static org.neo4j.backup.BackupClient.BackupRequestType.FINISH_STORE_COPY;
+import static org.neo4j.backup.BackupClient.BackupRequestType.FULL_BACKUP;
+import static org.neo4j.backup.BackupClient.BackupRequestType.LIST_STORE_FILES;
+
 import org.jboss.netty.channel.Channel;
 import org.neo4j.backup.BackupClient.BackupRequestType;
 import org.neo4j.com.Client;
+import org.neo4j.com.LaneRequestScheduler;
+import org.neo4j.com.LaneRequestScheduler.Lane;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.RequestScheduler;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Server;
 import org.neo4j.com.TxChecksumVerifier;
@@ -31,16 +39,30 @@ import org.neo4j.kernel.impl.util.StringLogger;
 
 class BackupServer extends Server<TheBackupInterface, Object>
 {
-    static final byte PROTOCOL_VERSION = 1;
+    /* Version 1 first version
+     * Version 2 adds parallel store copy */
+    static final byte PROTOCOL_VERSION = 2;
+    static final byte PARALLEL_STORE_COPY_PROTOCOL_VERSION = 2;
     private final BackupRequestType[] contexts = BackupRequestType.values();
     static int DEFAULT_PORT = DEFAULT_BACKUP_PORT;
     static final int FRAME_LENGTH = Protocol.MEGA*4;
+    static final int FULL_BACKUP_THREADS = 2;
     
     public BackupServer( TheBackupInterface requestTarget, int port, StringLogger logger )
     {
         super( requestTarget, port, logger, FRAME_LENGTH, PROTOCOL_VERSION,
                 DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
-                TxChecksumVerifier.ALWAYS_MATCH );
+                TxChecksumVerifier.ALWAYS_MATCH, requestScheduler( port ) );
+    }
+
+    private static RequestScheduler requestScheduler( int port )
+    {
+        // Full backups run at low priority and a few at a time, so that they
+        // interfere as little as possible with the database they're taken of
+        String name = BackupServer.class.getSimpleName() + ":" + port;
+        return new LaneRequestScheduler( Lane.unbounded( name, Thread.NORM_PRIORITY ) )
+                .lane( Lane.bounded( name + " full backup", FULL_BACKUP_THREADS, Thread.MIN_PRIORITY ),
+                        FULL_BACKUP, LIST_STORE_FILES, COPY_STORE_FILE, FINISH_STORE_COPY );
     }
 
     @Override
@@ -40,6 +40,8 @@ public class BackupTool
     private static final String INCREMENTAL = "incremental";
     private static final String FULL = "full";
     private static final String VERIFY = "verify";
+    private static final String STREAMS = "streams";
+    private static final String COMPRESS = "compress";
     public static final String DEFAULT_SCHEME = "single";
 
     public static void main( String[] args )
@@ -52,6 +54,8 @@ public class BackupTool
         String from = arguments.get( FROM, null );
         String to = arguments.get( TO, null );
         boolean verify = arguments.getBoolean( VERIFY, true, true );
+        int streams = Integer.parseInt( arguments.get( STREAMS, "1" ) );
+        boolean compress = arguments.getBoolean( COMPRESS, false, true );
         URI backupURI = null;
         try
         {
@@ -86,7 +90,7 @@ public class BackupTool
           // passed URI
             backupURI = service.resolve( backupURI, arguments );
         }
-        doBackup( full, backupURI, to, verify );
+        doBackup( full, backupURI, to, verify, streams, compress );
     }
 
     private static void checkArguments( Args arguments )
@@ -114,29 +118,39 @@ public class BackupTool
             exitAbnormally( "Specify target location with " + dash( TO )
                             + " <target-directory>" );
         }
+
+        try
+        {
+            if ( Integer.parseInt( arguments.get( STREAMS, "1" ) ) < 1 ) throw new NumberFormatException();
+        }
+        catch ( NumberFormatException e )
+        {
+            exitAbnormally( "Specify the number of streams to copy a full backup over as a positive number with "
+                            + dash( STREAMS ) );
+        }
     }
 
     private static void doBackup( boolean trueForFullFalseForIncremental,
-            URI from, String to, boolean verify )
+            URI from, String to, boolean verify, int streams, boolean compress )
     {
         if ( trueForFullFalseForIncremental )
         {
-            doBackupFull( from, to, verify );
+            doBackupFull( from, to, verify, streams, compress );
         }
         else
         {
-            doBackupIncremental( from, to, verify );
+            doBackupIncremental( from, to, verify, streams, compress );
         }
         System.out.println( "Done" );
     }
 
-    private static void doBackupFull( URI from, String to, boolean verify )
+    private static void doBackupFull( URI from, String to, boolean verify, int streams, boolean compress )
     {
         System.out.println( "Performing full backup from '" + from + "'" );
-        OnlineBackup backup = newOnlineBackup( from );
+        OnlineBackup backup = newOnlineBackup( from, compress );
         try
         {
-            backup.full( to, verify );
+            backup.full( to, verify, streams );
         }
         catch ( ComException e )
         {
@@ -144,10 +158,10 @@ public class BackupTool
         }
     }
 
-    private static void doBackupIncremental( URI from, String to, boolean verify )
+    private static void doBackupIncremental( URI from, String to, boolean verify, int streams, boolean compress )
     {
         System.out.println( "Performing incremental backup from '" + from + "'" );
-        OnlineBackup backup = newOnlineBackup( from );
+        OnlineBackup backup = newOnlineBackup( from, compress );
         boolean failedBecauseOfStoreVersionMismatch = false;
         try
         {
@@ -181,7 +195,7 @@ public class BackupTool
             {
                 exitAbnormally( "There was a problem moving the old database out of the way - cannot continue, aborting.", e );
             }
-            doBackupFull( from, to, verify );
+            doBackupFull( from, to, verify, streams, compress );
         }
     }
 
@@ -216,13 +230,13 @@ public class BackupTool
         return "-" + name;
     }
 
-    private static OnlineBackup newOnlineBackup( URI from )
+    private static OnlineBackup newOnlineBackup( URI from, boolean compress )
     {
         String host = from.getHost();
         int port = from.getPort();
         if ( port == -1 )
-            return OnlineBackup.from( host );
+            return OnlineBackup.from( host, BackupServer.DEFAULT_PORT, compress );
         else
-            return OnlineBackup.from( host, port );
+            return OnlineBackup.from( host, port, compress );
     }
 }
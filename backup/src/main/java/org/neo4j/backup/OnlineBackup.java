@@ -40,6 +40,8 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import org.neo4j.backup.check.ConsistencyCheck;
+import org.neo4j.com.IllegalProtocolVersionException;
+import org.neo4j.com.ParallelStoreCopier;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestContext.Tx;
 import org.neo4j.com.Response;
@@ -65,6 +67,7 @@ import org.neo4j.kernel.configuration.ConfigurationDefaults;
 import org.neo4j.kernel.impl.nioneo.store.NeoStore;
 import org.neo4j.kernel.impl.nioneo.store.StoreAccess;
 import org.neo4j.kernel.impl.nioneo.store.StoreFactory;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.transaction.XaDataSourceManager;
 import org.neo4j.kernel.impl.transaction.xaframework.LogIoUtils;
 import org.neo4j.kernel.impl.transaction.xaframework.NoSuchLogVersionException;
@@ -75,22 +78,34 @@ public class OnlineBackup
 {
     private final String hostNameOrIp;
     private final int port;
+    private final boolean compressed;
     private final Map<String, Long> lastCommittedTxs = new TreeMap<String, Long>();
+    private volatile byte protocolVersion = BackupServer.PROTOCOL_VERSION;
 
     public static OnlineBackup from( String hostNameOrIp, int port )
     {
-        return new OnlineBackup( hostNameOrIp, port );
+        return from( hostNameOrIp, port, false );
     }
 
     public static OnlineBackup from( String hostNameOrIp )
     {
-        return new OnlineBackup( hostNameOrIp, BackupServer.DEFAULT_PORT );
+        return from( hostNameOrIp, BackupServer.DEFAULT_PORT );
     }
 
-    private OnlineBackup( String hostNameOrIp, int port )
+    /**
+     * @param compressed whether or not to compress the transactions and store
+     * files sent from the backup source, which needs to understand compression.
+     */
+    public static OnlineBackup from( String hostNameOrIp, int port, boolean compressed )
+    {
+        return new OnlineBackup( hostNameOrIp, port, compressed );
+    }
+
+    private OnlineBackup( String hostNameOrIp, int port, boolean compressed )
     {
         this.hostNameOrIp = hostNameOrIp;
         this.port = port;
+        this.compressed = compressed;
     }
 
     public OnlineBackup full( String targetDirectory )
@@ -99,18 +114,45 @@ public class OnlineBackup
     }
 
     public OnlineBackup full( String targetDirectory, boolean verification )
+    {
+        return full( targetDirectory, verification, 1 );
+    }
+
+    /**
+     * Performs a full backup, copying the store files over {@code streams}
+     * streams at once. Large store files are split over several streams too.
+     */
+    public OnlineBackup full( String targetDirectory, boolean verification, int streams )
+    {
+        try
+        {
+            return fullWithCurrentProtocol( targetDirectory, verification, streams );
+        }
+        catch ( IllegalProtocolVersionException e )
+        {
+            if ( !switchToOlderProtocol( e ) )
+            {
+                throw e;
+            }
+            return fullWithCurrentProtocol( targetDirectory, verification, streams );
+        }
+    }
+
+    private OnlineBackup fullWithCurrentProtocol( String targetDirectory, boolean verification, int streams )
     {
         if ( directoryContainsDb( targetDirectory ) )
         {
             throw new RuntimeException( targetDirectory + " already contains a database" );
         }
 
-        BackupClient client = new BackupClient( hostNameOrIp, port, StringLogger.DEV_NULL, null );
+        BackupClient client = newClient( StringLogger.DEV_NULL, null );
         long timestamp = System.currentTimeMillis();
         try
         {
-            Response<Void> response = client.fullBackup( decorateWithProgressIndicator(
-                    new ToFileStoreWriter( targetDirectory ) ) );
+            Response<Void> response = streams > 1 && client.supportsParallelStoreCopy() ?
+                    new ParallelStoreCopier( client, RequestContext.EMPTY, streams ).copyTo(
+                            new ToFileStoreWriter( targetDirectory ) ) :
+                    client.fullBackup( decorateWithProgressIndicator( new ToFileStoreWriter( targetDirectory ) ) );
             GraphDatabaseAPI targetDb = startTemporaryDb( targetDirectory,
                     VerificationLevel.NONE /* run full check instead */ );
             try
@@ -143,8 +185,7 @@ public class OnlineBackup
                      * Create a fake slave context, asking for the transactions that
                      * span the next-to-last up to the latest for each datasource
                      */
-                    BackupClient recoveryClient = new BackupClient(
-                            hostNameOrIp, port, targetDb.getMessageLog(), targetDb.getStoreId() );
+                    BackupClient recoveryClient = newClient( targetDb.getMessageLog(), targetDb.getStoreId() );
                     Response<Void> recoveryResponse = null;
                     Map<String, Long> recoveryDiff = new HashMap<String, Long>();
                     for ( String ds : noTxPresent )
@@ -383,8 +424,23 @@ public class OnlineBackup
     private OnlineBackup incrementalWithContext( GraphDatabaseAPI targetDb,
             RequestContext context )
     {
-        BackupClient client = new BackupClient( hostNameOrIp, port, targetDb.getMessageLog(),
-                targetDb.getStoreId() );
+        try
+        {
+            return incrementalWithCurrentProtocol( targetDb, context );
+        }
+        catch ( IllegalProtocolVersionException e )
+        {
+            if ( !switchToOlderProtocol( e ) )
+            {
+                throw e;
+            }
+            return incrementalWithCurrentProtocol( targetDb, context );
+        }
+    }
+
+    private OnlineBackup incrementalWithCurrentProtocol( GraphDatabaseAPI targetDb, RequestContext context )
+    {
+        BackupClient client = newClient( targetDb.getMessageLog(), targetDb.getStoreId() );
         try
         {
             unpackResponse( client.incrementalBackup( context ), targetDb,
@@ -398,6 +454,28 @@ public class OnlineBackup
         return this;
     }
 
+    private BackupClient newClient( StringLogger logger, StoreId storeId )
+    {
+        return new BackupClient( hostNameOrIp, port, logger, storeId, compressed, protocolVersion );
+    }
+
+    /**
+     * A server rejects requests of any other protocol version than its own,
+     * before it does anything else. If it's an older version than the one
+     * spoken so far, then that's the one to speak with it from now on.
+     *
+     * @return whether or not to try again with the older version.
+     */
+    private boolean switchToOlderProtocol( IllegalProtocolVersionException e )
+    {
+        if ( e.getReceived() < 1 || e.getReceived() >= protocolVersion )
+        {
+            return false;
+        }
+        protocolVersion = (byte) e.getReceived();
+        return true;
+    }
+
     private void trimLogicalLogCount( GraphDatabaseAPI targetDb )
     {
         for ( XaDataSource ds : targetDb.getXaDataSourceManager().getAllRegisteredDataSources() )
@@ -21,9 +21,10 @@ package org.neo4j.backup;
 
 import org.neo4j.com.Response;
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.StoreCopySource;
 import org.neo4j.com.StoreWriter;
 
-public interface TheBackupInterface
+public interface TheBackupInterface extends StoreCopySource
 {
     Response<Void> fullBackup( StoreWriter writer );
     
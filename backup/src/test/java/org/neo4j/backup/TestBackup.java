@@ -238,6 +238,24 @@ public class TestBackup
         shutdownServer( server );
     }
 
+    @Test
+    public void parallelFullThenIncremental() throws Exception
+    {
+        DbRepresentation initialDataSetRepresentation = createInitialDataSet( serverPath );
+        ServerInterface server = startServer( serverPath );
+
+        OnlineBackup backup = OnlineBackup.from( "localhost" );
+        backup.full( backupPath, true, 4 );
+        assertEquals( initialDataSetRepresentation, DbRepresentation.of( backupPath ) );
+        shutdownServer( server );
+
+        DbRepresentation furtherRepresentation = addMoreData( serverPath );
+        server = startServer( serverPath );
+        backup.incremental( backupPath );
+        assertEquals( furtherRepresentation, DbRepresentation.of( backupPath ) );
+        shutdownServer( server );
+    }
+
     @Test
     public void makeSureNoLogFileRemains() throws Exception
     {
@@ -170,7 +170,8 @@ public class BlockLogBuffer implements LogBuffer
     /**
      * Signals the end of use for this buffer over this channel - first byte of
      * the chunk is set to the position of the buffer ( != 0, instead of
-     * FULL_BLOCK_AND_MORE) and it is written to the channel.
+     * FULL_BLOCK_AND_MORE) and it is written to the channel. After this the
+     * buffer can be used again, for another sequence of blocks to the same channel.
      */
     public void done()
     {
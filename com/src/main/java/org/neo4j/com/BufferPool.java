@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Recycles the buffers that chunks are written into, so that a busy server
+ * doesn't create a new buffer, which is garbage shortly after, for every
+ * request and response. Buffers are dynamic and keep the capacity they've
+ * grown to, up to a limit above which they aren't kept, so that the pool
+ * doesn't hold on to the occasional huge chunk of a store copy.
+ * <p>
+ * A buffer must not be touched after it has been released, which for chunk
+ * buffers means after the write of it has completed, see
+ * {@link ChunkingChannelBuffer}.
+ */
+public class BufferPool
+{
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+    public static final int DEFAULT_MAX_POOLED_CAPACITY = 256*1024;
+
+    private final BlockingQueue<ChannelBuffer> buffers;
+    private final int maxPooledCapacity;
+
+    public BufferPool()
+    {
+        this( DEFAULT_MAX_POOLED_BUFFERS, DEFAULT_MAX_POOLED_CAPACITY );
+    }
+
+    public BufferPool( int maxPooledBuffers, int maxPooledCapacity )
+    {
+        this.buffers = new ArrayBlockingQueue<ChannelBuffer>( maxPooledBuffers );
+        this.maxPooledCapacity = maxPooledCapacity;
+    }
+
+    /**
+     * @return an empty buffer, recycled if there's one available.
+     */
+    public ChannelBuffer acquire()
+    {
+        ChannelBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ChannelBuffers.dynamicBuffer();
+    }
+
+    /**
+     * Hands back a buffer acquired from this pool, to be recycled unless it
+     * has grown too big or the pool is full already.
+     */
+    public void release( ChannelBuffer buffer )
+    {
+        if ( buffer.capacity() > maxPooledCapacity )
+        {
+            return;
+        }
+        buffer.clear();
+        buffers.offer( buffer );
+    }
+}
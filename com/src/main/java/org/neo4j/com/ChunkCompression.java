@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Compresses and uncompresses the payload of single chunks, for chunks with
+ * the {@link ChunkingChannelBuffer#COMPRESSED} bit set in their header. The
+ * payload of such a chunk starts with a format byte, either {@link #RAW}
+ * followed by the payload as it is, or {@link #DEFLATED} followed by the
+ * uncompressed size as a 4-byte int and the deflated payload.
+ * <p>
+ * Chunks that are too small to be worth it, or that don't get any smaller,
+ * are sent raw, so lock requests and the like don't pay for compression
+ * just because transaction streams and store files on the same channel do.
+ */
+final class ChunkCompression
+{
+    static final byte RAW = 0;
+    static final byte DEFLATED = 1;
+    static final int MIN_COMPRESSED_SIZE = 512;
+
+    private ChunkCompression()
+    {
+    }
+
+    /**
+     * @param chunk the whole chunk, from its header and on.
+     * @param formatIndex the index of the format byte in {@code chunk},
+     * which is followed by the payload.
+     * @return {@code chunk} itself if it's sent raw, otherwise a new buffer with
+     * the same header and a deflated payload.
+     */
+    static ChannelBuffer compress( ChannelBuffer chunk, int formatIndex )
+    {
+        int payloadIndex = formatIndex + 1;
+        int size = chunk.writerIndex() - payloadIndex;
+        if ( size < MIN_COMPRESSED_SIZE )
+        {
+            return chunk;
+        }
+
+        byte[] payload = new byte[size];
+        chunk.getBytes( payloadIndex, payload );
+        // Anything that doesn't fit in here isn't worth sending compressed
+        byte[] compressed = new byte[size];
+        int compressedSize = 0;
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try
+        {
+            deflater.setInput( payload );
+            deflater.finish();
+            while ( !deflater.finished() && compressedSize < compressed.length )
+            {
+                compressedSize += deflater.deflate( compressed, compressedSize, compressed.length - compressedSize );
+            }
+            if ( !deflater.finished() || compressedSize + 4 >= size )
+            {
+                return chunk;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        int headerSize = formatIndex - chunk.readerIndex();
+        ChannelBuffer result = ChannelBuffers.buffer( headerSize + 1 + 4 + compressedSize );
+        result.writeBytes( chunk, chunk.readerIndex(), headerSize );
+        result.writeByte( DEFLATED );
+        result.writeInt( size );
+        result.writeBytes( compressed, 0, compressedSize );
+        return result;
+    }
+
+    /**
+     * @param chunk a chunk read up to its format byte.
+     * @return the payload of the chunk, uncompressed if it was compressed.
+     */
+    static ChannelBuffer uncompress( ChannelBuffer chunk )
+    {
+        byte format = chunk.readByte();
+        if ( format == RAW )
+        {
+            return chunk;
+        }
+        if ( format != DEFLATED )
+        {
+            throw new ComException( "Unknown chunk format " + format );
+        }
+
+        byte[] payload = new byte[chunk.readInt()];
+        byte[] compressed = new byte[chunk.readableBytes()];
+        chunk.readBytes( compressed );
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( compressed );
+            int size = 0;
+            while ( size < payload.length )
+            {
+                int inflated = inflater.inflate( payload, size, payload.length - size );
+                if ( inflated == 0 && (inflater.finished() || inflater.needsInput()) )
+                {
+                    throw new ComException( "Compressed chunk ended after " + size + " of " +
+                            payload.length + " bytes" );
+                }
+                size += inflated;
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new ComException( "Corrupt compressed chunk", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return ChannelBuffers.wrappedBuffer( payload );
+    }
+}
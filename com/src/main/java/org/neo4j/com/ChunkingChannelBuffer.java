@@ -24,8 +24,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -36,6 +38,9 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FileRegion;
 
 /**
  * A decorator around a {@link ChannelBuffer} which adds the ability to transfer
@@ -55,6 +60,18 @@ import org.jboss.netty.channel.ChannelFutureListener;
  * MAX_WRITE_AHEAD_CHUNKS are left pending - in such a case the write process
  * sleeps until some acknowledgment comes back from the other side that chunks
  * have been read.
+ * <p>
+ * If a correlation id is given the {@link #MULTIPLEXED} bit is set in the
+ * header of every chunk and the id follows the header as a 4-byte int, so that
+ * chunks from several requests/responses can share the same channel.
+ * <p>
+ * If compressed the {@link #COMPRESSED} bit is set in the header of every
+ * chunk and the payload of each chunk is deflated on its way out if that
+ * makes it smaller, see {@link ChunkCompression}.
+ * <p>
+ * If a {@link BufferPool} is given the buffer passed in must come from it,
+ * as must the buffers of later chunks, and each chunk buffer is handed back
+ * once it has been written to the channel.
  */
 public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListener
 {
@@ -62,6 +79,9 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
     static final byte CONTINUATION_MORE = 1;
     static final byte OUTCOME_SUCCESS = 0;
     static final byte OUTCOME_FAILURE = 1;
+    static final byte MULTIPLEXED = (byte) 0x80;
+    static final byte COMPRESSED = 0x40;
+    static final int NO_CORRELATION_ID = -1;
     private static final int MAX_WRITE_AHEAD_CHUNKS = 5;
 
     private ChannelBuffer buffer;
@@ -72,29 +92,68 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
     private volatile boolean failure;
     private final byte applicationProtocolVersion;
     private final byte internalProtocolVersion;
+    private final int correlationId;
+    private final boolean compressed;
+    private final BufferPool pool;
+    private boolean handedOff;
+    private int formatPosition;
 
     public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion, byte applicationProtocolVersion )
+    {
+        this( buffer, channel, capacity, internalProtocolVersion, applicationProtocolVersion, NO_CORRELATION_ID );
+    }
+
+    public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion,
+            byte applicationProtocolVersion, int correlationId )
+    {
+        this( buffer, channel, capacity, internalProtocolVersion, applicationProtocolVersion, correlationId, false );
+    }
+
+    public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion,
+            byte applicationProtocolVersion, int correlationId, boolean compressed )
+    {
+        this( buffer, channel, capacity, internalProtocolVersion, applicationProtocolVersion, correlationId, compressed,
+                null );
+    }
+
+    public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion,
+            byte applicationProtocolVersion, int correlationId, boolean compressed, BufferPool pool )
     {
         this.buffer = buffer;
         this.channel = channel;
         this.capacity = capacity;
         this.internalProtocolVersion = internalProtocolVersion;
         this.applicationProtocolVersion = applicationProtocolVersion;
+        this.correlationId = correlationId;
+        this.compressed = compressed;
+        this.pool = pool;
         addRoomForContinuationHeader();
     }
 
     private void addRoomForContinuationHeader()
     {
         continuationPosition = writerIndex();
-        // byte 0: [pppp,ppoc] p: internal protocol version, o: outcome, c: continuation
+        // byte 0: [mzpp,ppoc] m: multiplexed, z: compressed, p: internal protocol version, o: outcome, c: continuation
         // byte 1: [aaaa,aaaa] a: application protocol version
+        // if multiplexed, followed by a 4-byte correlation id
+        // if compressed, followed by the format of the payload, see ChunkCompression
         buffer.writeBytes( header( CONTINUATION_LAST ) );
+        if ( isMultiplexed() ) buffer.writeInt( correlationId );
+        formatPosition = writerIndex();
+        if ( compressed ) buffer.writeByte( ChunkCompression.RAW );
+    }
+
+    private boolean isMultiplexed()
+    {
+        return correlationId != NO_CORRELATION_ID;
     }
 
     private byte[] header( byte continuation )
     {
         byte[] header = new byte[2];
         header[0] = (byte)((internalProtocolVersion << 2) | ((failure?OUTCOME_FAILURE:OUTCOME_SUCCESS) << 1) | continuation );
+        if ( isMultiplexed() ) header[0] |= MULTIPLEXED;
+        if ( compressed ) header[0] |= COMPRESSED;
         header[1] = applicationProtocolVersion;
         return header;
     }
@@ -171,6 +230,11 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
 
     public void clear( boolean failure )
     {
+        if ( handedOff )
+        {
+            buffer = newBuffer();
+            handedOff = false;
+        }
         buffer.clear();
         this.failure = failure;
         addRoomForContinuationHeader();
@@ -532,21 +596,143 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         {
             setContinuation( CONTINUATION_MORE );
             writeCurrentChunk();
-            // TODO Reuse buffers?
-            buffer = ChannelBuffers.dynamicBuffer();
+            buffer = newBuffer();
             addRoomForContinuationHeader();
         }
     }
 
     private void writeCurrentChunk()
     {
-        if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
-            throw new ComException( "Channel has been closed, so no need to try to write to it anymore. Client closed it?" );
+        assertChannelStillOpen();
+        waitForClientToCatchUpOnReadingChunks();
+        ChannelBuffer chunk = compressed ? ChunkCompression.compress( buffer, formatPosition ) : buffer;
+        ChannelFuture future = channel.write( chunk );
+        future.addListener( this );
+        writeAheadCounter.incrementAndGet();
+        if ( chunk == buffer )
+        {
+            releaseWhenWritten( future, buffer );
+        }
+        else if ( pool != null )
+        {   // Only the compressed copy is written
+            pool.release( buffer );
+        }
+    }
 
+    private ChannelBuffer newBuffer()
+    {
+        return pool != null ? pool.acquire() : ChannelBuffers.dynamicBuffer();
+    }
+
+    private void releaseWhenWritten( ChannelFuture future, final ChannelBuffer chunk )
+    {
+        if ( pool == null )
+        {
+            return;
+        }
+        future.addListener( new ChannelFutureListener()
+        {
+            public void operationComplete( ChannelFuture future )
+            {
+                pool.release( chunk );
+            }
+        } );
+    }
+
+    /**
+     * Writes the current chunk followed by {@code region} as one frame. The frame
+     * length is written here and the frame encoder bypassed, since it only knows
+     * how to measure buffers.
+     */
+    private ChannelFuture writeCurrentChunk( ChannelHandlerContext frameEncoder, FileRegion region )
+    {
+        assertChannelStillOpen();
         waitForClientToCatchUpOnReadingChunks();
-        ChannelFuture future = channel.write( buffer );
+        ChannelBuffer frameLength = ChannelBuffers.buffer( 4 );
+        frameLength.writeInt( buffer.readableBytes() + (int) region.getCount() );
+        Channels.write( frameEncoder, Channels.future( channel ), ChannelBuffers.wrappedBuffer( frameLength, buffer ) );
+        ChannelFuture future = Channels.future( channel );
+        Channels.write( frameEncoder, future, region );
         future.addListener( this );
         writeAheadCounter.incrementAndGet();
+        // Written in order, so the buffer is written once the region is
+        releaseWhenWritten( future, buffer );
+        return future;
+    }
+
+    private void assertChannelStillOpen()
+    {
+        if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
+            throw new ComException( "Channel has been closed, so no need to try to write to it anymore. Client closed it?" );
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code file}, starting at {@code position},
+     * without copying them through the heap. Each chunk is sent as its header,
+     * and whatever was written to this buffer before it, followed by a region of
+     * the file which is transferred straight from the file to the socket.
+     * Returns when all of it has been written so that the file can be closed.
+     * <p>
+     * If compressed the file is read through this buffer instead, since only
+     * what passes through the heap can be compressed.
+     */
+    public void writeFile( FileChannel file, long position, long length ) throws IOException
+    {
+        if ( file.size() < position + length )
+        {
+            throw new IOException( "Can't write " + length + " bytes from " + position + " of a file of " +
+                    file.size() + " bytes" );
+        }
+        if ( compressed )
+        {
+            readFile( file, position, length );
+            return;
+        }
+        ChannelHandlerContext frameEncoder = channel.getPipeline().getContext( "frameEncoder" );
+        ChannelFuture lastWrite = null;
+        while ( length > 0 )
+        {
+            int room = capacity - 1 - writerIndex();
+            if ( room <= 0 )
+            {
+                sendChunkIfNeeded( 1 );
+                continue;
+            }
+
+            int count = (int) Math.min( room, length );
+            // There's always something after the file, at least the end of the response
+            setContinuation( CONTINUATION_MORE );
+            lastWrite = writeCurrentChunk( frameEncoder, new FileChunk( file, position, count ) );
+            buffer = newBuffer();
+            addRoomForContinuationHeader();
+            position += count;
+            length -= count;
+        }
+
+        if ( lastWrite != null && !lastWrite.awaitUninterruptibly().isSuccess() )
+        {
+            throw new ComException( "Couldn't write file to " + channel, lastWrite.getCause() );
+        }
+    }
+
+    private void readFile( FileChannel file, long position, long length ) throws IOException
+    {
+        // Well below the capacity so that each piece fits in a chunk
+        ByteBuffer piece = ByteBuffer.allocate( (int) Math.min( length, Math.max( 1, capacity/4 ) ) );
+        while ( length > 0 )
+        {
+            piece.clear();
+            piece.limit( (int) Math.min( piece.capacity(), length ) );
+            int read = file.read( piece, position );
+            if ( read == -1 )
+            {
+                throw new IOException( "File ended " + length + " bytes short" );
+            }
+            piece.flip();
+            writeBytes( piece );
+            position += read;
+            length -= read;
+        }
     }
 
     private void waitForClientToCatchUpOnReadingChunks()
@@ -589,11 +775,55 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         writeAheadCounter.decrementAndGet();
     }
 
+    /**
+     * A region of a file which is left open after it has been transferred, since
+     * the file is sent in many regions and closed by whoever opened it.
+     */
+    private static class FileChunk implements FileRegion
+    {
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+
+        FileChunk( FileChannel file, long position, long count )
+        {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long transferTo( WritableByteChannel target, long position ) throws IOException
+        {
+            long remaining = count - position;
+            if ( remaining <= 0 ) return 0;
+            return file.transferTo( this.position + position, remaining, target );
+        }
+
+        public void releaseExternalResources()
+        {
+        }
+    }
+
     public void done()
     {
         if ( readable() /* Meaning that something has been written to it and can be read/sent */ )
         {
             writeCurrentChunk();
+            if ( pool != null )
+            {   // It's someone else's now, see clear(boolean)
+                buffer = ChannelBuffers.EMPTY_BUFFER;
+                handedOff = true;
+            }
         }
     }
 
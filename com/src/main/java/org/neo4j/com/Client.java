@@ -20,19 +20,24 @@
 package org.neo4j.com;
 
 import static org.neo4j.com.Protocol.addLengthFieldPipes;
-import static org.neo4j.com.Protocol.readString;
+import static org.neo4j.com.Protocol.readTransactionStreams;
 import static org.neo4j.com.Protocol.writeString;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -47,7 +52,7 @@ import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.queue.BlockingReadHandler;
 import org.neo4j.com.RequestContext.Tx;
 import org.neo4j.helpers.Exceptions;
-import org.neo4j.helpers.Triplet;
+import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.util.StringLogger;
 
@@ -55,6 +60,23 @@ import org.neo4j.kernel.impl.util.StringLogger;
  * A means for a client to communicate with a {@link Server}. It
  * serializes requests and sends them to the server and waits for
  * a response back.
+ * <p>
+ * By default each calling thread checks out a channel of its own for the
+ * duration of a request. If a number of multiplexed channels is given then
+ * requests are instead tagged with a correlation id and many of them can
+ * be in flight at the same time over those few channels, see
+ * {@link #shouldMultiplex(RequestType)}.
+ * <p>
+ * If compressed, requests are sent with compressed chunks, which also has
+ * the server compress its responses. Only chunks big enough to gain anything,
+ * f.ex. those carrying transactions or store files, actually get compressed.
+ * <p>
+ * Multiplexing and compression need a server speaking the same internal
+ * protocol version. Each new channel therefore starts off by asking the server
+ * which version it speaks, and until the server is known to speak the same one
+ * requests go uncompressed over channels of their own. A server speaking the
+ * {@link Server#LEGACY_INTERNAL_PROTOCOL_VERSION legacy version} is spoken to
+ * in that version.
  */
 public abstract class Client<T> implements ChannelPipelineFactory
 {
@@ -64,18 +86,33 @@ public abstract class Client<T> implements ChannelPipelineFactory
     // with the server in some way.
     public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT = 20;
     public static final int DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS = 20;
+    // 0 means that each requesting thread gets a channel of its own, i.e. no multiplexing.
+    public static final int DEFAULT_MULTIPLEXED_CHANNELS = 0;
+    // Multiplexed requests cannot share the per-channel temporary buffer, but they
+    // only need it for small things like the store id.
+    private static final int MULTIPLEXED_TEMPORARY_BUFFER_SIZE = 1024;
+    private static final byte UNKNOWN_INTERNAL_PROTOCOL_VERSION = -1;
 
     private final ClientBootstrap bootstrap;
     private final SocketAddress address;
     private final StringLogger msgLog;
     private final ExecutorService executor;
-    private final ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> channelPool;
+    private final ResourcePool<Pair<Channel, ByteBuffer>> channelPool;
     private final int frameLength;
     private final int readTimeout;
     private final byte applicationProtocolVersion;
     private final StoreId storeId;
     private final ResourceReleaser resourcePoolReleaser;
     private final List<MismatchingVersionHandler> mismatchingVersionHandlers;
+    private final Channel[] multiplexedChannels; // null if not multiplexing
+    // Locks rather than monitors, since connecting blocks and a thread blocking
+    // while holding a monitor pins a virtual thread to its carrier thread.
+    private final Lock[] multiplexedChannelLocks;
+    private final AtomicInteger nextMultiplexedChannel = new AtomicInteger();
+    private final boolean compressed;
+    private final BufferPool bufferPool = new BufferPool();
+    // As answered by the server when the latest channel was opened
+    private volatile byte serverInternalProtocolVersion = UNKNOWN_INTERNAL_PROTOCOL_VERSION;
 
     public Client( String hostNameOrIp, int port, StringLogger logger,
             StoreId storeId, int frameLength, byte applicationProtocolVersion, int readTimeout,
@@ -91,62 +128,74 @@ public abstract class Client<T> implements ChannelPipelineFactory
             byte applicationProtocolVersion, int readTimeout,
             int maxConcurrentChannels, int maxUnusedPoolSize,
             final ConnectionLostHandler connectionLostHandler )
+    {
+        this( hostNameOrIp, port, logger, storeId, frameLength, applicationProtocolVersion, readTimeout,
+                maxConcurrentChannels, maxUnusedPoolSize, DEFAULT_MULTIPLEXED_CHANNELS, connectionLostHandler );
+    }
+
+    public Client( String hostNameOrIp, int port, StringLogger logger,
+            StoreId storeId, int frameLength,
+            byte applicationProtocolVersion, int readTimeout,
+            int maxConcurrentChannels, int maxUnusedPoolSize, int multiplexedChannels,
+            final ConnectionLostHandler connectionLostHandler )
+    {
+        this( hostNameOrIp, port, logger, storeId, frameLength, applicationProtocolVersion, readTimeout,
+                maxConcurrentChannels, maxUnusedPoolSize, multiplexedChannels, false, connectionLostHandler );
+    }
+
+    public Client( String hostNameOrIp, int port, StringLogger logger,
+            StoreId storeId, int frameLength,
+            byte applicationProtocolVersion, int readTimeout,
+            int maxConcurrentChannels, int maxUnusedPoolSize, int multiplexedChannels, boolean compressed,
+            final ConnectionLostHandler connectionLostHandler )
     {
         this.msgLog = logger;
         this.storeId = storeId;
         this.frameLength = frameLength;
         this.applicationProtocolVersion = applicationProtocolVersion;
         this.readTimeout = readTimeout;
+        this.compressed = compressed;
         this.mismatchingVersionHandlers = new ArrayList<MismatchingVersionHandler>( 2 );
-        channelPool = new ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>>(
+        channelPool = new ResourcePool<Pair<Channel, ByteBuffer>>(
                 maxConcurrentChannels, maxUnusedPoolSize )
         {
             @Override
-            protected Triplet<Channel, ChannelBuffer, ByteBuffer> create()
+            protected Pair<Channel, ByteBuffer> create()
             {
-                ChannelFuture channelFuture = bootstrap.connect( address );
-                channelFuture.awaitUninterruptibly( 5, TimeUnit.SECONDS );
-                Triplet<Channel, ChannelBuffer, ByteBuffer> channel = null;
-                if ( channelFuture.isSuccess() )
-                {
-                    channel = Triplet.of( channelFuture.getChannel(),
-                            ChannelBuffers.dynamicBuffer(),
-                            ByteBuffer.allocateDirect( 1024 * 1024 ) );
-                    msgLog.logMessage( "Opened a new channel to " + address, true );
-                    return channel;
-                }
-
-                String msg = "Client could not connect to " + address;
-                msgLog.logMessage( msg, true );
-                ComException exception = new ComException( msg );
-                try
-                {
-                    Thread.sleep( 1000 );
-                }
-                catch ( InterruptedException e )
-                {
-                    msgLog.logMessage( "Interrupted", e );
-                }
-                // connectionLostHandler.handle( exception );
-                throw exception;
+                return Pair.of( connect(), ByteBuffer.allocateDirect( 1024 * 1024 ) );
             }
 
             @Override
             protected boolean isAlive(
-                    Triplet<Channel, ChannelBuffer, ByteBuffer> resource )
+                    Pair<Channel, ByteBuffer> resource )
             {
                 return resource.first().isConnected();
             }
 
             @Override
             protected void dispose(
-                    Triplet<Channel, ChannelBuffer, ByteBuffer> resource )
+                    Pair<Channel, ByteBuffer> resource )
             {
                 Channel channel = resource.first();
                 if ( channel.isConnected() ) channel.close();
             }
         };
 
+        if ( multiplexedChannels > 0 )
+        {
+            this.multiplexedChannels = new Channel[multiplexedChannels];
+            this.multiplexedChannelLocks = new Lock[multiplexedChannels];
+            for ( int i = 0; i < multiplexedChannels; i++ )
+            {
+                multiplexedChannelLocks[i] = new ReentrantLock();
+            }
+        }
+        else
+        {
+            this.multiplexedChannels = null;
+            this.multiplexedChannelLocks = null;
+        }
+
         address = new InetSocketAddress( hostNameOrIp, port );
         executor = Executors.newCachedThreadPool();
         bootstrap = new ClientBootstrap( new NioClientSocketChannelFactory( executor, executor ) );
@@ -168,6 +217,73 @@ public abstract class Client<T> implements ChannelPipelineFactory
         msgLog.logMessage( getClass().getSimpleName() + " communication started and bound to " + hostNameOrIp + ":" + port, true );
     }
 
+    private Channel connect()
+    {
+        ChannelFuture channelFuture = bootstrap.connect( address );
+        channelFuture.awaitUninterruptibly( 5, TimeUnit.SECONDS );
+        if ( channelFuture.isSuccess() )
+        {
+            msgLog.logMessage( "Opened a new channel to " + address, true );
+            Channel channel = channelFuture.getChannel();
+            try
+            {
+                askForInternalProtocolVersion( channel );
+            }
+            catch ( RuntimeException e )
+            {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        String msg = "Client could not connect to " + address;
+        msgLog.logMessage( msg, true );
+        ComException exception = new ComException( msg );
+        try
+        {
+            Thread.sleep( 1000 );
+        }
+        catch ( InterruptedException e )
+        {
+            msgLog.logMessage( "Interrupted", e );
+        }
+        // connectionLostHandler.handle( exception );
+        throw exception;
+    }
+
+    /**
+     * Sends an empty request, which servers speaking the same internal protocol
+     * version answer with an empty response. Servers speaking another version,
+     * f.ex. the legacy one, answer with a failure response in their version.
+     * Either way it's the version in the header of the response that matters.
+     */
+    private void askForInternalProtocolVersion( Channel channel )
+    {
+        if ( getInternalProtocolVersion() <= Server.LEGACY_INTERNAL_PROTOCOL_VERSION ) return;
+        new ChunkingChannelBuffer( ChannelBuffers.dynamicBuffer(), channel, frameLength,
+                getInternalProtocolVersion(), applicationProtocolVersion ).done();
+        @SuppressWarnings( "unchecked" )
+        BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
+                channel.getPipeline().get( "blockingHandler" );
+        ChannelBuffer response;
+        try
+        {
+            response = reader.read( readTimeout, TimeUnit.SECONDS );
+        }
+        catch ( IOException e )
+        {
+            throw new ComException( e );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new ComException( e );
+        }
+        if ( response == null ) throw new ComException( "Channel has been closed" );
+        serverInternalProtocolVersion = DechunkingChannelBuffer.internalProtocolVersion(
+                response.getByte( response.readerIndex() ) );
+    }
+
     /**
      * Only exposed so that tests can control it. It's not configurable really.
      */
@@ -176,6 +292,29 @@ public abstract class Client<T> implements ChannelPipelineFactory
         return Server.INTERNAL_PROTOCOL_VERSION;
     }
 
+    /**
+     * @return the internal protocol version to speak with the server.
+     */
+    private byte spokenInternalProtocolVersion()
+    {
+        return serverInternalProtocolVersion == Server.LEGACY_INTERNAL_PROTOCOL_VERSION ?
+                Server.LEGACY_INTERNAL_PROTOCOL_VERSION : getInternalProtocolVersion();
+    }
+
+    /**
+     * @return whether or not the server is known to speak the same internal protocol
+     * version as this client, and so understands multiplexed and compressed chunks.
+     */
+    boolean serverSpeaksSameInternalProtocolVersion()
+    {
+        return serverInternalProtocolVersion == getInternalProtocolVersion();
+    }
+
+    private boolean multiplexes( RequestType<T> type )
+    {
+        return multiplexedChannels != null && serverSpeaksSameInternalProtocolVersion() && shouldMultiplex( type );
+    }
+
     protected <R> Response<R> sendRequest( RequestType<T> type, RequestContext context,
             Serializer serializer, Deserializer<R> deserializer )
     {
@@ -185,48 +324,35 @@ public abstract class Client<T> implements ChannelPipelineFactory
     protected <R> Response<R> sendRequest( RequestType<T> type, RequestContext context,
             Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
     {
+        if ( multiplexes( type ) )
+        {
+            return sendMultiplexedRequest( type, context, serializer, deserializer, specificStoreId );
+        }
+
         boolean success = true;
-        Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext = null;
+        Pair<Channel, ByteBuffer> channelContext = null;
         try
         {
             // Send 'em over the wire
             channelContext = getChannel( type );
             Channel channel = channelContext.first();
-            channelContext.second().clear();
-            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( channelContext.second(),
-                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
-            chunkingBuffer.writeByte( type.id() );
-            writeContext( type, context, chunkingBuffer );
-            serializer.write( chunkingBuffer, channelContext.third() );
-            chunkingBuffer.done();
+            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( bufferPool.acquire(),
+                    channel, frameLength, spokenInternalProtocolVersion(), applicationProtocolVersion,
+                    ChunkingChannelBuffer.NO_CORRELATION_ID, compressed && serverSpeaksSameInternalProtocolVersion(),
+                    bufferPool );
+            writeRequest( type, context, serializer, chunkingBuffer, channelContext.other() );
 
             // Read the response
             @SuppressWarnings( "unchecked" )
             BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
                     channel.getPipeline().get( "blockingHandler" );
-            DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader, getReadTimeout( type, readTimeout ),
-                    getInternalProtocolVersion(), applicationProtocolVersion );
-
-            R response = deserializer.read( dechunkingBuffer, channelContext.third() );
-            StoreId storeId = readStoreId( dechunkingBuffer, channelContext.third() );
-            if ( shouldCheckStoreId( type ) )
-            {
-                // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
-                if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
-                else assertCorrectStoreId( storeId, this.storeId );
-            }
-            TransactionStream txStreams = readTransactionStreams(
-                    dechunkingBuffer, channelPool );
-            return new Response<R>( response, storeId, txStreams,
-                    resourcePoolReleaser );
+            return readResponse( type, deserializer, reader, getReadTimeout( type, readTimeout ),
+                    channelContext.other(), specificStoreId, resourcePoolReleaser );
         }
         catch ( IllegalProtocolVersionException e )
         {
             success = false;
-            for ( MismatchingVersionHandler handler : mismatchingVersionHandlers )
-            {
-                handler.versionMismatched( e.getExpected(), e.getReceived() );
-            }
+            notifyMismatchingVersionHandlers( e );
             throw e;
         }
         catch ( Throwable e )
@@ -250,6 +376,174 @@ public abstract class Client<T> implements ChannelPipelineFactory
         }
     }
 
+    /**
+     * Sends a request without waiting for the response. If the request type is
+     * multiplexed the request is put on the wire right away and the response is
+     * read when the returned future is asked for it. Otherwise the request is
+     * made synchronously since a non-multiplexed channel is bound to the
+     * calling thread.
+     */
+    protected <R> ResponseFuture<R> sendRequestAsync( RequestType<T> type, RequestContext context,
+            Serializer serializer, Deserializer<R> deserializer )
+    {
+        return sendRequestAsync( type, context, serializer, deserializer, null );
+    }
+
+    protected <R> ResponseFuture<R> sendRequestAsync( RequestType<T> type, RequestContext context,
+            Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
+    {
+        if ( multiplexes( type ) )
+        {
+            return startMultiplexedRequest( type, context, serializer, deserializer, specificStoreId );
+        }
+        return ResponseFuture.completed( sendRequest( type, context, serializer, deserializer, specificStoreId ) );
+    }
+
+    private <R> Response<R> sendMultiplexedRequest( RequestType<T> type, RequestContext context,
+            Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
+    {
+        return startMultiplexedRequest( type, context, serializer, deserializer, specificStoreId ).awaitResponse();
+    }
+
+    private <R> ResponseFuture<R> startMultiplexedRequest( final RequestType<T> type, RequestContext context,
+            Serializer serializer, final Deserializer<R> deserializer, final StoreId specificStoreId )
+    {
+        boolean success = false;
+        MultiplexingResponseHandler multiplexer = null;
+        int correlationId = ChunkingChannelBuffer.NO_CORRELATION_ID;
+        try
+        {
+            Channel channel = getMultiplexedChannel();
+            multiplexer = (MultiplexingResponseHandler) channel.getPipeline().get( "multiplexingHandler" );
+            // Unbounded since the I/O thread feeding it is shared with other requests
+            // and must not block on a slow reader.
+            final BlockingDeque<ChannelEvent> chunks = new LinkedBlockingDeque<ChannelEvent>();
+            final BlockingReadHandler<ChannelBuffer> reader = new BlockingReadHandler<ChannelBuffer>( chunks );
+            correlationId = multiplexer.register( reader );
+            final ByteBuffer temporaryBuffer = ByteBuffer.allocate( MULTIPLEXED_TEMPORARY_BUFFER_SIZE );
+            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( bufferPool.acquire(),
+                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion, correlationId,
+                    compressed, bufferPool );
+            writeRequest( type, context, serializer, chunkingBuffer, temporaryBuffer );
+            final ResourceReleaser releaser = multiplexedReleaser( multiplexer, correlationId );
+            success = true;
+            return new ResponseFuture<R>( getReadTimeout( type, readTimeout ) )
+            {
+                @Override
+                protected Response<R> read( int timeoutSeconds )
+                {
+                    try
+                    {
+                        return readResponse( type, deserializer, reader, timeoutSeconds, temporaryBuffer,
+                                specificStoreId, releaser );
+                    }
+                    catch ( IllegalProtocolVersionException e )
+                    {
+                        notifyMismatchingVersionHandlers( e );
+                        throw e;
+                    }
+                    catch ( Throwable e )
+                    {
+                        throw Exceptions.launderedException( ComException.class, e );
+                    }
+                }
+
+                @Override
+                protected boolean awaitResponseStart( long timeout, TimeUnit unit ) throws InterruptedException
+                {
+                    // Only the thread about to read the response takes from the queue,
+                    // so the first chunk can be put back for it
+                    ChannelEvent first = chunks.pollFirst( timeout, unit );
+                    if ( first == null ) return false;
+                    chunks.putFirst( first );
+                    return true;
+                }
+
+                @Override
+                protected void abandon()
+                {
+                    // The channel is shared with other requests so leave it open, any late
+                    // response to this request will be dropped since it's unregistered.
+                    releaser.release();
+                }
+            };
+        }
+        catch ( Throwable e )
+        {
+            throw Exceptions.launderedException( ComException.class, e );
+        }
+        finally
+        {
+            /*
+             * Otherwise the user must call response.close(), or cancel the future,
+             * to prevent resource leaks.
+             */
+            if ( !success && multiplexer != null && correlationId != ChunkingChannelBuffer.NO_CORRELATION_ID )
+            {
+                multiplexer.unregister( correlationId );
+            }
+        }
+    }
+
+    private void writeRequest( RequestType<T> type, RequestContext context, Serializer serializer,
+            ChunkingChannelBuffer chunkingBuffer, ByteBuffer temporaryBuffer ) throws IOException
+    {
+        chunkingBuffer.writeByte( type.id() );
+        writeContext( type, context, chunkingBuffer );
+        serializer.write( chunkingBuffer, temporaryBuffer );
+        chunkingBuffer.done();
+    }
+
+    private <R> Response<R> readResponse( RequestType<T> type, Deserializer<R> deserializer,
+            BlockingReadHandler<ChannelBuffer> reader, int timeoutSeconds, ByteBuffer temporaryBuffer,
+            StoreId specificStoreId, ResourceReleaser releaser ) throws IOException
+    {
+        DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader, timeoutSeconds,
+                spokenInternalProtocolVersion(), applicationProtocolVersion );
+
+        R response = deserializer.read( dechunkingBuffer, temporaryBuffer );
+        StoreId storeId = readStoreId( dechunkingBuffer, temporaryBuffer );
+        if ( shouldCheckStoreId( type ) )
+        {
+            // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
+            if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
+            else assertCorrectStoreId( storeId, this.storeId );
+        }
+        TransactionStream txStreams = readTransactionStreams( dechunkingBuffer );
+        return new Response<R>( response, storeId, txStreams, releaser );
+    }
+
+    private static ResourceReleaser multiplexedReleaser( final MultiplexingResponseHandler multiplexer,
+            final int correlationId )
+    {
+        return new ResourceReleaser()
+        {
+            public void release()
+            {
+                multiplexer.unregister( correlationId );
+            }
+        };
+    }
+
+    private void notifyMismatchingVersionHandlers( IllegalProtocolVersionException e )
+    {
+        for ( MismatchingVersionHandler handler : mismatchingVersionHandlers )
+        {
+            handler.versionMismatched( e.getExpected(), e.getReceived() );
+        }
+    }
+
+    /**
+     * Whether or not requests of the given type should go over one of the shared
+     * multiplexed channels, if multiplexing is enabled. Requests which stream large
+     * amounts of data, or need a big temporary buffer, should have a channel of
+     * their own and not hold up the others.
+     */
+    protected boolean shouldMultiplex( RequestType<T> type )
+    {
+        return true;
+    }
+
     protected int getReadTimeout( RequestType<T> type, int readTimeout )
     {
         return readTimeout;
@@ -298,12 +592,12 @@ public abstract class Client<T> implements ChannelPipelineFactory
         targetBuffer.writeLong( context.getChecksum() );
     }
 
-    private Triplet<Channel, ChannelBuffer, ByteBuffer> getChannel( RequestType<T> type ) throws Exception
+    private Pair<Channel, ByteBuffer> getChannel( RequestType<T> type ) throws Exception
     {
         // Calling acquire is dangerous since it may be a blocking call... and if this
         // thread holds a lock which others may want to be able to communicate with
         // the server things go stiff.
-        Triplet<Channel, ChannelBuffer, ByteBuffer> result = channelPool.acquire();
+        Pair<Channel, ByteBuffer> result = channelPool.acquire();
         if ( result == null )
         {
             msgLog.logMessage( "Unable to acquire new channel for " + type );
@@ -312,12 +606,32 @@ public abstract class Client<T> implements ChannelPipelineFactory
         return result;
     }
 
-    protected void releaseChannel( RequestType<T> type, Triplet<Channel, ChannelBuffer, ByteBuffer> channel )
+    private Channel getMultiplexedChannel()
+    {
+        int slot = (nextMultiplexedChannel.getAndIncrement() & Integer.MAX_VALUE) % multiplexedChannels.length;
+        multiplexedChannelLocks[slot].lock();
+        try
+        {
+            Channel channel = multiplexedChannels[slot];
+            if ( channel == null || !channel.isConnected() )
+            {
+                channel = connect();
+                multiplexedChannels[slot] = channel;
+            }
+            return channel;
+        }
+        finally
+        {
+            multiplexedChannelLocks[slot].unlock();
+        }
+    }
+
+    protected void releaseChannel( RequestType<T> type, Pair<Channel, ByteBuffer> channel )
     {
         channelPool.release();
     }
 
-    protected void closeChannel( Triplet<Channel, ChannelBuffer, ByteBuffer> channel )
+    protected void closeChannel( Pair<Channel, ByteBuffer> channel )
     {
         channel.first().close().awaitUninterruptibly();
     }
@@ -326,6 +640,7 @@ public abstract class Client<T> implements ChannelPipelineFactory
     {
         ChannelPipeline pipeline = Channels.pipeline();
         addLengthFieldPipes( pipeline, frameLength );
+        pipeline.addLast( "multiplexingHandler", new MultiplexingResponseHandler() );
         BlockingReadHandler<ChannelBuffer> reader = new BlockingReadHandler<ChannelBuffer>(
                 new ArrayBlockingQueue<ChannelEvent>( 3, false ) );
         pipeline.addLast( "blockingHandler", reader );
@@ -335,6 +650,22 @@ public abstract class Client<T> implements ChannelPipelineFactory
     public void shutdown()
     {
         channelPool.close( true );
+        if ( multiplexedChannels != null )
+        {
+            for ( int i = 0; i < multiplexedChannels.length; i++ )
+            {
+                multiplexedChannelLocks[i].lock();
+                try
+                {
+                    if ( multiplexedChannels[i] != null ) multiplexedChannels[i].close();
+                    multiplexedChannels[i] = null;
+                }
+                finally
+                {
+                    multiplexedChannelLocks[i].unlock();
+                }
+            }
+        }
         executor.shutdownNow();
         mismatchingVersionHandlers.clear();
         msgLog.logMessage( toString() + " shutdown", true );
@@ -346,72 +677,6 @@ public abstract class Client<T> implements ChannelPipelineFactory
         return getClass().getSimpleName() + "[" + address + "]";
     }
 
-    protected static TransactionStream readTransactionStreams(
-            final ChannelBuffer buffer,
-            final ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> resourcePool )
-    {
-        final String[] datasources = readTransactionStreamHeader( buffer );
-
-        if ( datasources.length == 1 )
-        {
-            return TransactionStream.EMPTY;
-        }
-
-        return new TransactionStream()
-        {
-            @Override
-            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
-            {
-                makeSureNextTransactionIsFullyFetched( buffer );
-                String datasource = datasources[buffer.readUnsignedByte()];
-                if ( datasource == null ) return null;
-                long txId = buffer.readLong();
-                TxExtractor extractor = TxExtractor.create( new BlockLogReader( buffer ) );
-                return Triplet.of( datasource, txId, extractor );
-            }
-
-            @Override
-            public String[] dataSourceNames()
-            {
-                return Arrays.copyOfRange( datasources, 1, datasources.length );
-            }
-        };
-    }
-
-    protected static String[] readTransactionStreamHeader( ChannelBuffer buffer )
-    {
-        short numberOfDataSources = buffer.readUnsignedByte();
-        final String[] datasources = new String[numberOfDataSources + 1];
-        datasources[0] = null; // identifier for "no more transactions"
-        for ( int i = 1; i < datasources.length; i++ )
-        {
-            datasources[i] = readString( buffer );
-        }
-        return datasources;
-    }
-
-    private static void makeSureNextTransactionIsFullyFetched( ChannelBuffer buffer )
-    {
-        buffer.markReaderIndex();
-        try
-        {
-            if ( buffer.readUnsignedByte() > 0 /* datasource id */ )
-            {
-                buffer.skipBytes( 8 ); // tx id
-                int blockSize = 0;
-                while ( (blockSize = buffer.readUnsignedByte()) == 0 )
-                {
-                    buffer.skipBytes( BlockLogBuffer.DATA_SIZE );
-                }
-                buffer.skipBytes( blockSize );
-            }
-        }
-        finally
-        {
-            buffer.resetReaderIndex();
-        }
-    }
-
     public void addMismatchingVersionHandler( MismatchingVersionHandler toAdd )
     {
         mismatchingVersionHandlers.add( toAdd );
@@ -95,13 +95,19 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         /* Header layout:
          * [    ,    ][    ,   x] 0: last chunk in message, 1: there a more chunks after this one
          * [    ,    ][    ,  x ] 0: success, 1: failure
-         * [    ,    ][xxxx,xx  ] internal protocol version
+         * [    ,    ][  xx,xx  ] internal protocol version
+         * [    ,    ][ x  ,    ] compressed, the payload starts with its format, see ChunkCompression
+         * [    ,    ][x   ,    ] multiplexed, stripped of its correlation id by MultiplexingResponseHandler
          * [xxxx,xxxx][    ,    ] application protocol version */
-        byte[] header = new byte[2];
-        readBuffer.readBytes( header );
-        more = (header[0] & 0x1) != 0;
-        failure = (header[0] & 0x2) != 0;
-        assertSameProtocolVersion( header, internalProtocolVersion, applicationProtocolVersion );
+        byte header = readBuffer.readByte();
+        byte applicationHeader = readBuffer.readByte();
+        more = (header & 0x1) != 0;
+        failure = (header & 0x2) != 0;
+        assertSameProtocolVersion( header, applicationHeader, internalProtocolVersion, applicationProtocolVersion );
+        if ( (header & ChunkingChannelBuffer.COMPRESSED) != 0 )
+        {
+            readBuffer = ChunkCompression.uncompress( readBuffer );
+        }
 
         if ( !more && buffer == null )
         {
@@ -123,28 +129,39 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         }
     }
 
-    static void assertSameProtocolVersion( byte[] header, byte internalProtocolVersion, byte applicationProtocolVersion )
+    /**
+     * Takes the two header bytes one by one, since this is done for every chunk.
+     */
+    static void assertSameProtocolVersion( byte header, byte applicationHeader, byte internalProtocolVersion,
+            byte applicationProtocolVersion )
     {
-        /* [aaaa,aaaa][pppp,ppoc]
-         * Only 6 bits for internal protocol version, yielding 64 values. It's ok to wrap around because
+        /* [aaaa,aaaa][mzpp,ppoc]
+         * Only 4 bits for internal protocol version, yielding 16 values. It's ok to wrap around because
          * It's highly unlikely that instances that are so far apart in versions will communicate
-         * with each other.
+         * with each other. The top bits are the multiplexed and compressed flags, see ChunkingChannelBuffer.
          */
-        byte readInternalProtocolVersion = (byte) ((header[0] & 0x7C) >>> 2);
+        byte readInternalProtocolVersion = internalProtocolVersion( header );
         if ( readInternalProtocolVersion != internalProtocolVersion )
         {
             throw new IllegalProtocolVersionException( internalProtocolVersion, readInternalProtocolVersion,
                     "Unexpected internal protocol version " + readInternalProtocolVersion +
-                    ", expected " + internalProtocolVersion + ". Header:" + numbersToBitString( header ) );
+                    ", expected " + internalProtocolVersion + ". Header:" +
+                    numbersToBitString( new byte[] { header, applicationHeader } ) );
         }
-        if ( header[1] != applicationProtocolVersion )
+        if ( applicationHeader != applicationProtocolVersion )
         {
-            throw new IllegalProtocolVersionException( applicationProtocolVersion, header[1],
-                    "Unexpected application protocol version " + header[1] +
-                    ", expected " + applicationProtocolVersion + ". Header:" + numbersToBitString( header ) );
+            throw new IllegalProtocolVersionException( applicationProtocolVersion, applicationHeader,
+                    "Unexpected application protocol version " + applicationHeader +
+                    ", expected " + applicationProtocolVersion + ". Header:" +
+                    numbersToBitString( new byte[] { header, applicationHeader } ) );
         }
     }
 
+    static byte internalProtocolVersion( byte header )
+    {
+        return (byte) ((header & 0x3C) >>> 2);
+    }
+
     private Throwable readAndThrowFailureResponse()
     {
         Throwable cause = null;
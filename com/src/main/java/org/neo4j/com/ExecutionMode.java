@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.helpers.NamedThreadFactory;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * What kind of threads requests and other mostly blocking work run on.
+ * {@link #VIRTUAL} threads are cheap enough to have one per request even
+ * with hundreds of them waiting for the network at the same time, but
+ * require a JVM which has them. They're looked up reflectively, so that
+ * this compiles for and runs on JVMs without them, where {@link #available()}
+ * falls back to {@link #PLATFORM} threads.
+ * <p>
+ * Code running on virtual threads shouldn't wait for I/O or other threads
+ * inside {@code synchronized}, since that pins the virtual thread to its
+ * carrier thread. Use {@link java.util.concurrent.locks.Lock}s for that.
+ * Code which can't avoid it, f.ex. anything waiting for kernel locks or
+ * transactions, must run on {@link #PLATFORM} threads whatever mode is
+ * configured, or all carrier threads can end up pinned, waiting for
+ * virtual threads which never get to run.
+ */
+public enum ExecutionMode
+{
+    PLATFORM
+    {
+        @Override
+        public ThreadFactory threadFactory( String name, final int priority )
+        {
+            final ThreadFactory namedThreads = new NamedThreadFactory( name );
+            return new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = namedThreads.newThread( runnable );
+                    thread.setPriority( priority );
+                    return thread;
+                }
+            };
+        }
+
+        @Override
+        long idleThreadKeepAliveSeconds()
+        {
+            return 60;
+        }
+    },
+
+    /**
+     * Threads scheduled by the JVM onto a few carrier threads. They all have
+     * {@link Thread#NORM_PRIORITY}, the priority given to them is ignored.
+     */
+    VIRTUAL
+    {
+        @Override
+        public ThreadFactory threadFactory( String name, int priority )
+        {
+            if ( VIRTUAL_THREAD_BUILDER == null ) return PLATFORM.threadFactory( name, priority );
+            try
+            {
+                Object builder = VIRTUAL_THREAD_BUILDER.invoke( null );
+                builder = VIRTUAL_THREAD_NAME.invoke( builder, name + "-", 1L );
+                return (ThreadFactory) VIRTUAL_THREAD_FACTORY.invoke( builder );
+            }
+            catch ( Exception e )
+            {
+                throw new RuntimeException( "Couldn't create virtual threads for " + name, e );
+            }
+        }
+
+        @Override
+        long idleThreadKeepAliveSeconds()
+        {
+            // Not worth pooling, a new one is about as cheap as handing over to an idle one
+            return 0;
+        }
+    };
+
+    private static final Method VIRTUAL_THREAD_BUILDER;
+    private static final Method VIRTUAL_THREAD_NAME;
+    private static final Method VIRTUAL_THREAD_FACTORY;
+    static
+    {
+        Method builder = null, name = null, factory = null;
+        try
+        {
+            builder = Thread.class.getMethod( "ofVirtual" );
+            Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            name = builderClass.getMethod( "name", String.class, long.class );
+            factory = builderClass.getMethod( "factory" );
+            probe( builder, factory );
+        }
+        catch ( Throwable e )
+        {   // No virtual threads in this JVM, or only as a preview feature which isn't enabled
+            builder = null;
+        }
+        VIRTUAL_THREAD_BUILDER = builder;
+        VIRTUAL_THREAD_NAME = name;
+        VIRTUAL_THREAD_FACTORY = factory;
+    }
+
+    /**
+     * Starts a virtual thread, since a JVM can have the methods for it and
+     * still refuse to, f.ex. one where they are a preview feature.
+     */
+    private static void probe( Method builder, Method factory ) throws Exception
+    {
+        Thread thread = ((ThreadFactory) factory.invoke( builder.invoke( null ) )).newThread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        } );
+        thread.start();
+        thread.join();
+    }
+
+    /**
+     * @return a factory of threads named after {@code name}, with the given
+     * priority where the kind of thread supports it.
+     */
+    public abstract ThreadFactory threadFactory( String name, int priority );
+
+    abstract long idleThreadKeepAliveSeconds();
+
+    /**
+     * @return a pool which starts a new thread whenever all its threads are
+     * busy, like {@link java.util.concurrent.Executors#newCachedThreadPool()}.
+     */
+    public ThreadPoolExecutor newCachedThreadPool( String name, int priority )
+    {
+        return new ThreadPoolExecutor( 0, Integer.MAX_VALUE, idleThreadKeepAliveSeconds(), TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory( name, priority ) );
+    }
+
+    /**
+     * @return whether or not this JVM can run threads of this kind.
+     */
+    public boolean isSupported()
+    {
+        return this != VIRTUAL || VIRTUAL_THREAD_BUILDER != null;
+    }
+
+    /**
+     * @return this mode if this JVM supports it, otherwise {@link #PLATFORM}.
+     */
+    public ExecutionMode available()
+    {
+        return isSupported() ? this : PLATFORM;
+    }
+
+    /**
+     * @param name the name of a mode, in any case.
+     * @return the mode with that name, or {@link #PLATFORM} if this JVM
+     * doesn't support it, which is logged to {@code log}.
+     */
+    public static ExecutionMode forName( String name, StringLogger log )
+    {
+        ExecutionMode mode = valueOf( name.toUpperCase() );
+        if ( !mode.isSupported() )
+        {
+            log.logMessage( "Execution mode " + mode + " isn't supported by this JVM, using " + PLATFORM +
+                    " threads instead" );
+        }
+        return mode.available();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests in separate lanes depending on their {@link RequestType}, so
+ * that f.ex. a burst of store copies can't take the threads and CPU that
+ * commits need. Each {@link Lane} has a pool of threads, bounded or not, with
+ * a priority of their own and keeps track of how many requests are waiting in
+ * it. Requests of types not assigned to any lane run in the default lane.
+ */
+public class LaneRequestScheduler implements RequestScheduler
+{
+    private final Lane defaultLane;
+    private final Map<RequestType<?>, Lane> lanesByType = new HashMap<RequestType<?>, Lane>();
+    private final Collection<Lane> lanes = new ArrayList<Lane>();
+
+    public LaneRequestScheduler( Lane defaultLane )
+    {
+        this.defaultLane = defaultLane;
+        this.lanes.add( defaultLane );
+    }
+
+    /**
+     * Has requests of the given types run in {@code lane}. Meant to be called
+     * while setting up the scheduler, before any requests are scheduled.
+     */
+    public LaneRequestScheduler lane( Lane lane, RequestType<?>... types )
+    {
+        lanes.add( lane );
+        for ( RequestType<?> type : types )
+        {
+            lanesByType.put( type, lane );
+        }
+        return this;
+    }
+
+    @Override
+    public void schedule( RequestType<?> type, Runnable request )
+    {
+        Lane lane = type != null ? lanesByType.get( type ) : null;
+        (lane != null ? lane : defaultLane).schedule( request );
+    }
+
+    public Collection<Lane> getLanes()
+    {
+        return Collections.unmodifiableCollection( lanes );
+    }
+
+    @Override
+    public void shutdown()
+    {
+        for ( Lane lane : lanes )
+        {
+            lane.executor.shutdown();
+        }
+    }
+
+    public static class Lane
+    {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        private Lane( String name, ThreadPoolExecutor executor )
+        {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        /**
+         * A lane which starts a new thread whenever all its threads are busy,
+         * for requests which may wait for other requests to finish, f.ex.
+         * lock requests. Those would deadlock if they all had to wait for a
+         * thread.
+         */
+        public static Lane unbounded( String name, int threadPriority )
+        {
+            return unbounded( name, threadPriority, ExecutionMode.PLATFORM );
+        }
+
+        public static Lane unbounded( String name, int threadPriority, ExecutionMode mode )
+        {
+            return new Lane( name, mode.newCachedThreadPool( name, threadPriority ) );
+        }
+
+        /**
+         * A lane which runs at most {@code threads} requests at a time and
+         * queues the rest.
+         */
+        public static Lane bounded( String name, int threads, int threadPriority )
+        {
+            return bounded( name, threads, threadPriority, ExecutionMode.PLATFORM );
+        }
+
+        public static Lane bounded( String name, int threads, int threadPriority, ExecutionMode mode )
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), mode.threadFactory( name, threadPriority ) );
+            executor.allowCoreThreadTimeOut( true );
+            return new Lane( name, executor );
+        }
+
+        private void schedule( Runnable request )
+        {
+            executor.execute( request );
+            int depth = executor.getQueue().size();
+            for ( int max; depth > (max = maxQueueDepth.get()); )
+            {
+                if ( maxQueueDepth.compareAndSet( max, depth ) ) break;
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the number of requests waiting for a thread in this lane.
+         */
+        public int getQueueDepth()
+        {
+            return executor.getQueue().size();
+        }
+
+        /**
+         * @return the most requests that have been waiting for a thread in
+         * this lane at the same time.
+         */
+        public int getMaxQueueDepth()
+        {
+            return maxQueueDepth.get();
+        }
+
+        public int getActiveCount()
+        {
+            return executor.getActiveCount();
+        }
+
+        public long getCompletedCount()
+        {
+            return executor.getCompletedTaskCount();
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "[active:" + getActiveCount() + ", queued:" + getQueueDepth() + ", max queued:" +
+                    getMaxQueueDepth() + ", completed:" + getCompletedCount() + "]";
+        }
+    }
+}
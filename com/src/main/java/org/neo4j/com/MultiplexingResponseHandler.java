@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.queue.BlockingReadHandler;
+
+/**
+ * Sits in the pipeline of every {@link Client} channel and routes each incoming
+ * multiplexed chunk to the {@link BlockingReadHandler} registered for the
+ * correlation id found in the chunk header. The correlation id is stripped
+ * before the chunk is handed over so that {@link DechunkingChannelBuffer} sees
+ * the same layout as for a non-multiplexed channel. Non-multiplexed chunks are
+ * passed on upstream untouched.
+ *
+ * Chunks for a correlation id which is no longer registered, f.ex. a response
+ * arriving after the requester timed out, are silently dropped.
+ */
+class MultiplexingResponseHandler extends SimpleChannelUpstreamHandler
+{
+    private static final int HEADER_SIZE = 2;
+    private static final int CORRELATION_ID_SIZE = 4;
+
+    private final AtomicInteger nextCorrelationId = new AtomicInteger();
+    private final ConcurrentMap<Integer, BlockingReadHandler<ChannelBuffer>> pending =
+            new ConcurrentHashMap<Integer, BlockingReadHandler<ChannelBuffer>>();
+
+    int register( BlockingReadHandler<ChannelBuffer> reader )
+    {
+        while ( true )
+        {
+            // Correlation ids are never negative, NO_CORRELATION_ID is reserved
+            int id = nextCorrelationId.getAndIncrement() & Integer.MAX_VALUE;
+            if ( pending.putIfAbsent( id, reader ) == null ) return id;
+        }
+    }
+
+    void unregister( int correlationId )
+    {
+        pending.remove( correlationId );
+    }
+
+    int inFlight()
+    {
+        return pending.size();
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+    {
+        ChannelBuffer chunk = (ChannelBuffer) e.getMessage();
+        int headerIndex = chunk.readerIndex();
+        if ( (chunk.getByte( headerIndex ) & ChunkingChannelBuffer.MULTIPLEXED) == 0 )
+        {
+            ctx.sendUpstream( e );
+            return;
+        }
+        BlockingReadHandler<ChannelBuffer> reader = pending.get( chunk.getInt( headerIndex + HEADER_SIZE ) );
+        if ( reader == null ) return;
+
+        int payloadIndex = headerIndex + HEADER_SIZE + CORRELATION_ID_SIZE;
+        ChannelBuffer stripped = ChannelBuffers.wrappedBuffer( chunk.slice( headerIndex, HEADER_SIZE ),
+                chunk.slice( payloadIndex, chunk.writerIndex() - payloadIndex ) );
+        reader.messageReceived( ctx, new UpstreamMessageEvent( e.getChannel(), stripped, e.getRemoteAddress() ) );
+    }
+
+    @Override
+    public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception
+    {
+        for ( BlockingReadHandler<ChannelBuffer> reader : pending.values() )
+        {
+            reader.channelClosed( ctx, e );
+        }
+        ctx.sendUpstream( e );
+    }
+
+    @Override
+    public void exceptionCaught( ChannelHandlerContext ctx, ExceptionEvent e ) throws Exception
+    {
+        for ( BlockingReadHandler<ChannelBuffer> reader : pending.values() )
+        {
+            reader.exceptionCaught( ctx, e );
+        }
+        ctx.sendUpstream( e );
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.neo4j.helpers.Exceptions;
+import org.neo4j.helpers.NamedThreadFactory;
+
+/**
+ * Copies a store from a {@link StoreCopySource} over several streams at once.
+ * The store files are listed first and then copied in ranges, so that large
+ * files are copied over several streams too, each range written in place by
+ * the {@link FileRangeWriter}.
+ * <p>
+ * Each stream is a request of its own from a thread of its own, so a
+ * {@link Client} source must allow at least as many concurrent channels as
+ * there are streams.
+ */
+public class ParallelStoreCopier
+{
+    public static final long DEFAULT_RANGE_SIZE = 64*Protocol.MEGA;
+
+    private final StoreCopySource source;
+    private final RequestContext context;
+    private final int streams;
+    private final long rangeSize;
+
+    public ParallelStoreCopier( StoreCopySource source, RequestContext context, int streams )
+    {
+        this( source, context, streams, DEFAULT_RANGE_SIZE );
+    }
+
+    public ParallelStoreCopier( StoreCopySource source, RequestContext context, int streams, long rangeSize )
+    {
+        this.source = source;
+        this.context = context;
+        this.streams = streams;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Copies all store files into {@code writer}.
+     *
+     * @return the response of finishing the copy, with the transactions committed
+     * on the source while the files were copied. They are to be applied on top of
+     * the copied files, just as with a store copied in one stream.
+     */
+    public Response<Void> copyTo( FileRangeWriter writer )
+    {
+        return copyTo( writer, null );
+    }
+
+    /**
+     * Copies all store files into {@code writer}, recording each copied range
+     * in {@code checkpoint}. If the checkpoint {@link StoreCopyCheckpoint#canResume() can resume}
+     * a previous copy then only the ranges that aren't already copied are copied,
+     * within the same session as before.
+     * <p>
+     * If the copy fails because of the connection the session is left open on
+     * the source, for the copy to be resumed. If the source itself fails the
+     * request, f.ex. because the session has timed out, the checkpoint is
+     * deleted so that the next copy starts over.
+     */
+    public Response<Void> copyTo( FileRangeWriter writer, StoreCopyCheckpoint checkpoint )
+    {
+        StoreFileListing listing = checkpoint != null ? checkpoint.getListing() : null;
+        boolean resuming = listing != null;
+        if ( !resuming )
+        {
+            listing = listStoreFiles();
+            if ( checkpoint != null )
+            {
+                startCheckpoint( checkpoint, listing );
+            }
+        }
+
+        boolean success = false;
+        boolean keepSession = checkpoint != null;
+        ExecutorService executor = Executors.newFixedThreadPool( streams, new NamedThreadFactory( "Store copy" ) );
+        try
+        {
+            List<Future<Void>> parts = new ArrayList<Future<Void>>();
+            for ( Map.Entry<String, Long> file : listing.getFiles().entrySet() )
+            {
+                long size = file.getValue().longValue();
+                long position = 0;
+                do
+                {
+                    long length = Math.min( rangeSize, size - position );
+                    if ( !resuming || !checkpoint.isCopied( file.getKey(), position, length ) )
+                    {
+                        parts.add( executor.submit( copyPart( listing.getSessionId(), file.getKey(), position,
+                                length, writer, checkpoint ) ) );
+                    }
+                    position += length;
+                }
+                while ( position < size );
+            }
+            for ( Future<Void> part : parts )
+            {
+                part.get();
+            }
+            success = true;
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof ServerFailureException )
+            {
+                keepSession = false;
+            }
+            throw Exceptions.launderedException( ComException.class, e.getCause() );
+        }
+        catch ( IOException e )
+        {
+            throw new ComException( "Couldn't verify previously copied store files", e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            throw new ComException( "Interrupted while copying store", e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+            if ( !success )
+            {
+                closeCheckpoint( checkpoint, keepSession );
+                if ( !keepSession )
+                {
+                    releaseSession( listing.getSessionId() );
+                }
+            }
+        }
+
+        try
+        {
+            Response<Void> response = source.finishStoreCopy( context, listing.getSessionId() );
+            closeCheckpoint( checkpoint, false );
+            return response;
+        }
+        catch ( RuntimeException e )
+        {
+            closeCheckpoint( checkpoint, !(e instanceof ServerFailureException) );
+            throw e;
+        }
+    }
+
+    private StoreFileListing listStoreFiles()
+    {
+        Response<StoreFileListing> response = source.listStoreFiles( context );
+        try
+        {
+            return response.response();
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    private Callable<Void> copyPart( final int sessionId, final String path, final long position,
+            final long length, final FileRangeWriter writer, final StoreCopyCheckpoint checkpoint )
+    {
+        return new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                if ( checkpoint == null )
+                {
+                    source.copyStoreFile( context, sessionId, path, position, length, writer ).close();
+                    return null;
+                }
+
+                CRC32 checksum = new CRC32();
+                source.copyStoreFile( context, sessionId, path, position, length,
+                        new ChecksummingWriter( writer, checksum ) ).close();
+                checkpoint.copied( path, position, length, checksum.getValue() );
+                return null;
+            }
+        };
+    }
+
+    private static void startCheckpoint( StoreCopyCheckpoint checkpoint, StoreFileListing listing )
+    {
+        try
+        {
+            checkpoint.start( listing );
+        }
+        catch ( IOException e )
+        {
+            throw new ComException( "Couldn't write store copy checkpoint", e );
+        }
+    }
+
+    /**
+     * Closes the checkpoint, keeping it around to resume from or deleting it.
+     */
+    private static void closeCheckpoint( StoreCopyCheckpoint checkpoint, boolean keep )
+    {
+        if ( checkpoint == null )
+        {
+            return;
+        }
+        try
+        {
+            if ( keep )
+            {
+                checkpoint.close();
+            }
+            else
+            {
+                checkpoint.delete();
+            }
+        }
+        catch ( IOException e )
+        {   // At worst the next copy resumes from a session which is gone, and then starts over
+        }
+    }
+
+    private void releaseSession( int sessionId )
+    {
+        try
+        {
+            source.finishStoreCopy( context, sessionId ).close();
+        }
+        catch ( RuntimeException e )
+        {   // The session will time out on the source side anyway
+        }
+    }
+
+    /**
+     * Calculates the checksum of the bytes of a range as they pass through
+     * to the actual writer.
+     */
+    private static class ChecksummingWriter implements FileRangeWriter
+    {
+        private final FileRangeWriter writer;
+        private final Checksum checksum;
+
+        ChecksummingWriter( FileRangeWriter writer, Checksum checksum )
+        {
+            this.writer = writer;
+            this.checksum = checksum;
+        }
+
+        public void write( String path, final ReadableByteChannel data, long position, long length,
+                ByteBuffer temporaryBuffer ) throws IOException
+        {
+            writer.write( path, new ReadableByteChannel()
+            {
+                public int read( ByteBuffer dst ) throws IOException
+                {
+                    int start = dst.position();
+                    int read = data.read( dst );
+                    if ( read > 0 )
+                    {
+                        update( dst, start, read );
+                    }
+                    return read;
+                }
+
+                public boolean isOpen()
+                {
+                    return data.isOpen();
+                }
+
+                public void close() throws IOException
+                {
+                    data.close();
+                }
+            }, position, length, temporaryBuffer );
+        }
+
+        private void update( ByteBuffer buffer, int start, int length )
+        {
+            if ( buffer.hasArray() )
+            {
+                checksum.update( buffer.array(), buffer.arrayOffset() + start, length );
+                return;
+            }
+            for ( int i = 0; i < length; i++ )
+            {
+                checksum.update( buffer.get( start + i ) );
+            }
+        }
+    }
+}
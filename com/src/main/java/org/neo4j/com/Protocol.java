@@ -21,11 +21,17 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
 import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.neo4j.helpers.Triplet;
+import org.neo4j.helpers.collection.IteratorUtil;
 
 public abstract class Protocol
 {
@@ -75,6 +81,136 @@ public abstract class Protocol
         {
         }
     };
+
+    /**
+     * Store copy capability flag telling the server that file contents may be
+     * sent as raw regions of the file, see {@link ToNetworkStoreWriter}.
+     */
+    public static final byte STORE_COPY_RAW_FILES = 0x1;
+    public static final byte STORE_COPY_CAPABILITIES = STORE_COPY_RAW_FILES;
+
+    /**
+     * Serializer for store copy requests, tells the server what this client
+     * can handle. Servers not knowing about it will just ignore it.
+     */
+    public static final Serializer STORE_COPY_SERIALIZER = new Serializer()
+    {
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeByte( STORE_COPY_CAPABILITIES );
+        }
+    };
+
+    /**
+     * @return the store copy capabilities written by {@link #STORE_COPY_SERIALIZER},
+     * or none if the client doesn't know about them.
+     */
+    public static byte readStoreCopyCapabilities( ChannelBuffer input )
+    {
+        return input.readable() ? input.readByte() : 0;
+    }
+
+    /**
+     * Writes the transactions of a stream, f.ex. those of a {@link Response}.
+     */
+    public static void writeTransactionStreams( TransactionStream txStream, ChannelBuffer buffer ) throws IOException
+    {
+        if ( !txStream.hasNext() )
+        {
+            buffer.writeByte( 0 );
+            return;
+        }
+
+        String[] datasources = txStream.dataSourceNames();
+        assert datasources.length <= 255 : "too many data sources";
+        buffer.writeByte( datasources.length );
+        Map<String, Integer> datasourceId = new HashMap<String, Integer>();
+        for ( int i = 0; i < datasources.length; i++ )
+        {
+            String datasource = datasources[i];
+            writeString( buffer, datasource );
+            datasourceId.put( datasource, i + 1/*0 means "no more transactions"*/);
+        }
+        // One block buffer for all transactions, it's ready for the next one when done
+        BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer );
+        for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( txStream ) )
+        {
+            buffer.writeByte( datasourceId.get( tx.first() ) );
+            buffer.writeLong( tx.second() );
+            tx.third().extract( blockBuffer );
+            blockBuffer.done();
+        }
+        buffer.writeByte( 0/*no more transactions*/);
+    }
+
+    /**
+     * Reads transactions written by {@link #writeTransactionStreams(TransactionStream, ChannelBuffer)}.
+     * Each transaction must be read through before the next one is fetched.
+     */
+    public static TransactionStream readTransactionStreams( final ChannelBuffer buffer )
+    {
+        final String[] datasources = readTransactionStreamHeader( buffer );
+
+        if ( datasources.length == 1 )
+        {
+            return TransactionStream.EMPTY;
+        }
+
+        return new TransactionStream()
+        {
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                makeSureNextTransactionIsFullyFetched( buffer );
+                String datasource = datasources[buffer.readUnsignedByte()];
+                if ( datasource == null ) return null;
+                long txId = buffer.readLong();
+                TxExtractor extractor = TxExtractor.create( new BlockLogReader( buffer ) );
+                return Triplet.of( datasource, txId, extractor );
+            }
+
+            @Override
+            public String[] dataSourceNames()
+            {
+                return Arrays.copyOfRange( datasources, 1, datasources.length );
+            }
+        };
+    }
+
+    protected static String[] readTransactionStreamHeader( ChannelBuffer buffer )
+    {
+        short numberOfDataSources = buffer.readUnsignedByte();
+        final String[] datasources = new String[numberOfDataSources + 1];
+        datasources[0] = null; // identifier for "no more transactions"
+        for ( int i = 1; i < datasources.length; i++ )
+        {
+            datasources[i] = readString( buffer );
+        }
+        return datasources;
+    }
+
+    private static void makeSureNextTransactionIsFullyFetched( ChannelBuffer buffer )
+    {
+        buffer.markReaderIndex();
+        try
+        {
+            if ( buffer.readUnsignedByte() > 0 /* datasource id */ )
+            {
+                buffer.skipBytes( 8 ); // tx id
+                int blockSize = 0;
+                while ( (blockSize = buffer.readUnsignedByte()) == 0 )
+                {
+                    buffer.skipBytes( BlockLogBuffer.DATA_SIZE );
+                }
+                buffer.skipBytes( blockSize );
+            }
+        }
+        finally
+        {
+            buffer.resetReaderIndex();
+        }
+    }
+
     public static class FileStreamsDeserializer implements Deserializer<Void>
     {
         private final StoreWriter writer;
@@ -91,13 +227,99 @@ public abstract class Protocol
             while ( 0 != ( pathLength = buffer.readUnsignedShort() ) )
             {
                 String path = readString( buffer, pathLength );
-                boolean hasData = buffer.readByte() == 1;
-                writer.write( path, hasData ? new BlockLogReader( buffer ) : null, temporaryBuffer, hasData );
+                byte format = buffer.readByte();
+                ReadableByteChannel data = null;
+                switch ( format )
+                {
+                case ToNetworkStoreWriter.BLOCK_DATA:
+                    data = new BlockLogReader( buffer );
+                    break;
+                case ToNetworkStoreWriter.RAW_DATA:
+                    data = new RawDataReader( buffer, buffer.readLong() );
+                    break;
+                }
+                writer.write( path, data, temporaryBuffer, data != null );
             }
             writer.done();
             return null;
         }
     };
+
+    /**
+     * Reads a range of a file, as written by {@link ToNetworkStoreWriter}, into a
+     * {@link FileRangeWriter}.
+     */
+    public static class FileRangeDeserializer implements Deserializer<Void>
+    {
+        private final FileRangeWriter writer;
+        private final String path;
+        private final long position;
+
+        public FileRangeDeserializer( FileRangeWriter writer, String path, long position )
+        {
+            this.writer = writer;
+            this.path = path;
+            this.position = position;
+        }
+
+        public Void read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            long length = buffer.readLong();
+            RawDataReader data = new RawDataReader( buffer, length );
+            writer.write( path, data, position, length, temporaryBuffer );
+            data.close();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a known number of raw bytes from a "smart" ChannelBuffer, at most
+     * one chunk at a time.
+     */
+    private static class RawDataReader implements ReadableByteChannel
+    {
+        private final ChannelBuffer source;
+        private long remaining;
+
+        RawDataReader( ChannelBuffer source, long length )
+        {
+            this.source = source;
+            this.remaining = length;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            // Leave the reader index in the right place even if not read through
+            while ( remaining > 0 && source.readable() )
+            {
+                int count = (int) Math.min( remaining, source.readableBytes() );
+                source.skipBytes( count );
+                remaining -= count;
+            }
+        }
+
+        public int read( ByteBuffer dst ) throws IOException
+        {
+            if ( remaining == 0 ) return -1;
+            if ( source.readableBytes() == 0 && !source.readable() )
+            {
+                throw new IOException( "Stream ended with " + remaining + " bytes left to read" );
+            }
+
+            int count = (int) Math.min( Math.min( remaining, dst.remaining() ), source.readableBytes() );
+            int limit = dst.limit();
+            dst.limit( dst.position() + count );
+            source.readBytes( dst );
+            dst.limit( limit );
+            remaining -= count;
+            return count;
+        }
+    }
     
     public static void addLengthFieldPipes( ChannelPipeline pipeline, int frameLength )
     {
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Future} for the {@link Response} to a request which has already been
+ * sent. The response is read by the first thread asking for it, so no thread is
+ * tied up while the request is in flight and the caller is free to do other
+ * work in the meantime.
+ *
+ * A read timing out or failing in any other way is final, i.e. the failure will
+ * be thrown from every subsequent call as well. A future can only be cancelled
+ * before its response has started being read.
+ */
+public abstract class ResponseFuture<R> implements Future<Response<R>>
+{
+    private static final int PENDING = 0, READING = 1, DONE = 2, CANCELLED = 3;
+
+    private final int defaultTimeoutSeconds;
+    // Held by the thread reading the response, a lock rather than the monitor
+    // since blocking in a monitor pins a virtual thread to its carrier thread.
+    private final Lock readLock = new ReentrantLock();
+    private final AtomicInteger state = new AtomicInteger( PENDING );
+    private Response<R> response; // Guarded by readLock
+    private RuntimeException failure; // Guarded by readLock
+
+    protected ResponseFuture( int defaultTimeoutSeconds )
+    {
+        this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+    }
+
+    /**
+     * Reads the response, waiting at most {@code timeoutSeconds} for each chunk of it.
+     */
+    protected abstract Response<R> read( int timeoutSeconds );
+
+    /**
+     * Waits for the start of the response to arrive, without reading any of it.
+     *
+     * @return whether or not it arrived within the given time.
+     */
+    protected abstract boolean awaitResponseStart( long timeout, TimeUnit unit ) throws InterruptedException;
+
+    /**
+     * Called if the response won't be read, to release any resources held for it.
+     */
+    protected abstract void abandon();
+
+    /**
+     * Like {@link #get()}, but throws failures as they are instead of wrapping
+     * them in an {@link ExecutionException}.
+     */
+    public Response<R> awaitResponse()
+    {
+        readLock.lock();
+        try
+        {
+            if ( state.get() == PENDING && !state.compareAndSet( PENDING, READING ) )
+                throw new CancellationException();
+            if ( state.get() == CANCELLED ) throw new CancellationException();
+            if ( state.get() == READING )
+            {
+                try
+                {
+                    response = read( defaultTimeoutSeconds );
+                }
+                catch ( RuntimeException e )
+                {
+                    failure = e;
+                    abandon();
+                }
+                finally
+                {
+                    state.set( DONE );
+                }
+            }
+            if ( failure != null ) throw failure;
+            return response;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public Response<R> get() throws ExecutionException
+    {
+        try
+        {
+            return awaitResponse();
+        }
+        catch ( CancellationException e )
+        {
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            throw new ExecutionException( e );
+        }
+    }
+
+    /**
+     * Waits at most the given time for the response to start arriving, or for
+     * another thread to finish reading it. Once it has started arriving the
+     * rest of it is read like in {@link #get()}.
+     */
+    @Override
+    public Response<R> get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException,
+            TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        if ( !readLock.tryLock( timeout, unit ) ) throw new TimeoutException();
+        try
+        {
+            if ( state.get() == PENDING && !awaitResponseStart( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) )
+                throw new TimeoutException();
+            return get();
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean cancel( boolean mayInterruptIfRunning )
+    {
+        if ( !state.compareAndSet( PENDING, CANCELLED ) ) return false;
+        abandon();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return state.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return state.get() >= DONE;
+    }
+
+    /**
+     * @return a future which is already done, for when a request had to be made
+     * synchronously.
+     */
+    public static <R> ResponseFuture<R> completed( final Response<R> response )
+    {
+        ResponseFuture<R> future = new ResponseFuture<R>( 0 )
+        {
+            @Override
+            protected Response<R> read( int timeoutSeconds )
+            {
+                return response;
+            }
+
+            @Override
+            protected boolean awaitResponseStart( long timeout, TimeUnit unit )
+            {
+                return true;
+            }
+
+            @Override
+            protected void abandon()
+            {
+                response.close();
+            }
+        };
+        future.awaitResponse();
+        return future;
+    }
+}
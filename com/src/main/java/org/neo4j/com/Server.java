@@ -25,19 +25,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
 import org.jboss.netty.channel.ChannelFactory;
@@ -54,10 +56,7 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.neo4j.com.RequestContext.Tx;
 import org.neo4j.helpers.Exceptions;
-import org.neo4j.helpers.NamedThreadFactory;
 import org.neo4j.helpers.Pair;
-import org.neo4j.helpers.Triplet;
-import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.util.StringLogger;
@@ -65,10 +64,25 @@ import org.neo4j.kernel.impl.util.StringLogger;
 /**
  * Receives requests from {@link Client clients}. Delegates actual work to an instance
  * of a specified communication interface, injected in the constructor.
+ * <p>
+ * Requests from multiplexing clients carry a correlation id in each chunk. Such
+ * requests are tracked per channel and correlation id, and since every request is
+ * handled on a thread of its own the responses go back as soon as they are done,
+ * in whatever order that happens to be, tagged with the same correlation id.
+ * <p>
+ * Clients that compress their requests get compressed responses back, so
+ * compression is up to each client.
+ * <p>
+ * Clients speaking {@link #LEGACY_INTERNAL_PROTOCOL_VERSION the internal protocol
+ * version from before multiplexing and compression} are answered in that version.
  */
 public abstract class Server<T, R> extends Protocol implements ChannelPipelineFactory
 {
-    static final byte INTERNAL_PROTOCOL_VERSION = 2;
+    // 3 added multiplexed and compressed chunks, and answering empty requests
+    // with the version spoken, see Client
+    static final byte INTERNAL_PROTOCOL_VERSION = 3;
+    // Clients still speaking this version get answered in it
+    static final byte LEGACY_INTERNAL_PROTOCOL_VERSION = 2;
     public static final int DEFAULT_BACKUP_PORT = 6362;
 
     // It's ok if there are more transactions, since these worker threads doesn't
@@ -76,18 +90,20 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     // actual work. So this is more like a core Netty I/O pool worker size.
     public final static int DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS = 200;
 
+    private static final long SILENT_CHANNEL_CHECK_INTERVAL = 5000;
+
     private final ChannelFactory channelFactory;
     private final ServerBootstrap bootstrap;
     private T requestTarget;
     private final ChannelGroup channelGroup;
-    private final Map<Channel, Pair<RequestContext, AtomicLong /*time last heard of*/>> connectedSlaveChannels =
-            new HashMap<Channel, Pair<RequestContext,AtomicLong>>();
+    private final ConcurrentMap<Channel, SlaveChannel> connectedSlaveChannels = new ConcurrentHashMap<Channel, SlaveChannel>();
     private final ExecutorService executor;
-    private final ExecutorService targetCallExecutor;
+    private final RequestScheduler requestScheduler;
     private final StringLogger msgLog;
-    private final Map<Channel, PartialRequest> partialRequests =
-            Collections.synchronizedMap( new HashMap<Channel, PartialRequest>() );
+    private final Map<Pair<Channel, Integer>, PartialRequest> partialRequests =
+            new ConcurrentHashMap<Pair<Channel, Integer>, PartialRequest>();
     private final int frameLength;
+    private final BufferPool bufferPool = new BufferPool();
     private volatile boolean shuttingDown;
 
     // Executor for channels that we know should be finished, but can't due to being
@@ -98,6 +114,7 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     // events to not be sent. This is merely a safety net to catch the remained of the closed
     // channels that netty doesn't tell us about.
     private final ScheduledExecutorService silentChannelExecutor;
+    private final TimeoutWheel<SlaveChannel> silentChannels;
 
     private final byte applicationProtocolVersion;
     private final int oldChannelThresholdMillis;
@@ -105,6 +122,18 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     public Server( T requestTarget, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
             int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier )
+    {
+        this( requestTarget, port, logger, frameLength, applicationProtocolVersion, maxNumberOfConcurrentTransactions,
+                oldChannelThreshold, txVerifier, null );
+    }
+
+    /**
+     * @param requestScheduler runs the requests, or {@code null} to run each
+     * on a thread of its own from one unbounded pool.
+     */
+    public Server( T requestTarget, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
+            int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier,
+            RequestScheduler requestScheduler )
     {
         this.requestTarget = requestTarget;
         this.frameLength = frameLength;
@@ -113,12 +142,16 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         this.txVerifier = txVerifier;
         this.oldChannelThresholdMillis = oldChannelThreshold*1000;
         executor = Executors.newCachedThreadPool();
-        targetCallExecutor = Executors.newCachedThreadPool( new NamedThreadFactory( getClass().getSimpleName() + ":" + port ) );
+        this.requestScheduler = requestScheduler != null ? requestScheduler : new LaneRequestScheduler(
+                LaneRequestScheduler.Lane.unbounded( getClass().getSimpleName() + ":" + port, Thread.NORM_PRIORITY ) );
         unfinishedTransactionExecutor = Executors.newScheduledThreadPool( 2 );
         channelFactory = new NioServerSocketChannelFactory(
                 executor, executor, maxNumberOfConcurrentTransactions );
+        silentChannels = new TimeoutWheel<SlaveChannel>( SILENT_CHANNEL_CHECK_INTERVAL, 64, System.currentTimeMillis(),
+                msgLog );
         silentChannelExecutor = Executors.newSingleThreadScheduledExecutor();
-        silentChannelExecutor.scheduleWithFixedDelay( silentChannelFinisher(), 5, 5, TimeUnit.SECONDS );
+        silentChannelExecutor.scheduleWithFixedDelay( silentChannelFinisher(), SILENT_CHANNEL_CHECK_INTERVAL,
+                SILENT_CHANNEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS );
         bootstrap = new ServerBootstrap( channelFactory );
         bootstrap.setPipelineFactory( this );
 
@@ -143,35 +176,50 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         // This poller is here because sometimes Netty doesn't tell us when channels are
         // closed or disconnected. Most of the time it does, but this acts as a safety
         // net for those we don't get notifications for. When the bug is fixed remove this.
-        return new Runnable()
+        final TimeoutWheel.Expiration<SlaveChannel> finisher = new TimeoutWheel.Expiration<SlaveChannel>()
         {
             @Override
-            public void run()
+            public long expired( SlaveChannel slaveChannel, long now )
             {
-                Map<Channel, Boolean/*starting to get old?*/> channels = new HashMap<Channel, Boolean>();
-                synchronized ( connectedSlaveChannels )
-                {
-                    for ( Map.Entry<Channel, Pair<RequestContext, AtomicLong>> channel : connectedSlaveChannels.entrySet() )
-                    {   // Has this channel been silent for a while?
-                        long age = System.currentTimeMillis()-channel.getValue().other().get();
-                        if ( age > oldChannelThresholdMillis )
-                        {
-                            msgLog.logMessage( "Found a silent channel " + channel + ", " + age );
-                            channels.put( channel.getKey(), Boolean.TRUE );
-                        }
-                        else if ( age > oldChannelThresholdMillis/2 )
-                        {   // Then add it to a list to check
-                            channels.put( channel.getKey(), Boolean.FALSE );
-                        }
-                    }
+                Channel channel = slaveChannel.channel;
+                long heardOf = slaveChannel.oldestRequestTime();
+                if ( heardOf == -1 )
+                {   // Finished off already
+                    return -1;
+                }
+                if ( heardOf == Long.MAX_VALUE )
+                {   // Nothing in flight, just see that it's still there
+                    if ( channel.isOpen() ) return now + oldChannelThresholdMillis/2;
+                    tryToFinishOffChannel( channel );
+                    return -1;
                 }
-                for ( Map.Entry<Channel, Boolean> channel : channels.entrySet() )
+
+                // Has this channel been silent for a while?
+                long age = now - heardOf;
+                if ( age > oldChannelThresholdMillis )
                 {
-                    if ( channel.getValue() || !channel.getKey().isOpen() || !channel.getKey().isConnected() || !channel.getKey().isBound() )
+                    msgLog.logMessage( "Found a silent channel " + channel + ", " + age );
+                    tryToFinishOffChannel( channel );
+                    return -1;
+                }
+                if ( age > oldChannelThresholdMillis/2 )
+                {   // Starting to get old, check it until it's heard from
+                    if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
                     {
-                        tryToFinishOffChannel( channel.getKey() );
+                        tryToFinishOffChannel( channel );
+                        return -1;
                     }
+                    return now + SILENT_CHANNEL_CHECK_INTERVAL;
                 }
+                return heardOf + oldChannelThresholdMillis/2 + 1;
+            }
+        };
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                silentChannels.tick( System.currentTimeMillis(), finisher );
             }
         };
     }
@@ -242,16 +290,12 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected void tryToFinishOffChannel( Channel channel )
     {
-        Pair<RequestContext, AtomicLong> slave = null;
-        synchronized ( connectedSlaveChannels )
-        {
-            slave = connectedSlaveChannels.remove( channel );
-        }
-        if ( slave == null )
+        SlaveChannel slaveChannel = connectedSlaveChannels.remove( channel );
+        if ( slaveChannel == null ) return;
+        for ( RequestContext slave : slaveChannel.finishOff() )
         {
-            return;
+            tryToFinishOffChannel( channel, slave );
         }
-        tryToFinishOffChannel( channel, slave.first() );
     }
 
     protected void tryToFinishOffChannel( Channel channel, RequestContext slave )
@@ -287,6 +331,18 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         }
     }
 
+    private void scheduleSilent( RequestType<T> type, Runnable request )
+    {
+        try
+        {
+            requestScheduler.schedule( type, request );
+        }
+        catch ( RejectedExecutionException e )
+        {   // Same as in submitSilent
+            if ( !shuttingDown ) throw e;
+        }
+    }
+
     private Runnable newTransactionFinisher( final RequestContext slave )
     {
         return new Runnable()
@@ -322,36 +378,52 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected void handleRequest( ChannelBuffer buffer, final Channel channel ) throws IOException
     {
-        Byte continuation = readContinuationHeader( buffer, channel );
+        byte header = buffer.readByte();
+        byte applicationHeader = buffer.readByte();
+        byte internalProtocolVersion = responseInternalProtocolVersion( header );
+        int correlationId = (header & ChunkingChannelBuffer.MULTIPLEXED) != 0 ?
+                buffer.readInt() : ChunkingChannelBuffer.NO_CORRELATION_ID;
+        Byte continuation = readContinuationHeader( header, applicationHeader, internalProtocolVersion, channel,
+                correlationId );
         if ( continuation == null ) return;
+        // Responses are compressed for clients that compress their requests
+        boolean compressed = (header & ChunkingChannelBuffer.COMPRESSED) != 0;
+        if ( compressed ) buffer = ChunkCompression.uncompress( buffer );
+        Pair<Channel, Integer> requestKey = Pair.of( channel, correlationId );
         if ( continuation == ChunkingChannelBuffer.CONTINUATION_MORE )
         {
-            PartialRequest partialRequest = partialRequests.get( channel );
+            PartialRequest partialRequest = partialRequests.get( requestKey );
             if ( partialRequest == null )
             {
                 // This is the first chunk in a multi-chunk request
                 RequestType<T> type = getRequestContext( buffer.readByte() );
                 RequestContext context = readContext( buffer );
-                ChannelBuffer targetBuffer = mapSlave( channel, context, type );
+                ChannelBuffer targetBuffer = mapSlave( channel, correlationId, context, type );
                 partialRequest = new PartialRequest( type, context, targetBuffer );
-                partialRequests.put( channel, partialRequest );
+                partialRequests.put( requestKey, partialRequest );
             }
             partialRequest.add( buffer );
         }
         else
         {
-            PartialRequest partialRequest = partialRequests.remove( channel );
+            PartialRequest partialRequest = partialRequests.remove( requestKey );
             RequestType<T> type = null;
             RequestContext context = null;
             ChannelBuffer targetBuffer;
             ChannelBuffer bufferToReadFrom = null;
             ChannelBuffer bufferToWriteTo = null;
+            ChannelBuffer bufferToRelease = null;
             if ( partialRequest == null )
             {
+                if ( !buffer.readable() )
+                {   // A client asking which internal protocol version is spoken here
+                    respondWithEmptyChunk( channel, internalProtocolVersion );
+                    return;
+                }
                 // This is the one and single chunk in the request
                 type = getRequestContext( buffer.readByte() );
                 context = readContext( buffer );
-                targetBuffer = mapSlave( channel, context, type );
+                targetBuffer = mapSlave( channel, correlationId, context, type );
                 bufferToReadFrom = buffer;
                 bufferToWriteTo = targetBuffer;
             }
@@ -363,29 +435,48 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
                 targetBuffer = partialRequest.buffer;
                 partialRequest.add( buffer );
                 bufferToReadFrom = targetBuffer;
-                bufferToWriteTo = ChannelBuffers.dynamicBuffer();
+                bufferToWriteTo = bufferPool.acquire();
+                bufferToRelease = targetBuffer;
             }
 
             bufferToWriteTo.clear();
             final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( bufferToWriteTo, channel, frameLength,
-                    getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( targetCallExecutor, targetCaller( type, channel, context, chunkingBuffer, bufferToReadFrom ) );
+                    internalProtocolVersion, applicationProtocolVersion, correlationId, compressed, bufferPool );
+            scheduleSilent( type, targetCaller( type, channel, correlationId, context, chunkingBuffer,
+                    bufferToReadFrom, bufferToRelease ) );
         }
     }
 
-    private Byte readContinuationHeader( ChannelBuffer buffer, final Channel channel )
+    /**
+     * @return the internal protocol version to expect in, and answer, a request
+     * with the given header. That's the version spoken here, unless the client
+     * speaks the legacy version.
+     */
+    private byte responseInternalProtocolVersion( byte header )
+    {
+        byte version = getInternalProtocolVersion();
+        if ( version > LEGACY_INTERNAL_PROTOCOL_VERSION &&
+                DechunkingChannelBuffer.internalProtocolVersion( header ) == LEGACY_INTERNAL_PROTOCOL_VERSION )
+        {
+            return LEGACY_INTERNAL_PROTOCOL_VERSION;
+        }
+        return version;
+    }
+
+    private Byte readContinuationHeader( byte header, byte applicationHeader, byte internalProtocolVersion,
+            final Channel channel, int correlationId )
     {
-        byte[] header = new byte[2];
-        buffer.readBytes( header );
         try
         {   // Read request header and assert correct internal/application protocol version
-            assertSameProtocolVersion( header, getInternalProtocolVersion(), applicationProtocolVersion );
+            assertSameProtocolVersion( header, applicationHeader, internalProtocolVersion,
+                    applicationProtocolVersion );
         }
         catch ( final IllegalProtocolVersionException e )
         {   // Version mismatch, fail with a good exception back to the client
-            final ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer( ChannelBuffers.dynamicBuffer(), channel,
-                    frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( targetCallExecutor, new Runnable()
+            final ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer( bufferPool.acquire(), channel,
+                    frameLength, internalProtocolVersion, applicationProtocolVersion, correlationId, false,
+                    bufferPool );
+            scheduleSilent( null, new Runnable()
             {
                 @Override
                 public void run()
@@ -395,11 +486,27 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
             } );
             return null;
         }
-        return (byte) (header[0] & 0x1);
+        return (byte) (header & 0x1);
+    }
+
+    private void respondWithEmptyChunk( Channel channel, byte internalProtocolVersion )
+    {
+        final ChunkingChannelBuffer response = new ChunkingChannelBuffer( bufferPool.acquire(), channel, frameLength,
+                internalProtocolVersion, applicationProtocolVersion, ChunkingChannelBuffer.NO_CORRELATION_ID, false,
+                bufferPool );
+        scheduleSilent( null, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                response.done();
+            }
+        } );
     }
 
-    private Runnable targetCaller( final RequestType<T> type, final Channel channel, final RequestContext context,
-            final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom )
+    private Runnable targetCaller( final RequestType<T> type, final Channel channel, final int correlationId,
+            final RequestContext context, final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom,
+            final ChannelBuffer bufferToRelease )
     {
         return new Runnable()
         {
@@ -426,7 +533,8 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
                 finally
                 {
                     if ( response != null ) response.close();
-                    unmapSlave( channel, context );
+                    if ( bufferToRelease != null ) bufferPool.release( bufferToRelease );
+                    unmapSlave( channel, correlationId, context );
                 }
             }
         };
@@ -458,35 +566,6 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         targetBuffer.writeBytes( storeId.serialize() );
     }
 
-    private static <T> void writeTransactionStreams( TransactionStream txStream, ChannelBuffer buffer ) throws IOException
-    {
-        if ( !txStream.hasNext() )
-        {
-            buffer.writeByte( 0 );
-            return;
-        }
-
-        String[] datasources = txStream.dataSourceNames();
-        assert datasources.length <= 255 : "too many data sources";
-        buffer.writeByte( datasources.length );
-        Map<String, Integer> datasourceId = new HashMap<String, Integer>();
-        for ( int i = 0; i < datasources.length; i++ )
-        {
-            String datasource = datasources[i];
-            writeString( buffer, datasource );
-            datasourceId.put( datasource, i + 1/*0 means "no more transactions"*/);
-        }
-        for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( txStream ) )
-        {
-            buffer.writeByte( datasourceId.get( tx.first() ) );
-            buffer.writeLong( tx.second() );
-            BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer );
-            tx.third().extract( blockBuffer );
-            blockBuffer.done();
-        }
-        buffer.writeByte( 0/*no more transactions*/);
-    }
-
     protected RequestContext readContext( ChannelBuffer buffer )
     {
         long sessionId = buffer.readLong();
@@ -515,36 +594,52 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected abstract RequestType<T> getRequestContext( byte id );
 
-    protected ChannelBuffer mapSlave( Channel channel, RequestContext slave, RequestType<T> type )
+    protected ChannelBuffer mapSlave( Channel channel, int correlationId, RequestContext slave, RequestType<T> type )
     {
-        channelGroup.add( channel );
-        synchronized ( connectedSlaveChannels )
+        // Checking for machineId -1 excludes the "empty" slave contexts
+        // which some communication points pass in as context.
+        if ( slave != null && slave.machineId() != RequestContext.EMPTY.machineId() )
         {
-            // Checking for machineId -1 excludes the "empty" slave contexts
-            // which some communication points pass in as context.
-            if ( slave != null && slave.machineId() != RequestContext.EMPTY.machineId() )
+            SlaveChannel slaveChannel;
+            do
             {
-                Pair<RequestContext, AtomicLong> previous = connectedSlaveChannels.get( channel );
-                if ( previous != null )
-                {
-                    previous.other().set( System.currentTimeMillis() );
-                }
-                else
+                slaveChannel = connectedSlaveChannels.get( channel );
+                if ( slaveChannel == null )
                 {
-                    connectedSlaveChannels.put( channel, Pair.of( slave, new AtomicLong( System.currentTimeMillis() ) ) );
+                    slaveChannel = new SlaveChannel( channel );
+                    SlaveChannel existing = connectedSlaveChannels.putIfAbsent( channel, slaveChannel );
+                    if ( existing != null )
+                    {
+                        slaveChannel = existing;
+                    }
+                    else
+                    {
+                        silentChannels.schedule( slaveChannel,
+                                System.currentTimeMillis() + oldChannelThresholdMillis/2 + 1 );
+                    }
                 }
             }
+            while ( !slaveChannel.map( correlationId, slave ) );
         }
-        return ChannelBuffers.dynamicBuffer();
+        else
+        {
+            channelGroup.add( channel );
+        }
+        return bufferPool.acquire();
+    }
+
+    protected void unmapSlave( Channel channel, int correlationId, RequestContext slave )
+    {
+        SlaveChannel slaveChannel = connectedSlaveChannels.get( channel );
+        if ( slaveChannel != null ) slaveChannel.unmap( correlationId );
+        else channelGroup.remove( channel );
     }
 
     protected void unmapSlave( Channel channel, RequestContext slave )
     {
-        synchronized ( connectedSlaveChannels )
-        {
-            connectedSlaveChannels.remove( channel );
-            channelGroup.remove( channel );
-        }
+        SlaveChannel slaveChannel = connectedSlaveChannels.get( channel );
+        if ( slaveChannel != null ) slaveChannel.unmap( slave );
+        else channelGroup.remove( channel );
     }
 
     protected T getRequestTarget()
@@ -558,7 +653,7 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         shuttingDown = true;
         silentChannelExecutor.shutdown();
         unfinishedTransactionExecutor.shutdown();
-        targetCallExecutor.shutdown();
+        requestScheduler.shutdown();
         channelGroup.close().awaitUninterruptibly();
         executor.shutdown();
         msgLog.logMessage( getClass().getSimpleName() + " shutdown", true );
@@ -574,23 +669,114 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected abstract void finishOffChannel( Channel channel, RequestContext context );
 
+    public RequestScheduler getRequestScheduler()
+    {
+        return requestScheduler;
+    }
+
+    // =====================================================================
+    // Just some methods which aren't really used when running an HA cluster,
+    // but exposed so that other tools can reach that information.
+    // =====================================================================
+
     public Map<Channel, RequestContext> getConnectedSlaveChannels()
     {
+        // A multiplexed channel may have several requests in flight, all from the same
+        // machine though, so any one of them represents the channel.
         Map<Channel, RequestContext> result = new HashMap<Channel, RequestContext>();
-        synchronized ( connectedSlaveChannels )
+        for ( SlaveChannel slaveChannel : connectedSlaveChannels.values() )
         {
-            for ( Map.Entry<Channel, Pair<RequestContext, AtomicLong>> entry : connectedSlaveChannels.entrySet() )
-            {
-                result.put( entry.getKey(), entry.getValue().first() );
-            }
+            RequestContext slave = slaveChannel.anyRequest();
+            if ( slave != null ) result.put( slaveChannel.channel, slave );
         }
         return result;
     }
 
-    // =====================================================================
-    // Just some methods which aren't really used when running an HA cluster,
-    // but exposed so that other tools can reach that information.
-    // =====================================================================
+    /**
+     * The requests in flight on a channel, keyed by correlation id, which is
+     * NO_CORRELATION_ID for non-multiplexed requests. A channel is part of the
+     * channel group while it has requests in flight.
+     */
+    private class SlaveChannel
+    {
+        private final Channel channel;
+        private final Map<Integer, Pair<RequestContext, Long /*time last heard of*/>> requests =
+                new HashMap<Integer, Pair<RequestContext, Long>>();
+        private boolean finishedOff;
+
+        SlaveChannel( Channel channel )
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * @return {@code false} if this channel has been finished off and a new
+         * one has to be mapped instead.
+         */
+        synchronized boolean map( int correlationId, RequestContext slave )
+        {
+            if ( finishedOff ) return false;
+            Pair<RequestContext, Long> previous = requests.get( correlationId );
+            requests.put( correlationId, Pair.of( previous != null ? previous.first() : slave,
+                    System.currentTimeMillis() ) );
+            channelGroup.add( channel );
+            return true;
+        }
+
+        synchronized void unmap( int correlationId )
+        {
+            requests.remove( correlationId );
+            removeFromGroupIfIdle();
+        }
+
+        synchronized void unmap( RequestContext slave )
+        {
+            for ( Iterator<Pair<RequestContext, Long>> iterator = requests.values().iterator(); iterator.hasNext(); )
+            {
+                if ( iterator.next().first().equals( slave ) ) iterator.remove();
+            }
+            removeFromGroupIfIdle();
+        }
+
+        private void removeFromGroupIfIdle()
+        {
+            // Done while holding the monitor so that it can't race with map()
+            if ( requests.isEmpty() ) channelGroup.remove( channel );
+        }
+
+        synchronized List<RequestContext> finishOff()
+        {
+            finishedOff = true;
+            List<RequestContext> slaves = new ArrayList<RequestContext>();
+            for ( Pair<RequestContext, Long> request : requests.values() )
+            {
+                slaves.add( request.first() );
+            }
+            requests.clear();
+            return slaves;
+        }
+
+        /**
+         * @return when the longest waiting request in flight was last heard of,
+         * {@link Long#MAX_VALUE} if there are none or -1 if this channel has
+         * been finished off.
+         */
+        synchronized long oldestRequestTime()
+        {
+            if ( finishedOff ) return -1;
+            long oldest = Long.MAX_VALUE;
+            for ( Pair<RequestContext, Long> request : requests.values() )
+            {
+                oldest = Math.min( oldest, request.other() );
+            }
+            return oldest;
+        }
+
+        synchronized RequestContext anyRequest()
+        {
+            return requests.isEmpty() ? null : requests.values().iterator().next().first();
+        }
+    }
 
     private class PartialRequest
     {
@@ -19,6 +19,7 @@
  */
 package org.neo4j.com;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -40,6 +41,7 @@ import org.neo4j.helpers.Predicate;
 import org.neo4j.helpers.Triplet;
 import org.neo4j.helpers.collection.ClosableIterable;
 import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.helpers.collection.PrefetchingIterator;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.impl.transaction.XaDataSourceManager;
 import org.neo4j.kernel.impl.transaction.xaframework.InMemoryLogBuffer;
@@ -49,7 +51,7 @@ import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 
 public class ServerUtil
 {
-    private static File getBaseDir( GraphDatabaseAPI graphDb )
+    static File getBaseDir( GraphDatabaseAPI graphDb )
     {
         File file = new File( graphDb.getStoreDir() );
         try
@@ -73,7 +75,7 @@ public class ServerUtil
      *         <code>baseDir</code>
      * @throws IOException As per {@link File#getCanonicalPath()}
      */
-    private static String relativePath( File baseDir, File storeFile )
+    static String relativePath( File baseDir, File storeFile )
             throws IOException
     {
         String prefix = baseDir.getCanonicalPath();
@@ -157,23 +159,29 @@ public class ServerUtil
     }
 
     /**
-     * For a given {@link XaDataSource} it extracts the transaction stream from
-     * startTxId up to endTxId (inclusive) in the provided {@link List} and
-     * returns the {@link LogExtractor} used to create the stream.
+     * For a given {@link XaDataSource} it adds a stream of the transactions from
+     * startTxId up to endTxId (inclusive) to the provided {@link List} and
+     * returns the {@link LogExtractor} used to create the stream. The stream
+     * is lazy, each transaction is only looked at when the stream gets to it.
+     * <p>
+     * If a {@link TransactionCache} is given the latest transactions are taken
+     * from it if they're there, and the ones extracted from the log are put in it.
      *
      * @param dataSource The {@link XaDataSource} from which to extract the
      *            transactions
      * @param startTxId The first tx id in the stream
      * @param endTxId The last tx id in the stream
-     * @param stream A list to contain the transaction stream - can already
-     *            contain transactions from other data sources.
-     * @return The {@link LogExtractor} used to create the transaction stream.
+     * @param streams A list to add the transaction stream to - can already
+     *            contain transaction streams from other data sources.
+     * @param cache The {@link TransactionCache} to use, or {@code null}.
+     * @return The {@link LogExtractor} used to create the transaction stream,
+     *         or {@code null} if all transactions came from the cache.
      */
     private static LogExtractor getTransactionStreamForDatasource(
             final XaDataSource dataSource, final long startTxId,
             final long endTxId,
-            final List<Triplet<String, Long, TxExtractor>> stream,
-            Predicate<Long> filter )
+            final List<Iterator<Triplet<String, Long, TxExtractor>>> streams,
+            final Predicate<Long> filter, final TransactionCache cache )
     {
         LogExtractor logExtractor = null;
         try
@@ -188,66 +196,52 @@ public class ServerUtil
                                 + " but largest transaction id in server is "
                                 + serverLastTx );
             }
-            try
+
+            // The cached ones, if any, are the latest. Only go to the log for those before them.
+            final List<byte[]> cached = new ArrayList<byte[]>();
+            byte[] cachedTx;
+            while ( cache != null && startTxId + cached.size() <= endTxId &&
+                    (cachedTx = cache.get( dataSource.getName(), endTxId - cached.size() )) != null )
             {
-                // TODO check here for startTxId >= endTxId and exit early
-                logExtractor = dataSource.getLogExtractor( startTxId, endTxId );
+                cached.add( cachedTx );
             }
-            catch ( IOException ioe )
+            Collections.reverse( cached );
+            final long lastFromLog = endTxId - cached.size();
+
+            if ( startTxId <= lastFromLog )
             {
-                throw new RuntimeException( ioe );
+                try
+                {
+                    logExtractor = dataSource.getLogExtractor( startTxId, lastFromLog );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new RuntimeException( ioe );
+                }
             }
             final LogExtractor finalLogExtractor = logExtractor;
-            for ( long txId = startTxId; txId <= endTxId; txId++ )
+            streams.add( new PrefetchingIterator<Triplet<String, Long, TxExtractor>>()
             {
-                if ( filter.accept( txId ) )
+                private long txId = startTxId;
+
+                @Override
+                protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
                 {
-                    final long finalTxId = txId;
-                    TxExtractor extractor = new TxExtractor()
+                    while ( txId <= endTxId )
                     {
-                        @Override
-                        public ReadableByteChannel extract()
+                        long current = txId++;
+                        if ( !filter.accept( current ) )
                         {
-                            InMemoryLogBuffer buffer = new InMemoryLogBuffer();
-                            extract( buffer );
-                            return buffer;
+                            continue;
                         }
-
-                        @Override
-                        public void extract( LogBuffer buffer )
-                        {
-                            try
-                            {
-                                long extractedTxId = finalLogExtractor.extractNext( buffer );
-                                if ( extractedTxId == -1 )
-                                {
-                                    throw new RuntimeException(
-                                            "Transaction "
-                                                    + finalTxId
-                                                    + " is missing and can't be extracted from "
-                                                    + dataSource.getName()
-                                                    + ". Was about to extract "
-                                                    + startTxId + " to "
-                                                    + endTxId );
-                                }
-                                if ( extractedTxId != finalTxId )
-                                {
-                                    throw new RuntimeException(
-                                            "Expected txId " + finalTxId
-                                                    + ", but was "
-                                                    + extractedTxId );
-                                }
-                            }
-                            catch ( IOException e )
-                            {
-                                throw new RuntimeException( e );
-                            }
-                        }
-                    };
-                    stream.add( Triplet.of( dataSource.getName(), txId,
-                            extractor ) );
+                        TxExtractor extractor = current <= lastFromLog ?
+                                logTxExtractor( dataSource, finalLogExtractor, current, startTxId, endTxId, cache ) :
+                                cachedTxExtractor( cached.get( (int) (current - lastFromLog - 1) ) );
+                        return Triplet.of( dataSource.getName(), current, extractor );
+                    }
+                    return null;
                 }
-            }
+            } );
             return logExtractor;
         }
         catch ( Throwable t )
@@ -261,6 +255,106 @@ public class ServerUtil
         }
     }
 
+    private static TxExtractor logTxExtractor( final XaDataSource dataSource, final LogExtractor logExtractor,
+            final long txId, final long startTxId, final long endTxId, final TransactionCache cache )
+    {
+        return new TxExtractor()
+        {
+            @Override
+            public ReadableByteChannel extract()
+            {
+                InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+                extract( buffer );
+                return buffer;
+            }
+
+            @Override
+            public void extract( LogBuffer buffer )
+            {
+                try
+                {
+                    if ( cache == null || !cache.isRecent( txId, dataSource.getLastCommittedTxId() ) )
+                    {   // Only the latest transactions are worth keeping, f.ex. not those of a slave far behind
+                        extractNext( buffer );
+                        return;
+                    }
+                    InMemoryLogBuffer tx = new InMemoryLogBuffer();
+                    extractNext( tx );
+                    byte[] data = readFully( tx );
+                    cache.put( dataSource.getName(), txId, data );
+                    buffer.put( data );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+
+            private void extractNext( LogBuffer buffer ) throws IOException
+            {
+                long extractedTxId = logExtractor.extractNext( buffer );
+                if ( extractedTxId == -1 )
+                {
+                    throw new RuntimeException(
+                            "Transaction "
+                                    + txId
+                                    + " is missing and can't be extracted from "
+                                    + dataSource.getName()
+                                    + ". Was about to extract "
+                                    + startTxId + " to "
+                                    + endTxId );
+                }
+                if ( extractedTxId != txId )
+                {
+                    throw new RuntimeException(
+                            "Expected txId " + txId
+                                    + ", but was "
+                                    + extractedTxId );
+                }
+            }
+        };
+    }
+
+    private static TxExtractor cachedTxExtractor( final byte[] data )
+    {
+        return new TxExtractor()
+        {
+            @Override
+            public ReadableByteChannel extract()
+            {
+                InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+                extract( buffer );
+                return buffer;
+            }
+
+            @Override
+            public void extract( LogBuffer buffer )
+            {
+                try
+                {
+                    buffer.put( data );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+    }
+
+    private static byte[] readFully( ReadableByteChannel channel ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate( 4096 );
+        while ( channel.read( buffer ) > 0 )
+        {
+            buffer.flip();
+            bytes.write( buffer.array(), 0, buffer.limit() );
+            buffer.clear();
+        }
+        return bytes.toByteArray();
+    }
+
     /**
      * After having created the response for a slave, this method compares its
      * context against the local (server's) context and creates a transaction
@@ -278,10 +372,35 @@ public class ServerUtil
     public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
             RequestContext context, T response, Predicate<Long> filter )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
+        return packResponse( graphDb, context, response, filter, null );
+    }
+
+    /**
+     * Like {@link #packResponse(GraphDatabaseAPI, RequestContext, Object, Predicate)},
+     * but takes the latest transactions from a {@link TransactionCache} if there.
+     */
+    public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
+            RequestContext context, T response, Predicate<Long> filter, TransactionCache cache )
+    {
+        return packResponse( graphDb, context, response, filter, cache, Long.MAX_VALUE );
+    }
+
+    /**
+     * Like {@link #packResponse(GraphDatabaseAPI, RequestContext, Object, Predicate, TransactionCache)},
+     * but with at most {@code maxTransactions} transactions, the oldest ones the
+     * slave doesn't have. A slave far behind will then catch up over several
+     * responses instead of getting all at once.
+     */
+    public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
+            RequestContext context, T response, Predicate<Long> filter, TransactionCache cache,
+            long maxTransactions )
+    {
+        List<Iterator<Triplet<String, Long, TxExtractor>>> streams =
+                new ArrayList<Iterator<Triplet<String, Long, TxExtractor>>>();
         Set<String> resourceNames = new HashSet<String>();
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
         final List<LogExtractor> logExtractors = new ArrayList<LogExtractor>();
+        long transactionsLeft = maxTransactions;
         try
         {
             for ( Tx txEntry : context.lastAppliedTransactions() )
@@ -294,14 +413,16 @@ public class ServerUtil
                 }
                 resourceNames.add( resourceName );
                 final long serverLastTx = dataSource.getLastCommittedTxId();
-                if ( txEntry.getTxId() >= serverLastTx ) continue;
+                if ( txEntry.getTxId() >= serverLastTx || transactionsLeft == 0 ) continue;
+                long endTx = Math.min( serverLastTx, txEntry.getTxId() + transactionsLeft );
+                transactionsLeft -= endTx - txEntry.getTxId();
                 LogExtractor logExtractor = getTransactionStreamForDatasource(
-                        dataSource, txEntry.getTxId() + 1, serverLastTx, stream,
-                        filter );
-                logExtractors.add( logExtractor );
+                        dataSource, txEntry.getTxId() + 1, endTx, streams,
+                        filter, cache );
+                if ( logExtractor != null ) logExtractors.add( logExtractor );
             }
             return new Response<T>( response, graphDb.getStoreId(), createTransactionStream( resourceNames,
-                    stream, logExtractors ), ResourceReleaser.NO_OP );
+                    streams, logExtractors ), ResourceReleaser.NO_OP );
         }
         catch ( Throwable t )
         {   // If there's an error in here then close the log extractors, otherwise if we're
@@ -327,7 +448,8 @@ public class ServerUtil
     public static Response<Void> getTransactions( GraphDatabaseAPI graphDb,
             String dataSourceName, long startTx, long endTx )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
+        List<Iterator<Triplet<String, Long, TxExtractor>>> streams =
+                new ArrayList<Iterator<Triplet<String, Long, TxExtractor>>>();
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
         final XaDataSource dataSource = dsManager.getXaDataSource( dataSourceName );
         if ( dataSource == null )
@@ -337,24 +459,48 @@ public class ServerUtil
         }
 
         List<LogExtractor> extractors = startTx < endTx ? Collections.singletonList(
-                getTransactionStreamForDatasource( dataSource, startTx, endTx, stream, ServerUtil.ALL ) ) :
+                getTransactionStreamForDatasource( dataSource, startTx, endTx, streams, ServerUtil.ALL, null ) ) :
                 Collections.<LogExtractor>emptyList();
         return new Response<Void>( null, graphDb.getStoreId(), createTransactionStream(
-                        Collections.singletonList( dataSourceName ), stream,
+                        Collections.singletonList( dataSourceName ), streams,
                         extractors ), ResourceReleaser.NO_OP );
 
     }
 
+    /**
+     * Extracts the transactions startTx to endTx (inclusive) of a data source
+     * into a stream, f.ex. for the master to push them to a slave. The stream
+     * must be closed when done with.
+     *
+     * @param cache the {@link TransactionCache} to take the latest transactions
+     * from, and put extracted ones in, or {@code null}.
+     */
+    public static TransactionStream getTransactionStream( XaDataSource dataSource, long startTx, long endTx,
+            TransactionCache cache )
+    {
+        List<Iterator<Triplet<String, Long, TxExtractor>>> streams =
+                new ArrayList<Iterator<Triplet<String, Long, TxExtractor>>>();
+        LogExtractor extractor = getTransactionStreamForDatasource( dataSource, startTx, endTx, streams, ALL, cache );
+        return createTransactionStream( Collections.singletonList( dataSource.getName() ), streams,
+                extractor != null ? Collections.singletonList( extractor ) : Collections.<LogExtractor>emptyList() );
+    }
+
     private static TransactionStream createTransactionStream( Collection<String> resourceNames,
-            final List<Triplet<String, Long, TxExtractor>> stream, final List<LogExtractor> logExtractors )
+            final List<Iterator<Triplet<String, Long, TxExtractor>>> streams, final List<LogExtractor> logExtractors )
     {
         return new TransactionStream( resourceNames.toArray( new String[resourceNames.size()] ) )
         {
-            private final Iterator<Triplet<String, Long, TxExtractor>> iterator = stream.iterator();
+            private final Iterator<Iterator<Triplet<String, Long, TxExtractor>>> iterators = streams.iterator();
+            private Iterator<Triplet<String, Long, TxExtractor>> iterator =
+                    Collections.<Triplet<String, Long, TxExtractor>>emptyList().iterator();
 
             @Override
             protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
             {
+                while ( !iterator.hasNext() && iterators.hasNext() )
+                {
+                    iterator = iterators.next();
+                }
                 return iterator.hasNext() ? iterator.next() : null;
             }
 
@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps track of how far a {@link ParallelStoreCopier} has come, in a file in
+ * the directory the store is copied into, so that a copy which fails partway
+ * can be resumed instead of started over. The file holds the session and the
+ * listing of the copy followed by one line for each range which has been
+ * written, together with its checksum.
+ * <p>
+ * A range is only considered copied if the local file still has the same
+ * checksum for it when resuming, so ranges which were recorded but didn't
+ * make it to disk are copied again.
+ * <p>
+ * A checkpoint is only valid for the {@code source} it was written for, since
+ * sessions are local to the source they were started on.
+ */
+public class StoreCopyCheckpoint
+{
+    public static final String FILE_NAME = "store-copy.checkpoint";
+
+    private static final String SOURCE = "source";
+    private static final String SESSION = "session";
+    private static final String FILE = "file";
+    private static final String RANGE = "range";
+    private static final int VERIFY_BUFFER_SIZE = 64*1024;
+
+    private final File directory;
+    private final File file;
+    private final String source;
+    private StoreFileListing listing;
+    private final Map<String, Long> checksums = new HashMap<String, Long>();
+    private FileOutputStream output;
+    private Writer writer;
+
+    public StoreCopyCheckpoint( File directory, String source ) throws IOException
+    {
+        this.directory = directory;
+        this.file = new File( directory, FILE_NAME );
+        this.source = source;
+        if ( file.exists() )
+        {
+            load();
+        }
+    }
+
+    /**
+     * @return whether or not there's a copy from the same source to resume,
+     * i.e. if the directory should be left as it is.
+     */
+    public boolean canResume()
+    {
+        return listing != null;
+    }
+
+    /**
+     * @return the listing of the copy to resume, or {@code null} if there's
+     * none, see {@link #canResume()}.
+     */
+    public StoreFileListing getListing()
+    {
+        return listing;
+    }
+
+    /**
+     * Starts a new checkpoint for the copy of {@code listing}, discarding any
+     * previous one.
+     */
+    public synchronized void start( StoreFileListing listing ) throws IOException
+    {
+        close();
+        checksums.clear();
+        this.listing = listing;
+        open( false );
+        writeLine( SOURCE, source );
+        writeLine( SESSION, String.valueOf( listing.getSessionId() ) );
+        for ( Map.Entry<String, Long> entry : listing.getFiles().entrySet() )
+        {
+            writeLine( FILE, entry.getValue() + " " + entry.getKey() );
+        }
+        force();
+    }
+
+    /**
+     * @return whether or not the range has been copied and still has the
+     * checksum it was recorded with.
+     */
+    @SuppressWarnings( "boxing" )
+    public boolean isCopied( String path, long position, long length ) throws IOException
+    {
+        Long checksum;
+        synchronized ( this )
+        {
+            checksum = checksums.get( key( path, position, length ) );
+        }
+        return checksum != null && checksum.longValue() == checksum( path, position, length );
+    }
+
+    /**
+     * Records that the range has been copied and that the bytes written had
+     * {@code checksum}, as calculated by {@link CRC32}.
+     */
+    @SuppressWarnings( "boxing" )
+    public synchronized void copied( String path, long position, long length, long checksum ) throws IOException
+    {
+        if ( writer == null )
+        {
+            open( true );
+        }
+        writeLine( RANGE, position + " " + length + " " + checksum + " " + path );
+        force();
+        checksums.put( key( path, position, length ), checksum );
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if ( writer != null )
+        {
+            writer.close();
+            writer = null;
+            output = null;
+        }
+    }
+
+    /**
+     * Removes the checkpoint, to be called when the copy either is complete
+     * or can't be resumed.
+     */
+    public synchronized void delete() throws IOException
+    {
+        close();
+        listing = null;
+        checksums.clear();
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Couldn't delete " + file );
+        }
+    }
+
+    @SuppressWarnings( "boxing" )
+    private void load() throws IOException
+    {
+        String recordedSource = null;
+        int sessionId = -1;
+        Map<String, Long> files = new LinkedHashMap<String, Long>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+            {
+                String[] tokens = line.split( " ", 2 );
+                try
+                {
+                    if ( tokens[0].equals( SOURCE ) )
+                    {
+                        recordedSource = tokens[1];
+                    }
+                    else if ( tokens[0].equals( SESSION ) )
+                    {
+                        sessionId = Integer.parseInt( tokens[1] );
+                    }
+                    else if ( tokens[0].equals( FILE ) )
+                    {
+                        String[] fileTokens = tokens[1].split( " ", 2 );
+                        files.put( fileTokens[1], Long.parseLong( fileTokens[0] ) );
+                    }
+                    else if ( tokens[0].equals( RANGE ) )
+                    {
+                        String[] rangeTokens = tokens[1].split( " ", 4 );
+                        long position = Long.parseLong( rangeTokens[0] );
+                        long length = Long.parseLong( rangeTokens[1] );
+                        long checksum = Long.parseLong( rangeTokens[2] );
+                        checksums.put( key( rangeTokens[3], position, length ), checksum );
+                    }
+                }
+                catch ( RuntimeException e )
+                {   // A line which was cut short when we went down, the range will be copied again
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if ( source.equals( recordedSource ) && sessionId != -1 )
+        {
+            listing = new StoreFileListing( sessionId, files );
+        }
+        else
+        {
+            checksums.clear();
+        }
+    }
+
+    private long checksum( String path, long position, long length ) throws IOException
+    {
+        File rangeFile = new File( directory, path );
+        if ( rangeFile.length() < position + length )
+        {
+            return -1;
+        }
+
+        CRC32 checksum = new CRC32();
+        FileInputStream stream = new FileInputStream( rangeFile );
+        try
+        {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate( VERIFY_BUFFER_SIZE );
+            long end = position + length;
+            while ( position < end )
+            {
+                buffer.clear();
+                buffer.limit( (int) Math.min( buffer.capacity(), end - position ) );
+                int read = channel.read( buffer, position );
+                if ( read == -1 )
+                {
+                    return -1;
+                }
+                checksum.update( buffer.array(), 0, read );
+                position += read;
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+        return checksum.getValue();
+    }
+
+    private void open( boolean append ) throws IOException
+    {
+        boolean cutShort = append && endsCutShort();
+        output = new FileOutputStream( file, append );
+        writer = new OutputStreamWriter( output, "UTF-8" );
+        if ( cutShort )
+        {
+            writer.write( "\n" );
+        }
+    }
+
+    private boolean endsCutShort() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            if ( raf.length() == 0 )
+            {
+                return false;
+            }
+            raf.seek( raf.length()-1 );
+            return raf.read() != '\n';
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private void writeLine( String type, String value ) throws IOException
+    {
+        writer.write( type + " " + value + "\n" );
+    }
+
+    private void force() throws IOException
+    {
+        writer.flush();
+        output.getChannel().force( false );
+    }
+
+    private static String key( String path, long position, long length )
+    {
+        return path + "@" + position + "+" + length;
+    }
+}
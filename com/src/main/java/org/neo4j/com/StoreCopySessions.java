@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.helpers.collection.ClosableIterable;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+/**
+ * The server side of a {@link StoreCopySource}. Keeps track of the store
+ * copies in progress, each one holding on to the store files listed for it
+ * (which f.ex. keeps lucene from deleting them) until it's finished or has
+ * been left alone for too long.
+ */
+public class StoreCopySessions
+{
+    public static final long DEFAULT_SESSION_TIMEOUT = 10*60*1000;
+    private static final int TEMPORARY_BUFFER_SIZE = 64*1024;
+
+    private final GraphDatabaseAPI graphDb;
+    private final boolean includeLogicalLogs;
+    private final long sessionTimeout;
+    /*
+     * Session ids start off at random so that a copy resumed after a restart
+     * of this instance won't pick up a session which isn't its own.
+     */
+    private final AtomicInteger nextSessionId = new AtomicInteger( new Random().nextInt() );
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+
+    public StoreCopySessions( GraphDatabaseAPI graphDb, boolean includeLogicalLogs, long sessionTimeout )
+    {
+        this.graphDb = graphDb;
+        this.includeLogicalLogs = includeLogicalLogs;
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Rotates the logs and lists the store files, like
+     * {@link ServerUtil#rotateLogsAndStreamStoreFiles(GraphDatabaseAPI, boolean, StoreWriter)}
+     * but without streaming them.
+     */
+    @SuppressWarnings( "boxing" )
+    public StoreFileListing start()
+    {
+        closeExpiredSessions();
+        File baseDir = ServerUtil.getBaseDir( graphDb );
+        Session session = new Session( RequestContext.anonymous( ServerUtil.rotateLogs( graphDb ) ) );
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        try
+        {
+            for ( XaDataSource ds : graphDb.getXaDataSourceManager().getAllRegisteredDataSources() )
+            {
+                ClosableIterable<File> files = ds.listStoreFiles( includeLogicalLogs );
+                session.pinnedFiles.add( files );
+                for ( File file : files )
+                {
+                    String path = ServerUtil.relativePath( baseDir, file );
+                    session.files.put( path, file );
+                    sizes.put( path, file.length() );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            session.close();
+            throw new ServerFailureException( e );
+        }
+
+        int id = nextSessionId.incrementAndGet();
+        sessions.put( id, session );
+        return new StoreFileListing( id, sizes );
+    }
+
+    public void copy( int sessionId, String path, long position, long length, FileRangeWriter writer )
+    {
+        File file = session( sessionId ).files.get( path );
+        if ( file == null )
+        {
+            throw new ServerFailureException( path + " isn't a part of store copy " + sessionId );
+        }
+
+        try
+        {
+            FileInputStream stream = new FileInputStream( file );
+            try
+            {
+                writer.write( path, stream.getChannel(), position, length,
+                        ByteBuffer.allocate( TEMPORARY_BUFFER_SIZE ) );
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new ServerFailureException( e );
+        }
+    }
+
+    /**
+     * Ends the session and releases its files.
+     *
+     * @return the context of the store at the time the files were listed, to
+     * pack the transactions committed since then with.
+     */
+    @SuppressWarnings( "boxing" )
+    public RequestContext finish( int sessionId )
+    {
+        Session session = session( sessionId );
+        sessions.remove( sessionId );
+        session.close();
+        return session.context;
+    }
+
+    public void close()
+    {
+        for ( Session session : sessions.values() )
+        {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+    @SuppressWarnings( "boxing" )
+    private Session session( int sessionId )
+    {
+        closeExpiredSessions();
+        Session session = sessions.get( sessionId );
+        if ( session == null )
+        {
+            throw new ServerFailureException( "Store copy " + sessionId + " has either timed out or was never started" );
+        }
+        session.lastUsed = System.currentTimeMillis();
+        return session;
+    }
+
+    private void closeExpiredSessions()
+    {
+        long now = System.currentTimeMillis();
+        for ( Map.Entry<Integer, Session> entry : new HashMap<Integer, Session>( sessions ).entrySet() )
+        {
+            if ( now - entry.getValue().lastUsed > sessionTimeout )
+            {
+                graphDb.getMessageLog().logMessage( "Closing store copy " + entry.getKey() + " which has timed out" );
+                sessions.remove( entry.getKey() );
+                entry.getValue().close();
+            }
+        }
+    }
+
+    private static class Session
+    {
+        private final RequestContext context;
+        private final Map<String, File> files = new HashMap<String, File>();
+        private final List<ClosableIterable<File>> pinnedFiles = new ArrayList<ClosableIterable<File>>();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Session( RequestContext context )
+        {
+            this.context = context;
+        }
+
+        synchronized void close()
+        {
+            for ( ClosableIterable<File> files : pinnedFiles )
+            {
+                files.close();
+            }
+            pinnedFiles.clear();
+        }
+    }
+}
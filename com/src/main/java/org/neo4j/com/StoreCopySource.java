@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+/**
+ * Something which a store can be copied from in many parts at once. A copy
+ * starts with {@link #listStoreFiles(RequestContext)}, which pins the listed
+ * files on the source, continues with any number of, possibly concurrent,
+ * {@link #copyStoreFile(RequestContext, int, String, long, long, FileRangeWriter)}
+ * and ends with {@link #finishStoreCopy(RequestContext, int)}, which returns
+ * the transactions committed since the files were listed.
+ */
+public interface StoreCopySource
+{
+    Response<StoreFileListing> listStoreFiles( RequestContext context );
+
+    Response<Void> copyStoreFile( RequestContext context, int sessionId, String path, long position, long length,
+            FileRangeWriter writer );
+
+    Response<Void> finishStoreCopy( RequestContext context, int sessionId );
+}
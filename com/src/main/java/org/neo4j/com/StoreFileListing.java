@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.neo4j.com.Protocol.readString;
+import static org.neo4j.com.Protocol.writeString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * The store files, and their sizes, in a store copy session started by
+ * {@link StoreCopySource#listStoreFiles(RequestContext)}.
+ */
+public class StoreFileListing
+{
+    private final int sessionId;
+    private final Map<String, Long> files;
+
+    public StoreFileListing( int sessionId, Map<String, Long> files )
+    {
+        this.sessionId = sessionId;
+        this.files = Collections.unmodifiableMap( files );
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    /**
+     * @return the size of each store file, keyed by its path relative to the store directory.
+     */
+    public Map<String, Long> getFiles()
+    {
+        return files;
+    }
+
+    public static final ObjectSerializer<StoreFileListing> SERIALIZER = new ObjectSerializer<StoreFileListing>()
+    {
+        @SuppressWarnings( "boxing" )
+        public void write( StoreFileListing listing, ChannelBuffer result ) throws IOException
+        {
+            result.writeInt( listing.sessionId );
+            result.writeInt( listing.files.size() );
+            for ( Map.Entry<String, Long> file : listing.files.entrySet() )
+            {
+                writeString( result, file.getKey() );
+                result.writeLong( file.getValue() );
+            }
+        }
+    };
+
+    public static final Deserializer<StoreFileListing> DESERIALIZER = new Deserializer<StoreFileListing>()
+    {
+        @SuppressWarnings( "boxing" )
+        public StoreFileListing read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            int sessionId = buffer.readInt();
+            int count = buffer.readInt();
+            Map<String, Long> files = new LinkedHashMap<String, Long>();
+            for ( int i = 0; i < count; i++ )
+            {
+                files.put( readString( buffer ), buffer.readLong() );
+            }
+            return new StoreFileListing( sessionId, files );
+        }
+    };
+}
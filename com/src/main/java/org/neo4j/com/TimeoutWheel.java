@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * Keeps track of things that time out unless heard from within some time,
+ * f.ex. slave transactions on the master or requests in flight on a channel,
+ * without scanning all of them every time. It's a hashed timing wheel: an item
+ * is put in the slot of the tick its deadline falls on and every
+ * {@link #tick(long, Expiration)} only looks at the slots of the ticks passed
+ * since the previous one.
+ * <p>
+ * Nothing needs to be done on the request path when an item is heard from or
+ * finished. The {@link Expiration} is asked when the deadline of an item
+ * comes up and then decides whether it has really timed out, gets a new
+ * deadline because it was heard from meanwhile, or is done with.
+ */
+public class TimeoutWheel<T>
+{
+    public interface Expiration<T>
+    {
+        /**
+         * Called when the deadline of {@code item} has passed.
+         *
+         * @return the new deadline of {@code item}, or a time not after
+         * {@code now} to have it removed from the wheel.
+         */
+        long expired( T item, long now );
+    }
+
+    private final long tickMillis;
+    private final Queue<Timeout<T>>[] slots;
+    private final StringLogger msgLog;
+    // Guards lastTick, held only while moving it forward or adding an item to a slot
+    private final Object lastTickLock = new Object();
+    private long lastTick;
+
+    @SuppressWarnings( "unchecked" )
+    public TimeoutWheel( long tickMillis, int size, long now, StringLogger msgLog )
+    {
+        this.tickMillis = tickMillis;
+        this.msgLog = msgLog;
+        this.slots = new Queue[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            slots[i] = new ConcurrentLinkedQueue<Timeout<T>>();
+        }
+        this.lastTick = now / tickMillis;
+    }
+
+    /**
+     * Has the {@link Expiration} passed to {@link #tick(long, Expiration)}
+     * asked about {@code item} at the first tick at or after {@code deadline}.
+     */
+    public void schedule( T item, long deadline )
+    {
+        schedule( new Timeout<T>( item, deadline, false ) );
+    }
+
+    private void schedule( Timeout<T> timeout )
+    {
+        // Under the lock so that a concurrent tick can't move past the slot before the item
+        // is in it, which would have the item wait a whole round of the wheel
+        synchronized ( lastTickLock )
+        {
+            // Ceiling, so that the deadline has passed at the tick of the slot
+            long tick = Math.max( (timeout.deadline + tickMillis - 1) / tickMillis, lastTick + 1 );
+            slots[(int) (tick % slots.length)].add( timeout );
+        }
+    }
+
+    /**
+     * Asks {@code expiration} about every item whose deadline has passed,
+     * in the slots of the ticks up to {@code now}. If it fails for an item it's
+     * asked again about that item at the next tick, and the first such failure
+     * for the item is logged.
+     */
+    public synchronized void tick( long now, Expiration<T> expiration )
+    {
+        long currentTick = now / tickMillis;
+        long ticks;
+        synchronized ( lastTickLock )
+        {
+            ticks = Math.min( currentTick - lastTick, slots.length );
+            // Moved forward first so that items scheduled meanwhile go to slots not yet looked at
+            lastTick = currentTick;
+        }
+        for ( long tick = currentTick - ticks + 1; tick <= currentTick; tick++ )
+        {
+            expire( slots[(int) (tick % slots.length)], now, expiration );
+        }
+    }
+
+    private void expire( Queue<Timeout<T>> slot, long now, Expiration<T> expiration )
+    {
+        List<Timeout<T>> later = new ArrayList<Timeout<T>>();
+        for ( Timeout<T> timeout; (timeout = slot.poll()) != null; )
+        {
+            if ( timeout.deadline > now )
+            {   // Due in a later round
+                later.add( timeout );
+                continue;
+            }
+
+            long newDeadline;
+            try
+            {
+                newDeadline = expiration.expired( timeout.item, now );
+            }
+            catch ( RuntimeException e )
+            {
+                if ( !timeout.failed )
+                {
+                    msgLog.logMessage( "Couldn't expire " + timeout.item + ", will try again every tick", e );
+                }
+                later.add( new Timeout<T>( timeout.item, now + tickMillis, true ) );
+                continue;
+            }
+            if ( newDeadline > now )
+            {
+                later.add( new Timeout<T>( timeout.item, newDeadline, false ) );
+            }
+        }
+        for ( Timeout<T> timeout : later )
+        {
+            schedule( timeout );
+        }
+    }
+
+    private static class Timeout<T>
+    {
+        private final T item;
+        private final long deadline;
+        // Whether or not expiring the item has failed, so that it's only logged the first time
+        private final boolean failed;
+
+        Timeout( T item, long deadline, boolean failed )
+        {
+            this.item = item;
+            this.deadline = deadline;
+            this.failed = failed;
+        }
+    }
+}
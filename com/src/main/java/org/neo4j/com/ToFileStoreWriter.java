@@ -26,7 +26,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
-public class ToFileStoreWriter implements StoreWriter
+public class ToFileStoreWriter implements StoreWriter, FileRangeWriter
 {
     private final File basePath;
 
@@ -73,6 +73,36 @@ public class ToFileStoreWriter implements StoreWriter
         }
     }
 
+    /**
+     * Writes the range with positional writes, so that ranges of the same file
+     * can be written by many threads at once.
+     */
+    public void write( String path, ReadableByteChannel data, long position, long length,
+            ByteBuffer temporaryBuffer ) throws IOException
+    {
+        File file = new File( basePath, path );
+        file.getParentFile().mkdirs();
+        RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            temporaryBuffer.clear();
+            while ( data.read( temporaryBuffer ) >= 0 )
+            {
+                temporaryBuffer.flip();
+                while ( temporaryBuffer.hasRemaining() )
+                {
+                    position += channel.write( temporaryBuffer, position );
+                }
+                temporaryBuffer.clear();
+            }
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
     public void done()
     {
         // Do nothing
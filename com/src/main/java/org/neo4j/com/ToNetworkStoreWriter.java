@@ -21,17 +21,50 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
-public class ToNetworkStoreWriter implements StoreWriter
+/**
+ * Writes store files to the network. Each file is written as its path and a
+ * format byte, followed by its contents in either {@link BlockLogBuffer}
+ * blocks or, if the client can handle it, as a length followed by the raw
+ * file contents which are then sent straight from the file to the socket, see
+ * {@link ChunkingChannelBuffer#writeFile(FileChannel, long, long)}.
+ * <p>
+ * A range of a file is always written as its length followed by the raw bytes.
+ */
+public class ToNetworkStoreWriter implements StoreWriter, FileRangeWriter
 {
+    static final byte NO_DATA = 0;
+    static final byte BLOCK_DATA = 1;
+    static final byte RAW_DATA = 2;
+
+    /**
+     * Smaller files aren't worth waiting for the socket to be done with them.
+     */
+    private static final long MIN_RAW_DATA_SIZE = 64*1024;
+
     private final ChannelBuffer targetBuffer;
+    private final BlockLogBuffer blockBuffer;
+    private final boolean rawFiles;
 
     public ToNetworkStoreWriter( ChannelBuffer targetBuffer )
+    {
+        this( targetBuffer, (byte) 0 );
+    }
+
+    /**
+     * @param capabilities what the receiving end can handle, as read by
+     * {@link Protocol#readStoreCopyCapabilities(ChannelBuffer)}.
+     */
+    public ToNetworkStoreWriter( ChannelBuffer targetBuffer, byte capabilities )
     {
         this.targetBuffer = targetBuffer;
+        this.blockBuffer = new BlockLogBuffer( targetBuffer );
+        this.rawFiles = (capabilities & Protocol.STORE_COPY_RAW_FILES) != 0
+                && targetBuffer instanceof ChunkingChannelBuffer;
     }
 
     public void write( String path, ReadableByteChannel data, ByteBuffer temporaryBuffer,
@@ -40,13 +73,52 @@ public class ToNetworkStoreWriter implements StoreWriter
         char[] chars = path.toCharArray();
         targetBuffer.writeShort( chars.length );
         Protocol.writeChars( targetBuffer, chars );
-        targetBuffer.writeByte( hasData ? 1 : 0 );
+        if ( hasData && rawFiles && data instanceof FileChannel )
+        {
+            FileChannel file = (FileChannel) data;
+            long size = file.size();
+            if ( size >= MIN_RAW_DATA_SIZE )
+            {
+                targetBuffer.writeByte( RAW_DATA );
+                targetBuffer.writeLong( size );
+                ((ChunkingChannelBuffer) targetBuffer).writeFile( file, 0, size );
+                return;
+            }
+        }
+
+        targetBuffer.writeByte( hasData ? BLOCK_DATA : NO_DATA );
         // TODO Make use of temporaryBuffer?
-        BlockLogBuffer buffer = new BlockLogBuffer( targetBuffer );
         if ( hasData )
         {
-            buffer.write( data );
-            buffer.done();
+            blockBuffer.write( data );
+            blockBuffer.done();
+        }
+    }
+
+    public void write( String path, ReadableByteChannel data, long position, long length,
+            ByteBuffer temporaryBuffer ) throws IOException
+    {
+        targetBuffer.writeLong( length );
+        if ( targetBuffer instanceof ChunkingChannelBuffer && data instanceof FileChannel )
+        {
+            ((ChunkingChannelBuffer) targetBuffer).writeFile( (FileChannel) data, position, length );
+            return;
+        }
+
+        long end = position + length;
+        while ( position < end )
+        {
+            temporaryBuffer.clear();
+            temporaryBuffer.limit( (int) Math.min( temporaryBuffer.capacity(), end - position ) );
+            int read = data instanceof FileChannel ?
+                    ((FileChannel) data).read( temporaryBuffer, position ) : data.read( temporaryBuffer );
+            if ( read < 0 )
+            {
+                throw new IOException( path + " ended before " + end );
+            }
+            temporaryBuffer.flip();
+            targetBuffer.writeBytes( temporaryBuffer );
+            position += read;
         }
     }
 
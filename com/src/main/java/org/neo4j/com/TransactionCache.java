@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the serialized form of recently committed transactions in memory, so
+ * that a master serving the same latest transactions to many slaves doesn't
+ * have to read and extract them from its logical log for every one of them,
+ * see {@link ServerUtil#packResponse(org.neo4j.kernel.GraphDatabaseAPI, RequestContext, Object,
+ * org.neo4j.helpers.Predicate, TransactionCache)}.
+ * <p>
+ * It's a ring buffer of a fixed number of slots where a transaction goes into
+ * the slot of its txId, so newer transactions replace older ones. Transactions
+ * bigger than a max size aren't kept, which together bounds the memory used.
+ * A cache must only be used for one store, since transaction ids of another
+ * store mean other transactions.
+ */
+public class TransactionCache
+{
+    public static final int DEFAULT_SIZE = 1000;
+    public static final int DEFAULT_MAX_TRANSACTION_SIZE = 32*1024;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int maxTransactionSize;
+
+    public TransactionCache()
+    {
+        this( DEFAULT_SIZE, DEFAULT_MAX_TRANSACTION_SIZE );
+    }
+
+    public TransactionCache( int size, int maxTransactionSize )
+    {
+        this.entries = new AtomicReferenceArray<Entry>( size );
+        this.maxTransactionSize = maxTransactionSize;
+    }
+
+    /**
+     * @return the serialized transaction, or {@code null} if not cached.
+     */
+    public byte[] get( String dataSource, long txId )
+    {
+        Entry entry = entries.get( slot( dataSource, txId ) );
+        return entry != null && entry.txId == txId && entry.dataSource.equals( dataSource ) ? entry.data : null;
+    }
+
+    public void put( String dataSource, long txId, byte[] data )
+    {
+        if ( data.length > maxTransactionSize )
+        {
+            return;
+        }
+        entries.set( slot( dataSource, txId ), new Entry( dataSource, txId, data ) );
+    }
+
+    /**
+     * @return whether or not {@code txId} is among the latest transactions, as
+     * many as this cache has room for, given that {@code lastCommittedTxId} is
+     * the latest one. An older one would take the slot of a newer one, which
+     * slaves are much more likely to ask for.
+     */
+    public boolean isRecent( long txId, long lastCommittedTxId )
+    {
+        return lastCommittedTxId - txId < entries.length();
+    }
+
+    private int slot( String dataSource, long txId )
+    {
+        // Consecutive transactions of a data source go into consecutive slots
+        return (int) (((txId + (dataSource.hashCode() & Integer.MAX_VALUE)) & Long.MAX_VALUE) % entries.length());
+    }
+
+    private static class Entry
+    {
+        private final String dataSource;
+        private final long txId;
+        private final byte[] data;
+
+        Entry( String dataSource, long txId, byte[] data )
+        {
+            this.dataSource = dataSource;
+            this.txId = txId;
+            this.data = data;
+        }
+    }
+}
@@ -34,11 +34,25 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
     private final byte internalProtocolVersion;
 
     public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion )
+    {
+        this( port, storeIdToExpect, internalProtocolVersion, applicationProtocolVersion,
+                Client.DEFAULT_MULTIPLEXED_CHANNELS );
+    }
+
+    public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion,
+            int multiplexedChannels )
+    {
+        this( port, storeIdToExpect, internalProtocolVersion, applicationProtocolVersion, multiplexedChannels, false );
+    }
+
+    public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion,
+            int multiplexedChannels, boolean compressed )
     {
         super( "localhost", port, StringLogger.DEV_NULL, storeIdToExpect, MadeUpServer.FRAME_LENGTH,
                 applicationProtocolVersion, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
                 Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
-                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT, multiplexedChannels, compressed,
+                ConnectionLostHandler.NO_ACTION );
         this.internalProtocolVersion = internalProtocolVersion;
     }
 
@@ -62,6 +76,19 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
         }, Protocol.INTEGER_DESERIALIZER );
     }
 
+    public ResponseFuture<Integer> multiplyAsync( final int value1, final int value2 )
+    {
+        return sendRequestAsync( MadeUpRequestType.MULTIPLY, RequestContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( value1 );
+                buffer.writeInt( value2 );
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
     @Override
     public Response<Void> streamSomeData( final MadeUpWriter writer, final int dataSize )
     {
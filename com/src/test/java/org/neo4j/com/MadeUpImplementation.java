@@ -19,12 +19,16 @@
  */
 package org.neo4j.com;
 
+import java.util.concurrent.CountDownLatch;
+
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 
 public class MadeUpImplementation implements MadeUpCommunicationInterface
 {
     private final StoreId storeIdToRespondWith;
     private boolean gotCalled;
+    private volatile int blockedValue = -1;
+    private volatile CountDownLatch unblock;
 
     public MadeUpImplementation( StoreId storeIdToRespondWith )
     {
@@ -35,6 +39,7 @@ public class MadeUpImplementation implements MadeUpCommunicationInterface
     public Response<Integer> multiply( int value1, int value2 )
     {
         gotCalled = true;
+        if ( value1 == blockedValue ) awaitUnblock();
         return new Response<Integer>( value1 * value2, storeIdToRespondWith,
                 TransactionStream.EMPTY, ResourceReleaser.NO_OP );
     }
@@ -53,6 +58,27 @@ public class MadeUpImplementation implements MadeUpCommunicationInterface
         throw new MadeUpException( messageInException, new Exception( "The cause of it" ) );
     }
 
+    /**
+     * Has multiplications of the given value wait until the latch is counted down.
+     */
+    public void blockMultiplicationsOf( int value, CountDownLatch latch )
+    {
+        unblock = latch;
+        blockedValue = value;
+    }
+
+    private void awaitUnblock()
+    {
+        try
+        {
+            unblock.await();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+        }
+    }
+
     public boolean gotCalled()
     {
         return this.gotCalled;
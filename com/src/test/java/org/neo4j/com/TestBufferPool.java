@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+public class TestBufferPool
+{
+    @Test
+    public void releasedBufferIsHandedOutAgainCleared() throws Exception
+    {
+        BufferPool pool = new BufferPool();
+        ChannelBuffer buffer = pool.acquire();
+        buffer.writeLong( 10 );
+        pool.release( buffer );
+
+        ChannelBuffer recycled = pool.acquire();
+        assertSame( buffer, recycled );
+        assertEquals( 0, recycled.readableBytes() );
+    }
+
+    @Test
+    public void buffersGrownTooBigAreNotRecycled() throws Exception
+    {
+        BufferPool pool = new BufferPool( 10, 1024 );
+        ChannelBuffer buffer = pool.acquire();
+        buffer.writeBytes( new byte[2048] );
+        pool.release( buffer );
+
+        assertNotSame( buffer, pool.acquire() );
+    }
+
+    @Test
+    public void releasingToAFullPoolDropsTheBuffer() throws Exception
+    {
+        BufferPool pool = new BufferPool( 1, 1024 );
+        ChannelBuffer first = pool.acquire();
+        ChannelBuffer second = pool.acquire();
+        pool.release( first );
+        pool.release( second );
+
+        assertSame( first, pool.acquire() );
+        assertNotSame( second, pool.acquire() );
+    }
+}
@@ -28,6 +28,11 @@ import static org.neo4j.kernel.impl.nioneo.store.CommonAbstractStore.ALL_STORES_
 import static org.neo4j.kernel.impl.nioneo.store.NeoStore.versionStringToLong;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Ignore;
@@ -38,7 +43,7 @@ import org.neo4j.kernel.impl.nioneo.store.StoreId;
 
 public class TestCommunication
 {
-    private static final byte INTERNAL_PROTOCOL_VERSION = 0;
+    private static final byte INTERNAL_PROTOCOL_VERSION = Server.INTERNAL_PROTOCOL_VERSION;
     private static final byte APPLICATION_PROTOCOL_VERSION = 0;
 
     private static final int PORT = 1234;
@@ -356,6 +361,212 @@ public class TestCommunication
         server.shutdown();
     }
 
+    @Test
+    public void multiplexedClientGetsResponsesForConcurrentRequests() throws Throwable
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+        assertMultiplexes( client );
+
+        final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+        Thread[] threads = new Thread[10];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int factor = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for ( int j = 0; j < 20; j++ )
+                        {
+                            Response<Integer> response = client.multiply( factor, j );
+                            assertEquals( factor*j, response.response().intValue() );
+                            response.close();
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads ) thread.join();
+        if ( !failures.isEmpty() ) throw failures.get( 0 );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void multiplexedClientGetsResponsesOutOfOrderOverOneChannel() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        CountDownLatch slowMultiplication = new CountDownLatch( 1 );
+        serverImplementation.blockMultiplicationsOf( 2, slowMultiplication );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+        assertMultiplexes( client );
+
+        ResponseFuture<Integer> slow = client.multiplyAsync( 2, 3 );
+        ResponseFuture<Integer> fast = client.multiplyAsync( 4, 5 );
+        // Would time out if the responses came back in the order the requests were sent
+        Response<Integer> fastResponse = fast.get( 10, TimeUnit.SECONDS );
+        assertEquals( (Integer) 20, fastResponse.response() );
+        fastResponse.close();
+        assertFalse( slow.isDone() );
+
+        slowMultiplication.countDown();
+        Response<Integer> slowResponse = slow.get( 10, TimeUnit.SECONDS );
+        assertEquals( (Integer) 6, slowResponse.response() );
+        slowResponse.close();
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void multiplexedClientCanStreamBigData() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 2 );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+        assertEquals( (Integer) (9*5), client.multiply( 9, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void multiplexedClientCanHaveManyAsyncRequestsInFlight() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+        assertMultiplexes( client );
+
+        List<ResponseFuture<Integer>> futures = new ArrayList<ResponseFuture<Integer>>();
+        for ( int i = 0; i < 20; i++ ) futures.add( client.multiplyAsync( i, 3 ) );
+        for ( int i = futures.size()-1; i >= 0; i-- )
+        {
+            Response<Integer> response = futures.get( i ).get();
+            assertEquals( (Integer) (i*3), response.response() );
+            response.close();
+        }
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void asyncRequestOnNonMultiplexedClientIsCompletedRightAway() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+
+        ResponseFuture<Integer> future = client.multiplyAsync( 7, 6 );
+        assertTrue( future.isDone() );
+        assertEquals( (Integer) 42, future.get().response() );
+        future.get().close();
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void compressedClientCanStreamBigData() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, Client.DEFAULT_MULTIPLEXED_CHANNELS, true );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+        assertEquals( (Integer) (9*5), client.multiply( 9, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void compressedMultiplexedClientGetsServerSideErrors() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1, true );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*2 );
+        try
+        {
+            client.throwException( "Compressed" );
+            fail( "Should have failed" );
+        }
+        catch ( MadeUpException e )
+        {   // Good
+            assertEquals( "Compressed", e.getMessage() );
+        }
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void legacyClientIsAnsweredInItsInternalProtocolVersion() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, Server.LEGACY_INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+
+        assertEquals( (Integer) 42, client.multiply( 6, 7 ).response() );
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*2 );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void clientSpeaksLegacyInternalProtocolVersionWithLegacyServer() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation, Server.LEGACY_INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1, true );
+
+        assertEquals( (Integer) 42, client.multiply( 6, 7 ).response() );
+        assertFalse( client.serverSpeaksSameInternalProtocolVersion() );
+        assertEquals( (Integer) 20, client.multiplyAsync( 4, 5 ).get().response() );
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*2 );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    /**
+     * Makes a request so that the client finds out which internal protocol version
+     * the server speaks, which it must before it multiplexes any requests.
+     */
+    private void assertMultiplexes( MadeUpClient client )
+    {
+        client.multiply( 1, 1 ).close();
+        assertTrue( client.serverSpeaksSameInternalProtocolVersion() );
+    }
+
     private <E extends Exception> void assertCause( ComException comException,
             Class<E> expectedCause, String expectedCauseMessagee )
     {
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.com.MadeUpServer.MadeUpRequestType.MULTIPLY;
+import static org.neo4j.com.MadeUpServer.MadeUpRequestType.STREAM_SOME_DATA;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.com.LaneRequestScheduler.Lane;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestLaneRequestScheduler
+{
+    private final Lane defaultLane = Lane.unbounded( "default", Thread.NORM_PRIORITY );
+    private final Lane streamLane = Lane.bounded( "stream", 1, Thread.MIN_PRIORITY );
+    private final LaneRequestScheduler scheduler = new LaneRequestScheduler( defaultLane ).lane( streamLane, STREAM_SOME_DATA );
+
+    @After
+    public void shutDown()
+    {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void requestsRunInTheLaneOfTheirType() throws Exception
+    {
+        assertTrue( threadNameFor( STREAM_SOME_DATA ).startsWith( "stream" ) );
+        assertTrue( threadNameFor( MULTIPLY ).startsWith( "default" ) );
+        assertTrue( threadNameFor( null ).startsWith( "default" ) );
+    }
+
+    @Test
+    public void boundedLaneQueuesRequestsBeyondItsThreads() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch( 1 );
+        CountDownLatch done = new CountDownLatch( 3 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            scheduler.schedule( STREAM_SOME_DATA, blockingRequest( release, done ) );
+        }
+
+        assertEquals( 2, streamLane.getQueueDepth() );
+        assertEquals( 2, streamLane.getMaxQueueDepth() );
+        release.countDown();
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        assertEquals( 0, streamLane.getQueueDepth() );
+        assertEquals( 2, streamLane.getMaxQueueDepth() );
+    }
+
+    @Test
+    public void boundedLaneOfVirtualThreadsQueuesRequestsBeyondItsThreads() throws Exception
+    {
+        Lane virtualLane = Lane.bounded( "virtual", 2, Thread.NORM_PRIORITY, ExecutionMode.VIRTUAL.available() );
+        LaneRequestScheduler virtualScheduler = new LaneRequestScheduler( virtualLane );
+        try
+        {
+            CountDownLatch release = new CountDownLatch( 1 );
+            CountDownLatch done = new CountDownLatch( 3 );
+            for ( int i = 0; i < 3; i++ )
+            {
+                virtualScheduler.schedule( MULTIPLY, blockingRequest( release, done ) );
+            }
+
+            assertEquals( 1, virtualLane.getQueueDepth() );
+            release.countDown();
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            virtualScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void virtualModeIsOnlyUsedWhereVirtualThreadsCanActuallyRun() throws Exception
+    {
+        ExecutionMode mode = ExecutionMode.forName( "virtual", StringLogger.DEV_NULL );
+        assertEquals( ExecutionMode.VIRTUAL.isSupported() ? ExecutionMode.VIRTUAL : ExecutionMode.PLATFORM, mode );
+
+        final CountDownLatch done = new CountDownLatch( 1 );
+        mode.threadFactory( "probe", Thread.NORM_PRIORITY ).newThread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        } ).start();
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+    }
+
+    private String threadNameFor( MadeUpServer.MadeUpRequestType type ) throws InterruptedException
+    {
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch( 1 );
+        scheduler.schedule( type, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                threadName.set( Thread.currentThread().getName() );
+                done.countDown();
+            }
+        } );
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        return threadName.get();
+    }
+
+    private Runnable blockingRequest( final CountDownLatch release, final CountDownLatch done )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                }
+                done.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+
+public class TestResponseFuture
+{
+    private final CountDownLatch responseArrived = new CountDownLatch( 1 );
+    private final CountDownLatch reading = new CountDownLatch( 1 );
+    private final CountDownLatch finishReading = new CountDownLatch( 1 );
+    private volatile boolean abandoned;
+
+    @Test
+    public void timedGetThrowsTimeoutExceptionWithoutWaitingAWholeSecond() throws Exception
+    {
+        ResponseFuture<Integer> future = new SlowFuture();
+        long startTime = System.currentTimeMillis();
+        try
+        {
+            future.get( 50, TimeUnit.MILLISECONDS );
+            fail( "Should have timed out" );
+        }
+        catch ( TimeoutException e )
+        {   // Good
+        }
+        assertTrue( System.currentTimeMillis() - startTime < 1000 );
+        assertFalse( future.isDone() );
+
+        responseArrived.countDown();
+        finishReading.countDown();
+        assertEquals( (Integer) 42, future.get( 1, TimeUnit.SECONDS ).response() );
+        assertTrue( future.isDone() );
+    }
+
+    @Test
+    public void timedGetTimesOutWhileAnotherThreadIsReading() throws Exception
+    {
+        ResponseFuture<Integer> future = new SlowFuture();
+        responseArrived.countDown();
+        Thread reader = readInThread( future );
+        try
+        {
+            future.get( 50, TimeUnit.MILLISECONDS );
+            fail( "Should have timed out" );
+        }
+        catch ( TimeoutException e )
+        {   // Good
+        }
+        finishReading.countDown();
+        reader.join( 10000 );
+        assertEquals( (Integer) 42, future.get( 0, TimeUnit.SECONDS ).response() );
+    }
+
+    @Test
+    public void cancelAndIsDoneDontWaitForAnOngoingRead() throws Exception
+    {
+        ResponseFuture<Integer> future = new SlowFuture();
+        responseArrived.countDown();
+        Thread reader = readInThread( future );
+
+        assertFalse( future.isDone() );
+        assertFalse( "Can't cancel a response which is being read", future.cancel( true ) );
+        assertFalse( future.isCancelled() );
+        finishReading.countDown();
+        reader.join( 10000 );
+        assertTrue( future.isDone() );
+        assertFalse( abandoned );
+    }
+
+    @Test
+    public void cancelledFutureIsAbandonedAndNeverRead() throws Exception
+    {
+        ResponseFuture<Integer> future = new SlowFuture();
+        assertTrue( future.cancel( false ) );
+        assertTrue( abandoned );
+        assertTrue( future.isCancelled() );
+        assertTrue( future.isDone() );
+        try
+        {
+            future.get();
+            fail( "Should have been cancelled" );
+        }
+        catch ( CancellationException e )
+        {   // Good
+        }
+        assertEquals( 1, reading.getCount() );
+    }
+
+    private Thread readInThread( final ResponseFuture<Integer> future ) throws InterruptedException
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                future.awaitResponse();
+            }
+        };
+        thread.start();
+        assertTrue( reading.await( 10, TimeUnit.SECONDS ) );
+        return thread;
+    }
+
+    private class SlowFuture extends ResponseFuture<Integer>
+    {
+        SlowFuture()
+        {
+            super( 10 );
+        }
+
+        @Override
+        protected Response<Integer> read( int timeoutSeconds )
+        {
+            reading.countDown();
+            try
+            {
+                finishReading.await( timeoutSeconds, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new RuntimeException( e );
+            }
+            return new Response<Integer>( 42, new StoreId(), TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+        }
+
+        @Override
+        protected boolean awaitResponseStart( long timeout, TimeUnit unit ) throws InterruptedException
+        {
+            return responseArrived.await( timeout, unit );
+        }
+
+        @Override
+        protected void abandon()
+        {
+            abandoned = true;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.neo4j.test.TargetDirectory;
+
+public class TestStoreCopyCheckpoint
+{
+    private static final String SOURCE = "1@localhost:6361";
+    private static final String PATH = "neostore.nodestore.db";
+
+    @Rule
+    public TestName testName = new TestName();
+    private File directory;
+    private byte[] data;
+
+    @Before
+    public void writeStoreFile() throws Exception
+    {
+        directory = TargetDirectory.forTest( getClass() ).directory( testName.getMethodName(), true );
+        data = new byte[1000];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream( new File( directory, PATH ) );
+        try
+        {
+            out.write( data );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    @Test
+    public void copiedRangesCanBeResumed() throws Exception
+    {
+        StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( directory, SOURCE );
+        assertFalse( checkpoint.canResume() );
+        checkpoint.start( listing( 5 ) );
+        checkpoint.copied( PATH, 0, 500, checksum( 0, 500 ) );
+        checkpoint.close();
+
+        StoreCopyCheckpoint resumed = new StoreCopyCheckpoint( directory, SOURCE );
+        assertTrue( resumed.canResume() );
+        assertEquals( 5, resumed.getListing().getSessionId() );
+        assertEquals( Long.valueOf( data.length ), resumed.getListing().getFiles().get( PATH ) );
+        assertTrue( resumed.isCopied( PATH, 0, 500 ) );
+        assertFalse( resumed.isCopied( PATH, 500, 500 ) );
+    }
+
+    @Test
+    public void checkpointFromOtherSourceIsNotResumed() throws Exception
+    {
+        StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( directory, SOURCE );
+        checkpoint.start( listing( 5 ) );
+        checkpoint.copied( PATH, 0, 500, checksum( 0, 500 ) );
+        checkpoint.close();
+
+        StoreCopyCheckpoint other = new StoreCopyCheckpoint( directory, "2@localhost:6362" );
+        assertFalse( other.canResume() );
+        assertNull( other.getListing() );
+        assertFalse( other.isCopied( PATH, 0, 500 ) );
+    }
+
+    @Test
+    public void rangeNotOnDiskIsCopiedAgain() throws Exception
+    {
+        StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( directory, SOURCE );
+        checkpoint.start( listing( 5 ) );
+        checkpoint.copied( PATH, 0, 500, checksum( 0, 500 ) );
+        checkpoint.copied( PATH, 500, 500, checksum( 500, 500 ) );
+        checkpoint.close();
+
+        RandomAccessFile file = new RandomAccessFile( new File( directory, PATH ), "rw" );
+        try
+        {
+            file.seek( 600 );
+            file.write( 0 );
+        }
+        finally
+        {
+            file.close();
+        }
+
+        StoreCopyCheckpoint resumed = new StoreCopyCheckpoint( directory, SOURCE );
+        assertTrue( resumed.isCopied( PATH, 0, 500 ) );
+        assertFalse( resumed.isCopied( PATH, 500, 500 ) );
+    }
+
+    @Test
+    public void rangeRecordedPartlyIsCopiedAgain() throws Exception
+    {
+        StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( directory, SOURCE );
+        checkpoint.start( listing( 5 ) );
+        checkpoint.copied( PATH, 0, 500, checksum( 0, 500 ) );
+        checkpoint.close();
+        FileOutputStream out = new FileOutputStream( new File( directory, StoreCopyCheckpoint.FILE_NAME ), true );
+        try
+        {
+            out.write( "range 500 ".getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        StoreCopyCheckpoint resumed = new StoreCopyCheckpoint( directory, SOURCE );
+        assertTrue( resumed.canResume() );
+        assertTrue( resumed.isCopied( PATH, 0, 500 ) );
+        assertFalse( resumed.isCopied( PATH, 500, 500 ) );
+        resumed.copied( PATH, 500, 500, checksum( 500, 500 ) );
+        resumed.close();
+
+        StoreCopyCheckpoint resumedAgain = new StoreCopyCheckpoint( directory, SOURCE );
+        assertTrue( resumedAgain.isCopied( PATH, 0, 500 ) );
+        assertTrue( resumedAgain.isCopied( PATH, 500, 500 ) );
+    }
+
+    @Test
+    public void deletedCheckpointIsNotResumed() throws Exception
+    {
+        StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( directory, SOURCE );
+        checkpoint.start( listing( 5 ) );
+        checkpoint.copied( PATH, 0, 500, checksum( 0, 500 ) );
+        checkpoint.delete();
+
+        assertFalse( new File( directory, StoreCopyCheckpoint.FILE_NAME ).exists() );
+        assertFalse( new StoreCopyCheckpoint( directory, SOURCE ).canResume() );
+    }
+
+    @SuppressWarnings( "boxing" )
+    private StoreFileListing listing( int sessionId )
+    {
+        Map<String, Long> files = new HashMap<String, Long>();
+        files.put( PATH, (long) data.length );
+        return new StoreFileListing( sessionId, files );
+    }
+
+    private long checksum( int position, int length )
+    {
+        CRC32 checksum = new CRC32();
+        checksum.update( data, position, length );
+        return checksum.getValue();
+    }
+}
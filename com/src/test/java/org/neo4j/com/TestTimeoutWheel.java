@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.helpers.collection.Visitor;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestTimeoutWheel
+{
+    private final RecordingLogger logger = new RecordingLogger();
+    private final TimeoutWheel<String> wheel = new TimeoutWheel<String>( 10, 8, 0, logger );
+    private final Recorder recorder = new Recorder();
+
+    @Test
+    public void itemIsExpiredAtTheFirstTickAfterItsDeadline() throws Exception
+    {
+        wheel.schedule( "a", 25 );
+
+        wheel.tick( 20, recorder );
+        assertTrue( recorder.expired.isEmpty() );
+        wheel.tick( 30, recorder );
+        assertEquals( asList( "a" ), recorder.expired );
+    }
+
+    @Test
+    public void itemIsAskedAboutAgainAtItsNewDeadline() throws Exception
+    {
+        wheel.schedule( "a", 10 );
+        recorder.newDeadlines.put( "a", 45L );
+
+        wheel.tick( 10, recorder );
+        recorder.newDeadlines.clear();
+        wheel.tick( 40, recorder );
+        assertEquals( asList( "a" ), recorder.expired );
+        wheel.tick( 50, recorder );
+        assertEquals( asList( "a", "a" ), recorder.expired );
+        wheel.tick( 200, recorder );
+        assertEquals( asList( "a", "a" ), recorder.expired );
+    }
+
+    @Test
+    public void itemWithADeadlineSeveralRoundsAwayIsntExpiredEarly() throws Exception
+    {
+        wheel.schedule( "a", 250 );
+
+        for ( long now = 10; now < 250; now += 10 )
+        {
+            wheel.tick( now, recorder );
+        }
+        assertTrue( recorder.expired.isEmpty() );
+        wheel.tick( 250, recorder );
+        assertEquals( asList( "a" ), recorder.expired );
+    }
+
+    @Test
+    public void itemsInSkippedTicksAreExpiredToo() throws Exception
+    {
+        wheel.schedule( "a", 15 );
+        wheel.schedule( "b", 35 );
+        wheel.schedule( "c", 1000 );
+
+        wheel.tick( 500, recorder );
+        assertEquals( new HashSet<String>( asList( "a", "b" ) ), new HashSet<String>( recorder.expired ) );
+    }
+
+    @Test
+    public void itemWithDeadlineInThePastIsExpiredAtTheNextTick() throws Exception
+    {
+        wheel.tick( 100, recorder );
+        wheel.schedule( "a", 50 );
+
+        wheel.tick( 110, recorder );
+        assertEquals( asList( "a" ), recorder.expired );
+    }
+
+    @Test
+    public void failingExpirationIsRetriedAtTheNextTickAndLoggedOnce() throws Exception
+    {
+        wheel.schedule( "a", 10 );
+        TimeoutWheel.Expiration<String> failing = new TimeoutWheel.Expiration<String>()
+        {
+            @Override
+            public long expired( String item, long now )
+            {
+                throw new IllegalStateException();
+            }
+        };
+
+        wheel.tick( 10, failing );
+        wheel.tick( 20, failing );
+        wheel.tick( 30, recorder );
+        assertEquals( asList( "a" ), recorder.expired );
+        assertEquals( 1, logger.messages.size() );
+    }
+
+    private static class RecordingLogger extends StringLogger
+    {
+        private final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void logLongMessage( String msg, Visitor<LineLogger> source, boolean flush )
+        {
+            messages.add( msg );
+        }
+
+        @Override
+        public void logMessage( String msg, boolean flush )
+        {
+            messages.add( msg );
+        }
+
+        @Override
+        public void logMessage( String msg, Throwable cause, boolean flush )
+        {
+            messages.add( msg );
+        }
+
+        @Override
+        public void addRotationListener( Runnable listener )
+        {
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        protected void logLine( String line )
+        {
+            messages.add( line );
+        }
+    }
+
+    private static class Recorder implements TimeoutWheel.Expiration<String>
+    {
+        private final List<String> expired = new ArrayList<String>();
+        private final Map<String, Long> newDeadlines = new HashMap<String, Long>();
+
+        @Override
+        public long expired( String item, long now )
+        {
+            expired.add( item );
+            Long newDeadline = newDeadlines.get( item );
+            return newDeadline != null ? newDeadline : -1;
+        }
+    }
+}
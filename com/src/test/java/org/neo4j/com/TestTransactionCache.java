@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTransactionCache
+{
+    @Test
+    public void getsWhatWasPut() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 10, 100 );
+        cache.put( "nioneo", 5, new byte[] { 1, 2, 3 } );
+        assertArrayEquals( new byte[] { 1, 2, 3 }, cache.get( "nioneo", 5 ) );
+        assertNull( cache.get( "nioneo", 6 ) );
+        assertNull( cache.get( "lucene", 5 ) );
+    }
+
+    @Test
+    public void newerTransactionsReplaceOlderOnes() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 10, 100 );
+        for ( long txId = 1; txId <= 15; txId++ )
+            cache.put( "nioneo", txId, new byte[] { (byte) txId } );
+        for ( long txId = 1; txId <= 5; txId++ )
+            assertNull( cache.get( "nioneo", txId ) );
+        for ( long txId = 6; txId <= 15; txId++ )
+            assertArrayEquals( new byte[] { (byte) txId }, cache.get( "nioneo", txId ) );
+    }
+
+    @Test
+    public void onlyTheLatestTransactionsAreRecent() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 10, 100 );
+        assertTrue( cache.isRecent( 20, 20 ) );
+        assertTrue( cache.isRecent( 11, 20 ) );
+        assertFalse( "Would take the slot of transaction 20", cache.isRecent( 10, 20 ) );
+        assertFalse( cache.isRecent( 1, 20 ) );
+    }
+
+    @Test
+    public void doesNotKeepTooBigTransactions() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 10, 100 );
+        cache.put( "nioneo", 5, new byte[101] );
+        assertNull( cache.get( "nioneo", 5 ) );
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.impl.cache.Cache;
+import org.neo4j.kernel.impl.cache.GCResistantCache;
+import org.neo4j.kernel.impl.core.Caches;
+import org.neo4j.management.CacheMetrics;
+import org.neo4j.management.CacheMetricsInfo;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class CacheMetricsBean extends ManagementBeanProvider
+{
+    public CacheMetricsBean()
+    {
+        super( CacheMetrics.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new CacheMetricsImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new CacheMetricsImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class CacheMetricsImpl extends Neo4jMBean implements CacheMetrics
+    {
+        private final HighlyAvailableGraphDatabase db;
+
+        CacheMetricsImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        CacheMetricsImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        @Override
+        public CacheMetricsInfo[] getCaches()
+        {
+            // The caches are replaced if the configuration changes between master/slave switches
+            Caches caches = db.getCaches();
+            List<CacheMetricsInfo> result = new ArrayList<CacheMetricsInfo>();
+            addIfArrayCache( result, caches.node() );
+            addIfArrayCache( result, caches.relationship() );
+            return result.toArray( new CacheMetricsInfo[result.size()] );
+        }
+
+        private static void addIfArrayCache( List<CacheMetricsInfo> result, Cache<?> cache )
+        {
+            if ( !(cache instanceof GCResistantCache) ) return;
+            GCResistantCache<?> arrayCache = (GCResistantCache<?>) cache;
+            GCResistantCache.Statistics interval = arrayCache.getLastInterval();
+            result.add( new CacheMetricsInfo( arrayCache.getName(), arrayCache.size(), arrayCache.maxSize(),
+                    arrayCache.hitCount(), arrayCache.missCount(), arrayCache.purgeCount(), interval.getHitRatio(),
+                    interval.getHitsPerSecond(), interval.getMissesPerSecond(), interval.getPutsPerSecond(),
+                    interval.getCollisionsPerSecond(), interval.getPurgeTime(), arrayCache.getPurgeTimeHistogram() ) );
+        }
+    }
+}
@@ -116,10 +116,17 @@ public final class HighAvailabilityBean extends ManagementBeanProvider
         {
             MasterServer master = db.getMasterServerIfMaster();
             if ( master == null ) return null;
+            // Read once for all the slaves rather than once per slave
+            Map<Integer, ConnectionInformation> connections = new HashMap<Integer, ConnectionInformation>();
+            for ( ConnectionInformation connection : db.getBroker().getConnectionInformation() )
+            {
+                connections.put( connection.getMachineId(), connection );
+            }
             List<SlaveInfo> result = new ArrayList<SlaveInfo>();
             for ( Map.Entry<Integer, Collection<RequestContext>> entry : master.getSlaveInformation().entrySet() )
             {
-                result.add( slaveInfo( entry.getKey().intValue(), entry.getValue() ) );
+                result.add( slaveInfo( entry.getKey().intValue(), entry.getValue(),
+                        connections.get( entry.getKey() ) ) );
             }
             return result.toArray( new SlaveInfo[result.size()] );
         }
@@ -144,7 +151,8 @@ public final class HighAvailabilityBean extends ManagementBeanProvider
             return "Update completed in " + time + "ms";
         }
 
-        private SlaveInfo slaveInfo( int machineId, Collection<RequestContext> contexts )
+        private SlaveInfo slaveInfo( int machineId, Collection<RequestContext> contexts,
+                ConnectionInformation connection )
         {
             List<SlaveTransaction> txInfo = new ArrayList<SlaveTransaction>();
             for ( RequestContext context : contexts )
@@ -156,7 +164,6 @@ public final class HighAvailabilityBean extends ManagementBeanProvider
                 }
                 txInfo.add( new SlaveTransaction( context.getEventIdentifier(), lastTransactions ) );
             }
-            ConnectionInformation connection = db.getBroker().getConnectionInformation( machineId );
             JMXServiceURL jmxServiceURL = connection.getJMXServiceURL();
             return new SlaveInfo( jmxServiceURL == null ? null : jmxServiceURL.toString(),
                     connection.getInstanceId(), machineId, false,
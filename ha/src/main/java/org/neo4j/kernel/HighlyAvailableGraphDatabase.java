@@ -44,10 +44,13 @@ import javax.transaction.TransactionManager;
 import org.neo4j.backup.OnlineBackupSettings;
 import org.neo4j.com.ComException;
 import org.neo4j.com.IllegalProtocolVersionException;
+import org.neo4j.com.ParallelStoreCopier;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestContext.Tx;
 import org.neo4j.com.Response;
 import org.neo4j.com.ServerUtil;
+import org.neo4j.com.StoreCopyCheckpoint;
+import org.neo4j.com.StoreCopySource;
 import org.neo4j.com.ToFileStoreWriter;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -74,12 +77,14 @@ import org.neo4j.kernel.ha.ClusterEventReceiver;
 import org.neo4j.kernel.ha.HaCaches;
 import org.neo4j.kernel.ha.HaSettings;
 import org.neo4j.kernel.ha.Master;
+import org.neo4j.kernel.ha.MasterClient;
 import org.neo4j.kernel.ha.MasterClientResolver;
 import org.neo4j.kernel.ha.MasterGraphDatabase;
 import org.neo4j.kernel.ha.MasterServer;
 import org.neo4j.kernel.ha.SlaveDatabaseOperations;
 import org.neo4j.kernel.ha.SlaveGraphDatabase;
 import org.neo4j.kernel.ha.SlaveServer;
+import org.neo4j.kernel.ha.TxChecksumCache;
 import org.neo4j.kernel.ha.shell.ZooClientFactory;
 import org.neo4j.kernel.ha.zookeeper.Machine;
 import org.neo4j.kernel.ha.zookeeper.NoMasterException;
@@ -155,6 +160,7 @@ public class HighlyAvailableGraphDatabase
     private BranchedDataPolicy branchedDataPolicy;
     private final SlaveUpdateMode slaveUpdateMode;
     private final Caches caches;
+    private final TxChecksumCache txChecksums = new TxChecksumCache();
     private final MasterClientResolver masterClientResolver;
 
     // This lock is used to safeguard access to internal database
@@ -242,7 +248,9 @@ public class HighlyAvailableGraphDatabase
                 configuration.getInteger( HaSettings.read_timeout ),
                 configuration.isSet( HaSettings.lock_read_timeout ) ? configuration.getInteger( HaSettings.lock_read_timeout )
                         : configuration.getInteger( HaSettings.read_timeout ),
-                configuration.getInteger( HaSettings.max_concurrent_channels_per_slave ) );
+                configuration.getInteger( HaSettings.max_concurrent_channels_per_slave ),
+                configuration.getInteger( HaSettings.multiplexed_channels_per_slave ),
+                configuration.getBoolean( HaSettings.compressed_channels ) );
         masterClientResolver.getDefault();
         // TODO The dependency from BrokerFactory to 'this' is completely
         // broken. Needs rethinking
@@ -763,8 +771,8 @@ public class HighlyAvailableGraphDatabase
             throws Exception
     {
         getMessageLog().logMessage( "Copying store from master" );
-        String temp = getClearedTempDir().getAbsolutePath();
-        Response<Void> response = master.first().copyStore( emptyContext(), new ToFileStoreWriter( temp ) );
+        Response<Void> response = copyStoreFiles( master );
+        String temp = getTempDir().getAbsolutePath();
         long highestLogVersion = highestLogVersion( temp );
         if( highestLogVersion > -1 )
         {
@@ -789,6 +797,41 @@ public class HighlyAvailableGraphDatabase
         getMessageLog().logMessage( "Done copying store from master" );
     }
 
+    /**
+     * Copies the store files from the master into the temp directory. A copy
+     * in several streams is checkpointed so that if it fails partway the next
+     * try picks up where it left off, provided that it's from the same master.
+     */
+    private Response<Void> copyStoreFiles( Pair<Master, Machine> master ) throws IOException
+    {
+        int streams = Math.min( configuration.getInteger( HaSettings.store_copy_streams ),
+                configuration.getInteger( HaSettings.max_concurrent_channels_per_slave ) );
+        StoreCopySource parallelSource = master.first() instanceof MasterClient ?
+                ((MasterClient) master.first()).getParallelStoreCopySource() : null;
+        if ( streams > 1 && parallelSource == null )
+        {
+            getMessageLog().logMessage( "Master doesn't support parallel store copy, copying in one stream" );
+        }
+        else if ( streams > 1 )
+        {
+            File tempDir = getTempDir();
+            StoreCopyCheckpoint checkpoint = new StoreCopyCheckpoint( tempDir,
+                    master.other().getMachineId() + "@" + master.other().getServerAsString() );
+            if ( checkpoint.canResume() )
+            {
+                getMessageLog().logMessage( "Resuming store copy from master" );
+            }
+            else
+            {
+                getClearedTempDir();
+            }
+            return new ParallelStoreCopier( parallelSource, emptyContext(), streams ).copyTo(
+                    new ToFileStoreWriter( tempDir.getAbsolutePath() ), checkpoint );
+        }
+        return master.first().copyStore( emptyContext(),
+                new ToFileStoreWriter( getClearedTempDir().getAbsolutePath() ) );
+    }
+
     private RequestContext emptyContext()
     {
         return new RequestContext( 0, machineId, 0, new Tx[0], 0, 0 );
@@ -839,6 +882,11 @@ public class HighlyAvailableGraphDatabase
         return this.broker;
     }
 
+    public Caches getCaches()
+    {
+        return caches;
+    }
+
     public void pullUpdates()
     {
         try
@@ -1528,7 +1576,9 @@ public class HighlyAvailableGraphDatabase
                 @Override
                 public boolean accept( File file )
                 {
-                    return !file.getName().equals( StringLogger.DEFAULT_NAME ) && !isBranchedDataRootDirectory( file );
+                    return !file.getName().equals( StringLogger.DEFAULT_NAME ) && !isBranchedDataRootDirectory( file )
+                            // The sandbox may hold a store copy to resume, it's cleared before a new copy anyway
+                            && !file.getName().equals( COPY_FROM_MASTER_TEMP );
                 }
             } );
         }
@@ -1593,7 +1643,7 @@ public class HighlyAvailableGraphDatabase
                     long txId = dataSource.getLastCommittedTxId();
                     if( dataSource.getName().equals( Config.DEFAULT_DATA_SOURCE_NAME ) )
                     {
-                        master = dataSource.getMasterForCommittedTx( txId );
+                        master = txChecksums.getMasterForCommittedTx( dataSource, txId );
                     }
                     txs[i++] = RequestContext.lastAppliedTx( dataSource.getName(), txId );
                 }
@@ -1669,7 +1719,8 @@ public class HighlyAvailableGraphDatabase
         {
             try
             {
-                return localGraph().getXaDataSourceManager().getNeoStoreDataSource().getMasterForCommittedTx( tx ).first();
+                return txChecksums.getMasterForCommittedTx(
+                        localGraph().getXaDataSourceManager().getNeoStoreDataSource(), tx ).first();
             }
             catch ( IOException e )
             {
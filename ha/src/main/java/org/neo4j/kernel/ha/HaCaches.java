@@ -56,7 +56,7 @@ public class HaCaches implements Caches
             relationship = newType.newRelationshipCache( logger, config );
         }
         else
-        {
+        {   // Cheap for the array caches however large they are, see GCResistantCache#clear()
             node.clear();
             relationship.clear();
         }
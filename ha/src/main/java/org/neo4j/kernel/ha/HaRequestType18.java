@@ -32,9 +32,12 @@ import java.nio.channels.ReadableByteChannel;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.neo4j.com.BlockLogReader;
 import org.neo4j.com.ObjectSerializer;
+import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Response;
+import org.neo4j.com.StoreCopySource;
+import org.neo4j.com.StoreFileListing;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.ToNetworkStoreWriter;
 import org.neo4j.com.TxExtractor;
@@ -212,10 +215,18 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<Void> call( Master master, RequestContext context, ChannelBuffer input,
                 final ChannelBuffer target )
         {
-            return master.copyStore( context, new ToNetworkStoreWriter( target ) );
+            return master.copyStore( context, new ToNetworkStoreWriter( target,
+                    Protocol.readStoreCopyCapabilities( input ) ) );
         }
 
-    }, VOID_SERIALIZER, true ),
+    }, VOID_SERIALIZER, true )
+    {
+        @Override
+        public boolean isStreaming()
+        {
+            return true;
+        }
+    },
 
     // ====
     COPY_TRANSACTIONS( new TargetCaller<Master, Void>()
@@ -227,7 +238,14 @@ public enum HaRequestType18 implements RequestType<Master>
             return master.copyTransactions( context, readString( input ), input.readLong(), input.readLong() );
         }
 
-    }, VOID_SERIALIZER, true ),
+    }, VOID_SERIALIZER, true )
+    {
+        @Override
+        public boolean isStreaming()
+        {
+            return true;
+        }
+    },
 
     // ====
     INITIALIZE_TX( new TargetCaller<Master, Void>()
@@ -323,7 +341,56 @@ public enum HaRequestType18 implements RequestType<Master>
         {
             return master.pushTransaction( context, readString( input ), input.readLong() );
         }
-    }, VOID_SERIALIZER, true );
+    }, VOID_SERIALIZER, true ),
+
+    // ====
+    LIST_STORE_FILES( new TargetCaller<Master, StoreFileListing>()
+    {
+        @Override
+        public Response<StoreFileListing> call( Master master, RequestContext context, ChannelBuffer input,
+                ChannelBuffer target )
+        {
+            return ((StoreCopySource) master).listStoreFiles( context );
+        }
+    }, StoreFileListing.SERIALIZER, true ),
+
+    // ====
+    COPY_STORE_FILE( new TargetCaller<Master, Void>()
+    {
+        @Override
+        public Response<Void> call( Master master, RequestContext context, ChannelBuffer input,
+                ChannelBuffer target )
+        {
+            return ((StoreCopySource) master).copyStoreFile( context, input.readInt(), readString( input ),
+                    input.readLong(), input.readLong(),
+                    new ToNetworkStoreWriter( target, Protocol.STORE_COPY_RAW_FILES ) );
+        }
+    }, VOID_SERIALIZER, true )
+    {
+        @Override
+        public boolean isStreaming()
+        {
+            return true;
+        }
+    },
+
+    // ====
+    FINISH_STORE_COPY( new TargetCaller<Master, Void>()
+    {
+        @Override
+        public Response<Void> call( Master master, RequestContext context, ChannelBuffer input,
+                ChannelBuffer target )
+        {
+            return ((StoreCopySource) master).finishStoreCopy( context, input.readInt() );
+        }
+    }, VOID_SERIALIZER, true )
+    {
+        @Override
+        public boolean isStreaming()
+        {
+            return true;
+        }
+    };
 
     @SuppressWarnings( "rawtypes" )
     final TargetCaller caller;
@@ -365,4 +432,14 @@ public enum HaRequestType18 implements RequestType<Master>
     {
         return false;
     }
+
+    /**
+     * @return whether or not the response streams store files or an open-ended
+     * number of transactions, in which case it shouldn't share a channel with
+     * other requests.
+     */
+    public boolean isStreaming()
+    {
+        return false;
+    }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@
 package org.neo4j.kernel.ha;
 
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.ANY;
+import static org.neo4j.graphdb.factory.GraphDatabaseSetting.FALSE;
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.TRUE;
 
 import org.neo4j.graphdb.factory.Default;
@@ -50,6 +51,29 @@ public class HaSettings
     @Default("20")
     public static final GraphDatabaseSetting.IntegerSetting max_concurrent_channels_per_slave = new GraphDatabaseSetting.IntegerSetting( "ha.max_concurrent_channels_per_slave", "Must be valid timeout in seconds",1,null );
 
+    @Description(   "The number of channels over which a slave multiplexes its requests to the master, " +
+                    "letting many requests be in flight on each channel. 0 means one channel per requesting thread." )
+    @Default("0")
+    public static final GraphDatabaseSetting.IntegerSetting multiplexed_channels_per_slave = new GraphDatabaseSetting.IntegerSetting( "ha.multiplexed_channels_per_slave", "Must be a valid number of channels",0,null );
+
+    @Description(   "Whether or not a slave compresses what it sends to the master, and has the master compress " +
+                    "what it sends back, f.ex. transactions and store files. Requires a master which understands " +
+                    "compression." )
+    @Default( FALSE )
+    public static final BooleanSetting compressed_channels = new BooleanSetting( "ha.compressed_channels" );
+
+    @Description(   "The most transactions the master sends to a slave asking for updates, so that a slave far behind " +
+                    "catches up over several requests. Other responses, f.ex. lock grants and commits, still bring " +
+                    "the slave all the way up to date." )
+    @Default( "10000" )
+    public static final IntegerSetting max_transactions_per_response = new IntegerSetting( "ha.max_transactions_per_response", "Must be a valid number of transactions", 1, null );
+
+    @Description(   "The number of streams over which a slave copies the store from the master, " +
+                    "with large store files split over several streams. At most ha.max_concurrent_channels_per_slave. " +
+                    "A copy over more than one stream is resumed from where it left off if it fails partway." )
+    @Default("1")
+    public static final GraphDatabaseSetting.IntegerSetting store_copy_streams = new GraphDatabaseSetting.IntegerSetting( "ha.store_copy_streams", "Must be a valid number of streams",1,null );
+
     public static final IntegerSetting server_id = new GraphDatabaseSetting.IntegerSetting( "ha.server_id", "Must be a valid server id" );
 
     public static final StringSetting server = new StringSetting( "ha.server", ANY, "Must be a valid IP and port to bind to as master" );
@@ -57,6 +81,13 @@ public class HaSettings
     @Default( SlaveUpdateModeSetting.async )
     public static final SlaveUpdateModeSetting slave_coordinator_update_mode = new SlaveUpdateModeSetting();
 
+    @Description(   "How often, in milliseconds, an instance publishes its last committed transaction to the " +
+                    "coordinators while a master election needs it. Transactions committed in between are " +
+                    "published together. 0 publishes every transaction as it is committed, so that an election " +
+                    "never picks a master without the latest transactions." )
+    @Default( "0" )
+    public static final IntegerSetting slave_coordinator_update_interval = new IntegerSetting( "ha.slave_coordinator_update_interval", "Must be a valid interval in milliseconds", 0, null );
+
     @Default( "neo4j.ha" )
     public static final GraphDatabaseSetting.StringSetting cluster_name = new GraphDatabaseSetting.StringSetting( "ha.cluster_name", ANY, "Must be a valid cluster name" );
 
@@ -87,6 +118,19 @@ public class HaSettings
     @Default( "fixed" )
     public static final OptionsSetting tx_push_strategy = new TxPushStrategySetting();
 
+    @Description(   "Whether or not the master sends committed transactions along when pushing them to slaves, " +
+                    "instead of asking the slaves to pull them from it. Requires slaves which understand it." )
+    @Default( FALSE )
+    public static final BooleanSetting tx_push_transactions = new BooleanSetting( "ha.tx_push_transactions" );
+
+    @Description(   "What kind of threads requests from other instances and the pushing of transactions to " +
+                    "slaves run on. Platform (\"platform\") or virtual (\"virtual\"), which is cheaper with " +
+                    "many concurrent transactions but requires a JVM which has virtual threads, " +
+                    "otherwise platform threads are used. Lock and transaction requests on the master always " +
+                    "run on platform threads." )
+    @Default( ExecutionModeSetting.platform )
+    public static final ExecutionModeSetting execution_mode = new ExecutionModeSetting();
+
     public static class TxPushStrategySetting
         extends OptionsSetting
     {
@@ -102,6 +146,21 @@ public class HaSettings
         }
     }
 
+    public static final class ExecutionModeSetting
+        extends OptionsSetting
+    {
+        @Description( "Platform threads" )
+        public static final String platform = "platform";
+
+        @Description( "Virtual threads" )
+        public static final String virtual = "virtual";
+
+        public ExecutionModeSetting( )
+        {
+            super( "ha.execution_mode", platform, virtual );
+        }
+    }
+
     public static final class SlaveUpdateModeSetting
         extends GraphDatabaseSetting.OptionsSetting
     {
@@ -31,6 +31,7 @@ import org.neo4j.com.MismatchingVersionHandler;
 import org.neo4j.com.ObjectSerializer;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.Response;
+import org.neo4j.com.StoreCopySource;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TxExtractor;
 
@@ -90,4 +91,11 @@ public interface MasterClient extends Master
             final long endTxId );
 
     public void addMismatchingVersionHandler( MismatchingVersionHandler toAdd );
+
+    /**
+     * @return where to copy the store from over many streams at once, or
+     * {@code null} if the protocol version spoken with the master doesn't
+     * have parallel store copy.
+     */
+    public StoreCopySource getParallelStoreCopySource();
 }
@@ -39,6 +39,7 @@ import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.Serializer;
+import org.neo4j.com.StoreCopySource;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.TransactionStream;
@@ -239,6 +240,11 @@ public class MasterClient153 extends Client<Master> implements Master, MasterCli
         }
     }
 
+    public StoreCopySource getParallelStoreCopySource()
+    {
+        return null;
+    }
+
     public void rollbackOngoingTransactions( RequestContext context )
     {
         throw new UnsupportedOperationException( "Should never be called from the client side" );
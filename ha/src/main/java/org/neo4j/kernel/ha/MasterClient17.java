@@ -37,6 +37,7 @@ import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.Serializer;
+import org.neo4j.com.StoreCopySource;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.TransactionStream;
@@ -240,6 +241,12 @@ public class MasterClient17 extends Client<Master> implements MasterClient
         }
     }
 
+    @Override
+    public StoreCopySource getParallelStoreCopySource()
+    {
+        return null;
+    }
+
     @Override
     public void rollbackOngoingTransactions( RequestContext context )
     {
@@ -20,6 +20,7 @@
 package org.neo4j.kernel.ha;
 
 import static org.neo4j.com.Protocol.EMPTY_SERIALIZER;
+import static org.neo4j.com.Protocol.INTEGER_DESERIALIZER;
 import static org.neo4j.com.Protocol.VOID_DESERIALIZER;
 import static org.neo4j.com.Protocol.writeString;
 
@@ -31,12 +32,15 @@ import org.neo4j.com.BlockLogBuffer;
 import org.neo4j.com.Client;
 import org.neo4j.com.ConnectionLostHandler;
 import org.neo4j.com.Deserializer;
+import org.neo4j.com.FileRangeWriter;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.Serializer;
+import org.neo4j.com.StoreCopySource;
+import org.neo4j.com.StoreFileListing;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.TransactionStream;
@@ -58,18 +62,51 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     /* Version 1 first version
      * Version 2 since 2012-01-24
      * Version 3 since 2012-02-16
-     * Version 4 since 2012-07-05 */
-    public static final byte PROTOCOL_VERSION = 4;
+     * Version 4 since 2012-07-05
+     * Version 5 since 2012-10-01, adds parallel store copy */
+    public static final byte PROTOCOL_VERSION = 5;
+    static final byte PARALLEL_STORE_COPY_PROTOCOL_VERSION = 5;
 
     private final int lockReadTimeout;
+    private final byte protocolVersion;
+    private final StoreCopySource parallelStoreCopy = new ParallelStoreCopy();
 
     public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
             int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels )
     {
-        super( hostNameOrIp, port, stringLogger, storeId, MasterServer.FRAME_LENGTH, PROTOCOL_VERSION,
+        this( hostNameOrIp, port, stringLogger, storeId, connectionLostHandler, readTimeoutSeconds, lockReadTimeout,
+                maxConcurrentChannels, DEFAULT_MULTIPLEXED_CHANNELS );
+    }
+
+    public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels )
+    {
+        this( hostNameOrIp, port, stringLogger, storeId, connectionLostHandler, readTimeoutSeconds, lockReadTimeout,
+                maxConcurrentChannels, multiplexedChannels, false );
+    }
+
+    public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels,
+            boolean compressed )
+    {
+        this( hostNameOrIp, port, stringLogger, storeId, connectionLostHandler, readTimeoutSeconds, lockReadTimeout,
+                maxConcurrentChannels, multiplexedChannels, compressed, PROTOCOL_VERSION );
+    }
+
+    /**
+     * @param protocolVersion the version of this protocol to speak, for masters
+     * which don't know about the latest one.
+     */
+    public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels,
+            boolean compressed, byte protocolVersion )
+    {
+        super( hostNameOrIp, port, stringLogger, storeId, MasterServer.FRAME_LENGTH, protocolVersion,
                 readTimeoutSeconds, maxConcurrentChannels, Math.min( maxConcurrentChannels,
-                        DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ), connectionLostHandler );
+                        DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ), multiplexedChannels, compressed,
+                connectionLostHandler );
         this.lockReadTimeout = lockReadTimeout;
+        this.protocolVersion = protocolVersion;
     }
 
     @Override
@@ -81,44 +118,36 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     @Override
     protected boolean shouldCheckStoreId( RequestType<Master> type )
     {
-        return type != HaRequestType18.COPY_STORE;
+        // The store is being copied and so there's no store to check against
+        return type != HaRequestType18.COPY_STORE && type != HaRequestType18.LIST_STORE_FILES &&
+                type != HaRequestType18.COPY_STORE_FILE && type != HaRequestType18.FINISH_STORE_COPY;
+    }
+
+
+    @Override
+    protected boolean shouldMultiplex( RequestType<Master> type )
+    {
+        return !((HaRequestType18) type).isStreaming();
+    }
+
+    @Override
+    public StoreCopySource getParallelStoreCopySource()
+    {
+        return protocolVersion >= PARALLEL_STORE_COPY_PROTOCOL_VERSION ? parallelStoreCopy : null;
     }
 
     @Override
     public Response<IdAllocation> allocateIds( final IdType idType )
     {
-        return sendRequest( HaRequestType18.ALLOCATE_IDS, RequestContext.EMPTY, new Serializer()
-        {
-            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
-            {
-                buffer.writeByte( idType.ordinal() );
-            }
-        }, new Deserializer<IdAllocation>()
-        {
-            public IdAllocation read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
-            {
-                return readIdAllocation( buffer );
-            }
-        } );
+        return sendRequest( HaRequestType18.ALLOCATE_IDS, RequestContext.EMPTY, new AllocateIdsSerializer( idType ),
+                ID_ALLOCATION_DESERIALIZER );
     }
 
     @Override
     public Response<Integer> createRelationshipType( RequestContext context, final String name )
     {
-        return sendRequest( HaRequestType18.CREATE_RELATIONSHIP_TYPE, context, new Serializer()
-        {
-            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
-            {
-                writeString( buffer, name );
-            }
-        }, new Deserializer<Integer>()
-        {
-            @SuppressWarnings( "boxing" )
-            public Integer read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
-            {
-                return buffer.readInt();
-            }
-        } );
+        return sendRequest( HaRequestType18.CREATE_RELATIONSHIP_TYPE, context, new StringSerializer( name ),
+                INTEGER_DESERIALIZER );
     }
 
     @Override
@@ -189,23 +218,8 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     public Response<Long> commitSingleResourceTransaction( RequestContext context,
             final String resource, final TxExtractor txGetter )
     {
-        return sendRequest( HaRequestType18.COMMIT, context, new Serializer()
-        {
-            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
-            {
-                writeString( buffer, resource );
-                BlockLogBuffer blockLogBuffer = new BlockLogBuffer( buffer );
-                txGetter.extract( blockLogBuffer );
-                blockLogBuffer.done();
-            }
-        }, new Deserializer<Long>()
-        {
-            @SuppressWarnings( "boxing" )
-            public Long read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
-            {
-                return buffer.readLong();
-            }
-        });
+        return sendRequest( HaRequestType18.COMMIT, context, new CommitSerializer( resource, txGetter ),
+                LONG_DESERIALIZER );
     }
 
     @Override
@@ -213,13 +227,7 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     {
         try
         {
-            return sendRequest( HaRequestType18.FINISH, context, new Serializer()
-            {
-                public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
-                {
-                    buffer.writeByte( success ? 1 : 0 );
-                }
-            }, VOID_DESERIALIZER );
+            return sendRequest( HaRequestType18.FINISH, context, new FinishSerializer( success ), VOID_DESERIALIZER );
         }
         catch ( UnableToResumeTransactionException e )
         {
@@ -256,27 +264,15 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     @Override
     public Response<Pair<Integer,Long>> getMasterIdForCommittedTx( final long txId, StoreId storeId )
     {
-        return sendRequest( HaRequestType18.GET_MASTER_ID_FOR_TX, RequestContext.EMPTY, new Serializer()
-        {
-            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
-            {
-                buffer.writeLong( txId );
-            }
-        }, new Deserializer<Pair<Integer,Long>>()
-        {
-            @Override
-            public Pair<Integer, Long> read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
-            {
-                return Pair.of( buffer.readInt(), buffer.readLong() );
-            }
-        }, storeId );
+        return sendRequest( HaRequestType18.GET_MASTER_ID_FOR_TX, RequestContext.EMPTY, new TxIdSerializer( txId ),
+                MASTER_ID_DESERIALIZER, storeId );
     }
 
     @Override
     public Response<Void> copyStore( RequestContext context, final StoreWriter writer )
     {
         context = stripFromTransactions( context );
-        return sendRequest( HaRequestType18.COPY_STORE, context, EMPTY_SERIALIZER,
+        return sendRequest( HaRequestType18.COPY_STORE, context, Protocol.STORE_COPY_SERIALIZER,
                 new Protocol.FileStreamsDeserializer( writer ) );
     }
 
@@ -318,6 +314,150 @@ public class MasterClient18 extends Client<Master> implements MasterClient
         }, VOID_DESERIALIZER );
     }
 
+    private class ParallelStoreCopy implements StoreCopySource
+    {
+        @Override
+        public Response<StoreFileListing> listStoreFiles( RequestContext context )
+        {
+            return sendRequest( HaRequestType18.LIST_STORE_FILES, stripFromTransactions( context ),
+                    EMPTY_SERIALIZER, StoreFileListing.DESERIALIZER );
+        }
+
+        @Override
+        public Response<Void> copyStoreFile( RequestContext context, final int sessionId, final String path,
+                final long position, final long length, FileRangeWriter writer )
+        {
+            return sendRequest( HaRequestType18.COPY_STORE_FILE, stripFromTransactions( context ), new Serializer()
+            {
+                public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+                {
+                    buffer.writeInt( sessionId );
+                    writeString( buffer, path );
+                    buffer.writeLong( position );
+                    buffer.writeLong( length );
+                }
+            }, new Protocol.FileRangeDeserializer( writer, path, position ) );
+        }
+
+        @Override
+        public Response<Void> finishStoreCopy( RequestContext context, final int sessionId )
+        {
+            return sendRequest( HaRequestType18.FINISH_STORE_COPY, stripFromTransactions( context ), new Serializer()
+            {
+                public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+                {
+                    buffer.writeInt( sessionId );
+                }
+            }, VOID_DESERIALIZER );
+        }
+    }
+
+    protected static final Deserializer<IdAllocation> ID_ALLOCATION_DESERIALIZER = new Deserializer<IdAllocation>()
+    {
+        public IdAllocation read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            return readIdAllocation( buffer );
+        }
+    };
+
+    protected static final Deserializer<Long> LONG_DESERIALIZER = new Deserializer<Long>()
+    {
+        @SuppressWarnings( "boxing" )
+        public Long read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            return buffer.readLong();
+        }
+    };
+
+    protected static final Deserializer<Pair<Integer,Long>> MASTER_ID_DESERIALIZER = new Deserializer<Pair<Integer,Long>>()
+    {
+        @Override
+        public Pair<Integer, Long> read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            return Pair.of( buffer.readInt(), buffer.readLong() );
+        }
+    };
+
+    protected static class AllocateIdsSerializer implements Serializer
+    {
+        private final IdType idType;
+
+        AllocateIdsSerializer( IdType idType )
+        {
+            this.idType = idType;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeByte( idType.ordinal() );
+        }
+    }
+
+    protected static class StringSerializer implements Serializer
+    {
+        private final String value;
+
+        StringSerializer( String value )
+        {
+            this.value = value;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            writeString( buffer, value );
+        }
+    }
+
+    protected static class CommitSerializer implements Serializer
+    {
+        private final String resource;
+        private final TxExtractor txGetter;
+
+        CommitSerializer( String resource, TxExtractor txGetter )
+        {
+            this.resource = resource;
+            this.txGetter = txGetter;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            writeString( buffer, resource );
+            BlockLogBuffer blockLogBuffer = new BlockLogBuffer( buffer );
+            txGetter.extract( blockLogBuffer );
+            blockLogBuffer.done();
+        }
+    }
+
+    protected static class FinishSerializer implements Serializer
+    {
+        private final boolean success;
+
+        FinishSerializer( boolean success )
+        {
+            this.success = success;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeByte( success ? 1 : 0 );
+        }
+    }
+
+    protected static class TxIdSerializer implements Serializer
+    {
+        private final long txId;
+
+        TxIdSerializer( long txId )
+        {
+            this.txId = txId;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeLong( txId );
+        }
+    }
+
     protected static IdAllocation readIdAllocation( ChannelBuffer buffer )
     {
         int numberOfDefragIds = buffer.readInt();
@@ -22,6 +22,7 @@ package org.neo4j.kernel.ha;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.neo4j.com.Client;
 import org.neo4j.com.ConnectionLostHandler;
 import org.neo4j.com.MismatchingVersionHandler;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
@@ -79,20 +80,30 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
 
         static final ProtocolCombo PC_153 = new ProtocolCombo( 2, 2 );
         static final ProtocolCombo PC_17 = new ProtocolCombo( 3, 2 );
-        static final ProtocolCombo PC_18 = new ProtocolCombo( 4, 2 );
+        static final ProtocolCombo PC_18_WITHOUT_PARALLEL_STORE_COPY = new ProtocolCombo( 4, 2 );
+        static final ProtocolCombo PC_18 = new ProtocolCombo( MasterClient18.PROTOCOL_VERSION, 2 );
     }
 
     private final Map<ProtocolCombo, MasterClientFactory> protocolToFactoryMapping;
 
     public MasterClientResolver( StringLogger messageLogger, int readTimeout, int lockReadTimeout, int channels )
+    {
+        this( messageLogger, readTimeout, lockReadTimeout, channels, Client.DEFAULT_MULTIPLEXED_CHANNELS, false );
+    }
+
+    public MasterClientResolver( StringLogger messageLogger, int readTimeout, int lockReadTimeout, int channels,
+            int multiplexedChannels, boolean compressed )
     {
         protocolToFactoryMapping = new HashMap<ProtocolCombo, MasterClientFactory>();
         protocolToFactoryMapping.put( ProtocolCombo.PC_153, new F153( messageLogger, readTimeout, lockReadTimeout,
                 channels ) );
         protocolToFactoryMapping.put( ProtocolCombo.PC_17, new F17( messageLogger, readTimeout, lockReadTimeout,
                 channels ) );
+        protocolToFactoryMapping.put( ProtocolCombo.PC_18_WITHOUT_PARALLEL_STORE_COPY, new F18( messageLogger,
+                readTimeout, lockReadTimeout, channels, multiplexedChannels, compressed,
+                (byte) ProtocolCombo.PC_18_WITHOUT_PARALLEL_STORE_COPY.applicationProtocol ) );
         protocolToFactoryMapping.put( ProtocolCombo.PC_18, new F18( messageLogger, readTimeout, lockReadTimeout,
-                channels ) );
+                channels, multiplexedChannels, compressed ) );
     }
 
     public MasterClientFactory getFor( int applicationProtocol, int internalProtocol )
@@ -161,16 +172,38 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
 
     public static final class F18 extends StaticMasterClientFactory
     {
+        private final int multiplexedChannels;
+        private final boolean compressed;
+        private final byte protocolVersion;
+
         public F18( StringLogger stringLogger, int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels )
+        {
+            this( stringLogger, readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels,
+                    Client.DEFAULT_MULTIPLEXED_CHANNELS, false );
+        }
+
+        public F18( StringLogger stringLogger, int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels,
+                int multiplexedChannels, boolean compressed )
+        {
+            this( stringLogger, readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels, multiplexedChannels,
+                    compressed, MasterClient18.PROTOCOL_VERSION );
+        }
+
+        public F18( StringLogger stringLogger, int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels,
+                int multiplexedChannels, boolean compressed, byte protocolVersion )
         {
             super( stringLogger, readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+            this.multiplexedChannels = multiplexedChannels;
+            this.compressed = compressed;
+            this.protocolVersion = protocolVersion;
         }
 
         @Override
         public MasterClient instantiate( String hostNameOrIp, int port, StoreId storeId )
         {
             return new MasterClient18( hostNameOrIp, port, stringLogger, storeId, ConnectionLostHandler.NO_ACTION,
-                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels, multiplexedChannels, compressed,
+                    protocolVersion );
         }
     };
 }
@@ -22,6 +22,8 @@ package org.neo4j.kernel.ha;
 
 import java.util.Map;
 
+import org.neo4j.com.ExecutionMode;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.graphdb.index.IndexProvider;
 import org.neo4j.kernel.HighlyAvailableGraphDatabase;
 import org.neo4j.kernel.IdGeneratorFactory;
@@ -45,6 +47,8 @@ public class MasterGraphDatabase
     extends AbstractHAGraphDatabase
 {
     private StoreId storeId;
+    // Shared by the tx id generator pushing to slaves and the master server serving them
+    private final TransactionCache transactionCache = new TransactionCache();
 
     public MasterGraphDatabase( String storeDir, Map<String, String> params,
                                 StoreId storeId, HighlyAvailableGraphDatabase highlyAvailableGraphDatabase,
@@ -85,13 +89,17 @@ public class MasterGraphDatabase
     {
         int txPushFactor = config.get( HaSettings.tx_push_factor );
         String value = config.get( HaSettings.tx_push_strategy );
+        boolean pushTransactions = config.get( HaSettings.tx_push_transactions );
+        ExecutionMode executionMode = ExecutionMode.forName( config.get( HaSettings.execution_mode ), msgLog );
         if ( HaSettings.TxPushStrategySetting.fixed.equals( value ) )
         {
-            return new MasterTxIdGenerator( broker, txPushFactor, SlavePriorities.fixed(), msgLog );
+            return new MasterTxIdGenerator( broker, txPushFactor, SlavePriorities.fixed(), msgLog,
+                    pushTransactions, transactionCache, executionMode );
         }
         else if ( HaSettings.TxPushStrategySetting.roundRobin.equals( value ) )
         {
-            return new MasterTxIdGenerator( broker, txPushFactor, SlavePriorities.roundRobin(), msgLog );
+            return new MasterTxIdGenerator( broker, txPushFactor, SlavePriorities.roundRobin(), msgLog,
+                    pushTransactions, transactionCache, executionMode );
         }
         else
         {
@@ -105,6 +113,11 @@ public class MasterGraphDatabase
         return new MasterTxHook(super.createTxHook());
     }
 
+    public TransactionCache getTransactionCache()
+    {
+        return transactionCache;
+    }
+
     @Override
     protected LastCommittedTxIdSetter createLastCommittedTxIdSetter()
     {
@@ -19,13 +19,17 @@
  */
 package org.neo4j.kernel.ha;
 
-import static java.util.Collections.synchronizedMap;
+import static java.lang.Integer.parseInt;
+import static org.neo4j.kernel.configuration.ConfigurationDefaults.getDefault;
+import static org.neo4j.kernel.ha.HaSettings.max_transactions_per_response;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -36,11 +40,17 @@ import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
+import org.neo4j.com.FileRangeWriter;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.ServerUtil;
+import org.neo4j.com.StoreCopySessions;
+import org.neo4j.com.StoreCopySource;
+import org.neo4j.com.StoreFileListing;
 import org.neo4j.com.StoreWriter;
+import org.neo4j.com.TimeoutWheel;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.com.TransactionStream;
 import org.neo4j.com.TxExtractor;
 import org.neo4j.graphdb.Node;
@@ -52,12 +62,10 @@ import org.neo4j.helpers.Predicate;
 import org.neo4j.kernel.DeadlockDetectedException;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.IdType;
-import org.neo4j.kernel.impl.core.LockReleaser;
 import org.neo4j.kernel.impl.core.NodeManager;
 import org.neo4j.kernel.impl.nioneo.store.IdGenerator;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.transaction.IllegalResourceException;
-import org.neo4j.kernel.impl.transaction.LockManager;
 import org.neo4j.kernel.impl.transaction.LockType;
 import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 import org.neo4j.kernel.impl.util.StringLogger;
@@ -67,7 +75,7 @@ import org.neo4j.kernel.impl.util.StringLogger;
  * communication over network happens in {@link MasterClient} and
  * {@link MasterServer}.
  */
-public class MasterImpl implements Master
+public class MasterImpl implements Master, StoreCopySource
 {
     private static final int ID_GRAB_SIZE = 1000;
     public static final int UNFINISHED_TRANSACTION_CLEANUP_DELAY = 5;
@@ -75,15 +83,38 @@ public class MasterImpl implements Master
     private final GraphDatabaseAPI graphDb;
     private final StringLogger msgLog;
 
-    private final Map<RequestContext, MasterTransaction> transactions = synchronizedMap( new HashMap<RequestContext, MasterTransaction>() );
+    private final Map<RequestContext, MasterTransaction> transactions = new ConcurrentHashMap<RequestContext, MasterTransaction>();
+    private final TimeoutWheel<RequestContext> transactionTimeouts;
     private final ScheduledExecutorService unfinishedTransactionsExecutor;
+    private final StoreCopySessions storeCopySessions;
+    private final SlaveLocks slaveLocks;
+    private final TransactionCache transactionCache;
+    private final int maxTransactionsPerResponse;
     private int unfinishedTransactionThreshold;
 
     public MasterImpl( GraphDatabaseAPI db, int timeOut )
+    {
+        this( db, timeOut, new TransactionCache(),
+                parseInt( getDefault( max_transactions_per_response, HaSettings.class ) ) );
+    }
+
+    /**
+     * @param maxTransactionsPerResponse the most transactions a response to
+     * {@link #pullUpdates(RequestContext)} will bring a slave. All other
+     * responses bring it all the way up to date.
+     */
+    public MasterImpl( GraphDatabaseAPI db, int timeOut, TransactionCache transactionCache,
+            int maxTransactionsPerResponse )
     {
         this.graphDb = db;
+        this.transactionCache = transactionCache;
+        this.maxTransactionsPerResponse = maxTransactionsPerResponse;
         this.msgLog = graphDb.getMessageLog();
+        this.transactionTimeouts = new TimeoutWheel<RequestContext>( UNFINISHED_TRANSACTION_CLEANUP_DELAY*1000, 64,
+                System.currentTimeMillis(), msgLog );
         this.unfinishedTransactionThreshold = timeOut;
+        this.slaveLocks = new SlaveLocks( db.getLockManager() );
+        this.storeCopySessions = new StoreCopySessions( db, true, StoreCopySessions.DEFAULT_SESSION_TIMEOUT );
         this.unfinishedTransactionsExecutor = Executors.newSingleThreadScheduledExecutor();
         this.unfinishedTransactionsExecutor.scheduleWithFixedDelay( new Runnable()
         {
@@ -92,36 +123,7 @@ public class MasterImpl implements Master
             {
                 try
                 {
-                    Map<RequestContext, MasterTransaction> safeTransactions = null;
-                    synchronized ( transactions )
-                    {
-                        safeTransactions = new HashMap<RequestContext, MasterTransaction>( transactions );
-                    }
-
-                    for ( Map.Entry<RequestContext, MasterTransaction> entry : safeTransactions.entrySet() )
-                    {
-                        long time = entry.getValue().timeLastSuspended.get();
-                        if ( time != 0 && System.currentTimeMillis()-time >= unfinishedTransactionThreshold*1000 )
-                        {
-                            long displayableTime = (time == 0 ? 0 : (System.currentTimeMillis()-time));
-                            msgLog.logMessage( "Found old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            try
-                            {
-                                Transaction otherTx = suspendOtherAndResumeThis( entry.getKey(), false );
-                                finishThisAndResumeOther( otherTx, entry.getKey(), false );
-                                msgLog.logMessage( "Rolled back old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            }
-                            catch ( IllegalStateException e )
-                            {
-                                // Expected for waiting transactions
-                            }
-                            catch ( Throwable t )
-                            {
-                                // Not really expected
-                                msgLog.logMessage( "Unable to roll back old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            }
-                        }
-                    }
+                    transactionTimeouts.tick( System.currentTimeMillis(), unfinishedTransactionFinisher() );
                 }
                 catch ( Throwable t )
                 {
@@ -131,6 +133,53 @@ public class MasterImpl implements Master
         }, UNFINISHED_TRANSACTION_CLEANUP_DELAY, UNFINISHED_TRANSACTION_CLEANUP_DELAY, TimeUnit.SECONDS );
     }
 
+    /**
+     * Rolls back transactions which haven't been heard from in a while. A
+     * transaction is looked at when its time is up, not before, and then gets
+     * a new deadline if it has been heard from since or is in the middle of
+     * a request.
+     */
+    TimeoutWheel.Expiration<RequestContext> unfinishedTransactionFinisher()
+    {
+        return new TimeoutWheel.Expiration<RequestContext>()
+        {
+            @Override
+            public long expired( RequestContext context, long now )
+            {
+                long threshold = unfinishedTransactionThreshold*1000L;
+                MasterTransaction tx = transactions.get( context );
+                if ( tx == null )
+                {   // Finished already
+                    return -1;
+                }
+                long time = tx.timeLastSuspended.get();
+                if ( time == 0 || now-time < threshold )
+                {
+                    return (time == 0 ? now : time) + threshold;
+                }
+
+                msgLog.logMessage( "Found old tx " + context + ", " + tx.transaction + ", " + (now-time) );
+                try
+                {
+                    Transaction otherTx = suspendOtherAndResumeThis( context, false );
+                    finishThisAndResumeOther( otherTx, context, false );
+                    msgLog.logMessage( "Rolled back old tx " + context + ", " + tx.transaction + ", " + (now-time) );
+                    return -1;
+                }
+                catch ( IllegalStateException e )
+                {
+                    // Expected for waiting transactions
+                }
+                catch ( Throwable t )
+                {
+                    // Not really expected
+                    msgLog.logMessage( "Unable to roll back old tx " + context + ", " + tx.transaction + ", " + (now-time) );
+                }
+                return now + threshold;
+            }
+        };
+    }
+
     public GraphDatabaseAPI getGraphDb()
     {
         return this.graphDb;
@@ -150,18 +199,26 @@ public class MasterImpl implements Master
         }
     }
 
-    private Response<LockResult> acquireLock( RequestContext context,
-            LockGrabber lockGrabber, Object... entities )
+    /**
+     * Grabs locks on all the given entities, or none of them, see
+     * {@link SlaveLocks#acquire(RequestContext, Transaction, LockType, Object...)}.
+     * The entities are expected to be in a consistent order (see
+     * {@link #nodesById(long[])}) so that two slaves locking overlapping
+     * batches won't deadlock each other more often than needed. The transaction
+     * isn't resumed for this, the locks are grabbed for it directly.
+     */
+    private Response<LockResult> acquireLock( RequestContext context, LockType type, Object... entities )
     {
-        Transaction otherTx = suspendOtherAndResumeThis( context, false );
+        MasterTransaction tx = transactions.get( context );
+        if ( tx == null )
+        {
+            throw noSuchTransaction( context );
+        }
+        // Don't let it be rolled back as old while it's waiting for the locks
+        tx.resetTime();
         try
         {
-            LockManager lockManager = graphDb.getLockManager();
-            LockReleaser lockReleaser = graphDb.getLockReleaser();
-            for ( Object entity : entities )
-            {
-                lockGrabber.grab( lockManager, lockReleaser, entity );
-            }
+            slaveLocks.acquire( context, tx.transaction, type, entities );
             return packResponse( context, new LockResult( LockStatus.OK_LOCKED ) );
         }
         catch ( DeadlockDetectedException e )
@@ -174,18 +231,41 @@ public class MasterImpl implements Master
         }
         finally
         {
-            suspendThisAndResumeOther( otherTx, context );
+            if ( tx.finishAsap() )
+            {   // Same as in suspendThisAndResumeOther
+                finishThisAndResumeOther( suspendOtherAndResumeThis( context, false ), context, false );
+            }
+            else
+            {
+                tx.updateTime();
+            }
         }
     }
 
+    /**
+     * Brings the slave all the way up to date. Anything it's told it may do,
+     * like writing to what it just got a lock on, must be done on top of the
+     * latest committed state.
+     */
     private <T> Response<T> packResponse( RequestContext context, T response )
     {
         return packResponse( context, response, ServerUtil.ALL );
     }
 
+    /**
+     * Brings the slave at most {@link #maxTransactionsPerResponse} transactions
+     * closer to being up to date, for when it only asks for updates and can
+     * ask again for the rest.
+     */
+    private <T> Response<T> packCappedResponse( RequestContext context, T response )
+    {
+        return ServerUtil.packResponse( graphDb, context, response, ServerUtil.ALL, transactionCache,
+                maxTransactionsPerResponse );
+    }
+
     private <T> Response<T> packResponse( RequestContext context, T response, Predicate<Long> filter )
     {
-        return ServerUtil.packResponse( graphDb, context, response, filter );
+        return ServerUtil.packResponse( graphDb, context, response, filter, transactionCache );
     }
 
     private Transaction getTx( RequestContext txId )
@@ -210,6 +290,7 @@ public class MasterImpl implements Master
             txManager.begin();
             Transaction tx = txManager.getTransaction();
             transactions.put( txId, new MasterTransaction( tx ) );
+            transactionTimeouts.schedule( txId, System.currentTimeMillis() + unfinishedTransactionThreshold*1000L );
             return tx;
         }
         catch ( NotSupportedException e )
@@ -247,10 +328,7 @@ public class MasterImpl implements Master
                     }
                     else
                     {
-                        throw new IllegalStateException( "Transaction " + txId + " has either timed out on the" +
-                        		" master or was not started on this master. There may have been a master switch" +
-                        		" between the time this transaction started and up to now. This transaction" +
-                        		" cannot continue since the state from the previous master isn't transferred." );
+                        throw noSuchTransaction( txId );
                     }
                 }
                 else
@@ -273,6 +351,14 @@ public class MasterImpl implements Master
         }
     }
 
+    private static IllegalStateException noSuchTransaction( RequestContext txId )
+    {
+        return new IllegalStateException( "Transaction " + txId + " has either timed out on the" +
+                " master or was not started on this master. There may have been a master switch" +
+                " between the time this transaction started and up to now. This transaction" +
+                " cannot continue since the state from the previous master isn't transferred." );
+    }
+
     void suspendThisAndResumeOther( Transaction otherTx, RequestContext txId )
     {
         try
@@ -308,8 +394,15 @@ public class MasterImpl implements Master
         try
         {
             TransactionManager txManager = graphDb.getTxManager();
-            if ( success ) txManager.commit();
-            else txManager.rollback();
+            try
+            {
+                if ( success ) txManager.commit();
+                else txManager.rollback();
+            }
+            finally
+            {
+                slaveLocks.release( txId );
+            }
             transactions.remove( txId );
             if ( otherTx != null )
             {
@@ -324,34 +417,34 @@ public class MasterImpl implements Master
 
     public Response<LockResult> acquireNodeReadLock( RequestContext context, long... nodes )
     {
-        return acquireLock( context, READ_LOCK_GRABBER, nodesById( nodes ) );
+        return acquireLock( context, LockType.READ, nodesById( nodes ) );
     }
 
     public Response<LockResult> acquireNodeWriteLock( RequestContext context, long... nodes )
     {
-        return acquireLock( context, WRITE_LOCK_GRABBER, nodesById( nodes ) );
+        return acquireLock( context, LockType.WRITE, nodesById( nodes ) );
     }
 
     public Response<LockResult> acquireRelationshipReadLock( RequestContext context,
             long... relationships )
     {
-        return acquireLock( context, READ_LOCK_GRABBER, relationshipsById( relationships ) );
+        return acquireLock( context, LockType.READ, relationshipsById( relationships ) );
     }
 
     public Response<LockResult> acquireRelationshipWriteLock( RequestContext context,
             long... relationships )
     {
-        return acquireLock( context, WRITE_LOCK_GRABBER, relationshipsById( relationships ) );
+        return acquireLock( context, LockType.WRITE, relationshipsById( relationships ) );
     }
 
     public Response<LockResult> acquireGraphReadLock( RequestContext context )
     {
-        return acquireLock( context, READ_LOCK_GRABBER, graphProperties() );
+        return acquireLock( context, LockType.READ, graphProperties() );
     }
 
     public Response<LockResult> acquireGraphWriteLock( RequestContext context )
     {
-        return acquireLock( context, WRITE_LOCK_GRABBER, graphProperties() );
+        return acquireLock( context, LockType.WRITE, graphProperties() );
     }
 
     private PropertyContainer graphProperties()
@@ -359,8 +452,26 @@ public class MasterImpl implements Master
         return graphDb.getNodeManager().getGraphProperties();
     }
 
+    /**
+     * Returns the ids in ascending order and without duplicates, so that batches
+     * of locks are always grabbed in the same order.
+     */
+    private static long[] sortedUniqueIds( long[] ids )
+    {
+        if ( ids.length < 2 ) return ids;
+        long[] sorted = ids.clone();
+        Arrays.sort( sorted );
+        int count = 1;
+        for ( int i = 1; i < sorted.length; i++ )
+        {
+            if ( sorted[i] != sorted[count-1] ) sorted[count++] = sorted[i];
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf( sorted, count );
+    }
+
     private Node[] nodesById( long[] ids )
     {
+        ids = sortedUniqueIds( ids );
         Node[] result = new Node[ids.length];
         for ( int i = 0; i < ids.length; i++ )
         {
@@ -371,6 +482,7 @@ public class MasterImpl implements Master
 
     private Relationship[] relationshipsById( long[] ids )
     {
+        ids = sortedUniqueIds( ids );
         Relationship[] result = new Relationship[ids.length];
         for ( int i = 0; i < ids.length; i++ )
         {
@@ -440,7 +552,7 @@ public class MasterImpl implements Master
 
     public Response<Void> pullUpdates( RequestContext context )
     {
-        return packResponse( context, null );
+        return packCappedResponse( context, null );
     }
 
     public Response<Pair<Integer,Long>> getMasterIdForCommittedTx( long txId, StoreId storeId )
@@ -466,52 +578,50 @@ public class MasterImpl implements Master
     }
 
     @Override
-    public Response<Void> copyTransactions( RequestContext context,
-            String dsName, long startTxId, long endTxId )
+    public Response<StoreFileListing> listStoreFiles( RequestContext context )
     {
-        return ServerUtil.getTransactions( graphDb, dsName, startTxId, endTxId );
+        return ServerUtil.packResponseWithoutTransactionStream( graphDb, context, storeCopySessions.start() );
     }
 
     @Override
-    public void shutdown()
+    public Response<Void> copyStoreFile( RequestContext context, int sessionId, String path, long position,
+            long length, FileRangeWriter writer )
     {
-        unfinishedTransactionsExecutor.shutdown();
+        storeCopySessions.copy( sessionId, path, position, length, writer );
+        return ServerUtil.packResponseWithoutTransactionStream( graphDb, context, null );
     }
 
-    private static interface LockGrabber
+    @Override
+    public Response<Void> finishStoreCopy( RequestContext context, int sessionId )
     {
-        void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity );
+        return packResponse( storeCopySessions.finish( sessionId ), null );
     }
 
-    private static LockGrabber READ_LOCK_GRABBER = new LockGrabber()
+    @Override
+    public Response<Void> copyTransactions( RequestContext context,
+            String dsName, long startTxId, long endTxId )
     {
-        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity )
-        {
-            lockManager.getReadLock( entity );
-            lockReleaser.addLockToTransaction( entity, LockType.READ );
-        }
-    };
+        return ServerUtil.getTransactions( graphDb, dsName, startTxId, endTxId );
+    }
 
-    private static LockGrabber WRITE_LOCK_GRABBER = new LockGrabber()
+    @Override
+    public void shutdown()
     {
-        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity )
-        {
-            lockManager.getWriteLock( entity );
-            lockReleaser.addLockToTransaction( entity, LockType.WRITE );
-        }
-    };
+        unfinishedTransactionsExecutor.shutdown();
+        storeCopySessions.close();
+    }
 
     @Override
     public Response<LockResult> acquireIndexReadLock( RequestContext context, String index, String key )
     {
-        return acquireLock( context, READ_LOCK_GRABBER, new NodeManager.IndexLock( index, key ) );
+        return acquireLock( context, LockType.READ, new NodeManager.IndexLock( index, key ) );
     }
 
     @Override
     public Response<LockResult> acquireIndexWriteLock( RequestContext context, String index,
             String key )
     {
-        return acquireLock( context, WRITE_LOCK_GRABBER, new NodeManager.IndexLock( index, key ) );
+        return acquireLock( context, LockType.WRITE, new NodeManager.IndexLock( index, key ) );
     }
     
     @Override
@@ -19,6 +19,14 @@
  */
 package org.neo4j.kernel.ha;
 
+import static org.neo4j.kernel.ha.HaRequestType18.COPY_STORE;
+import static org.neo4j.kernel.ha.HaRequestType18.COPY_STORE_FILE;
+import static org.neo4j.kernel.ha.HaRequestType18.COPY_TRANSACTIONS;
+import static org.neo4j.kernel.ha.HaRequestType18.FINISH_STORE_COPY;
+import static org.neo4j.kernel.ha.HaRequestType18.GET_MASTER_ID_FOR_TX;
+import static org.neo4j.kernel.ha.HaRequestType18.LIST_STORE_FILES;
+import static org.neo4j.kernel.ha.HaRequestType18.PULL_UPDATES;
+
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -27,8 +35,12 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import org.jboss.netty.channel.Channel;
+import org.neo4j.com.ExecutionMode;
+import org.neo4j.com.LaneRequestScheduler;
+import org.neo4j.com.LaneRequestScheduler.Lane;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.RequestScheduler;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Server;
 import org.neo4j.com.TxChecksumVerifier;
@@ -37,16 +49,45 @@ import org.neo4j.kernel.impl.util.StringLogger;
 /**
  * Sits on the master side, receiving serialized requests from slaves (via
  * {@link MasterClient}). Delegates actual work to {@link MasterImpl}.
+ * <p>
+ * Pulls and store copies run in bounded lanes of their own, see
+ * {@link #requestScheduler(int, ExecutionMode)}, so that slaves catching up or joining the
+ * cluster don't slow down the locking and committing of the others. Only those lanes
+ * run on threads of the configured {@link ExecutionMode}.
  */
 public class MasterServer extends Server<Master, Void>
 {
     public static final int FRAME_LENGTH = Protocol.DEFAULT_FRAME_LENGTH;
+    public static final int PULL_THREADS = 16;
+    public static final int STORE_COPY_THREADS = 8;
 
     public MasterServer( Master requestTarget, final int port, StringLogger logger, int maxConcurrentTransactions,
             int oldChannelThreshold, TxChecksumVerifier txVerifier )
+    {
+        this( requestTarget, port, logger, maxConcurrentTransactions, oldChannelThreshold, txVerifier,
+                ExecutionMode.PLATFORM );
+    }
+
+    public MasterServer( Master requestTarget, final int port, StringLogger logger, int maxConcurrentTransactions,
+            int oldChannelThreshold, TxChecksumVerifier txVerifier, ExecutionMode executionMode )
     {
         super( requestTarget, port, logger, FRAME_LENGTH, MasterClient18.PROTOCOL_VERSION, maxConcurrentTransactions,
-                oldChannelThreshold, txVerifier );
+                oldChannelThreshold, txVerifier, requestScheduler( port, executionMode ) );
+    }
+
+    private static RequestScheduler requestScheduler( int port, ExecutionMode mode )
+    {
+        String name = MasterServer.class.getSimpleName() + ":" + port;
+        // Lock requests can wait for other requests of the same transactions, f.ex. a
+        // lock request for a lock the waiting ones are waiting for, so they, and with
+        // them all other transactional requests, must be able to get a thread at all times.
+        // They wait for locks and transactions inside synchronized, which would pin virtual
+        // threads to their carriers, so they always run on platform threads.
+        return new LaneRequestScheduler( Lane.unbounded( name, Thread.NORM_PRIORITY, ExecutionMode.PLATFORM ) )
+                .lane( Lane.bounded( name + " pull", PULL_THREADS, Thread.NORM_PRIORITY, mode ),
+                        PULL_UPDATES, GET_MASTER_ID_FOR_TX )
+                .lane( Lane.bounded( name + " store copy", STORE_COPY_THREADS, Thread.MIN_PRIORITY, mode ),
+                        COPY_STORE, COPY_TRANSACTIONS, LIST_STORE_FILES, COPY_STORE_FILE, FINISH_STORE_COPY );
     }
 
     @Override
@@ -78,13 +119,9 @@ public class MasterServer extends Server<Master, Void>
     {
         // Which slaves are connected a.t.m?
         Set<Integer> machineIds = new HashSet<Integer>();
-        Map<Channel, RequestContext> channels = getConnectedSlaveChannels();
-        synchronized ( channels )
+        for ( RequestContext context : getConnectedSlaveChannels().values() )
         {
-            for ( RequestContext context : channels.values() )
-            {
-                machineIds.add( context.machineId() );
-            }
+            machineIds.add( context.machineId() );
         }
 
         // Insert missing slaves into the map so that all connected slave
@@ -23,15 +23,25 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.neo4j.com.ExecutionMode;
 import org.neo4j.com.Response;
-import org.neo4j.helpers.NamedThreadFactory;
+import org.neo4j.com.ServerUtil;
+import org.neo4j.com.TransactionCache;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.helpers.Pair;
 import org.neo4j.helpers.Predicate;
 import org.neo4j.helpers.collection.FilteringIterator;
 import org.neo4j.kernel.impl.transaction.xaframework.TxIdGenerator;
@@ -40,19 +50,45 @@ import org.neo4j.kernel.impl.util.StringLogger;
 
 public class MasterTxIdGenerator implements TxIdGenerator
 {
+    // More than this and it's better to have the slave pull them, in one go
+    static final int MAX_PUSHED_TRANSACTIONS = 100;
+
     private final Broker broker;
     private final int desiredReplicationFactor;
     private final SlavePriority replicationStrategy;
     private ExecutorService slaveCommitters;
     private final StringLogger log;
+    private final boolean pushTransactions;
+    private final TransactionCache transactionCache;
+    private final ExecutionMode executionMode;
+    // Keyed by slave server id and data source name
+    private final ConcurrentMap<Pair<Integer, String>, SlavePusher> pushers =
+            new ConcurrentHashMap<Pair<Integer, String>, SlavePusher>();
 
     public MasterTxIdGenerator( Broker broker, int desiredReplicationFactor,
             SlavePriority replicationStrategy, StringLogger log )
+    {
+        this( broker, desiredReplicationFactor, replicationStrategy, log, false, null, ExecutionMode.PLATFORM );
+    }
+
+    /**
+     * @param pushTransactions whether to send the committed transactions to the
+     * slaves, instead of asking them to pull the transactions from the master.
+     * @param transactionCache where to keep transactions that are about to be
+     * replicated, so that they're read from the log only once, or {@code null}.
+     * @param executionMode what kind of threads the slave committers run on.
+     */
+    public MasterTxIdGenerator( Broker broker, int desiredReplicationFactor,
+            SlavePriority replicationStrategy, StringLogger log, boolean pushTransactions,
+            TransactionCache transactionCache, ExecutionMode executionMode )
     {
         this.broker = broker;
         this.desiredReplicationFactor = desiredReplicationFactor;
         this.replicationStrategy = replicationStrategy;
         this.log = log;
+        this.pushTransactions = pushTransactions;
+        this.transactionCache = transactionCache;
+        this.executionMode = executionMode;
     }
     
     public long generate( final XaDataSource dataSource, final int identifier )
@@ -72,9 +108,15 @@ public class MasterTxIdGenerator implements TxIdGenerator
         Collection<Future<Void>> committers = new HashSet<Future<Void>>();
         try
         {
+            if ( transactionCache != null )
+                // Off the commit path, the first one to read it from the log caches it anyway
+                slaveCommitters.execute( transactionCacher( dataSource, txId ) );
+
             // Commit at the configured amount of slaves in parallel.
             int successfulReplications = 0;
-            Iterator<Slave> slaves = filter( replicationStrategy.prioritize( broker.getSlaves() ), externalAuthorServerId );
+            Slave[] currentSlaves = broker.getSlaves();
+            forgetPushersOfGoneSlaves( currentSlaves );
+            Iterator<Slave> slaves = filter( replicationStrategy.prioritize( currentSlaves ), externalAuthorServerId );
             CompletionNotifier notifier = new CompletionNotifier();
             
             // Start as many initial committers as needed
@@ -135,6 +177,38 @@ public class MasterTxIdGenerator implements TxIdGenerator
         }
     }
 
+    private Runnable transactionCacher( final XaDataSource dataSource, final long txId )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if ( transactionCache.get( dataSource.getName(), txId ) != null )
+                    return;
+                try
+                {
+                    // Extracting it puts it in the cache
+                    TransactionStream transactions = ServerUtil.getTransactionStream( dataSource, txId, txId,
+                            transactionCache );
+                    try
+                    {
+                        while ( transactions.hasNext() )
+                            transactions.next().third().extract();
+                    }
+                    finally
+                    {
+                        transactions.close();
+                    }
+                }
+                catch ( RuntimeException e )
+                {   // It'll be read from the log when needed then
+                    log.logMessage( "Couldn't cache transaction " + txId + " for " + dataSource.getName(), e );
+                }
+            }
+        };
+    }
+
     private Iterator<Slave> filter( Iterator<Slave> slaves, final Integer externalAuthorServerId )
     {
         return externalAuthorServerId == null ? slaves : new FilteringIterator<Slave>( slaves, new Predicate<Slave>()
@@ -171,36 +245,56 @@ public class MasterTxIdGenerator implements TxIdGenerator
     /**
      * A version of wait/notify which can handle that a notify comes before the
      * call to wait, in which case the call to wait will return immediately.
+     * Uses a {@link Condition} rather than the monitor so that a committer
+     * waiting on a virtual thread doesn't pin its carrier thread.
      * 
      * @author Mattias Persson
      */
     private static class CompletionNotifier
     {
+        private final Lock lock = new ReentrantLock();
+        private final Condition completion = lock.newCondition();
         private boolean notified;
         
-        synchronized void completed()
+        void completed()
         {
-            notified = true;
-            notifyAll();
+            lock.lock();
+            try
+            {
+                notified = true;
+                completion.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
         }
         
-        synchronized void waitForAnyCompletion()
+        void waitForAnyCompletion()
         {
-            if ( !notified )
+            lock.lock();
+            try
             {
-                notified = false;
-                try
+                if ( !notified )
                 {
-                    wait( 2000 /*wait timeout just for safety*/ );
-                }
-                catch ( InterruptedException e )
-                {
-                    Thread.interrupted();
-                    // Hmm, ok we got interrupted. No biggy I'd guess
+                    notified = false;
+                    try
+                    {
+                        completion.await( 2000 /*wait timeout just for safety*/, TimeUnit.MILLISECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.interrupted();
+                        // Hmm, ok we got interrupted. No biggy I'd guess
+                    }
                 }
+                else
+                    notified = false;
+            }
+            finally
+            {
+                lock.unlock();
             }
-            else
-                notified = false;
         }
     }
 
@@ -227,9 +321,220 @@ public class MasterTxIdGenerator implements TxIdGenerator
 
     private void commitAtSlave( final XaDataSource dataSource, final int identifier, Slave slave, final long txId )
     {
-        // Go for plain ping-the-slave-to-pull-updates
-        Response<Void> response = slave.pullUpdates( dataSource.getName(), txId );
-        response.close();
+        // Shared with other committers of the same data source that replicate
+        // to that slave at the same time.
+        pusherFor( slave, dataSource.getName() ).push( slave, dataSource, txId );
+    }
+
+    private SlavePusher pusherFor( Slave slave, String resource )
+    {
+        Pair<Integer, String> key = Pair.of( slave.getServerId(), resource );
+        SlavePusher pusher = pushers.get( key );
+        if ( pusher == null )
+        {
+            SlavePusher newPusher = new SlavePusher();
+            pusher = pushers.putIfAbsent( key, newPusher );
+            if ( pusher == null )
+                pusher = newPusher;
+        }
+        return pusher;
+    }
+
+    /**
+     * Drops the pushers of slaves which have left the cluster, and what they
+     * know about them. A slave coming back gets a new one, which starts over
+     * with a ping.
+     */
+    private void forgetPushersOfGoneSlaves( Slave[] currentSlaves )
+    {
+        if ( pushers.isEmpty() )
+            return;
+        Set<Integer> serverIds = new HashSet<Integer>();
+        for ( Slave slave : currentSlaves )
+            serverIds.add( slave.getServerId() );
+        for ( Iterator<Pair<Integer, String>> keys = pushers.keySet().iterator(); keys.hasNext(); )
+        {
+            if ( !serverIds.contains( keys.next().first() ) )
+                keys.remove();
+        }
+    }
+
+    int getPusherCount()
+    {
+        return pushers.size();
+    }
+
+    /**
+     * @return the number of committers currently waiting for a push to
+     * a slave to complete.
+     */
+    int getWaitingCommitterCount()
+    {
+        int count = 0;
+        for ( SlavePusher pusher : pushers.values() )
+            count += pusher.waitingCommitters();
+        return count;
+    }
+
+    /**
+     * Group commit of the replication to one slave for one data source.
+     * Committers which arrive while a push to the slave is in flight join
+     * the next push, which asks the slave to pull updates up to the highest
+     * txId among them, so that a single round trip replicates all of them.
+     * Each committer still returns only when a push covering its own txId
+     * has completed successfully, and fails if that push failed.
+     * <p>
+     * If pushing transactions, the transactions since the last successful push
+     * are sent along, otherwise the slave is pinged to pull them from the master.
+     * The first push to a slave, or one that would send too many transactions,
+     * is always a ping, since the master doesn't know where the slave is at.
+     */
+    private class SlavePusher
+    {
+        private final Lock lock = new ReentrantLock();
+        private final Condition pushDone = lock.newCondition();
+        private long pushedTxId = -1; // Guarded by lock
+        private int waiting; // Guarded by lock
+        private Push inFlight;
+        private Push next;
+
+        void push( Slave slave, XaDataSource dataSource, long txId )
+        {
+            Push push;
+            long fromTxId = 0;
+            lock.lock();
+            try
+            {
+                if ( pushedTxId >= txId )
+                    return;
+                if ( inFlight != null && inFlight.txId >= txId )
+                    push = inFlight;
+                else
+                {
+                    if ( next == null )
+                        next = new Push();
+                    next.txId = Math.max( next.txId, txId );
+                    push = next;
+                }
+
+                while ( !push.done )
+                {
+                    if ( push == next && inFlight == null )
+                    {   // Nothing is being pushed, so push for everyone that joined this one
+                        inFlight = next;
+                        next = null;
+                        fromTxId = pushedTxId + 1;
+                        break;
+                    }
+                    waitForPush();
+                }
+                if ( push.done )
+                {
+                    if ( push.failure != null )
+                        throw new RuntimeException( "Couldn't push transactions up to " + push.txId +
+                                " to " + slave, push.failure );
+                    return;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            Throwable failure = null;
+            try
+            {
+                Response<Void> response = shouldPushTransactions( dataSource, fromTxId, push.txId ) ?
+                        sendTransactions( slave, dataSource, fromTxId, push.txId ) :
+                        slave.pullUpdates( dataSource.getName(), push.txId );
+                response.close();
+            }
+            catch ( RuntimeException e )
+            {
+                failure = e;
+                throw e;
+            }
+            catch ( Error e )
+            {
+                failure = e;
+                throw e;
+            }
+            finally
+            {
+                lock.lock();
+                try
+                {
+                    push.done = true;
+                    push.failure = failure;
+                    if ( failure == null )
+                        pushedTxId = Math.max( pushedTxId, push.txId );
+                    inFlight = null;
+                    pushDone.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private boolean shouldPushTransactions( XaDataSource dataSource, long fromTxId, long toTxId )
+        {
+            return pushTransactions && fromTxId > 0 && toTxId - fromTxId < MAX_PUSHED_TRANSACTIONS &&
+                    dataSource.getLastCommittedTxId() >= toTxId;
+        }
+
+        private Response<Void> sendTransactions( Slave slave, XaDataSource dataSource, long fromTxId, long toTxId )
+        {
+            TransactionStream transactions = ServerUtil.getTransactionStream( dataSource, fromTxId, toTxId,
+                    transactionCache );
+            try
+            {
+                return slave.pushTransactions( dataSource.getName(), transactions );
+            }
+            finally
+            {
+                transactions.close();
+            }
+        }
+
+        private void waitForPush()
+        {
+            waiting++;
+            try
+            {
+                pushDone.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.interrupted();
+                // Committers aren't interrupted, see committed(), so just keep waiting
+            }
+            finally
+            {
+                waiting--;
+            }
+        }
+
+        int waitingCommitters()
+        {
+            lock.lock();
+            try
+            {
+                return waiting;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Push
+    {
+        private long txId;
+        private boolean done;
+        private Throwable failure;
     }
 
     public int getCurrentMasterId()
@@ -251,13 +556,14 @@ public class MasterTxIdGenerator implements TxIdGenerator
     @Override
     public void start() throws Throwable
     {
-        this.slaveCommitters = Executors.newCachedThreadPool( new NamedThreadFactory( "slave-committer" ) );
+        this.slaveCommitters = executionMode.newCachedThreadPool( "slave-committer", Thread.NORM_PRIORITY );
     }
 
     @Override
     public void stop() throws Throwable
     {
         this.slaveCommitters.shutdown();
+        this.pushers.clear();
     }
 
     @Override
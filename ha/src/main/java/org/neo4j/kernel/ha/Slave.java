@@ -20,10 +20,19 @@
 package org.neo4j.kernel.ha;
 
 import org.neo4j.com.Response;
+import org.neo4j.com.TransactionStream;
 
 public interface Slave
 {
     Response<Void> pullUpdates( String resource, long upToAndIncludingTxId );
+
+    /**
+     * Hands committed transactions of {@code resource} straight to the slave,
+     * instead of having it pull them from the master. Transactions the slave
+     * already has are skipped, and if there's a gap between what it has and
+     * the first transaction in the stream it pulls updates from the master instead.
+     */
+    Response<Void> pushTransactions( String resource, TransactionStream transactions );
     
     int getServerId();
 }
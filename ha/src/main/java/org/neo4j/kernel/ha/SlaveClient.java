@@ -22,7 +22,9 @@ package org.neo4j.kernel.ha;
 import static java.lang.Integer.parseInt;
 import static org.neo4j.com.Protocol.VOID_SERIALIZER;
 import static org.neo4j.com.Protocol.readString;
+import static org.neo4j.com.Protocol.readTransactionStreams;
 import static org.neo4j.com.Protocol.writeString;
+import static org.neo4j.com.Protocol.writeTransactionStreams;
 import static org.neo4j.kernel.configuration.ConfigurationDefaults.getDefault;
 import static org.neo4j.kernel.ha.HaSettings.read_timeout;
 
@@ -38,6 +40,7 @@ import org.neo4j.com.RequestType;
 import org.neo4j.com.Response;
 import org.neo4j.com.Serializer;
 import org.neo4j.com.TargetCaller;
+import org.neo4j.com.TransactionStream;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.util.StringLogger;
 
@@ -66,6 +69,20 @@ public class SlaveClient extends Client<Slave> implements Slave
         }, Protocol.VOID_DESERIALIZER );
     }
 
+    @Override
+    public Response<Void> pushTransactions( final String resource, final TransactionStream transactions )
+    {
+        return sendRequest( SlaveRequestType.PUSH_TRANSACTIONS, RequestContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                writeString( buffer, resource );
+                writeTransactionStreams( transactions, buffer );
+            }
+        }, Protocol.VOID_DESERIALIZER );
+    }
+
     static enum SlaveRequestType implements RequestType<Slave>
     {
         PULL_UPDATES( new TargetCaller<Slave, Void>()
@@ -76,6 +93,15 @@ public class SlaveClient extends Client<Slave> implements Slave
             {
                 return master.pullUpdates( readString( input ), input.readLong() );
             }
+        }, VOID_SERIALIZER ),
+        PUSH_TRANSACTIONS( new TargetCaller<Slave, Void>()
+        {
+            @Override
+            public Response<Void> call( Slave master, RequestContext context, ChannelBuffer input,
+                    ChannelBuffer target )
+            {
+                return master.pushTransactions( readString( input ), readTransactionStreams( input ) );
+            }
         }, VOID_SERIALIZER );
         
         private final TargetCaller caller;
@@ -101,7 +101,8 @@ public class SlaveGraphDatabase
     @Override
     protected IdGeneratorFactory createIdGeneratorFactory()
     {
-        return slaveIdGeneratorFactory = new SlaveIdGenerator.SlaveIdGeneratorFactory( broker, databaseOperations );
+        return slaveIdGeneratorFactory = new SlaveIdGenerator.SlaveIdGeneratorFactory( broker, databaseOperations,
+                msgLog );
     }
 
     @Override
@@ -115,6 +116,13 @@ public class SlaveGraphDatabase
     {
         slaveIdGeneratorFactory.forgetIdAllocationsFromMaster();
     }
+
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        if ( slaveIdGeneratorFactory != null ) slaveIdGeneratorFactory.shutdown();
+    }
     
     @Override
     protected RelationshipTypeCreator createRelationshipTypeCreator()
@@ -22,10 +22,18 @@ package org.neo4j.kernel.ha;
 
 import java.io.File;
 import java.util.EnumMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.neo4j.com.ComException;
 import org.neo4j.com.Response;
+import org.neo4j.helpers.NamedThreadFactory;
 import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.DefaultIdGeneratorFactory;
 import org.neo4j.kernel.IdGeneratorFactory;
@@ -34,23 +42,38 @@ import org.neo4j.kernel.ha.zookeeper.Machine;
 import org.neo4j.kernel.impl.nioneo.store.FileSystemAbstraction;
 import org.neo4j.kernel.impl.nioneo.store.IdGenerator;
 import org.neo4j.kernel.impl.nioneo.store.IdRange;
+import org.neo4j.kernel.impl.util.StringLogger;
 
 public class SlaveIdGenerator implements IdGenerator
 {
     private static final long VALUE_REPRESENTING_NULL = -1;
+    // Ask for more ids at the latest when this fraction of a range is left
+    private static final int LOW_WATER_MARK_FRACTION = 4;
+    // Never keep more than this many ranges from the master ahead, since
+    // they're all thrown away when the master changes
+    private static final int MAX_RANGES_AHEAD = 2;
+    private static final int PREFETCHER_KEEP_ALIVE_SECONDS = 10;
 
     public static class SlaveIdGeneratorFactory implements IdGeneratorFactory
     {
         private final Broker broker;
         private final SlaveDatabaseOperations databaseOperations;
+        private final StringLogger msgLog;
         private final Map<IdType, SlaveIdGenerator> generators =
                 new EnumMap<IdType, SlaveIdGenerator>( IdType.class );
         private final IdGeneratorFactory localFactory = new DefaultIdGeneratorFactory();
+        // Shared by the generators, which each have at most one grab in flight
+        private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor( IdType.values().length,
+                IdType.values().length, PREFETCHER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory( "Slave id prefetcher" ) );
 
-        public SlaveIdGeneratorFactory( Broker broker, SlaveDatabaseOperations databaseOperations )
+        public SlaveIdGeneratorFactory( Broker broker, SlaveDatabaseOperations databaseOperations,
+                StringLogger msgLog )
         {
             this.broker = broker;
             this.databaseOperations = databaseOperations;
+            this.msgLog = msgLog;
+            this.prefetcher.allowCoreThreadTimeOut( true );
         }
 
         public IdGenerator open( FileSystemAbstraction fs, String fileName, int grabSize, IdType idType, long highestIdInUse, boolean startup )
@@ -59,7 +82,7 @@ public class SlaveIdGenerator implements IdGenerator
             IdGenerator localIdGenerator = localFactory.open( fs, fileName, grabSize,
                     idType, highestIdInUse, startup );
             SlaveIdGenerator generator = new SlaveIdGenerator( idType, highestIdInUse, broker, databaseOperations,
-                    localIdGenerator );
+                    localIdGenerator, prefetcher, msgLog );
             generators.put( idType, generator );
             return generator;
         }
@@ -81,34 +104,58 @@ public class SlaveIdGenerator implements IdGenerator
                 idGenerator.forgetIdAllocationFromMaster();
             }
         }
+
+        public void shutdown()
+        {
+            prefetcher.shutdown();
+        }
     };
 
     private final Broker broker;
     private final SlaveDatabaseOperations databaseOperations;
     private volatile long highestIdInUse;
     private volatile long defragCount;
-    private volatile IdRangeIterator idQueue = EMPTY_ID_RANGE_ITERATOR;
-    private volatile int allocationMaster;
     private final IdType idType;
     private final IdGenerator localIdGenerator;
+    private final Executor prefetcher;
+    private final StringLogger msgLog;
+
+    // All guarded by this, which is never held while waiting for the master
+    private IdRangeIterator idQueue = EMPTY_ID_RANGE_ITERATOR;
+    private int allocationMaster;
+    private final LinkedList<Pair<IdAllocation, Integer>> prefetched = new LinkedList<Pair<IdAllocation, Integer>>();
+    private long prefetchedIds;
+    private Prefetch prefetch;
+    private long rangeStartTime;
+    private int rangeLength;
+    private double idsPerMilli;
+    private long roundTripMillis;
 
     public SlaveIdGenerator( IdType idType, long highestIdInUse, Broker broker,
-            SlaveDatabaseOperations databaseOperations, IdGenerator localIdGenerator )
+            SlaveDatabaseOperations databaseOperations, IdGenerator localIdGenerator, Executor prefetcher,
+            StringLogger msgLog )
     {
         this.idType = idType;
         this.broker = broker;
         this.databaseOperations = databaseOperations;
         this.localIdGenerator = localIdGenerator;
+        this.prefetcher = prefetcher;
+        this.msgLog = msgLog;
     }
 
-    private void forgetIdAllocationFromMaster()
+    synchronized void forgetIdAllocationFromMaster()
     {
         this.idQueue = EMPTY_ID_RANGE_ITERATOR;
+        this.prefetched.clear();
+        this.prefetchedIds = 0;
+        // Anyone waiting for it will see that it's been forgotten and prefetch anew
+        this.prefetch = null;
     }
 
     @Override
     public void close( boolean shutdown )
     {
+        forgetIdAllocationFromMaster();
         this.localIdGenerator.close( shutdown );
         if ( shutdown ) this.localIdGenerator.delete();
     }
@@ -127,30 +174,38 @@ public class SlaveIdGenerator implements IdGenerator
         return Math.max( this.localIdGenerator.getNumberOfIdsInUse(), highestIdInUse-defragCount );
     }
 
-    public synchronized long nextId()
+    /**
+     * Hands out ids from ranges allocated by the master. The next range is
+     * prefetched in the background when the ids left locally drop below what
+     * is expected to be used during a round trip to the master, so that
+     * callers only wait for the master if they use ids faster than that.
+     */
+    public long nextId()
     {
         try
         {
-            long nextId = nextLocalId();
             Pair<Master, Machine> master = broker.getMaster();
-            if ( nextId == VALUE_REPRESENTING_NULL )
+            int masterId = master.other().getMachineId();
+            for ( ;; )
             {
-                // If we dont have anymore grabbed ids from master, grab a bunch
-                Response<IdAllocation> response = master.first().allocateIds(
-                        idType );
-                IdAllocation allocation = response.response();
-                response.close();
-                allocationMaster = master.other().getMachineId();
-                nextId = storeLocally( allocation );
-            }
-            else
-            {
-                if ( master.other().getMachineId() != allocationMaster )
+                Prefetch waitFor;
+                synchronized ( this )
                 {
-                    throw new ComException( "Master changed" );
+                    long nextId = nextLocalId();
+                    if ( nextId != VALUE_REPRESENTING_NULL )
+                    {
+                        if ( masterId != allocationMaster )
+                        {
+                            throw new ComException( "Master changed" );
+                        }
+                        prefetchIfRunningLow( master.first(), masterId );
+                        return nextId;
+                    }
+                    // If we dont have anymore grabbed ids from master, wait for a bunch
+                    waitFor = prefetchIfRunningLow( master.first(), masterId );
                 }
+                waitFor.await();
             }
-            return nextId;
         }
         catch ( RuntimeException e )
         {
@@ -164,8 +219,10 @@ public class SlaveIdGenerator implements IdGenerator
         throw new UnsupportedOperationException( "Should never be called" );
     }
 
-    private long storeLocally( IdAllocation allocation )
+    private long storeLocally( Pair<IdAllocation, Integer> allocationFromMaster )
     {
+        IdAllocation allocation = allocationFromMaster.first();
+        this.allocationMaster = allocationFromMaster.other();
         this.highestIdInUse = allocation.getHighestIdInUse();
         this.defragCount = allocation.getDefragCount();
         this.idQueue = new IdRangeIterator( allocation.getIdRange() );
@@ -184,7 +241,136 @@ public class SlaveIdGenerator implements IdGenerator
 
     private long nextLocalId()
     {
-        return this.idQueue.next();
+        long nextId = this.idQueue.next();
+        if ( nextId == VALUE_REPRESENTING_NULL && !prefetched.isEmpty() )
+        {
+            long now = System.currentTimeMillis();
+            if ( rangeLength > 0 )
+            {
+                // Smoothed, so that a single burst or pause doesn't swing it all the way
+                double rate = (double) rangeLength / Math.max( 1, now - rangeStartTime );
+                idsPerMilli = idsPerMilli == 0 ? rate : (idsPerMilli + rate) / 2;
+            }
+            Pair<IdAllocation, Integer> allocation = prefetched.removeFirst();
+            rangeLength = size( allocation.first().getIdRange() );
+            rangeStartTime = now;
+            prefetchedIds -= rangeLength;
+            nextId = storeLocally( allocation );
+        }
+        return nextId;
+    }
+
+    /**
+     * Starts grabbing another range from the master, unless one is already on
+     * its way, if the ids left locally would run out before it got here. That
+     * is the number of ids used during a round trip at the rate they've been
+     * used lately, doubled for some slack, so a slave creating things quickly
+     * keeps a couple of ranges ahead while an idle one only has a fraction of
+     * its current one left when it asks for more.
+     *
+     * @return the grab on its way, or {@code null} if there are enough ids left.
+     */
+    private Prefetch prefetchIfRunningLow( Master master, int masterId )
+    {
+        if ( prefetch != null ) return prefetch;
+        long idsLeft = idQueue.remaining() + prefetchedIds;
+        long lowWaterMark = Math.max( rangeLength / LOW_WATER_MARK_FRACTION,
+                (long) (2 * idsPerMilli * roundTripMillis) );
+        if ( idsLeft > Math.min( lowWaterMark, (long) MAX_RANGES_AHEAD * rangeLength ) ) return null;
+
+        // Kept, since the prefetcher may be done with it before execute returns
+        Prefetch grab = prefetch = new Prefetch( master, masterId );
+        prefetcher.execute( grab );
+        return grab;
+    }
+
+    private synchronized void rangePrefetched( Prefetch grab, IdAllocation allocation, long roundTripMillis )
+    {
+        this.roundTripMillis = roundTripMillis;
+        if ( grab != prefetch ) return; // Forgotten while on its way
+        prefetch = null;
+        prefetched.add( Pair.of( allocation, grab.masterId ) );
+        prefetchedIds += size( allocation.getIdRange() );
+        // Keep on prefetching if one range isn't enough to cover the next round trip
+        prefetchIfRunningLow( grab.master, grab.masterId );
+    }
+
+    private synchronized void prefetchFailed( Prefetch grab, RuntimeException e )
+    {
+        msgLog.logMessage( "Couldn't grab " + idType + " ids from master " + grab.masterId, e );
+        if ( grab == prefetch ) prefetch = null;
+    }
+
+    private static int size( IdRange range )
+    {
+        return range.getDefragIds().length + range.getRangeLength();
+    }
+
+    /**
+     * A grab of a range of ids from the master, run by the prefetcher, so
+     * that the thread running low on ids doesn't have to wait for it unless
+     * it runs out completely.
+     */
+    private class Prefetch implements Runnable
+    {
+        private final Master master;
+        private final int masterId;
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private volatile RuntimeException failure;
+
+        Prefetch( Master master, int masterId )
+        {
+            this.master = master;
+            this.masterId = masterId;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                long startTime = System.currentTimeMillis();
+                Response<IdAllocation> response = master.allocateIds( idType );
+                IdAllocation allocation;
+                try
+                {
+                    allocation = response.response();
+                }
+                finally
+                {
+                    response.close();
+                }
+                rangePrefetched( this, allocation, System.currentTimeMillis() - startTime );
+            }
+            catch ( RuntimeException e )
+            {
+                failure = e;
+                prefetchFailed( this, e );
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        void await()
+        {
+            boolean interrupted = false;
+            while ( true )
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch ( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) Thread.currentThread().interrupt();
+            if ( failure != null ) throw failure;
+        }
     }
 
     public void setHighId( long id )
@@ -235,6 +421,30 @@ public class SlaveIdGenerator implements IdGenerator
                 ++position;
             }
         }
+
+        long remaining()
+        {
+            return Math.max( 0, defrag.length + length - position );
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final ThreadFactory namedThreads;
+
+        DaemonThreadFactory( String name )
+        {
+            this.namedThreads = new NamedThreadFactory( name );
+        }
+
+        @Override
+        public Thread newThread( Runnable runnable )
+        {
+            // Nothing to wait for at shutdown, since an unused range is just forgotten
+            Thread thread = namedThreads.newThread( runnable );
+            thread.setDaemon( true );
+            return thread;
+        }
     }
 
     private static IdRangeIterator EMPTY_ID_RANGE_ITERATOR =
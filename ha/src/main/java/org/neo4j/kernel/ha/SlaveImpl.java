@@ -19,10 +19,17 @@
  */
 package org.neo4j.kernel.ha;
 
+import java.io.IOException;
+
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.ServerUtil;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.com.TxExtractor;
+import org.neo4j.helpers.Triplet;
 import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 
 public class SlaveImpl implements Slave
 {
@@ -40,10 +47,91 @@ public class SlaveImpl implements Slave
     @Override
     public Response<Void> pullUpdates( String resource, long upToAndIncludingTxId )
     {
-        // Pull updates from the master
-        dbOperations.receive( broker.getMaster().first().pullUpdates( dbOperations.getSlaveContext( 0 ) ) );
+        // Pull updates from the master, a response may carry only some of the
+        // transactions if we're far behind so keep pulling until we have them all
+        XaDataSource dataSource = graphDb.getXaDataSourceManager().getXaDataSource( resource );
+        long lastAppliedTxId = dataSource.getLastCommittedTxId();
+        while ( lastAppliedTxId < upToAndIncludingTxId )
+        {
+            dbOperations.receive( broker.getMaster().first().pullUpdates( dbOperations.getSlaveContext( 0 ) ) );
+            long applied = dataSource.getLastCommittedTxId();
+            if ( applied == lastAppliedTxId )
+            {   // The master had nothing more for us
+                break;
+            }
+            lastAppliedTxId = applied;
+        }
+        return ServerUtil.packResponseWithoutTransactionStream( graphDb, RequestContext.EMPTY, null );
+    }
+
+    @Override
+    public Response<Void> pushTransactions( String resource, final TransactionStream transactions )
+    {
+        long lastAppliedTxId = graphDb.getXaDataSourceManager().getXaDataSource( resource ).getLastCommittedTxId();
+        Triplet<String, Long, TxExtractor> first = null;
+        while ( transactions.hasNext() )
+        {
+            Triplet<String, Long, TxExtractor> tx = transactions.next();
+            if ( tx.second() > lastAppliedTxId )
+            {
+                first = tx;
+                break;
+            }
+            skip( tx.third() );
+        }
+
+        if ( first != null && first.second() > lastAppliedTxId + 1 )
+        {   // We're missing some in between, get those and the pushed ones from the master
+            long lastPushedTxId = first.second();
+            skip( first.third() );
+            while ( transactions.hasNext() )
+            {
+                Triplet<String, Long, TxExtractor> tx = transactions.next();
+                lastPushedTxId = tx.second();
+                skip( tx.third() );
+            }
+            return pullUpdates( resource, lastPushedTxId );
+        }
+        if ( first != null )
+        {
+            dbOperations.receive( new Response<Void>( null, graphDb.getStoreId(),
+                    prepend( first, transactions ), ResourceReleaser.NO_OP ) );
+        }
         return ServerUtil.packResponseWithoutTransactionStream( graphDb, RequestContext.EMPTY, null );
     }
+
+    private static void skip( TxExtractor tx )
+    {
+        try
+        {
+            // Closing it leaves the stream at the start of the next transaction
+            tx.extract().close();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static TransactionStream prepend( final Triplet<String, Long, TxExtractor> first,
+            final TransactionStream rest )
+    {
+        return new TransactionStream( rest.dataSourceNames() )
+        {
+            private boolean firstReturned;
+
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                if ( !firstReturned )
+                {
+                    firstReturned = true;
+                    return first;
+                }
+                return rest.hasNext() ? rest.next() : null;
+            }
+        };
+    }
     
     @Override
     public int getServerId()
@@ -19,6 +19,12 @@
  */
 package org.neo4j.kernel.ha;
 
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
 
 import org.neo4j.com.RequestContext;
@@ -30,16 +36,22 @@ import org.neo4j.kernel.impl.core.GraphProperties;
 import org.neo4j.kernel.impl.core.NodeManager.IndexLock;
 import org.neo4j.kernel.impl.transaction.IllegalResourceException;
 import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.LockType;
 import org.neo4j.kernel.impl.transaction.RagManager;
 import org.neo4j.kernel.impl.transaction.TxHook;
 import org.neo4j.kernel.impl.transaction.TxManager;
 
+/**
+ * Grabs locks on the master before grabbing them locally. Locks which a
+ * transaction already holds on the master aren't requested again.
+ */
 public class SlaveLockManager extends LockManager
 {
     private final Broker broker;
     private final TxManager tm;
     private final SlaveDatabaseOperations databaseOperations;
     private final TxHook txHook;
+    private final Map<Transaction, MasterLocks> masterLocks = new ConcurrentHashMap<Transaction, MasterLocks>();
 
     public SlaveLockManager( RagManager ragManager, TxManager tm, TxHook txHook, Broker broker,
             SlaveDatabaseOperations databaseOperations )
@@ -60,37 +72,38 @@ public class SlaveLockManager extends LockManager
     public void getReadLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
             IllegalResourceException
     {
-        LockGrabber grabber = null;
-        if ( resource instanceof Node ) grabber = LockGrabber.NODE_READ;
-        else if ( resource instanceof Relationship ) grabber = LockGrabber.RELATIONSHIP_READ;
-        else if ( resource instanceof GraphProperties ) grabber = LockGrabber.GRAPH_READ;
-        else if ( resource instanceof IndexLock ) grabber = LockGrabber.INDEX_READ;
+        getLock( LockType.READ, resource, tx );
+    }
+
+    @Override
+    public void getWriteLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
+            IllegalResourceException
+    {
+        getLock( LockType.WRITE, resource, tx );
+    }
 
+    private void getLock( LockType type, Object resource, Transaction tx )
+    {
         try
         {
-            if ( grabber == null )
-            {
-                super.getReadLock( resource, tx );
-                return;
-            }
-
-            initializeTxIfFirst();
-            LockResult result = null;
-            do
+            LockGrabber grabber = LockGrabber.forResource( resource, type );
+            if ( grabber != null )
             {
-                int eventIdentifier = getLocalTxId();
-                result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
-                        databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
-                switch ( result.getStatus() )
+                // If the lock is held since before a master switch this transaction won't
+                // get far with the new master anyway, so there's no need to ask for the master here.
+                MasterLocks heldLocks = tx != null ? masterLocks.get( tx ) : null;
+                if ( heldLocks == null || !heldLocks.holds( resource, type ) )
                 {
-                case OK_LOCKED:
-                    super.getReadLock( resource, tx );
-                    return;
-                case DEAD_LOCKED:
-                    throw new DeadlockDetectedException( result.getDeadlockMessage() );
+                    Master master = broker.getMaster().first();
+                    heldLocks = masterLocksFor( tx, master );
+                    initializeTxIfFirst();
+                    acquireOnMaster( master, grabber, resource );
+                    if ( heldLocks != null ) heldLocks.add( resource, type );
                 }
             }
-            while ( result.getStatus() == LockStatus.NOT_LOCKED );
+
+            if ( type == LockType.READ ) super.getReadLock( resource, tx );
+            else super.getWriteLock( resource, tx );
         }
         catch ( RuntimeException e )
         {
@@ -99,6 +112,22 @@ public class SlaveLockManager extends LockManager
         }
     }
 
+    private void acquireOnMaster( Master master, LockGrabber grabber, Object resource )
+    {
+        LockResult result = null;
+        do
+        {
+            int eventIdentifier = getLocalTxId();
+            result = databaseOperations.receive( grabber.acquireLock( master,
+                    databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
+            if ( result.getStatus() == LockStatus.DEAD_LOCKED )
+            {
+                throw new DeadlockDetectedException( result.getDeadlockMessage() );
+            }
+        }
+        while ( result.getStatus() == LockStatus.NOT_LOCKED );
+    }
+
     private void initializeTxIfFirst()
     {
         // The main point of initializing transaction (for HA) is in TransactionImpl, so this is
@@ -107,54 +136,85 @@ public class SlaveLockManager extends LockManager
         if ( !txHook.hasAnyLocks( tx ) ) txHook.initializeTransaction( tm.getEventIdentifier() );
     }
 
-    @Override
-    public void getWriteLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
-            IllegalResourceException
+    /**
+     * @return the locks the transaction holds on the master, or {@code null} if
+     * they can't be kept track of, in which case all locks are requested from
+     * the master.
+     */
+    private MasterLocks masterLocksFor( final Transaction tx, Master master )
     {
-        // Code copied from getReadLock. Fix!
-        LockGrabber grabber = null;
-        if ( resource instanceof Node ) grabber = LockGrabber.NODE_WRITE;
-        else if ( resource instanceof Relationship ) grabber = LockGrabber.RELATIONSHIP_WRITE;
-        else if ( resource instanceof GraphProperties ) grabber = LockGrabber.GRAPH_WRITE;
-        else if ( resource instanceof IndexLock ) grabber = LockGrabber.INDEX_WRITE;
-
-        try
+        if ( tx == null ) return null;
+        MasterLocks locks = masterLocks.get( tx );
+        if ( locks == null )
         {
-            if ( grabber == null )
+            locks = new MasterLocks( master );
+            try
             {
-                super.getWriteLock( resource, tx );
-                return;
-            }
+                tx.registerSynchronization( new Synchronization()
+                {
+                    public void beforeCompletion()
+                    {
+                    }
 
-            initializeTxIfFirst();
-            LockResult result = null;
-            do
+                    public void afterCompletion( int status )
+                    {
+                        masterLocks.remove( tx );
+                    }
+                } );
+            }
+            catch ( Exception e )
             {
-                int eventIdentifier = getLocalTxId();
-                result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
-                        databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
-                switch ( result.getStatus() )
-                {
-                case OK_LOCKED:
-                    super.getWriteLock( resource, tx );
-                    return;
-                case DEAD_LOCKED:
-                    throw new DeadlockDetectedException( result.getDeadlockMessage() );
-                }
+                // The transaction is probably about to be rolled back, just don't cache anything
+                return null;
             }
-            while ( result.getStatus() == LockStatus.NOT_LOCKED );
+            masterLocks.put( tx, locks );
         }
-        catch ( RuntimeException e )
+        else if ( locks.master != master )
         {
-            databaseOperations.exceptionHappened( e );
-            throw e;
+            // There has been a master switch, this transaction won't get far with the new master
+            // anyway, but don't pretend that it has any locks there.
+            locks.clear( master );
         }
+        return locks;
     }
 
     // Release lock is as usual, since when the master committs it will release
     // the locks there and then when this slave committs it will release its
     // locks as usual here.
 
+    /**
+     * The locks a transaction holds on the master. Only accessed by the thread
+     * running the transaction.
+     */
+    private static class MasterLocks
+    {
+        private Master master;
+        private final Set<Object> readLocks = new HashSet<Object>();
+        private final Set<Object> writeLocks = new HashSet<Object>();
+
+        MasterLocks( Master master )
+        {
+            this.master = master;
+        }
+
+        boolean holds( Object resource, LockType type )
+        {
+            return writeLocks.contains( resource ) || ( type == LockType.READ && readLocks.contains( resource ) );
+        }
+
+        void add( Object resource, LockType type )
+        {
+            ( type == LockType.READ ? readLocks : writeLocks ).add( resource );
+        }
+
+        void clear( Master newMaster )
+        {
+            master = newMaster;
+            readLocks.clear();
+            writeLocks.clear();
+        }
+    }
+
     private static enum LockGrabber
     {
         NODE_READ
@@ -162,7 +222,7 @@ public class SlaveLockManager extends LockManager
             @Override
             Response<LockResult> acquireLock( Master master, RequestContext context, Object resource )
             {
-                return master.acquireNodeReadLock( context, ((Node)resource).getId() );
+                return master.acquireNodeReadLock( context, ((Node) resource).getId() );
             }
         },
         NODE_WRITE
@@ -170,7 +230,7 @@ public class SlaveLockManager extends LockManager
             @Override
             Response<LockResult> acquireLock( Master master, RequestContext context, Object resource )
             {
-                return master.acquireNodeWriteLock( context, ((Node)resource).getId() );
+                return master.acquireNodeWriteLock( context, ((Node) resource).getId() );
             }
         },
         RELATIONSHIP_READ
@@ -178,7 +238,7 @@ public class SlaveLockManager extends LockManager
             @Override
             Response<LockResult> acquireLock( Master master, RequestContext context, Object resource )
             {
-                return master.acquireRelationshipReadLock( context, ((Relationship)resource).getId() );
+                return master.acquireRelationshipReadLock( context, ((Relationship) resource).getId() );
             }
         },
         RELATIONSHIP_WRITE
@@ -186,7 +246,7 @@ public class SlaveLockManager extends LockManager
             @Override
             Response<LockResult> acquireLock( Master master, RequestContext context, Object resource )
             {
-                return master.acquireRelationshipWriteLock( context, ((Relationship)resource).getId() );
+                return master.acquireRelationshipWriteLock( context, ((Relationship) resource).getId() );
             }
         },
         GRAPH_READ
@@ -225,5 +285,15 @@ public class SlaveLockManager extends LockManager
         };
 
         abstract Response<LockResult> acquireLock( Master master, RequestContext context, Object resource );
+
+        static LockGrabber forResource( Object resource, LockType type )
+        {
+            boolean read = type == LockType.READ;
+            if ( resource instanceof Node ) return read ? NODE_READ : NODE_WRITE;
+            else if ( resource instanceof Relationship ) return read ? RELATIONSHIP_READ : RELATIONSHIP_WRITE;
+            else if ( resource instanceof GraphProperties ) return read ? GRAPH_READ : GRAPH_WRITE;
+            else if ( resource instanceof IndexLock ) return read ? INDEX_READ : INDEX_WRITE;
+            return null;
+        }
     }
 }
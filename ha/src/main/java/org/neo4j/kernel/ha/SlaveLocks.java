@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Transaction;
+
+import org.neo4j.com.RequestContext;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.impl.transaction.IllegalResourceException;
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.LockType;
+
+/**
+ * Locks grabbed on the master on behalf of slave transactions. Locks are
+ * grabbed directly against the {@link LockManager} for the {@link Transaction}
+ * the master keeps for the slave transaction, so that it doesn't have to be
+ * resumed for every lock request. The locks are kept track of per
+ * {@link RequestContext} and released with {@link #release(RequestContext)}
+ * when that transaction has finished.
+ */
+class SlaveLocks
+{
+    private final LockManager lockManager;
+    private final Map<RequestContext, HeldLocks> locks = new ConcurrentHashMap<RequestContext, HeldLocks>();
+
+    SlaveLocks( LockManager lockManager )
+    {
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * Grabs locks on all the given resources, or none of them. If a deadlock is
+     * detected half way through the locks grabbed so far by this call are
+     * released so that the slave isn't left with a partial batch.
+     */
+    void acquire( RequestContext context, Transaction tx, LockType type, Object... resources )
+            throws DeadlockDetectedException, IllegalResourceException
+    {
+        int grabbed = 0;
+        boolean success = false;
+        try
+        {
+            for ( ; grabbed < resources.length; grabbed++ )
+            {
+                grab( type, resources[grabbed], tx );
+            }
+            success = true;
+        }
+        finally
+        {
+            if ( !success )
+            {
+                for ( int i = 0; i < grabbed; i++ )
+                {
+                    release( type, resources[i], tx );
+                }
+            }
+        }
+        heldLocksFor( context, tx ).add( type, resources );
+    }
+
+    /**
+     * Releases all locks grabbed for the transaction of {@code context}.
+     */
+    void release( RequestContext context )
+    {
+        HeldLocks held = locks.remove( context );
+        if ( held != null )
+        {
+            held.releaseAll();
+        }
+    }
+
+    private HeldLocks heldLocksFor( RequestContext context, Transaction tx )
+    {
+        HeldLocks held = locks.get( context );
+        if ( held == null )
+        {
+            // A slave transaction is only ever used from one thread at a time
+            held = new HeldLocks( tx );
+            locks.put( context, held );
+        }
+        return held;
+    }
+
+    private void grab( LockType type, Object resource, Transaction tx )
+    {
+        if ( type == LockType.READ ) lockManager.getReadLock( resource, tx );
+        else lockManager.getWriteLock( resource, tx );
+    }
+
+    private void release( LockType type, Object resource, Transaction tx )
+    {
+        if ( type == LockType.READ ) lockManager.releaseReadLock( resource, tx );
+        else lockManager.releaseWriteLock( resource, tx );
+    }
+
+    private class HeldLocks
+    {
+        private final Transaction tx;
+        private final List<Object> resources = new ArrayList<Object>();
+        private final List<LockType> types = new ArrayList<LockType>();
+
+        HeldLocks( Transaction tx )
+        {
+            this.tx = tx;
+        }
+
+        synchronized void add( LockType type, Object... newResources )
+        {
+            for ( Object resource : newResources )
+            {
+                resources.add( resource );
+                types.add( type );
+            }
+        }
+
+        synchronized void releaseAll()
+        {
+            for ( int i = resources.size() - 1; i >= 0; i-- )
+            {
+                release( types.get( i ), resources.get( i ), tx );
+            }
+            resources.clear();
+            types.clear();
+        }
+    }
+}
@@ -20,6 +20,9 @@
 package org.neo4j.kernel.ha;
 
 import org.jboss.netty.channel.Channel;
+import org.neo4j.com.ExecutionMode;
+import org.neo4j.com.LaneRequestScheduler;
+import org.neo4j.com.LaneRequestScheduler.Lane;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
@@ -33,9 +36,15 @@ public class SlaveServer extends Server<Slave, Void>
     public static final byte APPLICATION_PROTOCOL_VERSION = 1;
     
     public SlaveServer( Slave requestTarget, int port, StringLogger logger )
+    {
+        this( requestTarget, port, logger, ExecutionMode.PLATFORM );
+    }
+
+    public SlaveServer( Slave requestTarget, int port, StringLogger logger, ExecutionMode executionMode )
     {
         super( requestTarget, port, logger, Protocol.DEFAULT_FRAME_LENGTH, APPLICATION_PROTOCOL_VERSION, 1,
-                20, TxChecksumVerifier.ALWAYS_MATCH );
+                20, TxChecksumVerifier.ALWAYS_MATCH, new LaneRequestScheduler( Lane.unbounded(
+                        SlaveServer.class.getSimpleName() + ":" + port, Thread.NORM_PRIORITY, executionMode ) ) );
     }
 
     @Override
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+/**
+ * Caches which master committed a transaction and its checksum, as looked up
+ * by {@link XaDataSource#getMasterForCommittedTx(long)}, which otherwise means
+ * a seek in the logical log. It's looked up for every request a slave makes,
+ * both by the slave building its {@link org.neo4j.com.RequestContext} and by
+ * the master verifying it, and mostly for the same few latest transactions.
+ * <p>
+ * That information never changes for a committed transaction, but it does
+ * for a new store, f.ex. after a branch or a store copy. So the cache is for
+ * one {@link XaDataSource} instance and starts over when asked about another.
+ * When full the oldest half of the transactions are evicted.
+ */
+public class TxChecksumCache
+{
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final int maxSize;
+    private volatile Entries entries = new Entries( null );
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public TxChecksumCache()
+    {
+        this( DEFAULT_MAX_SIZE );
+    }
+
+    public TxChecksumCache( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+    public Pair<Integer, Long> getMasterForCommittedTx( XaDataSource dataSource, long txId ) throws IOException
+    {
+        Entries entries = this.entries;
+        if ( entries.dataSource != dataSource )
+        {
+            entries = startOver( dataSource );
+        }
+
+        Pair<Integer, Long> result = entries.map.get( txId );
+        if ( result != null )
+        {
+            hits.incrementAndGet();
+            return result;
+        }
+
+        misses.incrementAndGet();
+        result = dataSource.getMasterForCommittedTx( txId );
+        entries.put( txId, result );
+        return result;
+    }
+
+    private synchronized Entries startOver( XaDataSource dataSource )
+    {
+        if ( entries.dataSource != dataSource )
+        {
+            entries = new Entries( dataSource );
+        }
+        return entries;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    private class Entries
+    {
+        private final XaDataSource dataSource;
+        private final ConcurrentMap<Long, Pair<Integer, Long>> map = new ConcurrentHashMap<Long, Pair<Integer, Long>>();
+        private volatile long highestTxId;
+
+        Entries( XaDataSource dataSource )
+        {
+            this.dataSource = dataSource;
+        }
+
+        void put( long txId, Pair<Integer, Long> entry )
+        {
+            map.put( txId, entry );
+            if ( txId > highestTxId )
+            {
+                highestTxId = txId;
+            }
+            if ( map.size() > maxSize )
+            {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest()
+        {
+            long threshold = highestTxId - maxSize / 2;
+            for ( Iterator<Long> txIds = map.keySet().iterator(); txIds.hasNext(); )
+            {
+                if ( txIds.next() <= threshold )
+                {
+                    txIds.remove();
+                }
+            }
+        }
+    }
+}
@@ -21,12 +21,14 @@ package org.neo4j.kernel.ha.zookeeper;
 
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -58,9 +60,17 @@ public abstract class AbstractZooKeeperManager
 
     protected static final int STOP_FLUSHING = -6;
 
+    /*
+     * How long the instances last read from zk may be handed out by getCachedMachines()
+     * before being read again, since their txids aren't kept up to date by any watch.
+     */
+    private static final long MAX_MACHINES_SNAPSHOT_AGE = 1000;
+
     private final String servers;
     private final Map<Integer, Machine> haServersCache = new ConcurrentHashMap<Integer, Machine>();
     protected volatile Pair<Master, Machine> cachedMaster = NO_MASTER_MACHINE_PAIR;
+    private final AtomicLong membershipVersion = new AtomicLong();
+    private volatile MachinesSnapshot machinesSnapshot;
 
     protected final StringLogger msgLog;
     private final long sessionTimeout;
@@ -149,6 +159,16 @@ public abstract class AbstractZooKeeperManager
             }
             cachedMaster = NO_MASTER_MACHINE_PAIR;
         }
+        membershipChanged();
+    }
+
+    /**
+     * Called when instances have joined or left the cluster, or the master
+     * has changed. Makes {@link #getCachedMachines(boolean)} read them again.
+     */
+    protected void membershipChanged()
+    {
+        membershipVersion.incrementAndGet();
     }
 
     /**
@@ -269,14 +289,33 @@ public abstract class AbstractZooKeeperManager
 
     protected Map<Integer, ZooKeeperMachine> getAllMachines( boolean wait, WaitMode mode )
     {
+        long version = membershipVersion.get();
         Map<Integer, ZooKeeperMachine> result = null;
         while ( result == null )
         {
             result = getAllMachinesInner( wait, mode );
         }
+        machinesSnapshot = new MachinesSnapshot( version, result );
         return result;
     }
 
+    /**
+     * Returns the instances as last read by {@link #getAllMachines(boolean)} if
+     * the membership hasn't changed since and they were read recently enough,
+     * otherwise reads them again. For when the txids don't have to be the very
+     * latest, f.ex. for monitoring, never for electing a master.
+     */
+    protected Map<Integer, ZooKeeperMachine> getCachedMachines( boolean wait )
+    {
+        MachinesSnapshot snapshot = machinesSnapshot;
+        if ( snapshot != null && snapshot.version == membershipVersion.get()
+             && System.currentTimeMillis() - snapshot.time < MAX_MACHINES_SNAPSHOT_AGE )
+        {
+            return new HashMap<Integer, ZooKeeperMachine>( snapshot.machines );
+        }
+        return getAllMachines( wait );
+    }
+
     protected Map<Integer, ZooKeeperMachine> getAllMachinesInner( boolean wait, WaitMode mode )
     {
         if ( wait )
@@ -404,6 +443,7 @@ OUTER:      do
                 visitedChildren.add( id );
             }
             haServersCache.keySet().retainAll( visitedChildren );
+            membershipChanged();
         }
         catch ( InterruptedException e )
         {
@@ -623,6 +663,19 @@ OUTER:      do
         }
     }
 
+    private static class MachinesSnapshot
+    {
+        private final long version;
+        private final long time = System.currentTimeMillis();
+        private final Map<Integer, ZooKeeperMachine> machines;
+
+        MachinesSnapshot( long version, Map<Integer, ZooKeeperMachine> machines )
+        {
+            this.version = version;
+            this.machines = Collections.unmodifiableMap( new HashMap<Integer, ZooKeeperMachine>( machines ) );
+        }
+    }
+
     protected static final Master NO_MASTER = new Master()
     {
         @Override
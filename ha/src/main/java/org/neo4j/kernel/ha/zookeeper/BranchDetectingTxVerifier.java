@@ -27,12 +27,14 @@ import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.ha.BranchedDataException;
+import org.neo4j.kernel.ha.TxChecksumCache;
 import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 
 class BranchDetectingTxVerifier implements TxChecksumVerifier
 {
     private final GraphDatabaseAPI db;
     private XaDataSource dataSource;
+    private final TxChecksumCache checksums = new TxChecksumCache();
 
     BranchDetectingTxVerifier( GraphDatabaseAPI db /* I'd like to get in StringLogger, XaDataSource instead */ )
     {
@@ -47,7 +49,7 @@ class BranchDetectingTxVerifier implements TxChecksumVerifier
     {
         try
         {
-            Pair<Integer, Long> readChecksum = dataSource().getMasterForCommittedTx( txId );
+            Pair<Integer, Long> readChecksum = checksums.getMasterForCommittedTx( dataSource(), txId );
             boolean match = masterId == readChecksum.first() && checksum == readChecksum.other();
             
             /* MP: This "packing" of a BranchedDataException inside a ComException is just to
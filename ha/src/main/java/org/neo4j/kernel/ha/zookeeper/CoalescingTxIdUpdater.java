@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha.zookeeper;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * Publishes the last committed txid at most once every interval instead of
+ * once per commit, all transactions committed in between go out in a single
+ * write. Committing only schedules a publish, the master lookup and the zk
+ * write happen in the publisher thread. {@link #init()} still writes
+ * synchronously so that an election never reads this instance without its
+ * txid, and {@link #stop()} writes what's still pending, so that whatever
+ * replaces this updater starts out from the latest txid.
+ */
+class CoalescingTxIdUpdater implements TxIdUpdater, Runnable
+{
+    /**
+     * What the txids are published for, and to.
+     */
+    interface Publication
+    {
+        long getLastCommittedTx();
+
+        /**
+         * Publishes the last committed txid as the one to start out from.
+         */
+        void publishFirst();
+
+        void publish( long txId );
+    }
+
+    private final Publication publication;
+    private final ScheduledExecutorService publisher;
+    private final long interval;
+    private final StringLogger msgLog;
+    private final Object publishLock = new Object();
+    private boolean scheduled; // guarded by this
+    private boolean stopped; // guarded by publishLock
+    private long publishedTxId; // guarded by publishLock
+
+    CoalescingTxIdUpdater( Publication publication, ScheduledExecutorService publisher, long interval,
+            StringLogger msgLog )
+    {
+        this.publication = publication;
+        this.publisher = publisher;
+        this.interval = interval;
+        this.msgLog = msgLog;
+    }
+
+    @Override
+    public void init()
+    {
+        synchronized ( publishLock )
+        {
+            publishedTxId = publication.getLastCommittedTx();
+            publication.publishFirst();
+        }
+    }
+
+    @Override
+    public synchronized void updatedTxId( long txId )
+    {
+        if ( scheduled )
+        {
+            return;
+        }
+        try
+        {
+            publisher.schedule( this, interval, TimeUnit.MILLISECONDS );
+            scheduled = true;
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // We're shutting down
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        synchronized ( this )
+        {
+            scheduled = false;
+        }
+        // Read after clearing scheduled, so that a commit after this schedules another publish
+        long txId = publication.getLastCommittedTx();
+        synchronized ( publishLock )
+        {
+            if ( !stopped )
+            {
+                publishIfNewer( txId );
+            }
+        }
+    }
+
+    private void publishIfNewer( long txId )
+    {
+        if ( txId <= publishedTxId )
+        {
+            return;
+        }
+        try
+        {
+            publication.publish( txId );
+            publishedTxId = txId;
+        }
+        catch ( RuntimeException e )
+        {
+            // The next commit will try again
+            msgLog.logMessage( "Couldn't publish last committed tx " + txId + " to zk", e );
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        long txId = publication.getLastCommittedTx();
+        synchronized ( publishLock )
+        {
+            if ( !stopped )
+            {
+                publishIfNewer( txId );
+                stopped = true;
+            }
+        }
+    }
+}
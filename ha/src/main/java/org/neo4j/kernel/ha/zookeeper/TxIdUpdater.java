@@ -24,4 +24,6 @@ public interface TxIdUpdater
     public void init();
 
     public void updatedTxId( long txId );
+
+    public void stop();
 }
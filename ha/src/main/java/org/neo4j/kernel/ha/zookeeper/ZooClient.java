@@ -22,11 +22,14 @@ package org.neo4j.kernel.ha.zookeeper;
 
 import static org.neo4j.kernel.ha.HaSettings.allow_init_cluster;
 import static org.neo4j.kernel.ha.HaSettings.cluster_name;
+import static org.neo4j.kernel.ha.HaSettings.execution_mode;
 import static org.neo4j.kernel.ha.HaSettings.lock_read_timeout;
 import static org.neo4j.kernel.ha.HaSettings.max_concurrent_channels_per_slave;
+import static org.neo4j.kernel.ha.HaSettings.max_transactions_per_response;
 import static org.neo4j.kernel.ha.HaSettings.read_timeout;
 import static org.neo4j.kernel.ha.HaSettings.server;
 import static org.neo4j.kernel.ha.HaSettings.server_id;
+import static org.neo4j.kernel.ha.HaSettings.slave_coordinator_update_interval;
 import static org.neo4j.kernel.ha.HaSettings.slave_coordinator_update_mode;
 import static org.neo4j.kernel.ha.HaSettings.zk_session_timeout;
 
@@ -43,8 +46,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -58,7 +63,10 @@ import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.neo4j.backup.OnlineBackupSettings;
+import org.neo4j.com.ExecutionMode;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.helpers.Exceptions;
+import org.neo4j.helpers.NamedThreadFactory;
 import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.HaConfig;
@@ -70,6 +78,7 @@ import org.neo4j.kernel.ha.ClusterEventReceiver;
 import org.neo4j.kernel.ha.ConnectionInformation;
 import org.neo4j.kernel.ha.HaSettings;
 import org.neo4j.kernel.ha.MasterClientFactory;
+import org.neo4j.kernel.ha.MasterGraphDatabase;
 import org.neo4j.kernel.ha.MasterImpl;
 import org.neo4j.kernel.ha.MasterServer;
 import org.neo4j.kernel.ha.Slave;
@@ -113,6 +122,9 @@ public class ZooClient extends AbstractZooKeeperManager
     private final ClusterEventReceiver clusterReceiver;
     private final int backupPort;
     private final boolean writeLastCommittedTx;
+    private final int updateInterval;
+    private final ScheduledExecutorService txIdPublisher =
+            Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "Last committed tx publisher" ) );
     private final String clusterName;
     private final boolean allowCreateCluster;
     private final WatcherImpl watcher;
@@ -121,6 +133,9 @@ public class ZooClient extends AbstractZooKeeperManager
 
     private final Map<Integer, Pair<SlaveClient,Machine>> cachedSlaves = new HashMap<Integer, Pair<SlaveClient,Machine>>();
     private volatile boolean serversRefreshed = true;
+    // Written once by each instance when it joins, so only read again when instances join or leave
+    private volatile Map<Integer, Pair<String, String>> cachedJmxConnectionData =
+            new ConcurrentHashMap<Integer, Pair<String, String>>();
 
     public ZooClient( String storeDir, StringLogger stringLogger, Config conf, SlaveDatabaseOperations localDatabase,
             ClusterEventReceiver clusterReceiver, MasterClientFactory clientFactory )
@@ -134,6 +149,7 @@ public class ZooClient extends AbstractZooKeeperManager
         backupPort = conf.getInteger( OnlineBackupSettings.online_backup_port);
         haServer = conf.isSet(server) ? conf.get( server ) : defaultServer();
         writeLastCommittedTx = conf.getEnum(SlaveUpdateMode.class, slave_coordinator_update_mode).syncWithZooKeeper;
+        updateInterval = conf.getInteger( slave_coordinator_update_interval );
         clusterName = conf.get( cluster_name );
         sequenceNr = "not initialized yet";
         allowCreateCluster = conf.getBoolean( allow_init_cluster );
@@ -181,9 +197,14 @@ public class ZooClient extends AbstractZooKeeperManager
     public Object instantiateMasterServer( GraphDatabaseAPI graphDb )
     {
         int timeOut = conf.isSet( lock_read_timeout ) ? conf.getInteger( lock_read_timeout ) : conf.getInteger( read_timeout );
-        return new MasterServer( new MasterImpl( graphDb, timeOut ), Machine.splitIpAndPort( haServer ).other(),
+        TransactionCache transactionCache = graphDb instanceof MasterGraphDatabase ?
+                ((MasterGraphDatabase) graphDb).getTransactionCache() : new TransactionCache();
+        MasterImpl master = new MasterImpl( graphDb, timeOut, transactionCache,
+                conf.getInteger( max_transactions_per_response ) );
+        return new MasterServer( master, Machine.splitIpAndPort( haServer ).other(),
                 graphDb.getMessageLog(), conf.getInteger( max_concurrent_channels_per_slave ), timeOut,
-                new BranchDetectingTxVerifier( graphDb ) );
+                new BranchDetectingTxVerifier( graphDb ),
+                ExecutionMode.forName( conf.get( execution_mode ), graphDb.getMessageLog() ) );
     }
 
     @Override
@@ -195,7 +216,7 @@ public class ZooClient extends AbstractZooKeeperManager
     public Object instantiateSlaveServer( GraphDatabaseAPI graphDb, Broker broker, SlaveDatabaseOperations ops )
     {
         return new SlaveServer( new SlaveImpl( graphDb, broker, ops ), Machine.splitIpAndPort( haServer ).other(),
-                graphDb.getMessageLog() );
+                graphDb.getMessageLog(), ExecutionMode.forName( conf.get( execution_mode ), graphDb.getMessageLog() ) );
     }
 
     @Override
@@ -308,6 +329,24 @@ public class ZooClient extends AbstractZooKeeperManager
         }
     }
 
+    private void subscribeToMembershipWatcher()
+    {
+        String path = getRoot();
+        try
+        {
+            zooKeeper.getChildren( path, true );
+        }
+        catch ( KeeperException e )
+        {
+            throw new ZooKeeperException( "Couldn't subscribe getChildren at " + path, e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            throw new ZooKeeperException( "Interrupted", e );
+        }
+    }
+
     protected void setDataChangeWatcher( String child, int currentMasterId )
     {
         try
@@ -505,6 +544,7 @@ public class ZooClient extends AbstractZooKeeperManager
             subscribeToDataChangeWatcher( MASTER_NOTIFY_CHILD );
             subscribeToDataChangeWatcher( MASTER_REBOUND_CHILD );
             subscribeToChildrenChangeWatcher( HA_SERVERS_CHILD );
+            subscribeToMembershipWatcher();
             return created.substring( created.lastIndexOf( "_" ) + 1 );
         }
         catch ( KeeperException e )
@@ -656,6 +696,20 @@ public class ZooClient extends AbstractZooKeeperManager
     }
 
     public void getJmxConnectionData( ConnectionInformation connection )
+    {
+        Map<Integer, Pair<String, String>> cache = cachedJmxConnectionData;
+        Pair<String, String> data = cache.get( connection.getMachineId() );
+        if ( data == null )
+        {
+            data = readJmxConnectionData( connection.getMachineId() );
+            if ( data == null ) return;
+            // Into the cache it was read for, which is thrown away if instances joined or left meanwhile
+            cache.put( connection.getMachineId(), data );
+        }
+        connection.setJMXConnectionData( data.first(), data.other() );
+    }
+
+    private Pair<String, String> readJmxConnectionData( int machineId )
     {
         String path = rootPath + "/" + HA_SERVERS_CHILD + "/" + machineId + "-jmx";
         byte[] data;
@@ -665,14 +719,14 @@ public class ZooClient extends AbstractZooKeeperManager
         }
         catch ( KeeperException e )
         {
-            return;
+            return null;
         }
         catch ( InterruptedException e )
         {
             Thread.interrupted();
-            return;
+            return null;
         }
-        if ( data == null || data.length == 0 ) return;
+        if ( data == null || data.length == 0 ) return null;
         ByteBuffer buffer = ByteBuffer.wrap( data );
         char[] url, instanceId;
         try
@@ -687,9 +741,16 @@ public class ZooClient extends AbstractZooKeeperManager
         }
         catch ( BufferUnderflowException e )
         {
-            return;
+            return null;
         }
-        connection.setJMXConnectionData( new String( url ), new String( instanceId ) );
+        return Pair.of( new String( url ), new String( instanceId ) );
+    }
+
+    @Override
+    protected void membershipChanged()
+    {
+        super.membershipChanged();
+        cachedJmxConnectionData = new ConcurrentHashMap<Integer, Pair<String, String>>();
     }
 
     /*
@@ -708,7 +769,7 @@ public class ZooClient extends AbstractZooKeeperManager
         if ( checkCompatibilityMode() )
         {
             msgLog.logMessage( "Discovered compatibility node, will remain in compatibility mode until the node is removed" );
-            updater = new CompatibilitySlaveOnlyTxIdUpdater();
+            setUpdater( new CompatibilitySlaveOnlyTxIdUpdater() );
             updater.init();
         }
         else if ( !flushing )
@@ -718,7 +779,9 @@ public class ZooClient extends AbstractZooKeeperManager
                 if ( !flushing )
                 {
                     flushing = true;
-                    updater = new SynchronousTxIdUpdater();
+                    setUpdater( updateInterval > 0 ?
+                            new CoalescingTxIdUpdater( txIdPublication, txIdPublisher, updateInterval, msgLog ) :
+                            new SynchronousTxIdUpdater() );
                     updater.init();
                 }
             }
@@ -730,7 +793,7 @@ public class ZooClient extends AbstractZooKeeperManager
         if ( checkCompatibilityMode() )
         {
             msgLog.logMessage( "Discovered compatibility node, will remain in compatibility mode until the node is removed" );
-            updater = new CompatibilitySlaveOnlyTxIdUpdater();
+            setUpdater( new CompatibilitySlaveOnlyTxIdUpdater() );
             updater.init();
         }
         else if ( flushing )
@@ -740,13 +803,21 @@ public class ZooClient extends AbstractZooKeeperManager
                 if ( flushing )
                 {
                     flushing = false;
-                    updater = new NoUpdateTxIdUpdater();
+                    setUpdater( new NoUpdateTxIdUpdater() );
                     updater.init();
                 }
             }
         }
     }
 
+    private synchronized void setUpdater( TxIdUpdater newUpdater )
+    {
+        // Make sure the old updater has written what it's got, and won't write anything
+        // after the new one has initialized
+        updater.stop();
+        updater = newUpdater;
+    }
+
     public synchronized void setCommittedTx( long tx )
     {
         this.committedTx = tx;
@@ -774,6 +845,41 @@ public class ZooClient extends AbstractZooKeeperManager
         }
     }
 
+    private void writeCommittedTx()
+    {
+        writeData( committedTx, getFirstMasterForTx( committedTx ) );
+        msgLog.logMessage( "Starting flushing of txids to zk, while at txid " + committedTx );
+    }
+
+    private final CoalescingTxIdUpdater.Publication txIdPublication = new CoalescingTxIdUpdater.Publication()
+    {
+        @Override
+        public long getLastCommittedTx()
+        {
+            synchronized ( ZooClient.this )
+            {
+                return committedTx;
+            }
+        }
+
+        @Override
+        public void publishFirst()
+        {
+            synchronized ( ZooClient.this )
+            {
+                writeCommittedTx();
+            }
+        }
+
+        @Override
+        public void publish( long txId )
+        {
+            int master = localDatabase.getMasterForTx( txId );
+            writeData( txId, master );
+            masterForCommittedTx = master;
+        }
+    };
+
     private int getFirstMasterForTx( long committedTx )
     {
         if ( committedTx == 1 ) return XaLogicalLog.MASTER_ID_REPRESENTING_NO_MASTER;
@@ -806,6 +912,7 @@ public class ZooClient extends AbstractZooKeeperManager
     public void shutdown()
     {
         watcher.shutdown();
+        txIdPublisher.shutdownNow();
         msgLog.close();
         this.shutdown = true;
         shutdownSlaves();
@@ -1011,6 +1118,7 @@ public class ZooClient extends AbstractZooKeeperManager
                 if ( path == null && event.getState() == Watcher.Event.KeeperState.Expired )
                 {
                     keeperState = KeeperState.Expired;
+                    membershipChanged();
                     clusterReceiver.reconnect( new InformativeStackTrace( "Reconnect due to session expired" ) );
                 }
                 else if ( path == null && event.getState() == Watcher.Event.KeeperState.SyncConnected )
@@ -1038,7 +1146,7 @@ public class ZooClient extends AbstractZooKeeperManager
                         if ( checkCompatibilityMode() )
                         {
                             msgLog.logMessage( "Discovered compatibility node, will remain in compatibility mode until the node is removed" );
-                            updater = new CompatibilitySlaveOnlyTxIdUpdater();
+                            setUpdater( new CompatibilitySlaveOnlyTxIdUpdater() );
                         }
                     }
                     else
@@ -1077,6 +1185,19 @@ public class ZooClient extends AbstractZooKeeperManager
                             // Happens for session expiration, why?
                         }
                     }
+                    else if ( path.equals( rootPath ) )
+                    {
+                        // An instance joined or left the cluster
+                        membershipChanged();
+                        try
+                        {
+                            subscribeToMembershipWatcher();
+                        }
+                        catch ( ZooKeeperException e )
+                        {
+                            // Happens for session expiration, we'll subscribe again in setup()
+                        }
+                    }
                 }
                 else if ( event.getType() == Watcher.Event.EventType.NodeDataChanged )
                 {
@@ -1163,6 +1284,12 @@ public class ZooClient extends AbstractZooKeeperManager
         {
             // default no op
         }
+
+        @Override
+        public void stop()
+        {
+            // default no op
+        }
     }
 
     private class SynchronousTxIdUpdater extends AbstractTxIdUpdater
@@ -1175,8 +1302,7 @@ public class ZooClient extends AbstractZooKeeperManager
              * which is synchronized, which means we can't have committedTx changed while
              * we are here.
              */
-            writeData( committedTx, getFirstMasterForTx( committedTx ) );
-            msgLog.logMessage( "Starting flushing of txids to zk, while at txid " + committedTx );
+            writeCommittedTx();
         }
 
         @Override
@@ -1220,6 +1346,8 @@ public class ZooClient extends AbstractZooKeeperManager
         {
             if ( serversRefreshed || cachedSlaves.isEmpty() )
             {
+                // Cleared before reading so that a refresh happening meanwhile isn't lost
+                serversRefreshed = false;
                 // Go through the cached list and refresh where needed
                 Machine master = cachedMaster.other();
                 if ( master.getMachineId() == this.machineId )
@@ -1263,7 +1391,6 @@ public class ZooClient extends AbstractZooKeeperManager
                 {   // I'm a slave, I don't need a slave list so clear any existing
                     shutdownSlaves();
                 }
-                serversRefreshed = true;
             }
 
             Slave[] slaves = new Slave[cachedSlaves.size()];
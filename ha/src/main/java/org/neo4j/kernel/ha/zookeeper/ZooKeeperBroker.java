@@ -156,7 +156,7 @@ public class ZooKeeperBroker extends AbstractBroker
     @Override
     public ConnectionInformation[] getConnectionInformation()
     {
-        Map<Integer, ZooKeeperMachine> machines = getZooClient().getAllMachines( false );
+        Map<Integer, ZooKeeperMachine> machines = getZooClient().getCachedMachines( false );
         Machine master = getZooClient().getMasterBasedOn( machines.values() );
         ConnectionInformation[] result = new ConnectionInformation[machines.size()];
         int i = 0;
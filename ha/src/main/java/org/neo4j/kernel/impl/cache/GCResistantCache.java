@@ -20,47 +20,136 @@
 package org.neo4j.kernel.impl.cache;
 
 import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.neo4j.kernel.impl.util.StringLogger;
 import org.neo4j.kernel.info.DiagnosticsPhase;
 import org.neo4j.kernel.info.DiagnosticsProvider;
 
+/**
+ * A cache of entities in a fixed array, which isn't much work for the garbage
+ * collector compared to f.ex. soft references. The array is divided into sets
+ * of {@link #WAYS} slots and an entity can go into any slot of the set its id
+ * hashes to, so that entities with ids that would collide in a directly
+ * mapped array can be cached at the same time.
+ * <p>
+ * Entities are evicted with the CLOCK algorithm: each slot has a referenced
+ * bit, set when its entity is read. Evicting skips over, and clears, the bits
+ * which are set, so entities read since the clock hand last passed them get
+ * a second chance. When a set is full a put evicts one of its entities, and
+ * when the cache gets too large the evictor thread sweeps the array like that,
+ * in the background.
+ * <p>
+ * Each set is tagged with the epoch it was last put in. {@link #clear()} only
+ * moves on to the next epoch, after which sets tagged with an earlier one
+ * are considered empty, and are emptied by the next put into them or by the
+ * evictor, so that clearing doesn't take longer the larger the array is.
+ */
 public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, DiagnosticsProvider
 {
     public static final long MIN_SIZE = 1;
+    static final int WAYS = 4;
+    // Small enough for a step to take well below a millisecond
+    static final int PURGE_STEP_SLOTS = 4096;
+    private static final int SET_LOCKS = 1024;
+    // How long to leave the cache be after a purge which couldn't get it down
+    // to size, since another one right away wouldn't either
+    static final long PURGE_BACKOFF_MILLIS = 1000;
+    /**
+     * Upper bounds, in milliseconds, of the buckets of the purge time histogram,
+     * see {@link #getPurgeTimeHistogram()}.
+     */
+    public static final long[] PURGE_TIME_BUCKETS = { 1, 10, 100, 1000 };
+    /**
+     * Minimum length of the intervals that {@link #getLastInterval()} is about.
+     */
+    public static final long STATISTICS_INTERVAL = 60 * 1000;
+    /**
+     * Purges all GC resistant caches in the background, in small steps so
+     * that one cache purging doesn't hold up another for long.
+     */
+    private static final Executor EVICTOR = Executors.newSingleThreadExecutor( new ThreadFactory()
+    {
+        @Override
+        public Thread newThread( Runnable runnable )
+        {
+            // The caches outlive databases, see HaCaches, so there's no shutting this down
+            Thread thread = new Thread( runnable, "GC resistant cache evictor" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
     private final AtomicReferenceArray<E> cache;
+    private final int sets;
+    private final int ways;
+    // Like the statistics these are read and written without synchronization.
+    // A lost update only makes an eviction a little less accurate.
+    private final byte[] referenced;
+    private final byte[] setHands;
+    private final AtomicIntegerArray setEpochs;
+    private volatile Generation generation = new Generation( 0 );
+    private int purgeHand;
     private final long maxSize;
     private long closeToMaxSize;
     private long purgeStopSize;
-    private long purgeHandoffSize;
-    private final AtomicLong currentSize = new AtomicLong( 0 );
+    private long evictOnPutSize;
     private final long minLogInterval;
     private final String name;
-    private final AtomicLong highestIdSet = new AtomicLong();
-
-    // non thread safe, only ~statistics (atomic update will affect performance)
-    private long hitCount = 0;
-    private long missCount = 0;
-    private long totalPuts = 0;
-    private long collisions = 0;
-    private long purgeCount = 0;
+    private final AtomicLong highestSlotSet = new AtomicLong();
+    // Changes to what a set holds, and to the sizes registered for it, are made
+    // holding the lock of the set, so that they add up to the current size.
+    // Reads don't lock.
+    private final Object[] setLocks = newSetLocks();
+
+    // Striped, since these are updated by every thread using the cache
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+    private final StripedCounter totalPuts = new StripedCounter();
+    private final StripedCounter collisions = new StripedCounter();
+    private volatile long purgeCount = 0;
+    // Number of purges which took at most the time of the corresponding bucket,
+    // see PURGE_TIME_BUCKETS, and in the last one those which took longer
+    private final AtomicLongArray purgeTimeHistogram = new AtomicLongArray( PURGE_TIME_BUCKETS.length + 1 );
+    private Statistics intervalStart = new Statistics(); // Guarded by this
+    private Statistics lastInterval = new Statistics(); // Guarded by this
 
     private final StringLogger logger;
     
-    private final AtomicBoolean purging = new AtomicBoolean();
-    private final AtomicInteger avertedPurgeWaits = new AtomicInteger();
-    private final AtomicInteger forcedPurgeWaits = new AtomicInteger();
-    private long purgeTime;
+    private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+    private volatile long purgeBackoffUntil;
+    // Only accessed by the evictor, one step at a time
+    private volatile long purgeTime; // In nanoseconds
+    private long purgeSweepTime;
+    private long purgeStartTime;
+    private long purgeSizeBefore;
+    private long purgeSlotsSwept;
+    private final AtomicBoolean reclaimScheduled = new AtomicBoolean();
+    private volatile boolean reclaimRestart;
+    private int reclaimHand; // Only accessed by the evictor
 
     GCResistantCache( AtomicReferenceArray<E> cache )
+    {
+        this( cache, 1024l*1024*1024 );
+    }
+
+    GCResistantCache( AtomicReferenceArray<E> cache, long maxSize )
     {
         this.cache = cache;
+        this.ways = Math.min( WAYS, cache.length() );
+        this.sets = cache.length() / ways;
+        this.referenced = new byte[cache.length()];
+        this.setHands = new byte[sets];
+        this.setEpochs = new AtomicIntegerArray( sets );
         this.minLogInterval = Long.MAX_VALUE;
-        this.maxSize = 1024l*1024*1024;
+        this.maxSize = maxSize;
         this.name = "test cache";
         this.logger = null;
         calculateSizes();
@@ -76,7 +165,8 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
                             + arrayHeapFraction + "%" );
         }
         long memToUse = (long)(((double)arrayHeapFraction) * Runtime.getRuntime().maxMemory() / 100);
-        long maxElementCount = (int) ( memToUse / 8 );
+        // A reference and a referenced bit per slot, and a clock hand and an epoch per set
+        long maxElementCount = (int) ( memToUse / 10 );
         if ( memToUse > Integer.MAX_VALUE )
         {
             maxElementCount = Integer.MAX_VALUE;
@@ -87,27 +177,59 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
         }
 
         this.cache = new AtomicReferenceArray<E>( (int) maxElementCount );
+        this.ways = (int) Math.min( WAYS, maxElementCount );
+        this.sets = (int) maxElementCount / ways;
+        this.referenced = new byte[(int) maxElementCount];
+        this.setHands = new byte[sets];
+        this.setEpochs = new AtomicIntegerArray( sets );
         this.maxSize = maxSizeInBytes;
         this.name = name == null ? super.toString() : name;
         this.logger = logger == null ? StringLogger.SYSTEM : logger;
         calculateSizes();
     }
 
+    private static Object[] newSetLocks()
+    {
+        Object[] locks = new Object[SET_LOCKS];
+        for ( int i = 0; i < locks.length; i++ )
+        {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private Object lockFor( int setStart )
+    {
+        return setLocks[(setStart / ways) & (SET_LOCKS - 1)];
+    }
+
     private void calculateSizes()
     {
         this.closeToMaxSize = (long)((double)maxSize * 0.95d);
         this.purgeStopSize = (long)((double)maxSize * 0.90d);
-        this.purgeHandoffSize = (long)((double)maxSize * 1.05d);
+        this.evictOnPutSize = (long)((double)maxSize * 1.05d);
     }
     
-    private int getPosition( EntityWithSize obj )
+    /**
+     * @return the first slot of the set that entities with this id go into.
+     */
+    private int getSetStart( long id )
     {
-        return (int) ( obj.getId() % cache.length() );
+        if ( id < 0 ) throw new IndexOutOfBoundsException( "Negative id " + id );
+        // Spread the ids so that dense id ranges don't pile up in neighbouring sets
+        long hash = id * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return (int) ( (hash & Long.MAX_VALUE) % sets ) * ways;
     }
 
-    private int getPosition( long id )
+    private int findSlot( int setStart, EntityWithSize obj )
     {
-        return (int) ( id % cache.length() );
+        if ( !isCurrent( setStart ) ) return -1;
+        for ( int slot = setStart; slot < setStart + ways; slot++ )
+        {
+            if ( cache.get( slot ) == obj ) return slot;
+        }
+        return -1;
     }
 
     private long putTimeStamp = 0;
@@ -120,47 +242,146 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
             putTimeStamp = time;
             printStatistics();
         }
-        int pos = getPosition( obj );
-        E oldObj = cache.get( pos );
-        if ( oldObj != obj )
+        int setStart = getSetStart( obj.getId() );
+        int objectSize = obj.size();
+        long size;
+        synchronized ( lockFor( setStart ) )
         {
-            int objectSize = obj.size();
-            if ( cache.compareAndSet( pos, oldObj, obj ) )
+            // If the cache is cleared from here on the entity ends up in a set
+            // of the cleared generation, and its size with it
+            Generation current = generation;
+            reclaimSet( setStart, current );
+            if ( findSlot( setStart, obj ) != -1 )
             {
-                setHighest( pos );
-                int oldObjSize = 0;
-                if ( oldObj != null )
-                {
-                    oldObjSize = oldObj.getRegisteredSize();
-                }
-                long size = currentSize.addAndGet( objectSize - oldObjSize );
-                obj.setRegisteredSize( objectSize );
-                if ( oldObj != null )
-                {
-                    collisions++;
-                }
-                totalPuts++;
-                if ( size > closeToMaxSize )
-                {
-                    purgeFrom( pos );
-                }
+                return;
+            }
+            int pos = slotToPutIn( setStart, obj.getId() );
+            if ( pos == -1 )
+            {
+                return;
+            }
+            E oldObj = cache.get( pos );
+            cache.set( pos, obj );
+            referenced[pos] = 0;
+            setHighestSlot( pos );
+            int oldObjSize = 0;
+            if ( oldObj != null )
+            {
+                oldObjSize = oldObj.getRegisteredSize();
+            }
+            size = current.size.addAndGet( objectSize - oldObjSize );
+            obj.setRegisteredSize( objectSize );
+            if ( oldObj != null && oldObj.getId() != obj.getId() )
+            {
+                collisions.increment();
             }
         }
+        totalPuts.increment();
+        if ( size > closeToMaxSize )
+        {
+            purge();
+        }
     }
 
     /**
-     * Updates the highest set id if the given id is higher than any previously registered id.
-     * Helps {@link #clear()} performance wise so that only the used part of the array is cleared.
-     * @param id the id just put into the cache.
+     * @return the slot in the set which holds an entity with the same id, or
+     * else an empty one, or else the one the set's clock hand stops at.
+     * If the evictor has fallen behind, so that the cache is larger than
+     * {@link #evictOnPutSize}, empty slots are only used if all entities in the
+     * set have been read since the hand last passed them, and -1 is returned
+     * if the set is empty.
      */
-    private void setHighest( long id )
+    private int slotToPutIn( int setStart, long id )
+    {
+        int empty = -1;
+        int occupied = 0;
+        for ( int slot = setStart; slot < setStart + ways; slot++ )
+        {
+            E existing = cache.get( slot );
+            if ( existing == null )
+            {
+                if ( empty == -1 ) empty = slot;
+            }
+            else if ( existing.getId() == id )
+            {
+                return slot;
+            }
+            else
+            {
+                occupied++;
+            }
+        }
+        if ( empty != -1 && currentSize() <= evictOnPutSize ) return empty;
+        if ( occupied == 0 ) return -1;
+
+        int set = setStart / ways;
+        int hand = setHands[set];
+        for ( int i = 0; i < ways * 2; i++ )
+        {
+            if ( i == ways && empty != -1 )
+            {   // Rather grow than evict something which is being read
+                break;
+            }
+            int slot = setStart + hand;
+            hand = (hand + 1) % ways;
+            if ( cache.get( slot ) == null ) continue;
+            if ( referenced[slot] == 0 )
+            {
+                setHands[set] = (byte) hand;
+                return slot;
+            }
+            referenced[slot] = 0;
+        }
+        setHands[set] = (byte) hand;
+        return empty;
+    }
+
+    /**
+     * @return whether or not the set has been put in since the cache was last
+     * cleared. If not, whatever is left in it is considered gone.
+     */
+    private boolean isCurrent( int setStart )
+    {
+        return isCurrent( setStart, generation );
+    }
+
+    private boolean isCurrent( int setStart, Generation current )
+    {
+        return setEpochs.get( setStart / ways ) == current.epoch;
+    }
+
+    /**
+     * Empties the set if it's left over from before the given generation and
+     * tags it with the generation's epoch. Its entities are part of the size
+     * of an earlier generation, so nothing is subtracted. The set is emptied
+     * before it's tagged, so that a reader never sees an entity from an
+     * earlier generation in a set tagged with the current one. Callers hold
+     * the lock of the set, and read the generation holding it, so that a set
+     * is never tagged with an earlier generation than it already is.
+     */
+    private void reclaimSet( int setStart, Generation current )
+    {
+        if ( isCurrent( setStart, current ) ) return;
+        for ( int slot = setStart; slot < setStart + ways; slot++ )
+        {
+            cache.set( slot, null );
+        }
+        setEpochs.set( setStart / ways, current.epoch );
+    }
+
+    /**
+     * Updates the highest slot put in if the given slot is higher than any previously put in.
+     * Helps the evictor after a {@link #clear()} so that only the used part of the array is reclaimed.
+     * @param slot the slot just put in.
+     */
+    private void setHighestSlot( int slot )
     {
         while ( true )
         {
-            long highest = highestIdSet.get();
-            if ( id > highest )
+            long highest = highestSlotSet.get();
+            if ( slot > highest )
             {
-                if ( highestIdSet.compareAndSet( highest, id ) )
+                if ( highestSlotSet.compareAndSet( highest, slot ) )
                     break;
             }
             else
@@ -170,129 +391,186 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
 
     public E remove( long id )
     {
-        int pos = getPosition( id );
-        E obj = cache.get(pos);
-        if ( obj != null )
+        int setStart = getSetStart( id );
+        synchronized ( lockFor( setStart ) )
         {
-            if ( cache.compareAndSet( pos, obj, null ) )
+            Generation current = generation;
+            if ( !isCurrent( setStart, current ) ) return null;
+            for ( int slot = setStart; slot < setStart + ways; slot++ )
             {
-                currentSize.addAndGet( obj.getRegisteredSize() * -1 );
+                E obj = cache.get( slot );
+                if ( obj != null && obj.getId() == id )
+                {
+                    removeSlot( slot, obj, current );
+                    return obj;
+                }
             }
+            return null;
+        }
+    }
+
+    /**
+     * Removes the entity in the slot, if it's still there, and subtracts the
+     * size registered for it from the generation the set is tagged with.
+     * Callers hold the lock of the set.
+     */
+    private void removeSlot( int slot, E obj, Generation current )
+    {
+        if ( cache.compareAndSet( slot, obj, null ) )
+        {
+            current.size.addAndGet( obj.getRegisteredSize() * -1 );
         }
-        return obj;
     }
 
     public E get( long id )
     {
-        int pos = getPosition( id );
-        E obj = cache.get( pos );
-        if ( obj != null && obj.getId() == id )
+        int setStart = getSetStart( id );
+        if ( !isCurrent( setStart ) )
+        {
+            missCount.increment();
+            return null;
+        }
+        for ( int slot = setStart; slot < setStart + ways; slot++ )
         {
-            hitCount++;
-            return obj;
+            E obj = cache.get( slot );
+            if ( obj != null && obj.getId() == id )
+            {
+                if ( referenced[slot] == 0 ) referenced[slot] = 1;
+                hitCount.increment();
+                return obj;
+            }
         }
-        missCount++;
+        missCount.increment();
         return null;
     }
 
     private long lastPurgeLogTimestamp = 0;
 
-    private void purgeFrom( int pos )
+    /**
+     * Has the evictor purge the cache, unless it's already at it. Threads using
+     * the cache never purge themselves, so the cache may grow a little past
+     * {@link #closeToMaxSize} while the evictor catches up. If it grows past
+     * {@link #evictOnPutSize}, puts only replace other entities in their set.
+     */
+    private void purge()
     {
-        long myCurrentSize = currentSize.get();
-        if ( myCurrentSize <= closeToMaxSize )
+        if ( currentSize() <= closeToMaxSize )
             return;
-        
-        // if we're within 0.95 < size < 1.05 and someone else is purging then just return and let
-        // the other one purge for us. if we're above 1.05 then wait for the purger to finish before returning.
-        if ( purging.compareAndSet( false, true ) )
-        {   // We're going to do the purge
+        if ( System.currentTimeMillis() < purgeBackoffUntil )
+            return;
+
+        if ( purgeScheduled.compareAndSet( false, true ) )
+        {
+            EVICTOR.execute( purgeStep );
+        }
+    }
+
+    private final Runnable purgeStep = new Runnable()
+    {
+        @Override
+        public void run()
+        {
             try
             {
-                doPurge( pos );
-            }
-            finally
-            {
-                purging.set( false );
+                if ( purgeStep() ) return;
             }
-        }
-        else
-        {   // Someone else is currently doing a purge
-            if ( myCurrentSize < purgeHandoffSize )
-            {   // It's safe to just return and let the purger do its thing
-                avertedPurgeWaits.incrementAndGet();
-                return;
-            }
-            else
+            catch ( RuntimeException e )
             {
-                // Wait for the current purge to complete. Some threads might slip through here before
-                // A thread just entering doPurge above, but that's fine
-                forcedPurgeWaits.incrementAndGet();
-                waitForCurrentPurgeToComplete();
+                purgeStartTime = 0;
+                if ( logger != null ) logger.logMessage( name + " purge failed", e );
             }
+            purgeScheduled.set( false );
+            // Puts while finishing the purge may have gone unnoticed
+            purge();
         }
-    }
+    };
 
-    private synchronized void waitForCurrentPurgeToComplete()
+    /**
+     * Sweeps the clock hand over the array, from where the previous step left
+     * it, evicting entities which haven't been read since it last passed them.
+     * A purge starts when the cache is larger than {@link #closeToMaxSize} and
+     * goes on, {@link #PURGE_STEP_SLOTS} slots per step, until the cache is no
+     * larger than {@link #purgeStopSize}, or for two laps, which evict
+     * everything not read in between. If that isn't enough, there's no
+     * purging again for {@link #PURGE_BACKOFF_MILLIS}. Only ever run by the
+     * evictor.
+     *
+     * @return whether or not this purge needs more steps, which are scheduled.
+     */
+    private boolean purgeStep()
     {
-        // Just a nice way of saying "wait for the monitor on this object currently held by the thread doing a purge"
-    }
+        long startTime = System.nanoTime();
+        if ( purgeStartTime == 0 )
+        {
+            if ( currentSize() <= closeToMaxSize )
+                return false;
+            purgeCount++;
+            purgeStartTime = System.currentTimeMillis();
+            purgeSizeBefore = currentSize();
+            purgeSlotsSwept = 0;
+            purgeSweepTime = 0;
+        }
 
-    private synchronized void doPurge( int pos )
-    {
-        long myCurrentSize = currentSize.get();
-        if ( myCurrentSize <= closeToMaxSize )
-            return;
-        
-        long startTime = System.currentTimeMillis();
-        purgeCount++;
-        long sizeBefore = currentSize.get();
-        try
+        int length = sets * ways;
+        for ( int i = 0; i < PURGE_STEP_SLOTS && purgeSlotsSwept < length * 2L &&
+                currentSize() > purgeStopSize; i++, purgeSlotsSwept++ )
         {
-            int index = 1;
-            do
+            int slot = purgeHand;
+            purgeHand = (purgeHand + 1) % length;
+            E obj = cache.get( slot );
+            if ( obj == null ) continue;
+            if ( !isCurrent( slot - slot % ways ) )
+            {   // Left over from before a clear, so not part of the size
+                cache.compareAndSet( slot, obj, null );
+                continue;
+            }
+            if ( referenced[slot] != 0 )
             {
-                if ( ( pos - index ) >= 0 )
-                {
-                    int minusPos = pos - index;
-                    remove( minusPos );
-                    if ( currentSize.get() <= purgeStopSize )
-                        return;
-                }
-                if ( ( pos + index ) < cache.length() )
-                {
-                    int plusPos = pos + index;
-                    remove( plusPos );
-                    if ( currentSize.get() <= purgeStopSize )
-                        return;
-                }
-                index++;
+                referenced[slot] = 0;
+                continue;
             }
-            while ( ( pos - index ) >= 0 || ( pos + index ) < cache.length() );
-            // current object larger than max size, clear it
-            remove( pos ); 
+            synchronized ( lockFor( slot - slot % ways ) )
+            {
+                Generation current = generation;
+                if ( isCurrent( slot - slot % ways, current ) ) removeSlot( slot, obj, current );
+            }
+        }
+
+        long stepTime = System.nanoTime() - startTime;
+        purgeTime += stepTime;
+        purgeSweepTime += stepTime;
+        if ( purgeSlotsSwept < length * 2L && currentSize() > purgeStopSize )
+        {   // Let other caches, and anything else waiting for the evictor, have a go in between
+            EVICTOR.execute( purgeStep );
+            return true;
         }
-        finally
+
+        purgeStartTime = 0;
+        if ( currentSize() > purgeStopSize )
+        {   // Two laps and still too large, everything left is being read
+            purgeBackoffUntil = System.currentTimeMillis() + PURGE_BACKOFF_MILLIS;
+        }
+        purgeTimeHistogram.incrementAndGet( purgeTimeBucket( TimeUnit.NANOSECONDS.toMillis( purgeSweepTime ) ) );
+        long timestamp = System.currentTimeMillis();
+        if ( timestamp - lastPurgeLogTimestamp > minLogInterval )
         {
-            long timestamp = System.currentTimeMillis();
-            purgeTime += (timestamp-startTime);
-            if ( timestamp - lastPurgeLogTimestamp > minLogInterval )
-            {
-                lastPurgeLogTimestamp = timestamp;
-                long sizeAfter = currentSize.get();
+            lastPurgeLogTimestamp = timestamp;
+            long sizeAfter = currentSize();
 
-                String sizeBeforeStr = getSize( sizeBefore );
-                String sizeAfterStr = getSize( sizeAfter );
-                String diffStr = getSize( sizeBefore - sizeAfter );
+            String sizeBeforeStr = getSize( purgeSizeBefore );
+            String sizeAfterStr = getSize( sizeAfter );
+            String diffStr = getSize( purgeSizeBefore - sizeAfter );
 
-                String missPercentage =  ((float) missCount / (float) (hitCount+missCount) * 100.0f) + "%";
-                String colPercentage = ((float) collisions / (float) totalPuts * 100.0f) + "%";
+            long misses = missCount.get();
+            long collisionCount = collisions.get();
+            String missPercentage =  ((float) misses / (float) (hitCount.get()+misses) * 100.0f) + "%";
+            String colPercentage = ((float) collisionCount / (float) totalPuts.get() * 100.0f) + "%";
 
-                logger.logMessage( name + " purge (nr " + purgeCount + ") " + sizeBeforeStr + " -> " + sizeAfterStr + " (" + diffStr +
-                        ") " + missPercentage + " misses, " + colPercentage + " collisions (" + collisions + ").", true );
-                printAccurateStatistics();
-            }
+            logger.logMessage( name + " purge (nr " + purgeCount + ") " + sizeBeforeStr + " -> " + sizeAfterStr + " (" + diffStr +
+                    ") " + missPercentage + " misses, " + colPercentage + " collisions (" + collisionCount + ").", true );
+            printAccurateStatistics();
         }
+        return false;
     }
 
     private void printAccurateStatistics()
@@ -303,7 +581,7 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
         for ( int i = 0; i < cache.length(); i++ )
         {
             EntityWithSize obj = cache.get( i );
-            if ( obj != null )
+            if ( obj != null && isCurrent( i - i % ways ) )
             {
                 elementCount++;
                 actualSize += obj.size();
@@ -311,7 +589,7 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
             }
         }
         logger.logMessage( name + " purge (nr " + purgeCount + "): elementCount:" + elementCount + " and sizes actual:" + getSize( actualSize ) + 
-                    ", perceived:" + getSize( currentSize.get() ) + " (diff:" + getSize(currentSize.get() - actualSize) + "), registered:" + getSize( registeredSize ), true );
+                    ", perceived:" + getSize( currentSize() ) + " (diff:" + getSize(currentSize() - actualSize) + "), registered:" + getSize( registeredSize ), true );
     }
 
     public void printStatistics()
@@ -346,14 +624,17 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
     @Override
     public String toString()
     {
-        String currentSizeStr = getSize( currentSize.get() );
+        String currentSizeStr = getSize( currentSize() );
 
-        String missPercentage =  ((float) missCount / (float) (hitCount+missCount) * 100.0f) + "%";
-        String colPercentage = ((float) collisions / (float) totalPuts * 100.0f) + "%";
+        long misses = missCount.get();
+        long collisionCount = collisions.get();
+        String missPercentage =  ((float) misses / (float) (hitCount.get()+misses) * 100.0f) + "%";
+        String colPercentage = ((float) collisionCount / (float) totalPuts.get() * 100.0f) + "%";
+        long purges = purgeCount;
         
-        return name + " array:" + cache.length() + " purge:" + purgeCount + " size:" + currentSizeStr +
-                " misses:" + missPercentage + " collisions:" + colPercentage + " (" + collisions + ") av.purge waits:" +
-                avertedPurgeWaits.get() + " purge waits:" + forcedPurgeWaits.get() + " avg. purge time:" + (purgeCount > 0 ? (purgeTime/purgeCount) + "ms" : "N/A");
+        return name + " array:" + cache.length() + " ways:" + ways + " purge:" + purges + " size:" + currentSizeStr +
+                " misses:" + missPercentage + " collisions:" + colPercentage + " (" + collisionCount + ")" +
+                " avg. purge time:" + (purges > 0 ? TimeUnit.NANOSECONDS.toMillis( purgeTime/purges ) + "ms" : "N/A");
     }
 
     private String getSize( long size )
@@ -376,14 +657,84 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
         return size + "b";
     }
 
-    public void clear()
+    /**
+     * Clears the cache by moving on to the next generation, which takes the
+     * same time however large the array is. The entities left in the array
+     * are reclaimed by puts and, in the background, by the evictor. A put
+     * racing with a clear either goes into the new generation, size and all,
+     * or into a set tagged with the cleared one, where it's reclaimed with the
+     * rest of them.
+     */
+    public synchronized void clear()
     {
-        for ( int i = 0; i <= highestIdSet.get() /*cache.length()*/; i++ )
+        generation = new Generation( generation.epoch + 1 );
+        reclaimRestart = true;
+        if ( reclaimScheduled.compareAndSet( false, true ) )
         {
-            cache.set( i, null );
+            EVICTOR.execute( reclaimStep );
         }
-        currentSize.set( 0 );
-        highestIdSet.set( 0 );
+    }
+
+    /**
+     * Empties the sets left over from before the last clear, so that their
+     * entities can be garbage collected, {@link #PURGE_STEP_SLOTS} slots per
+     * step like a purge. A clear while at it starts it over.
+     */
+    private final Runnable reclaimStep = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if ( reclaimRestart )
+            {
+                reclaimRestart = false;
+                reclaimHand = 0;
+            }
+            long sweepSets = Math.min( sets, highestSlotSet.get() / ways + 1 );
+            for ( int i = 0; i < PURGE_STEP_SLOTS && reclaimHand < sweepSets; i += ways, reclaimHand++ )
+            {
+                int setStart = reclaimHand * ways;
+                if ( !isCurrent( setStart ) )
+                {
+                    synchronized ( lockFor( setStart ) )
+                    {
+                        reclaimSet( setStart, generation );
+                    }
+                }
+            }
+            if ( reclaimHand < sweepSets || reclaimRestart )
+            {
+                EVICTOR.execute( this );
+                return;
+            }
+            reclaimScheduled.set( false );
+            // A clear may have come in between, and found this still scheduled
+            if ( reclaimRestart && reclaimScheduled.compareAndSet( false, true ) )
+            {
+                EVICTOR.execute( this );
+            }
+        }
+    };
+
+    /**
+     * The size of what has been put since a clear, which is what the sets
+     * tagged with its epoch hold. Clearing starts a new generation, and with
+     * it a new size, in one go.
+     */
+    private static final class Generation
+    {
+        private final int epoch;
+        private final AtomicLong size = new AtomicLong();
+
+        Generation( int epoch )
+        {
+            this.epoch = epoch;
+        }
+    }
+
+    private long currentSize()
+    {
+        return generation.size.get();
     }
 
     public void putAll( Collection<E> objects )
@@ -403,35 +754,192 @@ public class GCResistantCache<E extends EntityWithSize> implements Cache<E>, Dia
     @Override
     public long size()
     {
-        return currentSize.get();
+        return currentSize();
     }
 
     @Override
     public long hitCount()
     {
-        return hitCount;
+        return hitCount.get();
     }
 
     @Override
     public long missCount()
     {
-        return missCount;
+        return missCount.get();
+    }
+
+    public long maxSize()
+    {
+        return maxSize;
+    }
+
+    public long purgeCount()
+    {
+        return purgeCount;
+    }
+
+    /**
+     * @return the number of purges, and the time spent purging, by duration.
+     * Element i is the number of purges which took at most
+     * {@link #PURGE_TIME_BUCKETS}[i] milliseconds, but longer than the bucket
+     * before, and the last element the number of purges which took longer.
+     */
+    public long[] getPurgeTimeHistogram()
+    {
+        long[] histogram = new long[purgeTimeHistogram.length()];
+        for ( int i = 0; i < histogram.length; i++ )
+        {
+            histogram[i] = purgeTimeHistogram.get( i );
+        }
+        return histogram;
+    }
+
+    private static int purgeTimeBucket( long millis )
+    {
+        int bucket = 0;
+        while ( bucket < PURGE_TIME_BUCKETS.length && millis > PURGE_TIME_BUCKETS[bucket] )
+        {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return what happened in this cache during the last full interval of at
+     * least {@link #STATISTICS_INTERVAL}. Intervals end when asked for, so
+     * that nothing needs to keep track of them in between.
+     */
+    public synchronized Statistics getLastInterval()
+    {
+        Statistics now = new Statistics( System.currentTimeMillis(), hitCount.get(), missCount.get(),
+                totalPuts.get(), collisions.get(), purgeCount, purgeTime );
+        if ( now.time - intervalStart.time >= STATISTICS_INTERVAL )
+        {
+            lastInterval = now.since( intervalStart );
+            intervalStart = now;
+        }
+        return lastInterval;
+    }
+
+    /**
+     * Counts of what happened in a cache during an interval.
+     */
+    public static class Statistics
+    {
+        private final long time;
+        private final long length;
+        private final long hits;
+        private final long misses;
+        private final long puts;
+        private final long collisions;
+        private final long purges;
+        private final long purgeTime;
+
+        Statistics()
+        {
+            this( System.currentTimeMillis(), 0, 0, 0, 0, 0, 0 );
+        }
+
+        Statistics( long time, long hits, long misses, long puts, long collisions, long purges, long purgeTime )
+        {
+            this( time, 0, hits, misses, puts, collisions, purges, purgeTime );
+        }
+
+        private Statistics( long time, long length, long hits, long misses, long puts, long collisions, long purges,
+                long purgeTime )
+        {
+            this.time = time;
+            this.length = length;
+            this.hits = hits;
+            this.misses = misses;
+            this.puts = puts;
+            this.collisions = collisions;
+            this.purges = purges;
+            this.purgeTime = purgeTime;
+        }
+
+        Statistics since( Statistics start )
+        {
+            return new Statistics( time, time - start.time, hits - start.hits, misses - start.misses,
+                    puts - start.puts, collisions - start.collisions, purges - start.purges,
+                    purgeTime - start.purgeTime );
+        }
+
+        /**
+         * @return the length of the interval in milliseconds, 0 if there
+         * hasn't been a full one yet.
+         */
+        public long getLength()
+        {
+            return length;
+        }
+
+        /**
+         * @return the fraction of gets that were hits, or NaN if there were none.
+         */
+        public double getHitRatio()
+        {
+            return (double) hits / (hits + misses);
+        }
+
+        public double getHitsPerSecond()
+        {
+            return perSecond( hits );
+        }
+
+        public double getMissesPerSecond()
+        {
+            return perSecond( misses );
+        }
+
+        public double getPutsPerSecond()
+        {
+            return perSecond( puts );
+        }
+
+        public double getCollisionsPerSecond()
+        {
+            return perSecond( collisions );
+        }
+
+        public long getPurges()
+        {
+            return purges;
+        }
+
+        /**
+         * @return the time spent purging, in milliseconds.
+         */
+        public long getPurgeTime()
+        {
+            return TimeUnit.NANOSECONDS.toMillis( purgeTime );
+        }
+
+        private double perSecond( long count )
+        {
+            return length == 0 ? 0 : count * 1000d / length;
+        }
     }
 
     @Override
     public void updateSize( E obj, int newSize )
     {
-        int pos = getPosition( obj );
-        E existingObj = cache.get( pos );
-        if ( existingObj != obj )
+        int setStart = getSetStart( obj.getId() );
+        long size;
+        synchronized ( lockFor( setStart ) )
         {
-            return;
+            Generation current = generation;
+            if ( !isCurrent( setStart, current ) || findSlot( setStart, obj ) == -1 )
+            {
+                return;
+            }
+            size = current.size.addAndGet( (newSize - obj.getRegisteredSize()) );
+            obj.setRegisteredSize( newSize );
         }
-        long size = currentSize.addAndGet( (newSize - existingObj.getRegisteredSize()) );
-        obj.setRegisteredSize( newSize );
         if ( size > closeToMaxSize )
         {
-            purgeFrom( pos );
+            purge();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.impl.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which threads can increment at the same time without contending
+ * for the same cache line, at the price of {@link #get()} having to add up
+ * all the stripes. Each thread increments the stripe its id maps to.
+ */
+class StripedCounter
+{
+    // Longs per cache line, so that each stripe has a line of its own
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes( Runtime.getRuntime().availableProcessors() );
+
+    private final AtomicLongArray stripes = new AtomicLongArray( STRIPES * PADDING );
+
+    private static int stripes( int processors )
+    {
+        int stripes = 1;
+        while ( stripes < processors * 2 && stripes < 64 )
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    void increment()
+    {
+        add( 1 );
+    }
+
+    void add( long delta )
+    {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes.addAndGet( stripe * PADDING, delta );
+    }
+
+    long get()
+    {
+        long sum = 0;
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            sum += stripes.get( i * PADDING );
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.management;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+public final class CacheMetricsInfo implements Serializable
+{
+    private static final long serialVersionUID = 4917382096374520167L;
+
+    private final String name;
+    private final long size;
+    private final long maxSize;
+    private final long hits;
+    private final long misses;
+    private final long purges;
+    private final double hitRatio;
+    private final double hitsPerSecond;
+    private final double missesPerSecond;
+    private final double putsPerSecond;
+    private final double collisionsPerSecond;
+    private final long purgeTimeMillis;
+    private final long[] purgeTimeHistogram;
+
+    @ConstructorProperties( { "name", "size", "maxSize", "hits", "misses", "purges", "hitRatio", "hitsPerSecond",
+            "missesPerSecond", "putsPerSecond", "collisionsPerSecond", "purgeTimeMillis", "purgeTimeHistogram" } )
+    public CacheMetricsInfo( String name, long size, long maxSize, long hits, long misses, long purges,
+            double hitRatio, double hitsPerSecond, double missesPerSecond, double putsPerSecond,
+            double collisionsPerSecond, long purgeTimeMillis, long[] purgeTimeHistogram )
+    {
+        this.name = name;
+        this.size = size;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.purges = purges;
+        this.hitRatio = hitRatio;
+        this.hitsPerSecond = hitsPerSecond;
+        this.missesPerSecond = missesPerSecond;
+        this.putsPerSecond = putsPerSecond;
+        this.collisionsPerSecond = collisionsPerSecond;
+        this.purgeTimeMillis = purgeTimeMillis;
+        this.purgeTimeHistogram = purgeTimeHistogram;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of hits since startup.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of misses since startup.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the number of purges since startup.
+     */
+    public long getPurges()
+    {
+        return purges;
+    }
+
+    /**
+     * @return the fraction of gets that were hits during the last interval,
+     * NaN if there were none.
+     */
+    public double getHitRatio()
+    {
+        return hitRatio;
+    }
+
+    public double getHitsPerSecond()
+    {
+        return hitsPerSecond;
+    }
+
+    public double getMissesPerSecond()
+    {
+        return missesPerSecond;
+    }
+
+    public double getPutsPerSecond()
+    {
+        return putsPerSecond;
+    }
+
+    public double getCollisionsPerSecond()
+    {
+        return collisionsPerSecond;
+    }
+
+    /**
+     * @return the time spent purging during the last interval.
+     */
+    public long getPurgeTimeMillis()
+    {
+        return purgeTimeMillis;
+    }
+
+    /**
+     * @return the number of purges since startup which took at most 1, 10,
+     * 100 and 1000 ms respectively, and last the number of purges that took
+     * longer than that.
+     */
+    public long[] getPurgeTimeHistogram()
+    {
+        return purgeTimeHistogram;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " size:" + size + "/" + maxSize + " hit ratio:" + hitRatio + " purges:" + purges;
+    }
+}
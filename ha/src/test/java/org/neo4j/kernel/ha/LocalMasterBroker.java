@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.ha.zookeeper.Machine;
+
+/**
+ * A slave's view of the cluster where the master is an in-process {@link Master},
+ * f.ex. a {@link MasterImpl} running on another local database.
+ */
+public class LocalMasterBroker extends AbstractBroker
+{
+    private final Master master;
+
+    public LocalMasterBroker( Master master )
+    {
+        super( null );
+        this.master = master;
+    }
+
+    @Override
+    public int getMyMachineId()
+    {
+        return 2;
+    }
+
+    @Override
+    public Pair<Master, Machine> getMaster()
+    {
+        return Pair.<Master, Machine>of( master, new Machine( 1, 0, 1, -1, null, 0 ) );
+    }
+
+    @Override
+    public Pair<Master, Machine> getMasterReally( boolean allowChange )
+    {
+        return getMaster();
+    }
+
+    @Override
+    public boolean iAmMaster()
+    {
+        return false;
+    }
+
+    @Override
+    public Object instantiateMasterServer( GraphDatabaseAPI graphDb )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object instantiateSlaveServer( GraphDatabaseAPI graphDb, SlaveDatabaseOperations ops )
+    {
+        throw new UnsupportedOperationException();
+    }
+}
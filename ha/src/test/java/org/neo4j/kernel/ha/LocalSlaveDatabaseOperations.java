@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.io.IOException;
+
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.Response;
+import org.neo4j.com.ServerUtil;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+/**
+ * Applies what a master sends straight to a local database, the way a slave
+ * would, and counts the responses it gets.
+ */
+public class LocalSlaveDatabaseOperations implements SlaveDatabaseOperations
+{
+    private final GraphDatabaseAPI db;
+    private volatile int received;
+
+    public LocalSlaveDatabaseOperations( GraphDatabaseAPI db )
+    {
+        this.db = db;
+    }
+
+    @Override
+    public RequestContext getSlaveContext( int eventIdentifier )
+    {
+        XaDataSource dataSource = db.getXaDataSourceManager().getNeoStoreDataSource();
+        return new RequestContext( 0, 2, eventIdentifier, new RequestContext.Tx[] {
+                RequestContext.lastAppliedTx( dataSource.getName(), dataSource.getLastCommittedTxId() ) }, 1, 0 );
+    }
+
+    @Override
+    public <T> T receive( Response<T> response )
+    {
+        try
+        {
+            ServerUtil.applyReceivedTransactions( response, db, ServerUtil.NO_ACTION );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        received++;
+        return response.response();
+    }
+
+    public int received()
+    {
+        return received;
+    }
+
+    @Override
+    public void exceptionHappened( RuntimeException e )
+    {
+        throw e;
+    }
+
+    @Override
+    public int getMasterForTx( long tx )
+    {
+        return 1;
+    }
+
+    @Override
+    public void handle( Exception e )
+    {
+    }
+}
@@ -22,6 +22,7 @@ package org.neo4j.kernel.ha;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.junit.Assert.assertEquals;
 import static org.neo4j.kernel.ha.SlavePriorities.givenOrder;
 import static org.neo4j.kernel.ha.SlavePriorities.roundRobin;
@@ -32,6 +33,8 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.neo4j.com.ResourceReleaser;
@@ -51,6 +54,8 @@ import org.neo4j.test.TargetDirectory;
 
 public class TestMasterCommittingAtSlave
 {
+    private static final long TIMEOUT_SECONDS = 10;
+
     FakeSlave[] slaves;
     XaDataSource dataSource;
     Broker broker;
@@ -156,6 +161,49 @@ public class TestMasterCommittingAtSlave
         assertFailureLogs();
     }
     
+    @Test
+    public void commitsWhileAPushIsInFlightShareTheNextPush() throws Exception
+    {
+        BlockingFakeSlave slave = new BlockingFakeSlave( 0 );
+        MasterTxIdGenerator generator = newGenerator( new FakeSlave[] { slave }, 1, givenOrder() );
+        Collection<Thread> committers = new ArrayList<Thread>();
+        try
+        {
+            committers.add( commitInThread( generator, 2 ) );
+            assertTrue( "First push never reached the slave", slave.pushing.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+            for ( long tx = 3; tx <= 5; tx++ )
+                committers.add( commitInThread( generator, tx ) );
+            awaitCommittersWaitingForPush( generator, 3 );
+        }
+        finally
+        {
+            slave.release.countDown();
+        }
+        for ( Thread committer : committers )
+        {
+            committer.join( TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS ) );
+            assertFalse( committer + " never completed", committer.isAlive() );
+        }
+
+        assertCalls( slave, 2, 5 );
+        assertNoFailureLogs();
+    }
+    
+    @Test
+    public void pushersOfSlavesThatLeftAreDropped() throws Exception
+    {
+        MasterTxIdGenerator generator = newGenerator( 3, 3, givenOrder() );
+        generator.committed( dataSource, 0, 2, null );
+        assertEquals( 3, generator.getPusherCount() );
+
+        ((FakeBroker) broker).slaves = new Slave[] { slaves[0], slaves[2] };
+        generator.committed( dataSource, 0, 3, null );
+        assertEquals( 2, generator.getPusherCount() );
+        assertCalls( slaves[0], 2, 3 );
+        assertCalls( slaves[1], 2 );
+        assertCalls( slaves[2], 2, 3 );
+    }
+    
     @Test
     public void testFixedPriorityStrategy()
     {
@@ -192,10 +240,43 @@ public class TestMasterCommittingAtSlave
         assertFalse( slave.moreTxs() );
     }
 
+    private Thread commitInThread( final MasterTxIdGenerator generator, final long txId )
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                generator.committed( dataSource, 0, txId, null );
+            }
+        };
+        thread.start();
+        return thread;
+    }
+    
+    private void awaitCommittersWaitingForPush( MasterTxIdGenerator generator, int count )
+            throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS );
+        int waiting;
+        while ( (waiting = generator.getWaitingCommitterCount()) < count )
+        {
+            if ( System.currentTimeMillis() > end )
+                fail( "Only " + waiting + " of " + count + " committers started waiting for the push" );
+            Thread.sleep( 10 );
+        }
+    }
+
     private MasterTxIdGenerator newGenerator( int slaveCount, int replication, SlavePriority priority,
             boolean... failingSlaves ) throws Exception
     {
-        slaves = instantiateSlaves( slaveCount, failingSlaves );
+        return newGenerator( instantiateSlaves( slaveCount, failingSlaves ), replication, priority );
+    }
+    
+    private MasterTxIdGenerator newGenerator( FakeSlave[] slaves, int replication, SlavePriority priority )
+            throws Exception
+    {
+        this.slaves = slaves;
         dataSource = new FakeDataSource();
         
         broker = new FakeBroker( slaves );
@@ -255,7 +336,7 @@ public class TestMasterCommittingAtSlave
 
     private static class FakeBroker extends AbstractBroker
     {
-        private final Slave[] slaves;
+        private volatile Slave[] slaves;
 
         FakeBroker( Slave[] slaves )
         {
@@ -328,6 +409,17 @@ public class TestMasterCommittingAtSlave
             return new Response<Void>( null, new StoreId(), TransactionStream.EMPTY, ResourceReleaser.NO_OP );
         }
         
+        @Override
+        public Response<Void> pushTransactions( String resource, TransactionStream transactions )
+        {
+            if ( failing )
+                throw new RuntimeException( "Told to fail" );
+            
+            while ( transactions.hasNext() )
+                calledWithTxId.add( transactions.next().second() );
+            return new Response<Void>( null, new StoreId(), TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+        }
+        
         Long popCalledTx()
         {
             return calledWithTxId.poll();
@@ -351,6 +443,33 @@ public class TestMasterCommittingAtSlave
         }
     }
     
+    private static class BlockingFakeSlave extends FakeSlave
+    {
+        private final CountDownLatch pushing = new CountDownLatch( 1 );
+        private final CountDownLatch release = new CountDownLatch( 1 );
+        
+        BlockingFakeSlave( int serverId )
+        {
+            super( false, serverId );
+        }
+        
+        @Override
+        public Response<Void> pullUpdates( String resource, long txId )
+        {
+            pushing.countDown();
+            try
+            {
+                if ( !release.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) )
+                    throw new RuntimeException( "Never released" );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new RuntimeException( e );
+            }
+            return super.pullUpdates( resource, txId );
+        }
+    }
+    
     private static class FakeStringLogger extends StringLogger
     {
         private volatile boolean anyMessageLogged;
@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.RagManager;
+import org.neo4j.test.TargetDirectory;
+
+public class TestMasterLocksForSlaves
+{
+    private static final int TIMEOUT_SECONDS = 60;
+
+    private GraphDatabaseAPI db;
+    private RecordingLockManager lockManager;
+    private MasterImpl master;
+    private int eventIdentifier;
+
+    @Before
+    public void before()
+    {
+        db = new RecordingLockDatabase( TargetDirectory.forTest( getClass() ).directory( "db", true )
+                .getAbsolutePath() );
+        lockManager = (RecordingLockManager) db.getLockManager();
+        master = new MasterImpl( db, TIMEOUT_SECONDS );
+    }
+
+    @After
+    public void after()
+    {
+        master.shutdown();
+        db.shutdown();
+    }
+
+    @Test
+    public void locksAreHeldUntilTheSlaveTransactionFinishes() throws Exception
+    {
+        RequestContext context = beginTx();
+        assertLocked( master.acquireNodeWriteLock( context, 1, 2 ).response() );
+        assertLocked( master.acquireRelationshipReadLock( context, 1 ).response() );
+        assertEquals( asList( node( 1 ), node( 2 ), relationship( 1 ) ), lockManager.held() );
+
+        master.finishTransaction( context, true );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+    }
+
+    @Test
+    public void locksAreReleasedWhenTheSlaveTransactionTimesOut() throws Exception
+    {
+        RequestContext context = beginTx();
+        assertLocked( master.acquireNodeWriteLock( context, 1, 2 ).response() );
+
+        long later = System.currentTimeMillis() + (TIMEOUT_SECONDS + 1) * 1000L;
+        assertEquals( -1, master.unfinishedTransactionFinisher().expired( context, later ) );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+        assertTrue( master.getOngoingTransactions().isEmpty() );
+    }
+
+    @Test
+    public void locksGrabbedByAFailedBatchAreReleased() throws Exception
+    {
+        RequestContext context = beginTx();
+        assertLocked( master.acquireNodeWriteLock( context, 1 ).response() );
+
+        lockManager.failOn( node( 3 ) );
+        assertEquals( LockStatus.DEAD_LOCKED, master.acquireNodeWriteLock( context, 2, 3, 4 ).response()
+                .getStatus() );
+        assertEquals( "Only the locks of earlier batches should be held", asList( node( 1 ) ), lockManager.held() );
+
+        master.finishTransaction( context, false );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+    }
+
+    @Test
+    public void batchIsGrabbedInIdOrderWithoutDuplicates() throws Exception
+    {
+        RequestContext context = beginTx();
+        assertLocked( master.acquireNodeWriteLock( context, 3, 1, 3, 2, 1 ).response() );
+        assertLocked( master.acquireRelationshipWriteLock( context, 7, 5, 7 ).response() );
+        assertEquals( asList( node( 1 ), node( 2 ), node( 3 ), relationship( 5 ), relationship( 7 ) ),
+                lockManager.grabbed() );
+
+        master.finishTransaction( context, true );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+    }
+
+    @Test
+    public void deadlockPartwayThroughAnUnsortedBatchLeavesNoLocksHeld() throws Exception
+    {
+        RequestContext context = beginTx();
+        lockManager.failOn( node( 5 ) );
+        assertEquals( LockStatus.DEAD_LOCKED, master.acquireNodeWriteLock( context, 5, 3, 5, 4 ).response()
+                .getStatus() );
+        assertEquals( asList( node( 3 ), node( 4 ) ), lockManager.grabbed() );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+
+        master.finishTransaction( context, false );
+        assertEquals( Collections.emptyList(), lockManager.held() );
+    }
+
+    @Test
+    public void lockingForAnUnknownTransactionFails() throws Exception
+    {
+        try
+        {
+            master.acquireNodeWriteLock( newContext(), 1 );
+            fail( "Shouldn't be able to lock for a transaction the master doesn't know of" );
+        }
+        catch ( IllegalStateException e )
+        {   // Good
+        }
+        assertEquals( Collections.emptyList(), lockManager.held() );
+    }
+
+    @Test
+    public void finishingAnUnknownTransactionFails() throws Exception
+    {
+        try
+        {
+            master.finishTransaction( newContext(), true );
+            fail( "Shouldn't be able to finish a transaction the master doesn't know of" );
+        }
+        catch ( IllegalStateException e )
+        {   // Good
+        }
+    }
+
+    private RequestContext newContext()
+    {
+        return new RequestContext( 0, 1, ++eventIdentifier, new RequestContext.Tx[0], 0, 0 );
+    }
+
+    private RequestContext beginTx()
+    {
+        RequestContext context = newContext();
+        master.initializeTx( context );
+        return context;
+    }
+
+    private static void assertLocked( LockResult result )
+    {
+        assertEquals( result.toString(), LockStatus.OK_LOCKED, result.getStatus() );
+    }
+
+    private static Object node( long id )
+    {
+        return new LockableNode( id );
+    }
+
+    private static Object relationship( long id )
+    {
+        return new LockableRelationship( id );
+    }
+
+    private static class RecordingLockDatabase extends EmbeddedGraphDatabase
+    {
+        RecordingLockDatabase( String storeDir )
+        {
+            super( storeDir );
+        }
+
+        @Override
+        protected LockManager createLockManager()
+        {
+            return new RecordingLockManager( ragManager );
+        }
+    }
+
+    /**
+     * Keeps track of the locks grabbed for slaves, in the order they were
+     * grabbed, and can be told to fail on a resource as if grabbing it would
+     * deadlock.
+     */
+    private static class RecordingLockManager extends LockManager
+    {
+        private final List<Object> grabbed = new ArrayList<Object>();
+        private final List<Object> held = new ArrayList<Object>();
+        private volatile Object failOn;
+
+        RecordingLockManager( RagManager ragManager )
+        {
+            super( ragManager );
+        }
+
+        void failOn( Object resource )
+        {
+            this.failOn = resource;
+        }
+
+        @Override
+        public void getReadLock( Object resource, Transaction tx )
+        {
+            failIfToldTo( resource );
+            super.getReadLock( resource, tx );
+            grabbed( resource );
+        }
+
+        @Override
+        public void getWriteLock( Object resource, Transaction tx )
+        {
+            failIfToldTo( resource );
+            super.getWriteLock( resource, tx );
+            grabbed( resource );
+        }
+
+        @Override
+        public void releaseReadLock( Object resource, Transaction tx )
+        {
+            super.releaseReadLock( resource, tx );
+            released( resource );
+        }
+
+        @Override
+        public void releaseWriteLock( Object resource, Transaction tx )
+        {
+            super.releaseWriteLock( resource, tx );
+            released( resource );
+        }
+
+        private void failIfToldTo( Object resource )
+        {
+            if ( resource.equals( failOn ) )
+            {
+                throw new DeadlockDetectedException( "Told to fail on " + resource );
+            }
+        }
+
+        private synchronized void grabbed( Object resource )
+        {
+            if ( isForSlave( resource ) )
+            {
+                grabbed.add( resource );
+                held.add( resource );
+            }
+        }
+
+        private synchronized void released( Object resource )
+        {
+            if ( isForSlave( resource ) ) held.remove( resource );
+        }
+
+        private static boolean isForSlave( Object resource )
+        {
+            return resource instanceof LockableNode || resource instanceof LockableRelationship;
+        }
+
+        synchronized List<Object> grabbed()
+        {
+            return new ArrayList<Object>( grabbed );
+        }
+
+        synchronized List<Object> held()
+        {
+            return new ArrayList<Object>( held );
+        }
+    }
+}
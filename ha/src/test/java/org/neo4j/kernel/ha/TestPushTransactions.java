@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.kernel.ha.MasterTxIdGenerator.MAX_PUSHED_TRANSACTIONS;
+import static org.neo4j.kernel.ha.SlavePriorities.givenOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.ExecutionMode;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.Response;
+import org.neo4j.com.ServerUtil;
+import org.neo4j.com.TransactionCache;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.test.TargetDirectory;
+
+public class TestPushTransactions
+{
+    private static final int MAX_TRANSACTIONS_PER_RESPONSE = 2;
+
+    private GraphDatabaseAPI masterDb;
+    private GraphDatabaseAPI slaveDb;
+    private MasterImpl master;
+    private volatile int masterPulls;
+    private SlaveImpl slaveImpl;
+    private RecordingSlave slave;
+    private MasterTxIdGenerator generator;
+
+    @Before
+    public void before() throws Throwable
+    {
+        TargetDirectory dir = TargetDirectory.forTest( getClass() );
+        masterDb = new EmbeddedGraphDatabase( dir.directory( "master", true ).getAbsolutePath() );
+        slaveDb = new EmbeddedGraphDatabase( dir.directory( "slave", true ).getAbsolutePath() );
+        master = new MasterImpl( masterDb, 60, new TransactionCache(), MAX_TRANSACTIONS_PER_RESPONSE )
+        {
+            @Override
+            public Response<Void> pullUpdates( RequestContext context )
+            {
+                masterPulls++;
+                return super.pullUpdates( context );
+            }
+        };
+        slaveImpl = new SlaveImpl( slaveDb, new LocalMasterBroker( master ),
+                new LocalSlaveDatabaseOperations( slaveDb ) );
+        slave = new RecordingSlave( slaveImpl );
+        Broker masterBroker = new LocalMasterBroker( master )
+        {
+            @Override
+            public Slave[] getSlaves()
+            {
+                return new Slave[] { slave };
+            }
+        };
+        generator = new MasterTxIdGenerator( masterBroker, 1, givenOrder(), StringLogger.DEV_NULL, true,
+                new TransactionCache(), ExecutionMode.PLATFORM );
+        generator.init();
+        generator.start();
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+    }
+
+    @After
+    public void after() throws Throwable
+    {
+        generator.stop();
+        generator.shutdown();
+        master.shutdown();
+        slaveDb.shutdown();
+        masterDb.shutdown();
+    }
+
+    @Test
+    public void pushedTransactionsAreAppliedOnTheSlave() throws Exception
+    {
+        // The master doesn't know where a new slave is at, so the first one is a ping
+        replicate( createTransactions( masterDb, 1 ) );
+        assertEquals( 1, slave.pulls );
+        assertEquals( 0, slave.pushes );
+
+        replicate( createTransactions( masterDb, 3 ) );
+        assertEquals( 1, slave.pulls );
+        assertEquals( 1, slave.pushes );
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+        assertEquals( "Pushed transactions shouldn't be pulled as well", 1, masterPulls );
+    }
+
+    @Test
+    public void transactionsTheSlaveAlreadyHasAreSkipped() throws Exception
+    {
+        long firstPushed = lastTxId( slaveDb ) + 1;
+        slaveImpl.pullUpdates( dataSourceName(), createTransactions( masterDb, 2 ) ).close();
+        long lastPushed = createTransactions( masterDb, 2 );
+        int pullsBefore = masterPulls;
+
+        push( firstPushed, lastPushed );
+        assertEquals( lastPushed, lastTxId( slaveDb ) );
+        assertEquals( pullsBefore, masterPulls );
+    }
+
+    @Test
+    public void gapBeforeThePushedTransactionsIsPulledFromTheMaster() throws Exception
+    {
+        long firstPushed = createTransactions( masterDb, 2 ) + 1;
+        long lastPushed = createTransactions( masterDb, 3 );
+
+        push( firstPushed, lastPushed );
+        assertEquals( "The slave should pull up to the last pushed transaction",
+                lastPushed, lastTxId( slaveDb ) );
+        assertEquals( 3, masterPulls );
+    }
+
+    @Test
+    public void tooManyTransactionsForOnePushArePulledInstead() throws Exception
+    {
+        replicate( createTransactions( masterDb, 1 ) );
+        replicate( createTransactions( masterDb, MAX_PUSHED_TRANSACTIONS + 1 ) );
+        assertEquals( 2, slave.pulls );
+        assertEquals( 0, slave.pushes );
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+
+        replicate( createTransactions( masterDb, MAX_PUSHED_TRANSACTIONS ) );
+        assertEquals( 2, slave.pulls );
+        assertEquals( 1, slave.pushes );
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+    }
+
+    private void replicate( long txId )
+    {
+        generator.committed( masterDataSource(), 0, txId, null );
+    }
+
+    private void push( long fromTxId, long toTxId )
+    {
+        TransactionStream transactions = ServerUtil.getTransactionStream( masterDataSource(), fromTxId, toTxId, null );
+        try
+        {
+            slaveImpl.pushTransactions( dataSourceName(), transactions ).close();
+        }
+        finally
+        {
+            transactions.close();
+        }
+    }
+
+    private XaDataSource masterDataSource()
+    {
+        return masterDb.getXaDataSourceManager().getNeoStoreDataSource();
+    }
+
+    private String dataSourceName()
+    {
+        return masterDataSource().getName();
+    }
+
+    private static long lastTxId( GraphDatabaseAPI db )
+    {
+        return db.getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId();
+    }
+
+    private static long createTransactions( GraphDatabaseAPI db, int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            Transaction tx = db.beginTx();
+            try
+            {
+                db.createNode();
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        return lastTxId( db );
+    }
+
+    private static class RecordingSlave implements Slave
+    {
+        private final Slave slave;
+        private volatile int pulls;
+        private volatile int pushes;
+
+        RecordingSlave( Slave slave )
+        {
+            this.slave = slave;
+        }
+
+        @Override
+        public Response<Void> pullUpdates( String resource, long upToAndIncludingTxId )
+        {
+            pulls++;
+            return slave.pullUpdates( resource, upToAndIncludingTxId );
+        }
+
+        @Override
+        public Response<Void> pushTransactions( String resource, TransactionStream transactions )
+        {
+            pushes++;
+            return slave.pushTransactions( resource, transactions );
+        }
+
+        @Override
+        public int getServerId()
+        {
+            return slave.getServerId();
+        }
+    }
+}
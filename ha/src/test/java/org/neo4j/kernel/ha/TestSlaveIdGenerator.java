@@ -0,0 +1,460 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.ResourceReleaser;
+import org.neo4j.com.Response;
+import org.neo4j.com.StoreWriter;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.com.TxExtractor;
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.IdType;
+import org.neo4j.kernel.ha.zookeeper.Machine;
+import org.neo4j.kernel.impl.nioneo.store.IdGenerator;
+import org.neo4j.kernel.impl.nioneo.store.IdRange;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestSlaveIdGenerator
+{
+    private static final int RANGE_LENGTH = 10;
+
+    private FakeMaster master;
+    private FakeBroker broker;
+    private FakeDatabaseOperations databaseOperations;
+    private HoldingExecutor prefetcher;
+    private SlaveIdGenerator generator;
+
+    @Before
+    public void before()
+    {
+        master = new FakeMaster( 1, 0 );
+        broker = new FakeBroker( master );
+        databaseOperations = new FakeDatabaseOperations();
+        prefetcher = new HoldingExecutor();
+        generator = new SlaveIdGenerator( IdType.NODE, 0, broker, databaseOperations, new FakeIdGenerator(),
+                prefetcher, StringLogger.DEV_NULL );
+    }
+
+    @Test
+    public void nextRangeIsPrefetchedBeforeTheCurrentOneRunsOut() throws Exception
+    {
+        assertEquals( 0, generator.nextId() );
+        assertEquals( 1, master.allocations );
+
+        prefetcher.hold();
+        int idsTaken = 1;
+        while ( !prefetcher.hasHeld() )
+        {
+            assertEquals( idsTaken, generator.nextId() );
+            idsTaken++;
+        }
+        assertTrue( "Should prefetch with ids left, but took " + idsTaken, idsTaken < RANGE_LENGTH );
+        assertEquals( "Grab should be on the prefetcher, not on the caller", 1, master.allocations );
+
+        prefetcher.runHeld();
+        assertEquals( 2, master.allocations );
+    }
+
+    @Test
+    public void prefetchedRangeIsUsedWithoutWaitingForTheMaster() throws Exception
+    {
+        assertEquals( 0, generator.nextId() );
+        prefetcher.hold();
+        long id = 1;
+        while ( !prefetcher.hasHeld() )
+        {
+            assertEquals( id++, generator.nextId() );
+        }
+        prefetcher.runHeld();
+
+        // Any grab from here on is only held, so nothing is waited for
+        while ( id <= RANGE_LENGTH )
+        {
+            assertEquals( id++, generator.nextId() );
+        }
+        assertEquals( 2, master.allocations );
+    }
+
+    @Test
+    public void failedPrefetchIsThrownToTheCallerThatRunsOut() throws Exception
+    {
+        assertEquals( 0, generator.nextId() );
+        master.failing = true;
+        prefetcher.hold();
+        while ( !prefetcher.hasHeld() )
+        {
+            generator.nextId();
+        }
+        prefetcher.runAll();
+
+        try
+        {
+            for ( int i = 0; i < RANGE_LENGTH; i++ )
+            {
+                generator.nextId();
+            }
+            fail( "Should have thrown the failure of the grab when running out" );
+        }
+        catch ( RuntimeException e )
+        {
+            assertSame( master.failure, e );
+        }
+        assertSame( master.failure, databaseOperations.exception );
+    }
+
+    @Test
+    public void prefetchedRangesAreDroppedWhenTheMasterChanges() throws Exception
+    {
+        assertEquals( 0, generator.nextId() );
+        prefetcher.hold();
+        while ( !prefetcher.hasHeld() )
+        {
+            generator.nextId();
+        }
+
+        FakeMaster newMaster = new FakeMaster( 2, 1000 );
+        broker.master = newMaster;
+        generator.forgetIdAllocationFromMaster();
+        prefetcher.runHeld(); // Arrives from the old master after it's been forgotten
+        assertEquals( 2, master.allocations );
+
+        prefetcher.runAll();
+        assertEquals( 1000, generator.nextId() );
+        assertEquals( 1, newMaster.allocations );
+    }
+
+    private static class HoldingExecutor implements Executor
+    {
+        private final Queue<Runnable> held = new LinkedList<Runnable>();
+        private boolean holding;
+
+        @Override
+        public void execute( Runnable command )
+        {
+            if ( holding ) held.add( command );
+            else command.run();
+        }
+
+        void hold()
+        {
+            holding = true;
+        }
+
+        void runAll()
+        {
+            holding = false;
+            runHeld();
+        }
+
+        boolean hasHeld()
+        {
+            return !held.isEmpty();
+        }
+
+        void runHeld()
+        {
+            while ( !held.isEmpty() )
+            {
+                held.poll().run();
+            }
+        }
+    }
+
+    private static class FakeMaster implements Master
+    {
+        private final int machineId;
+        private long nextRangeStart;
+        private volatile int allocations;
+        private volatile boolean failing;
+        private final RuntimeException failure = new RuntimeException( "Told to fail" );
+
+        FakeMaster( int machineId, long firstId )
+        {
+            this.machineId = machineId;
+            this.nextRangeStart = firstId;
+        }
+
+        @Override
+        public synchronized Response<IdAllocation> allocateIds( IdType idType )
+        {
+            allocations++;
+            if ( failing ) throw failure;
+            IdRange range = new IdRange( new long[0], nextRangeStart, RANGE_LENGTH );
+            nextRangeStart += RANGE_LENGTH;
+            return new Response<IdAllocation>( new IdAllocation( range, nextRangeStart, 0 ), new StoreId(),
+                    TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+        }
+
+        @Override
+        public Response<Integer> createRelationshipType( RequestContext context, String name )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> initializeTx( RequestContext context )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireNodeWriteLock( RequestContext context, long... nodes )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireNodeReadLock( RequestContext context, long... nodes )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireGraphWriteLock( RequestContext context )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireGraphReadLock( RequestContext context )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireRelationshipWriteLock( RequestContext context, long... relationships )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireRelationshipReadLock( RequestContext context, long... relationships )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Long> commitSingleResourceTransaction( RequestContext context, String resource,
+                TxExtractor txGetter )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> finishTransaction( RequestContext context, boolean success )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> pullUpdates( RequestContext context )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Pair<Integer, Long>> getMasterIdForCommittedTx( long txId, StoreId myStoreId )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> copyStore( RequestContext context, StoreWriter writer )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> copyTransactions( RequestContext context, String dsName, long startTxId,
+                long endTxId )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown()
+        {
+        }
+
+        @Override
+        public Response<LockResult> acquireIndexWriteLock( RequestContext context, String index, String key )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<LockResult> acquireIndexReadLock( RequestContext context, String index, String key )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Response<Void> pushTransaction( RequestContext context, String resourceName, long tx )
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class FakeBroker extends AbstractBroker
+    {
+        private volatile FakeMaster master;
+
+        FakeBroker( FakeMaster master )
+        {
+            super( null );
+            this.master = master;
+        }
+
+        @Override
+        public Pair<Master, Machine> getMaster()
+        {
+            return Pair.<Master, Machine>of( master, new Machine( master.machineId, 0, 1, master.machineId,
+                    null, -1 ) );
+        }
+
+        @Override
+        public Pair<Master, Machine> getMasterReally( boolean allowChange )
+        {
+            return getMaster();
+        }
+
+        @Override
+        public boolean iAmMaster()
+        {
+            return false;
+        }
+
+        @Override
+        public Object instantiateMasterServer( GraphDatabaseAPI graphDb )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object instantiateSlaveServer( GraphDatabaseAPI graphDb, SlaveDatabaseOperations ops )
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class FakeDatabaseOperations implements SlaveDatabaseOperations
+    {
+        private volatile RuntimeException exception;
+
+        @Override
+        public RequestContext getSlaveContext( int eventIdentifier )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T receive( Response<T> response )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void exceptionHappened( RuntimeException e )
+        {
+            exception = e;
+        }
+
+        @Override
+        public int getMasterForTx( long tx )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void handle( Exception e )
+        {
+        }
+    }
+
+    private static class FakeIdGenerator implements IdGenerator
+    {
+        private long highId;
+
+        @Override
+        public long nextId()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IdRange nextIdBatch( int size )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setHighId( long id )
+        {
+            highId = id;
+        }
+
+        @Override
+        public long getHighId()
+        {
+            return highId;
+        }
+
+        @Override
+        public void freeId( long id )
+        {
+        }
+
+        @Override
+        public void close( boolean shutdown )
+        {
+        }
+
+        @Override
+        public long getNumberOfIdsInUse()
+        {
+            return highId;
+        }
+
+        @Override
+        public long getDefragCount()
+        {
+            return 0;
+        }
+
+        @Override
+        public void delete()
+        {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.TransactionCache;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.test.TargetDirectory;
+
+public class TestTransactionsPerResponse
+{
+    private static final int MAX_TRANSACTIONS_PER_RESPONSE = 2;
+
+    private GraphDatabaseAPI masterDb;
+    private GraphDatabaseAPI slaveDb;
+    private MasterImpl master;
+    private LocalSlaveDatabaseOperations slaveOperations;
+
+    @Before
+    public void before()
+    {
+        TargetDirectory dir = TargetDirectory.forTest( getClass() );
+        masterDb = new EmbeddedGraphDatabase( dir.directory( "master", true ).getAbsolutePath() );
+        slaveDb = new EmbeddedGraphDatabase( dir.directory( "slave", true ).getAbsolutePath() );
+        master = new MasterImpl( masterDb, 60, new TransactionCache(), MAX_TRANSACTIONS_PER_RESPONSE );
+        slaveOperations = new LocalSlaveDatabaseOperations( slaveDb );
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+    }
+
+    @After
+    public void after()
+    {
+        master.shutdown();
+        slaveDb.shutdown();
+        masterDb.shutdown();
+    }
+
+    @Test
+    public void pullingUpdatesBringsAtMostTheCappedNumberOfTransactions() throws Exception
+    {
+        long base = lastTxId( slaveDb );
+        createTransactions( masterDb, 5 );
+
+        slaveOperations.receive( master.pullUpdates( slaveOperations.getSlaveContext( 0 ) ) );
+        assertEquals( base + MAX_TRANSACTIONS_PER_RESPONSE, lastTxId( slaveDb ) );
+    }
+
+    @Test
+    public void lockGrantAfterACappedPullBringsTheSlaveAllTheWayUpToDate() throws Exception
+    {
+        long base = lastTxId( slaveDb );
+        createTransactions( masterDb, 5 );
+        slaveOperations.receive( master.pullUpdates( slaveOperations.getSlaveContext( 0 ) ) );
+        assertEquals( base + MAX_TRANSACTIONS_PER_RESPONSE, lastTxId( slaveDb ) );
+
+        slaveOperations.receive( master.initializeTx( slaveOperations.getSlaveContext( 1 ) ) );
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+
+        createTransactions( masterDb, 5 );
+        RequestContext context = slaveOperations.getSlaveContext( 1 );
+        LockResult result = slaveOperations.receive( master.acquireNodeWriteLock( context, 0 ) );
+        assertEquals( LockStatus.OK_LOCKED, result.getStatus() );
+        assertEquals( "A slave must see the latest state of what it locks",
+                lastTxId( masterDb ), lastTxId( slaveDb ) );
+        master.finishTransaction( context, false ).close();
+    }
+
+    @Test
+    public void slaveKeepsPullingUntilItHasTheTransactionsItAskedFor() throws Exception
+    {
+        createTransactions( masterDb, 5 );
+        SlaveImpl slave = new SlaveImpl( slaveDb, new LocalMasterBroker( master ), slaveOperations );
+
+        slave.pullUpdates( dataSourceName(), lastTxId( masterDb ) ).close();
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+        assertEquals( 3, slaveOperations.received() );
+    }
+
+    @Test
+    public void slaveStopsPullingWhenTheMasterHasNothingMore() throws Exception
+    {
+        createTransactions( masterDb, 3 );
+        SlaveImpl slave = new SlaveImpl( slaveDb, new LocalMasterBroker( master ), slaveOperations );
+
+        slave.pullUpdates( dataSourceName(), lastTxId( masterDb ) + 10 ).close();
+        assertEquals( lastTxId( masterDb ), lastTxId( slaveDb ) );
+        assertEquals( "Two pulls with transactions and one that came back empty", 3,
+                slaveOperations.received() );
+    }
+
+    private String dataSourceName()
+    {
+        return slaveDb.getXaDataSourceManager().getNeoStoreDataSource().getName();
+    }
+
+    private static long lastTxId( GraphDatabaseAPI db )
+    {
+        return db.getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId();
+    }
+
+    private static void createTransactions( GraphDatabaseAPI db, int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            Transaction tx = db.beginTx();
+            try
+            {
+                db.createNode();
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+    }
+}
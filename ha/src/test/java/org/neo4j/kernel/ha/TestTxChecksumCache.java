@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.impl.transaction.xaframework.XaConnection;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+public class TestTxChecksumCache
+{
+    @Test
+    public void secondLookupOfATxIsAHit() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache();
+        CountingDataSource dataSource = new CountingDataSource();
+        assertEquals( Pair.of( 1, 10L ), cache.getMasterForCommittedTx( dataSource, 10 ) );
+        assertEquals( Pair.of( 1, 10L ), cache.getMasterForCommittedTx( dataSource, 10 ) );
+
+        assertEquals( 1, dataSource.lookups );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void anotherDataSourceStartsOver() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache();
+        CountingDataSource first = new CountingDataSource();
+        CountingDataSource second = new CountingDataSource();
+        cache.getMasterForCommittedTx( first, 10 );
+        cache.getMasterForCommittedTx( second, 10 );
+        cache.getMasterForCommittedTx( second, 10 );
+
+        assertEquals( 1, first.lookups );
+        assertEquals( 1, second.lookups );
+        assertEquals( 2, cache.getMisses() );
+    }
+
+    @Test
+    public void oldestTransactionsAreEvictedWhenFull() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache( 10 );
+        CountingDataSource dataSource = new CountingDataSource();
+        for ( long txId = 1; txId <= 11; txId++ )
+            cache.getMasterForCommittedTx( dataSource, txId );
+        cache.getMasterForCommittedTx( dataSource, 11 );
+        cache.getMasterForCommittedTx( dataSource, 1 );
+
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 12, dataSource.lookups );
+    }
+
+    private static class CountingDataSource extends XaDataSource
+    {
+        private int lookups;
+
+        CountingDataSource()
+        {
+            super( new byte[] { 0, 1, 2 }, "counting" );
+        }
+
+        @Override
+        public Pair<Integer, Long> getMasterForCommittedTx( long txId ) throws IOException
+        {
+            lookups++;
+            return Pair.of( 1, txId );
+        }
+
+        @Override
+        public XaConnection getXaConnection()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestCachedMachines
+{
+    private final CountingZooKeeperManager manager = new CountingZooKeeperManager();
+
+    @Test
+    public void cachedMachinesAreReusedWhileTheMembershipIsUnchanged() throws Exception
+    {
+        manager.getCachedMachines( false );
+        assertEquals( 1, manager.getCachedMachines( false ).size() );
+        assertEquals( 1, manager.reads );
+    }
+
+    @Test
+    public void cachedMachinesAreReadAgainWhenTheMembershipChanges() throws Exception
+    {
+        manager.getCachedMachines( false );
+        // As when a watch sees an instance join or leave
+        manager.membershipChanged();
+        manager.getCachedMachines( false );
+        assertEquals( 2, manager.reads );
+    }
+
+    @Test
+    public void cachedMachinesAreReadAgainWhenTheMasterIsInvalidated() throws Exception
+    {
+        manager.getCachedMachines( false );
+        manager.invalidateMaster();
+        manager.getCachedMachines( false );
+        assertEquals( 2, manager.reads );
+    }
+
+    @Test
+    public void cachedMachinesAreReadAgainWhenTooOld() throws Exception
+    {
+        manager.getCachedMachines( false );
+        Thread.sleep( 1100 );
+        manager.getCachedMachines( false );
+        assertEquals( 2, manager.reads );
+    }
+
+    @Test
+    public void allMachinesAreAlwaysRead() throws Exception
+    {
+        manager.getAllMachines( false );
+        manager.getAllMachines( false );
+        assertEquals( 2, manager.reads );
+    }
+
+    private static class CountingZooKeeperManager extends AbstractZooKeeperManager
+    {
+        private int reads;
+
+        CountingZooKeeperManager()
+        {
+            super( "localhost", StringLogger.DEV_NULL, 1000, null );
+        }
+
+        @Override
+        protected Map<Integer, ZooKeeperMachine> getAllMachinesInner( boolean wait, WaitMode mode )
+        {
+            reads++;
+            Map<Integer, ZooKeeperMachine> machines = new HashMap<Integer, ZooKeeperMachine>();
+            machines.put( 1, new ZooKeeperMachine( 1, 0, 1, 1, "localhost:6361", 6362, "1_0" ) );
+            return machines;
+        }
+
+        @Override
+        public ZooKeeper getZooKeeper( boolean sync )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getRoot()
+        {
+            return "/cluster";
+        }
+
+        @Override
+        protected int getMyMachineId()
+        {
+            return 1;
+        }
+
+        @Override
+        void waitForSyncConnected( WaitMode mode )
+        {
+        }
+    }
+}
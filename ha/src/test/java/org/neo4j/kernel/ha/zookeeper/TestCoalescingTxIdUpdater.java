@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha.zookeeper;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestCoalescingTxIdUpdater
+{
+    private final FakePublication publication = new FakePublication();
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void shutdownPublisher()
+    {
+        publisher.shutdownNow();
+    }
+
+    @Test
+    public void initPublishesTheLastCommittedTxRightAway() throws Exception
+    {
+        publication.committedTx = 5;
+        newUpdater( 60000 ).init();
+        assertEquals( asList( 5L ), publication.published );
+    }
+
+    @Test
+    public void commitsWithinAnIntervalArePublishedTogether() throws Exception
+    {
+        CoalescingTxIdUpdater updater = newUpdater( 100 );
+        updater.init();
+        for ( long tx = 2; tx <= 4; tx++ )
+            commit( updater, tx );
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( publication.published.size() < 2 && System.currentTimeMillis() < endTime )
+            Thread.sleep( 10 );
+        assertEquals( asList( 1L, 4L ), publication.published );
+    }
+
+    @Test
+    public void stopPublishesWhatIsPendingAndNothingAfterThat() throws Exception
+    {
+        CoalescingTxIdUpdater updater = newUpdater( 60000 );
+        updater.init();
+        commit( updater, 2 );
+        commit( updater, 3 );
+
+        // As when ZooClient replaces it
+        updater.stop();
+        assertEquals( asList( 1L, 3L ), publication.published );
+
+        commit( updater, 4 );
+        updater.run();
+        updater.stop();
+        assertEquals( asList( 1L, 3L ), publication.published );
+    }
+
+    @Test
+    public void stopWithNothingPendingPublishesNothing() throws Exception
+    {
+        CoalescingTxIdUpdater updater = newUpdater( 60000 );
+        updater.init();
+        updater.stop();
+        assertEquals( asList( 1L ), publication.published );
+    }
+
+    private CoalescingTxIdUpdater newUpdater( long interval )
+    {
+        return new CoalescingTxIdUpdater( publication, publisher, interval, StringLogger.DEV_NULL );
+    }
+
+    private void commit( CoalescingTxIdUpdater updater, long txId )
+    {
+        publication.committedTx = txId;
+        updater.updatedTxId( txId );
+    }
+
+    private static class FakePublication implements CoalescingTxIdUpdater.Publication
+    {
+        private volatile long committedTx = 1;
+        private final List<Long> published = Collections.synchronizedList( new ArrayList<Long>() );
+
+        @Override
+        public long getLastCommittedTx()
+        {
+            return committedTx;
+        }
+
+        @Override
+        public void publishFirst()
+        {
+            published.add( committedTx );
+        }
+
+        @Override
+        public void publish( long txId )
+        {
+            published.add( txId );
+        }
+    }
+}
@@ -20,7 +20,9 @@
 package org.neo4j.kernel.impl.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.junit.Before;
@@ -97,6 +99,247 @@ public class TestGCResistantCache
         assertEquals( 0, cache.size() );
     }
     
+    @Test
+    public void assertThatEntitiesInTheSameSetCanBeCachedTogether()
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( GCResistantCache.WAYS ) );
+        Entity[] entities = new Entity[GCResistantCache.WAYS];
+        for ( int i = 0; i < entities.length; i++ )
+        {
+            entities[i] = new Entity( i, 1 );
+            cache.put( entities[i] );
+        }
+        for ( Entity entity : entities )
+        {
+            assertEquals( entity, cache.get( entity.getId() ) );
+        }
+        assertEquals( entities.length, cache.size() );
+    }
+
+    @Test
+    public void assertThatEntityBeingReadSurvivesEviction()
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( GCResistantCache.WAYS ) );
+        Entity hot = new Entity( 0, 1 );
+        cache.put( hot );
+        for ( int i = 1; i < 100; i++ )
+        {
+            assertEquals( hot, cache.get( hot.getId() ) );
+            cache.put( new Entity( i, 1 ) );
+        }
+        assertEquals( hot, cache.get( hot.getId() ) );
+        assertEquals( GCResistantCache.WAYS, cache.size() );
+    }
+
+    @Test
+    public void assertThatSizeAddsUpWhenSizesAreUpdatedWhileEntitiesAreRemoved() throws Exception
+    {
+        final AtomicReferenceArray<Entity> array = new AtomicReferenceArray<Entity>( 64 );
+        cache = new GCResistantCache<Entity>( array );
+        final Entity[] entities = new Entity[32];
+        for ( int i = 0; i < entities.length; i++ )
+        {
+            entities[i] = new Entity( i, 10 );
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread resizer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for ( int size = 0; !done.get(); size = (size + 1) % 100 )
+                {
+                    for ( Entity entity : entities )
+                    {
+                        cache.updateSize( entity, size );
+                    }
+                }
+            }
+        };
+        resizer.start();
+        for ( int round = 0; round < 20000; round++ )
+        {
+            Entity entity = entities[round % entities.length];
+            cache.put( entity );
+            cache.remove( entity.getId() );
+            cache.put( entity );
+        }
+        done.set( true );
+        resizer.join();
+        assertEquals( registeredSize( array ), cache.size() );
+    }
+
+    private static long registeredSize( AtomicReferenceArray<Entity> array )
+    {
+        long size = 0;
+        for ( int i = 0; i < array.length(); i++ )
+        {
+            Entity entity = array.get( i );
+            if ( entity != null ) size += entity.getRegisteredSize();
+        }
+        return size;
+    }
+
+    @Test
+    public void assertThatCacheIsPurgedInTheBackground() throws Exception
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( 1024 ), 100 );
+        for ( int i = 0; i < 200; i++ )
+        {
+            cache.put( new Entity( i, 1 ) );
+            assertTrue( "Cache grew to " + cache.size(), cache.size() <= 106 );
+        }
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( cache.size() > 90 && System.currentTimeMillis() < endTime )
+        {
+            Thread.sleep( 10 );
+        }
+        assertTrue( "Cache still at " + cache.size(), cache.size() <= 90 );
+    }
+
+    @Test
+    public void assertThatEvictorGoesIdleWhenThereIsNothingToEvict() throws Exception
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( 1024 ), 100 );
+        for ( int i = 0; i < 20; i++ )
+        {
+            // Registers no size, so evicting it doesn't make the cache any smaller
+            cache.put( new Entity( i, 10 )
+            {
+                @Override
+                public int getRegisteredSize()
+                {
+                    return 0;
+                }
+            } );
+        }
+        assertTrue( cache.size() > 100 );
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( (cache.purgeCount() == 0 || histogramTotal( cache.getPurgeTimeHistogram() ) < cache.purgeCount() )
+                && System.currentTimeMillis() < endTime )
+        {
+            Thread.sleep( 10 );
+        }
+        long purges = cache.purgeCount();
+        Thread.sleep( GCResistantCache.PURGE_BACKOFF_MILLIS / 2 );
+        assertEquals( purges, cache.purgeCount() );
+        assertTrue( cache.size() > 100 );
+    }
+
+    @Test
+    public void assertThatClearedEntitiesAreGoneAndReclaimedInTheBackground() throws Exception
+    {
+        AtomicReferenceArray<Entity> array = new AtomicReferenceArray<Entity>( 1024 );
+        cache = new GCResistantCache<Entity>( array, 1000 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            cache.put( new Entity( i, 1 ) );
+        }
+        cache.clear();
+        assertEquals( 0, cache.size() );
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( null, cache.get( i ) );
+        }
+        Entity entity = new Entity( 5, 1 );
+        cache.put( entity );
+        assertEquals( entity, cache.get( 5 ) );
+        assertEquals( 1, cache.size() );
+
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( occupiedSlots( array ) > 1 && System.currentTimeMillis() < endTime )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, occupiedSlots( array ) );
+        assertEquals( entity, cache.get( 5 ) );
+    }
+
+    private static int occupiedSlots( AtomicReferenceArray<?> array )
+    {
+        int occupied = 0;
+        for ( int i = 0; i < array.length(); i++ )
+        {
+            if ( array.get( i ) != null ) occupied++;
+        }
+        return occupied;
+    }
+
+    @Test
+    public void assertThatSizeAddsUpWhenClearingWhilePutting() throws Exception
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( 1024 ) );
+        final int ids = 512;
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] putters = new Thread[4];
+        for ( int i = 0; i < putters.length; i++ )
+        {
+            putters[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for ( long id = 0; !done.get(); id = (id + 1) % ids )
+                    {
+                        cache.put( new Entity( id, 10 ) );
+                    }
+                }
+            };
+            putters[i].start();
+        }
+        for ( int i = 0; i < 1000; i++ )
+        {
+            cache.clear();
+            Thread.yield();
+        }
+        done.set( true );
+        for ( Thread putter : putters )
+        {
+            putter.join();
+        }
+        long size = 0;
+        for ( long id = 0; id < ids; id++ )
+        {
+            Entity entity = cache.get( id );
+            if ( entity != null ) size += entity.getRegisteredSize();
+        }
+        assertEquals( size, cache.size() );
+    }
+
+    @Test
+    public void assertThatHitsMissesAndPurgesAreCounted() throws Exception
+    {
+        cache = new GCResistantCache<Entity>( new AtomicReferenceArray<Entity>( 1024 ), 100 );
+        for ( int i = 0; i < 200; i++ )
+        {
+            cache.put( new Entity( i, 1 ) );
+        }
+        for ( int i = 0; i < 200; i++ )
+        {
+            cache.get( i );
+        }
+        assertEquals( 200, cache.hitCount() + cache.missCount() );
+        assertTrue( cache.hitCount() > 0 );
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( (cache.purgeCount() == 0 || histogramTotal( cache.getPurgeTimeHistogram() ) < cache.purgeCount() )
+                && System.currentTimeMillis() < endTime )
+        {
+            Thread.sleep( 10 );
+        }
+        assertTrue( cache.purgeCount() > 0 );
+        assertEquals( cache.purgeCount(), histogramTotal( cache.getPurgeTimeHistogram() ) );
+    }
+
+    private static long histogramTotal( long[] histogram )
+    {
+        long total = 0;
+        for ( long count : histogram )
+        {
+            total += count;
+        }
+        return total;
+    }
+
     @Test(expected = NullPointerException.class )
     public void assertNullPutTriggersNPE()
     {